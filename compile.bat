@@ -17,6 +17,21 @@ jar cfm ..\IoTDevice.jar deviceManifest.txt -C device .
 jar uf ..\IoTDevice.jar -C utils Message.class
 jar uf ..\IoTDevice.jar -C utils MessageCode.class
 jar uf ..\IoTDevice.jar -C utils Utils.class
+jar uf ..\IoTDevice.jar -C utils MessageChannel.class
+jar uf ..\IoTDevice.jar -C utils ObjectStreamChannel.class
+jar uf ..\IoTDevice.jar -C utils FramedChannel.class
+jar uf ..\IoTDevice.jar -C utils FileDigestCache.class
+jar uf ..\IoTDevice.jar -C utils FileDigestCache$Entry.class
+jar uf ..\IoTDevice.jar -C utils MessageCodec.class
+jar uf ..\IoTDevice.jar -C utils MessageCodec$Writer.class
+jar uf ..\IoTDevice.jar -C utils ImageEnvelope.class
+jar uf ..\IoTDevice.jar -C utils DataCipher.class
+jar uf ..\IoTDevice.jar -C utils DataCipher$PbeKey.class
+jar uf ..\IoTDevice.jar -C utils TemperatureDecoder.class
+jar uf ..\IoTDevice.jar -C utils TemperatureDecoder$Sink.class
+jar uf ..\IoTDevice.jar -C utils TemperatureDecoder$Entry.class
+jar uf ..\IoTDevice.jar -C utils TemperatureTable.class
+jar uf ..\IoTDevice.jar -C utils TemperatureTable$Builder.class
 
 cd ..
 rd /s /q bin
\ No newline at end of file
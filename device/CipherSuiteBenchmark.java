@@ -0,0 +1,86 @@
+import java.nio.ByteBuffer;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Programa que mede o custo de cifrar e decifrar uma temperatura com cada
+ * versão do DataCipher:
+ * - pbe: PBEWithHmacSHA256AndAES_128, que deriva a chave da password do
+ * domínio em cada temperatura, ao cifrar e ao decifrar
+ * - aes-gcm: AES/GCM com a chave de dados do domínio, derivada só uma vez
+ *
+ * Mede também o tamanho guardado por temperatura (dados cifrados e
+ * parâmetros) e o custo de derivar a chave de dados, pago uma vez por chave de
+ * domínio. Não contacta o servidor
+ *
+ * Uso: java -cp IoTDevice.jar CipherSuiteBenchmark [leituras] [rondas]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class CipherSuiteBenchmark {
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int readings = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        SecretKey domainKey = Utils.generateSecretKey("domain-password", Utils.generateSalt(),
+                Utils.generateIterations());
+
+        long start = System.nanoTime();
+        DataCipher.dataKey(domainKey);
+        System.out.printf("aes-gcm data key derivation (once per domain key): %.1f ms%n",
+                (System.nanoTime() - start) / 1e6);
+
+        int[] suites = { DataCipher.SUITE_PBE, DataCipher.SUITE_GCM };
+        String[] names = { "pbe", "aes-gcm" };
+        byte[][][] data = new byte[suites.length][][];
+        byte[][][] params = new byte[suites.length][][];
+        for (int s = 0; s < suites.length; s++) {
+            data[s] = new byte[readings][];
+            params[s] = new byte[readings][];
+            // aquecimento
+            encrypt(suites[s], domainKey, data[s], params[s], Math.max(1, readings / 10));
+            decrypt(domainKey, data[s], params[s], Math.max(1, readings / 10));
+        }
+
+        System.out.printf("%-8s %6s %14s %14s %14s%n", "suite", "round", "encrypt us/op", "decrypt us/op",
+                "bytes/reading");
+        for (int round = 1; round <= rounds; round++) {
+            for (int s = 0; s < suites.length; s++) {
+                start = System.nanoTime();
+                encrypt(suites[s], domainKey, data[s], params[s], readings);
+                double encryptUs = (System.nanoTime() - start) / 1e3 / readings;
+                start = System.nanoTime();
+                decrypt(domainKey, data[s], params[s], readings);
+                double decryptUs = (System.nanoTime() - start) / 1e3 / readings;
+                System.out.printf("%-8s %6d %14.1f %14.1f %14d%n", names[s], round, encryptUs, decryptUs,
+                        data[s][0].length + params[s][0].length);
+            }
+        }
+    }
+
+    private static void encrypt(int suite, SecretKey domainKey, byte[][] data, byte[][] params, int readings)
+            throws Exception {
+        for (int i = 0; i < readings; i++) {
+            Cipher cipher = DataCipher.encryptor(suite, domainKey);
+            data[i] = cipher.doFinal(ByteBuffer.allocate(Float.BYTES).putFloat(20f + i % 10).array());
+            params[i] = DataCipher.params(cipher);
+        }
+    }
+
+    private static void decrypt(SecretKey domainKey, byte[][] data, byte[][] params, int readings)
+            throws Exception {
+        for (int i = 0; i < readings; i++) {
+            float temp = ByteBuffer.wrap(DataCipher.decrypt(domainKey, params[i], data[i])).getFloat();
+            if (temp != 20f + i % 10) {
+                throw new IllegalStateException("Wrong temperature " + temp);
+            }
+            sink = temp;
+        }
+    }
+}
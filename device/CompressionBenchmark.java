@@ -0,0 +1,147 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * Programa que mede o efeito da compressão das imagens (ImageCompression)
+ * antes da cifra: bytes cifrados enviados e guardados no servidor por
+ * domínio, com e sem compressão, e débito de compressão e descompressão.
+ *
+ * Sem argumentos usa amostras sintéticas: dados aleatórios (como um JPEG, que
+ * já vem comprimido), um bitmap de 24 bits sem compressão e uma leitura de
+ * temperatura. Com argumentos mede os ficheiros indicados
+ *
+ * Uso: java -cp IoTDevice.jar CompressionBenchmark [ficheiro ...]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class CompressionBenchmark {
+
+    private static final int BLOCK_SIZE = 16;
+
+    public static void main(String[] args) throws IOException {
+        List<String> names = new ArrayList<>();
+        List<byte[]> payloads = new ArrayList<>();
+
+        if (args.length == 0) {
+            names.add("random 1 MiB (jpeg-like)");
+            payloads.add(randomBytes(1 << 20));
+            names.add("bitmap 1 MiB (24-bit)");
+            payloads.add(bitmap(1 << 20));
+            names.add("temperature (float)");
+            payloads.add(ByteBuffer.allocate(Float.BYTES).putFloat(21.5f).array());
+        } else {
+            for (String file : args) {
+                names.add(Paths.get(file).getFileName().toString());
+                payloads.add(Files.readAllBytes(Paths.get(file)));
+            }
+        }
+
+        System.out.printf("%-26s %12s %12s %12s %8s %12s %12s%n", "payload", "size", "encrypted", "compressed",
+                "saved", "comp MB/s", "decomp MB/s");
+        for (int i = 0; i < payloads.size(); i++) {
+            byte[] payload = payloads.get(i);
+            byte[] frames = compress(payload);
+
+            // tamanho cifrado em CBC com padding, igual no envio e no disco do servidor
+            long encrypted = encryptedSize(payload.length);
+            long compressed = encryptedSize(frames.length);
+
+            int n = Math.max(1, (64 << 20) / Math.max(payload.length, 1 << 16));
+            double compRate = compressRate(payload, n);
+            double decompRate = decompressRate(frames, payload.length, n);
+
+            System.out.printf("%-26s %10d B %10d B %10d B %7.1f%% %12.1f %12.1f%n", names.get(i), payload.length,
+                    encrypted, compressed, 100.0 * (encrypted - compressed) / encrypted, compRate, decompRate);
+        }
+    }
+
+    /**
+     * Método que comprime um payload em frames, como no EI
+     */
+    private static byte[] compress(byte[] payload) throws IOException {
+        Deflater deflater = ImageCompression.newDeflater();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[Utils.IMAGE_CHUNK_SIZE];
+        int position = 0;
+        do {
+            int length = Math.min(chunk.length, payload.length - position);
+            System.arraycopy(payload, position, chunk, 0, length);
+            out.write(ImageCompression.compressFrame(deflater, chunk, length));
+            position += length;
+        } while (position < payload.length);
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static long encryptedSize(long length) {
+        return (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * Método que mede o débito de compressão em MB/s de imagem em claro
+     */
+    private static double compressRate(byte[] payload, int n) throws IOException {
+        compress(payload);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            compress(payload);
+        }
+        return (double) payload.length * n / (System.nanoTime() - start) * 1e9 / (1 << 20);
+    }
+
+    /**
+     * Método que mede o débito de descompressão em MB/s de imagem em claro
+     */
+    private static double decompressRate(byte[] frames, int size, int n) throws IOException {
+        ByteArrayOutputStream sink = new ByteArrayOutputStream(size);
+        long start = 0;
+        for (int i = 0; i <= n; i++) {
+            if (i == 1) {
+                start = System.nanoTime();
+            }
+            sink.reset();
+            try (OutputStream out = ImageCompression.decompressing(sink)) {
+                out.write(frames);
+            }
+            if (sink.size() != size) {
+                throw new IllegalStateException("Decompressed size mismatch");
+            }
+        }
+        return (double) size * n / (System.nanoTime() - start) * 1e9 / (1 << 20);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] b = new byte[size];
+        new Random(42).nextBytes(b);
+        return b;
+    }
+
+    /**
+     * Método que gera uma imagem RGB com gradientes e algum ruído, como uma
+     * fotografia guardada sem compressão
+     */
+    private static byte[] bitmap(int size) {
+        Random random = new Random(42);
+        byte[] b = new byte[size];
+        int width = 512;
+        for (int i = 0; i + 2 < size; i += 3) {
+            int pixel = i / 3;
+            int x = pixel % width;
+            int y = pixel / width;
+            b[i] = (byte) (x / 2 + random.nextInt(4));
+            b[i + 1] = (byte) (y / 3 + random.nextInt(4));
+            b[i + 2] = (byte) ((x + y) / 4);
+        }
+        return b;
+    }
+}
@@ -4,10 +4,10 @@ import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Signature;
@@ -28,27 +28,93 @@ public class DeviceAuthenticationHandler {
 
     private Scanner sc = new Scanner(System.in);
 
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    private MessageChannel channel;
     private KeyStore keystore;
     private String keystorePassword;
+    private Path ticketFile = null;
+
+    // digest do executável, guardado entre execuções e recalculado se o jar mudar
+    private FileDigestCache execDigests = new FileDigestCache(Paths.get("exec_digest.cache"));
 
     /**
      * Construtor da classe DeviceAuthenticationHandler
      * 
-     * @param in               Stream de input
-     * @param out              Stream de output
+     * @param channel          Canal de mensagens com o servidor
      * @param keystore         Keystore do dispositivo
      * @param keystorePassword Password da keystore
      */
-    public DeviceAuthenticationHandler(ObjectInputStream in, ObjectOutputStream out, KeyStore keystore,
-            String keystorePassword) {
-        this.out = out;
-        this.in = in;
+    public DeviceAuthenticationHandler(MessageChannel channel, KeyStore keystore, String keystorePassword) {
+        this.channel = channel;
         this.keystore = keystore;
         this.keystorePassword = keystorePassword;
     }
 
+    /**
+     * Metodo que tenta retomar a sessão com o ticket guardado numa ligação
+     * anterior, evitando o 2FA e a verificação do executável. O ticket é assinado
+     * com a chave privada do utilizador para provar que pertence a este
+     * dispositivo
+     * 
+     * @param username id do utilizador
+     * @param id       id do dispositivo
+     * @return true se a sessão foi retomada, false se é preciso fazer a
+     *         autenticação completa
+     */
+    public boolean resumeSession(String username, String id) {
+        this.ticketFile = Paths.get("session_ticket_" + username + "_" + id + ".bin");
+        if (!Files.exists(ticketFile)) {
+            return false;
+        }
+
+        try {
+            byte[] ticket = Files.readAllBytes(ticketFile);
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign((PrivateKey) keystore.getKey(username, keystorePassword.toCharArray()));
+            signature.update(ticket);
+
+            Message msg = new Message();
+            msg.setCommand("RESUME");
+            msg.setUser(username);
+            msg.setDevId(id);
+            msg.setData(ticket);
+            msg.setSignature(signature.sign());
+            channel.writeMessage(msg);
+
+            msg = channel.readMessage();
+            if (msg != null && msg.getCode() == MessageCode.OK) {
+                saveTicket(msg.getData());
+                System.out.println("Session resumed!");
+                return true;
+            }
+        } catch (Exception e) {
+            System.err.println("Error resuming session: " + e.getMessage());
+        }
+
+        // o ticket já não é aceite, fica a autenticação completa
+        try {
+            Files.deleteIfExists(ticketFile);
+        } catch (IOException e) {
+            System.err.println("Error deleting session ticket");
+        }
+        return false;
+    }
+
+    /**
+     * Metodo que guarda o ticket de retoma de sessão enviado pelo servidor
+     * 
+     * @param ticket ticket recebido, ou null se o servidor não o enviou
+     */
+    private void saveTicket(byte[] ticket) {
+        if (ticket == null || ticketFile == null) {
+            return;
+        }
+        try {
+            Files.write(ticketFile, ticket);
+        } catch (IOException e) {
+            System.err.println("Error saving session ticket");
+        }
+    }
+
     /**
      * Metodo que inicia a autenticação 2FA do dispositivo
      * 
@@ -69,15 +135,15 @@ public class DeviceAuthenticationHandler {
         Message msg = new Message();
 
         do {
-            out.reset();
+            channel.reset();
             msg.clear();
             // ------------------------------------------------------- //
             // --------primeiro metodo de autenticacao - 4.2.1-------- //
             // ------------------------------------------------------- //
 
             msg.setUser(username);
-            out.writeObject(msg);
-            msg = (Message) in.readObject();
+            channel.writeMessage(msg);
+            msg = channel.readMessage();
             Long receivedNonce = msg.getNonce();
             System.out.println("Received nonce: " + receivedNonce + "\n");
 
@@ -98,9 +164,9 @@ public class DeviceAuthenticationHandler {
                 msg.setCertificate(certificate);
             }
 
-            out.writeObject(msg);
+            channel.writeMessage(msg);
 
-            msg = (Message) in.readObject();
+            msg = channel.readMessage();
 
             System.out.println("Server response: " + msg.getCode() + "\n");
 
@@ -118,12 +184,12 @@ public class DeviceAuthenticationHandler {
                 String code = sc.nextLine();
                 msg.clear();
                 msg.setC2FA(code);
-                out.writeObject(msg);
+                channel.writeMessage(msg);
             } catch (NoSuchElementException e) {
                 return false;
             }
 
-            msg = (Message) in.readObject();
+            msg = channel.readMessage();
 
             if (msg.getCode() == MessageCode.OK) {
                 System.out.println("Authenticated!");
@@ -134,11 +200,11 @@ public class DeviceAuthenticationHandler {
                 System.out.println("Authentication failed. Do you want to try again? (Y/N)");
                 if (sc.hasNextLine() && sc.nextLine().toUpperCase().equals("N")) {
                     msg.setCommand("EXIT");
-                    out.writeObject(msg);
+                    channel.writeMessage(msg);
                     return false;
                 } else {
                     msg.setCommand("AGAIN");
-                    out.writeObject(msg);
+                    channel.writeMessage(msg);
                 }
             }
         } while (!authenticated);
@@ -160,38 +226,44 @@ public class DeviceAuthenticationHandler {
         Message msg = new Message();
 
         msg.setDevId(id);
-        Utils.writeMessage(msg, this.out);
+        // pede a versão 2 da verificação, um servidor antigo ignora o pedido
+        msg.setCommand("ATTEST_V2");
+        this.channel.writeMessage(msg);
 
-        msg = Utils.readMessage(this.in);
+        msg = this.channel.readMessage();
 
         if (msg.getCode() == MessageCode.NOK_DEVID) {
             return false;
         }
 
         Long receivedNonce = msg.getNonce();
+        boolean v2 = "ATTEST_V2_OK".equals(msg.getCommand());
 
         msg.clear();
         Path jarPath = Paths.get(IoTDevice.class.getProtectionDomain().getCodeSource().getLocation().toURI());
         System.out.println("Received nonce: " + receivedNonce + "\n");
-        byte[] fileBytes = Files.readAllBytes(jarPath);
-        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + fileBytes.length);
-        buffer.putLong(receivedNonce);
-        buffer.put(fileBytes);
-        byte[] concatBytes = buffer.array();
 
-        // hash SHA-256
-        MessageDigest digest = MessageDigest.getInstance("SHA-256");
-        byte[] hashedBytes = digest.digest(concatBytes);
+        byte[] hashedBytes;
+        try {
+            if (v2) {
+                hashedBytes = Utils.execProofV2(receivedNonce, execDigests.digest(jarPath));
+            } else {
+                hashedBytes = Utils.execProofV1(receivedNonce, jarPath);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new NoSuchAlgorithmException(e.getMessage());
+        }
 
         msg.setData(hashedBytes);
-        out.writeObject(msg);
+        channel.writeMessage(msg);
 
         msg.clear();
 
-        msg = Utils.readMessage(this.in);
+        msg = this.channel.readMessage();
 
         if (msg.getCode() == MessageCode.OK_TESTED) {
             System.out.println("Exec check was successful!");
+            saveTicket(msg.getData());
         } else {
             System.out.println("Exec check failed!");
             return false;
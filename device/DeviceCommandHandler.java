@@ -1,33 +1,51 @@
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
-import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
+import java.security.spec.InvalidParameterSpecException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEParameterSpec;
 
 /**
  * Classe que representa um handler para o controlo de comandos de um
@@ -39,13 +57,60 @@ import javax.crypto.SecretKey;
  */
 public class DeviceCommandHandler {
 
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
+    // partes de imagem em curso de cada vez nos EI e RI
+    private static final int IMAGE_WINDOW = 4;
+    // um EI recusado (STALE) ou que não pode ser retomado começa de novo uma vez
+    private static final int IMAGE_ATTEMPTS = 2;
+
+    private MessageChannel channel;
+    private RequestPipeline requests;
     private String username;
     private String id;
-    private KeyStore keystore;
     private KeyStore truststore;
-    private String keystorePassword;
+    private String imageCompression = null; // compressão pedida nos EI, null se desligada
+
+    // private key e chaves dos domínios já decifradas
+    private final DomainKeyCache keys;
+
+    // última resposta ao MYDOMAINS, com a época dos domínios (null para pedir de novo)
+    private volatile Message membership = null;
+    private final Object membershipLock = new Object();
+    private long membershipVersion = 0; // muda a cada invalidação, com o membershipLock
+
+    // ET e ET_BATCH são cifrados e enviados um de cada vez, pela ordem em que
+    // são pedidos, e os reenvios depois de um STALE passam à frente dos novos
+    private final Object sendLock = new Object();
+    // enviados com época e ainda sem resposta final, pela ordem de envio, e os
+    // que esperam ser reenviados (ambos com o lock de writes)
+    private final Deque<DomainsWrite> writes = new ArrayDeque<>();
+    private final Deque<DomainsWrite> resends = new ArrayDeque<>();
+    // ET e ET_BATCH à espera de resposta, incluindo os reenviados depois de um STALE
+    private final Set<CompletableFuture<Message>> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Pedido cifrado para os domínios do dispositivo
+     */
+    private interface DomainsRequest {
+        /**
+         * @param membership resposta ao MYDOMAINS
+         * @return pedido a enviar, ou null se não houver nada a enviar
+         */
+        Message build(Message membership) throws GeneralSecurityException, IOException;
+    }
+
+    /**
+     * Pedido cifrado para os domínios já enviado, à espera da resposta final
+     */
+    private static final class DomainsWrite {
+        private final DomainsRequest request;
+        private final CompletableFuture<Message> response = new CompletableFuture<>();
+        private Long epoch; // época com que foi enviado
+        private Message stale; // STALE que o fez ser reenviado, null se não foi
+
+        private DomainsWrite(DomainsRequest request) {
+            this.request = request;
+        }
+    }
 
     /**
      * Construtor da classe
@@ -54,24 +119,31 @@ public class DeviceCommandHandler {
      * @author João Pereira fc58189
      * @author Daniel Nunes fc58257
      * 
-     * @param in               ObjectInputStream
-     * @param out              ObjectOutputStream
+     * @param channel          canal de mensagens com o servidor
      * @param username         username
      * @param id               id do device
      * @param keystore         ficheiro keystore
      * @param truststore       ficheiro truststore
      * @param keystorePassword password do keystore
      */
-    public DeviceCommandHandler(ObjectInputStream in, ObjectOutputStream out, String username, String id,
-            KeyStore keystore,
+    public DeviceCommandHandler(MessageChannel channel, String username, String id, KeyStore keystore,
             KeyStore truststore, String keystorePassword) {
-        this.in = in;
-        this.out = out;
+        this.channel = channel;
+        this.requests = new RequestPipeline(channel);
         this.username = username;
         this.id = id;
-        this.keystore = keystore;
         this.truststore = truststore;
-        this.keystorePassword = keystorePassword;
+        this.keys = new DomainKeyCache(keystore, username, keystorePassword);
+    }
+
+    /**
+     * Método que define a compressão a aplicar às imagens antes de as cifrar
+     * 
+     * @param imageCompression ImageCompression.DEFLATE, ou null para não
+     *                         comprimir
+     */
+    public void setImageCompression(String imageCompression) {
+        this.imageCompression = imageCompression;
     }
 
     /* --------------------------- REQUEST OPERATIONS --------------------------- */
@@ -86,8 +158,7 @@ public class DeviceCommandHandler {
 
         msg.setCommand("CREATE");
         msg.setDomain(domainName);
-        Utils.writeMessage(msg, out);
-        msg = Utils.readMessage(this.in);
+        msg = this.requests.call(msg);
         System.out.println("Response: " + msg.getCode().getDescription());
 
     }
@@ -119,9 +190,7 @@ public class DeviceCommandHandler {
             Message msg2 = new Message();
             msg2.setCommand("GET_CERTIFICATE");
             msg2.setUser(user);
-            Utils.writeMessage(msg2, this.out);
-
-            msg2 = Utils.readMessage(this.in);
+            msg2 = this.requests.call(msg2);
 
             if (msg2.getCode() == MessageCode.OK) {
                 userCert = msg2.getCertificate();
@@ -139,12 +208,14 @@ public class DeviceCommandHandler {
         int iterations = (int) objs[2];
 
         msg.setData(wrappedKey);
-        Utils.writeMessage(msg, this.out);
-
-        msg = Utils.readMessage(this.in);
+        msg = this.requests.call(msg);
         System.out.println("Response: " + msg.getCode().getDescription());
 
         if (msg.getCode() == MessageCode.OK) {
+            if (user.equals(username)) {
+                // a nossa chave do domínio pode ter mudado
+                invalidateMembership(null);
+            }
             String params = domain + " " + Base64.getEncoder().encodeToString(salt) + " " + iterations + "\n";
             saveDomainKeyParams(params);
         }
@@ -234,8 +305,10 @@ public class DeviceCommandHandler {
         Message msg = new Message();
         msg.setCommand("RD");
         msg.setDomain(domain);
-        Utils.writeMessage(msg, this.out);
-        msg = Utils.readMessage(this.in);
+        msg = this.requests.call(msg);
+        if (msg.getCode() == MessageCode.OK) {
+            invalidateMembership(null);
+        }
         System.out.println("Response: " + msg.getCode().getDescription());
     }
 
@@ -252,59 +325,188 @@ public class DeviceCommandHandler {
      * @throws IOException
      * @throws UnrecoverableKeyException
      * @throws KeyStoreException
+     * @throws GeneralSecurityException
      */
     public void registerTemperatureRequest(float temperature)
             throws ClassNotFoundException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
-            IllegalBlockSizeException, BadPaddingException, IOException, UnrecoverableKeyException, KeyStoreException {
-        Message msg = new Message();
-        msg = obtainDomains(username, id);
-        List<String> domains = msg.getDomains();
-        List<byte[]> userKeys = msg.getDataList();
-
-        if (domains == null) {
-            System.out.println("Device is not registered in any domain!");
-            return;
+            IllegalBlockSizeException, BadPaddingException, IOException, UnrecoverableKeyException, KeyStoreException,
+            GeneralSecurityException {
+        CompletableFuture<Message> response = sendTemperature(temperature);
+        if (response != null) {
+            // não espera pela resposta, o próximo comando pode ser enviado já
+            printWhenDone("ET", response);
         }
+    }
 
-        byte[] temp = ByteBuffer.allocate(Float.BYTES).putFloat(temperature).array();
+    /**
+     * Método que envia uma temperatura sem esperar pela resposta
+     * 
+     * @param temperature temperatura a ser registada
+     * @return resposta do servidor, ou null se o dispositivo não está registado
+     *         em nenhum domínio
+     * @throws ClassNotFoundException
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws IOException
+     * @throws UnrecoverableKeyException
+     * @throws KeyStoreException
+     * @throws GeneralSecurityException
+     */
+    public CompletableFuture<Message> sendTemperature(float temperature)
+            throws ClassNotFoundException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, IOException, UnrecoverableKeyException, KeyStoreException,
+            GeneralSecurityException {
+        return sendToDomains(membership -> {
+            List<String> domains = membership.getDomains();
+            List<byte[]> userKeys = membership.getDataList();
+
+            if (domains == null) {
+                System.out.println("Device is not registered in any domain!");
+                return null;
+            }
 
-        List<byte[]> temps = new ArrayList<>();
-        List<byte[]> paramsTemp = new ArrayList<>();
+            byte[] temp = ByteBuffer.allocate(Float.BYTES).putFloat(temperature).array();
+            int suite = dataSuite(membership);
 
-        PrivateKey privateKey = (PrivateKey) keystore.getKey(username, keystorePassword.toCharArray());
+            List<byte[]> temps = new ArrayList<>();
+            List<byte[]> paramsTemp = new ArrayList<>();
 
-        for (byte[] domainKey : userKeys) {
+            for (int i = 0; i < userKeys.size(); i++) {
+                byte[] domainKey = userKeys.get(i);
 
-            if (domainKey != null) {
+                if (domainKey != null) {
 
-                // decifrar chave com a nossa private key
-                Cipher cipher = Cipher.getInstance("RSA");
-                cipher.init(Cipher.UNWRAP_MODE, privateKey);
-                SecretKey domainKeyDec = (SecretKey) cipher.unwrap(domainKey, "PBEWithHmacSHA256AndAES_128",
-                        Cipher.SECRET_KEY);
+                    // decifrar chave com a nossa private key (só se mudou)
+                    SecretKey domainKeyDec = domainKey(domains.get(i), domainKey);
 
-                Cipher cipher2 = Cipher.getInstance("PBEWithHmacSHA256AndAES_128");
-                cipher2.init(Cipher.ENCRYPT_MODE, domainKeyDec);
+                    Cipher cipher2 = DataCipher.encryptor(suite, domainKeyDec);
 
-                temps.add(cipher2.doFinal(temp));
-                byte[] params = cipher2.getParameters().getEncoded();
-                paramsTemp.add(params);
+                    temps.add(cipher2.doFinal(temp));
+                    paramsTemp.add(DataCipher.params(cipher2));
+                }
             }
+
+            Message msg = new Message();
+            msg.setCommand("ET");
+            msg.setDomains(domains);
+            msg.setDataList(temps);
+            msg.setParams(paramsTemp);
+            return msg;
+        });
+    }
+
+    /**
+     * Método que regista várias temperaturas com instante num único pedido
+     * (ET_BATCH)
+     * 
+     * @param temperatures temperaturas a serem registadas
+     * @param timestamps   instante de cada temperatura em milissegundos
+     * @throws ClassNotFoundException
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws IOException
+     * @throws UnrecoverableKeyException
+     * @throws KeyStoreException
+     * @throws GeneralSecurityException
+     */
+    public void registerTemperatureBatchRequest(List<Float> temperatures, List<Long> timestamps)
+            throws ClassNotFoundException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, IOException, UnrecoverableKeyException, KeyStoreException,
+            GeneralSecurityException {
+        CompletableFuture<Message> response = sendTemperatureBatch(temperatures, timestamps);
+        if (response != null) {
+            printWhenDone("ET_BATCH", response);
         }
+    }
+
+    /**
+     * Método que envia várias temperaturas num único pedido sem esperar pela
+     * resposta. Os domínios são obtidos e a chave de cada domínio é decifrada
+     * uma só vez para todo o lote; cada leitura continua a ser cifrada
+     * individualmente, para que o RT a possa devolver como uma temperatura
+     * normal
+     * 
+     * @param temperatures temperaturas a serem registadas
+     * @param timestamps   instante de cada temperatura em milissegundos
+     * @return resposta do servidor, ou null se o dispositivo não está registado
+     *         em nenhum domínio
+     * @throws ClassNotFoundException
+     * @throws InvalidKeyException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws IllegalBlockSizeException
+     * @throws BadPaddingException
+     * @throws IOException
+     * @throws UnrecoverableKeyException
+     * @throws KeyStoreException
+     * @throws GeneralSecurityException
+     */
+    public CompletableFuture<Message> sendTemperatureBatch(List<Float> temperatures, List<Long> timestamps)
+            throws ClassNotFoundException, InvalidKeyException, NoSuchAlgorithmException, NoSuchPaddingException,
+            IllegalBlockSizeException, BadPaddingException, IOException, UnrecoverableKeyException, KeyStoreException,
+            GeneralSecurityException {
+        return sendToDomains(membership -> {
+            List<String> domains = membership.getDomains();
+            List<byte[]> userKeys = membership.getDataList();
+
+            if (domains == null || userKeys == null) {
+                System.out.println("Device is not registered in any domain!");
+                return null;
+            }
 
-        msg.setCommand("ET");
-        msg.setDomains(domains);
-        msg.setDataList(temps);
-        msg.setParams(paramsTemp);
-        Utils.writeMessage(msg, this.out);
+            int suite = dataSuite(membership);
+            List<String> batchDomains = new ArrayList<>();
+            List<byte[]> temps = new ArrayList<>();
+            List<byte[]> paramsTemp = new ArrayList<>();
 
-        msg = Utils.readMessage(this.in);
+            for (int i = 0; i < domains.size(); i++) {
+                byte[] domainKey = userKeys.get(i);
+                if (domainKey == null) {
+                    continue;
+                }
+                batchDomains.add(domains.get(i));
 
-        System.out.println("Response: " + msg.getCode().getDescription());
+                SecretKey domainKeyDec = domainKey(domains.get(i), domainKey);
+
+                // todas as leituras deste domínio, pela ordem dos timestamps
+                for (float temperature : temperatures) {
+                    Cipher cipher2 = DataCipher.encryptor(suite, domainKeyDec);
+                    temps.add(cipher2.doFinal(ByteBuffer.allocate(Float.BYTES).putFloat(temperature).array()));
+                    paramsTemp.add(DataCipher.params(cipher2));
+                }
+            }
+
+            Message msg = new Message();
+            msg.setCommand("ET_BATCH");
+            msg.setDomains(batchDomains);
+            msg.setTimestamps(timestamps);
+            msg.setDataList(temps);
+            msg.setParams(paramsTemp);
+            return msg;
+        });
     }
 
     /**
-     * Método que regista uma imagem relacionada a um device se possivel
+     * Método que regista uma imagem relacionada a um device se possivel.
+     * 
+     * A imagem é lida e cifrada por partes de IMAGE_CHUNK_SIZE bytes (EI_OPEN,
+     * EI_CHUNK e EI_COMMIT), com no máximo IMAGE_WINDOW partes à espera de
+     * resposta. O estado do upload fica num ficheiro até ao fim, para que um
+     * EI do mesmo ficheiro depois de uma falha de ligação continue a partir da
+     * última parte confirmada pelo servidor.
+     * 
+     * A imagem é cifrada uma só vez, com uma chave de dados nova, e só essa
+     * chave é cifrada com a chave de cada domínio (ImageEnvelope), por isso o
+     * custo da cifra e os bytes enviados não dependem do número de domínios.
+     * 
+     * Se a compressão estiver ligada e o servidor a aceitar, cada parte é
+     * comprimida (ImageCompression) antes de ser cifrada
      * 
      * @param filename nome do ficheiro da imagem
      * @throws ClassNotFoundException
@@ -316,67 +518,302 @@ public class DeviceCommandHandler {
      * @throws NoSuchPaddingException
      * @throws UnrecoverableKeyException
      * @throws KeyStoreException
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidParameterSpecException
+     * @throws GeneralSecurityException
      */
     public void registerImageRequest(String filename) throws ClassNotFoundException, IOException,
             IllegalBlockSizeException, BadPaddingException, InvalidKeyException, NoSuchAlgorithmException,
-            NoSuchPaddingException, UnrecoverableKeyException, KeyStoreException {
-        byte[] data = Utils.getFileContents(filename);
-        if (data == null) {
+            NoSuchPaddingException, UnrecoverableKeyException, KeyStoreException,
+            InvalidAlgorithmParameterException, InvalidParameterSpecException, GeneralSecurityException {
+        Path file = Paths.get(filename).toAbsolutePath();
+        if (!Files.isRegularFile(file)) {
             System.out.println("File not found!");
             return;
         }
+        for (int attempt = 1; attempt <= IMAGE_ATTEMPTS; attempt++) {
+            if (!uploadImage(file, attempt < IMAGE_ATTEMPTS)) {
+                return;
+            }
+        }
+    }
 
-        Message msg = new Message();
-        msg = obtainDomains(username, id);
-        List<String> domains = msg.getDomains();
-        List<byte[]> userKeys = msg.getDataList();
-
-        if (domains == null) {
+    /**
+     * Método que envia uma imagem, retomando o upload guardado se for do mesmo
+     * ficheiro
+     * 
+     * @param file     imagem a enviar
+     * @param canRetry true se o upload pode começar de novo quando os domínios
+     *                 mudaram (STALE) ou o upload guardado não pode ser
+     *                 retomado
+     * @return true se o upload tem de começar de novo
+     * @throws ClassNotFoundException
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    private boolean uploadImage(Path file, boolean canRetry)
+            throws ClassNotFoundException, IOException, GeneralSecurityException {
+        long size = Files.size(file);
+        String fileId = file + "\n" + size + "\n" + Files.getLastModifiedTime(file).toMillis() + "\n"
+                + imageCompression;
+
+        Message msg;
+        Message membership = membership();
+        List<String> domains = membership.getDomains();
+        List<byte[]> userKeys = membership.getDataList();
+
+        if (domains == null || userKeys == null) {
             System.out.println("Device is not registered in any domain!");
-            return;
+            return false;
         }
 
-        List<byte[]> images = new ArrayList<>();
-        List<byte[]> paramsImages = new ArrayList<>();
-
-        PrivateKey privateKey = (PrivateKey) keystore.getKey(username, keystorePassword.toCharArray());
-
-        if (userKeys == null) {
-            System.out.println("Device is not registered in any domain!");
-            return;
+        Map<String, SecretKey> domainKeys = new HashMap<>();
+        for (int i = 0; i < domains.size(); i++) {
+            // decifrar chave com a nossa private key (só se mudou)
+            domainKeys.put(domains.get(i), domainKey(domains.get(i), userKeys.get(i)));
         }
 
-        for (byte[] domainKey : userKeys) {
+        Utils.createDir("device/devicesData");
+        Path state = Paths.get("device/devicesData/image_upload_" + username + "_" + id + ".state");
+
+        List<Cipher> ciphers = new ArrayList<>();
+        Message upload = resumeImageUpload(state, fileId, domainKeys, ciphers);
+        if (upload == null) {
+            // uma chave de dados para a imagem, com um envelope por domínio
+            SecretKey dataKey = ImageEnvelope.newDataKey();
+            byte[] iv = ImageEnvelope.newIv();
+            List<byte[]> paramsImages = new ArrayList<>();
+            for (String domain : domains) {
+                paramsImages.add(ImageEnvelope.seal(dataKey, iv, domainKeys.get(domain)));
+            }
+            Cipher cipher = Cipher.getInstance(ImageEnvelope.DATA_CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, dataKey, new IvParameterSpec(iv));
+            ciphers.add(cipher);
+
+            msg = new Message();
+            msg.setCommand("EI_OPEN");
+            msg.setDomains(domains);
+            msg.setParams(paramsImages);
+            msg.setCompression(imageCompression);
+            msg.setSize(imageCompression != null ? ImageCompression.maxCompressedSize(size) : size);
+            msg.setEpoch(membership.getEpoch());
+            upload = this.requests.call(msg);
+            if (upload != null && upload.getCode() == MessageCode.STALE) {
+                // os domínios mudaram, a imagem é cifrada de novo para a lista atual
+                invalidateMembership(upload.getEpoch());
+                if (canRetry) {
+                    return true;
+                }
+            }
+            if (upload == null || upload.getCode() != MessageCode.OK) {
+                System.out.println("Response: " + (upload == null ? "Server closed connection"
+                        : upload.getCode().getDescription()));
+                return false;
+            }
+            Files.write(state, (upload.getFileName() + "\n" + fileId).getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.println("Resuming upload at byte " + upload.getSize());
+        }
 
-            if (domainKey != null) {
+        String uploadId = upload.getFileName();
+        long offset = upload.getSize(); // bytes cifrados confirmados
+        long position = 0; // bytes da imagem já lidos
+        // o servidor só aceita a compressão se a souber guardar
+        Deflater deflater = ImageCompression.DEFLATE.equals(upload.getCompression())
+                ? ImageCompression.newDeflater()
+                : null;
+        Deque<CompletableFuture<Message>> window = new ArrayDeque<>();
+        byte[] chunk = new byte[Utils.IMAGE_CHUNK_SIZE];
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (deflater == null) {
+                position = offset;
+                in.position(position);
+            } else {
+                // os frames são sempre iguais, volta a comprimir até ao ponto confirmado
+                long skipped = 0;
+                while (skipped < offset && size - position > Utils.IMAGE_CHUNK_SIZE) {
+                    readFully(in, chunk, chunk.length);
+                    skipped += ImageCompression.compressFrame(deflater, chunk, chunk.length).length;
+                    position += chunk.length;
+                }
+                if (skipped != offset) {
+                    Files.deleteIfExists(state);
+                    if (!canRetry) {
+                        System.out.println("Cannot resume upload, run EI again");
+                        return false;
+                    }
+                    System.out.println("Cannot resume upload, starting again");
+                    return true;
+                }
+            }
 
-                // decifrar chave com a nossa private key
-                Cipher cipher = Cipher.getInstance("RSA");
-                cipher.init(Cipher.UNWRAP_MODE, privateKey);
-                SecretKey domainKeyDec = (SecretKey) cipher.unwrap(domainKey, "PBEWithHmacSHA256AndAES_128",
-                        Cipher.SECRET_KEY);
+            while (size - position > Utils.IMAGE_CHUNK_SIZE) {
+                readFully(in, chunk, chunk.length);
+                byte[] block = deflater == null ? chunk
+                        : ImageCompression.compressFrame(deflater, chunk, chunk.length);
+                List<byte[]> parts = new ArrayList<>();
+                for (Cipher cipher : ciphers) {
+                    parts.add(cipher.update(block));
+                }
+                msg = new Message();
+                msg.setCommand("EI_CHUNK");
+                msg.setFileName(uploadId);
+                msg.setSize(offset);
+                msg.setDataList(parts);
+                window.add(this.requests.send(msg));
+                offset += block.length;
+                position += chunk.length;
+
+                if (window.size() >= IMAGE_WINDOW && !imageChunkAccepted(window.poll())) {
+                    return false;
+                }
+            }
+            while (!window.isEmpty()) {
+                if (!imageChunkAccepted(window.poll())) {
+                    return false;
+                }
+            }
 
-                Cipher cipher2 = Cipher.getInstance("PBEWithHmacSHA256AndAES_128");
-                cipher2.init(Cipher.ENCRYPT_MODE, domainKeyDec);
+            int remaining = (int) (size - position);
+            readFully(in, chunk, remaining);
+            byte[] block = chunk;
+            int length = remaining;
+            if (deflater != null) {
+                block = ImageCompression.compressFrame(deflater, chunk, remaining);
+                length = block.length;
+            }
+            List<byte[]> parts = new ArrayList<>();
+            for (Cipher cipher : ciphers) {
+                parts.add(cipher.doFinal(block, 0, length));
+            }
+            msg = new Message();
+            msg.setCommand("EI_COMMIT");
+            msg.setFileName(uploadId);
+            msg.setSize(offset);
+            msg.setDataList(parts);
+            msg = this.requests.call(msg);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
 
-                images.add(cipher2.doFinal(data));
-                byte[] params = cipher2.getParameters().getEncoded();
-                paramsImages.add(params);
+        if (msg == null) {
+            System.out.println("Upload interrupted, run EI again to resume");
+            return false;
+        }
+        // o upload terminou ou o servidor já não o tem, não há nada a retomar
+        Files.deleteIfExists(state);
+        if (msg.getCode() == MessageCode.STALE) {
+            // os domínios mudaram durante o upload, que foi descartado
+            invalidateMembership(msg.getEpoch());
+            if (canRetry) {
+                return true;
             }
         }
+        System.out.println("Response: " + msg.getCode().getDescription());
+        return false;
+    }
+
+    /**
+     * Método que tenta retomar o upload de imagem guardado no ficheiro de
+     * estado, se for do mesmo ficheiro
+     * 
+     * @param state      ficheiro de estado do upload
+     * @param fileId     caminho, tamanho e data de modificação do ficheiro
+     * @param domainKeys chaves dos domínios do dispositivo
+     * @param ciphers    lista onde são colocadas as cifras do upload (uma só
+     *                   se a imagem foi cifrada em envelope, senão uma por
+     *                   domínio), prontas a continuar a partir da última parte
+     *                   confirmada
+     * @return resposta do servidor ao EI_OPEN, ou null se o upload tiver de
+     *         começar de novo
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     * @throws NoSuchPaddingException
+     * @throws InvalidKeyException
+     * @throws InvalidAlgorithmParameterException
+     * @throws InvalidParameterSpecException
+     * @throws GeneralSecurityException
+     */
+    private Message resumeImageUpload(Path state, String fileId, Map<String, SecretKey> domainKeys,
+            List<Cipher> ciphers) throws IOException, NoSuchAlgorithmException, NoSuchPaddingException,
+            InvalidKeyException, InvalidAlgorithmParameterException, InvalidParameterSpecException,
+            GeneralSecurityException {
+        if (!Files.exists(state)) {
+            return null;
+        }
+        String[] saved = new String(Files.readAllBytes(state), StandardCharsets.UTF_8).split("\n", 2);
+        Files.delete(state);
+        if (saved.length < 2 || !saved[1].equals(fileId)) {
+            return null;
+        }
 
-        msg.setCommand("EI");
-        msg.setDomains(domains);
-        msg.setDataList(images);
-        msg.setParams(paramsImages);
-        Utils.writeMessage(msg, this.out);
+        Message msg = new Message();
+        msg.setCommand("EI_OPEN");
+        msg.setFileName(saved[0]);
+        msg = this.requests.call(msg);
+        // sem compressão cada parte tem IMAGE_CHUNK_SIZE bytes cifrados
+        if (msg == null || msg.getCode() != MessageCode.OK || !domainKeys.keySet().containsAll(msg.getDomains())
+                || msg.getCompression() == null && msg.getSize() % Utils.IMAGE_CHUNK_SIZE != 0) {
+            return null;
+        }
 
-        msg = Utils.readMessage(this.in);
-        System.out.println("Response: " + msg.getCode().getDescription());
+        if (ImageEnvelope.isEnvelope(msg.getParams().get(0))) {
+            // a chave de dados é a mesma em todos os envelopes
+            ciphers.add(ImageEnvelope.cipher(Cipher.ENCRYPT_MODE, msg.getParams().get(0),
+                    domainKeys.get(msg.getDomains().get(0)), msg.getSize() == 0 ? null : msg.getDataList().get(0)));
+            Files.write(state, (saved[0] + "\n" + fileId).getBytes(StandardCharsets.UTF_8));
+            return msg;
+        }
+        // upload começado antes da cifra em envelope, com uma cifra por domínio
+        for (int i = 0; i < msg.getDomains().size(); i++) {
+            AlgorithmParameters p = AlgorithmParameters.getInstance("PBEWithHmacSHA256AndAES_128");
+            p.init(msg.getParams().get(i));
+            Cipher cipher = Cipher.getInstance("PBEWithHmacSHA256AndAES_128");
+            if (msg.getSize() == 0) {
+                cipher.init(Cipher.ENCRYPT_MODE, domainKeys.get(msg.getDomains().get(i)), p);
+            } else {
+                // em CBC o último bloco cifrado é o IV do resto da imagem
+                PBEParameterSpec spec = p.getParameterSpec(PBEParameterSpec.class);
+                cipher.init(Cipher.ENCRYPT_MODE, domainKeys.get(msg.getDomains().get(i)),
+                        new PBEParameterSpec(spec.getSalt(), spec.getIterationCount(),
+                                new IvParameterSpec(msg.getDataList().get(i))));
+            }
+            ciphers.add(cipher);
+        }
+        Files.write(state, (saved[0] + "\n" + fileId).getBytes(StandardCharsets.UTF_8));
+        return msg;
+    }
+
+    /**
+     * Método que espera pela resposta a um EI_CHUNK
+     * 
+     * @param response resposta do servidor
+     * @return true se a parte foi aceite
+     */
+    private boolean imageChunkAccepted(CompletableFuture<Message> response) {
+        Message msg;
+        try {
+            msg = response.join();
+        } catch (CompletionException e) {
+            System.out.println("Upload interrupted, run EI again to resume");
+            return false;
+        }
+        if (msg.getCode() != MessageCode.OK) {
+            System.out.println("Response: " + msg.getCode().getDescription());
+            return false;
+        }
+        return true;
     }
 
     /**
-     * Método que retorna a temperatura de um domínio
+     * Método que retorna a temperatura de um domínio.
+     * 
+     * O cursor devolvido pelo servidor fica guardado ao lado do ficheiro das
+     * temperaturas; no RT seguinte é enviado e o servidor só devolve as
+     * temperaturas que mudaram, que são juntadas ao ficheiro
      * 
      * @param domain nome do domínio
      * @throws UnrecoverableKeyException
@@ -391,13 +828,25 @@ public class DeviceCommandHandler {
             throws UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException, NoSuchPaddingException,
             InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
 
+        String tempFile = "device/devicesData/" + domain + "_temp.txt";
+        Path cursorFile = Paths.get("device/devicesData/" + domain + "_temp.cursor");
+        String cursor = null;
+        try {
+            if (Files.exists(Paths.get(tempFile)) && Files.exists(cursorFile)) {
+                cursor = new String(Files.readAllBytes(cursorFile), StandardCharsets.UTF_8).trim();
+            }
+        } catch (IOException e) {
+            // pede todas as temperaturas
+        }
+
         Message msg = new Message();
 
         msg.setCommand("RT");
         msg.setDomain(domain);
-        Utils.writeMessage(msg, this.out);
-
-        msg = Utils.readMessage(this.in);
+        msg.setFileName(cursor);
+        // temperaturas em colunas (TemperatureTable), os servidores antigos enviam o HashMap
+        msg.setTable(TemperatureTable.VERSION);
+        msg = this.requests.call(msg);
 
         if (msg.getCode() == MessageCode.NO_PERM) {
             System.out.println("Response: " + msg.getCode().getDescription() + " de leitura");
@@ -410,21 +859,31 @@ public class DeviceCommandHandler {
 
             List<byte[]> params = msg.getParams();
 
-            PrivateKey privateKey = (PrivateKey) keystore.getKey(username, keystorePassword.toCharArray());
+            // decifrar chave com a nossa private key (só se mudou)
+            Key domainKeyDec = domainKey(domain, encriptedDomainKey);
 
-            // decifrar chave com a nossa private key
-            Cipher cipher = Cipher.getInstance("RSA");
-            cipher.init(Cipher.UNWRAP_MODE, privateKey);
-            Key domainKeyDec = cipher.unwrap(encriptedDomainKey, "PBEWithHmacSHA256AndAES_128", Cipher.SECRET_KEY);
+            // com o cursor da mesma época o servidor só enviou as alterações
+            String newCursor = msg.getFileName();
+            boolean delta = cursor != null && newCursor != null
+                    && cursor.substring(0, cursor.indexOf(':') + 1)
+                            .equals(newCursor.substring(0, newCursor.indexOf(':') + 1));
 
             if (Utils.createDir("device/devicesData")) {
-                Utils.writeByteArrayToFile(msg.getData(),
-                        "device/devicesData/" + domain + "_temp.txt", domainKeyDec, params);
+                int received = Utils.writeByteArrayToFile(msg.getData(), tempFile, domainKeyDec, params, delta);
+                try {
+                    if (newCursor != null && received >= 0) {
+                        Files.write(cursorFile, newCursor.getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        Files.deleteIfExists(cursorFile);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error saving temperatures cursor");
+                }
 
                 System.out.println(
                         "Response: " + msg.getCode().getDescription() + ", " + msg.getSize()
-                                + " (long)." +
-                                "File was saved in /device/devicesData with the name "
+                                + " (long)." + (delta ? " " + received + " changed temperatures. " : "")
+                                + "File was saved in /device/devicesData with the name "
                                 + domain + "_temp.txt");
             }
         } else {
@@ -433,7 +892,180 @@ public class DeviceCommandHandler {
     }
 
     /**
-     * Método que retorna uma imagem de um dispositivo
+     * Método que retorna o histórico das temperaturas de um domínio recebidas
+     * pelo servidor num intervalo.
+     * 
+     * O histórico chega por páginas, pedidas uma a uma até o servidor indicar
+     * que o intervalo acabou; cada página é decifrada e escrita no ficheiro
+     * assim que chega
+     * 
+     * @param domain nome do domínio
+     * @param from   início do intervalo em milissegundos
+     * @param to     fim do intervalo em milissegundos
+     */
+    public void retriveTemperatureHistoryRequest(String domain, long from, long to) {
+        if (!Utils.createDir("device/devicesData")) {
+            return;
+        }
+        Path path = Paths.get("device/devicesData/" + domain + "_history.txt");
+        Path partial = Paths.get("device/devicesData/" + domain + "_history.txt.part");
+        long readings = 0;
+        String token = null;
+        Message msg = null;
+        try {
+            try (Writer out = Files.newBufferedWriter(partial, StandardCharsets.UTF_8)) {
+                do {
+                    Message request = new Message();
+                    request.setCommand("RT");
+                    request.setDomain(domain);
+                    request.setTimestamps(Arrays.asList(from, to));
+                    request.setFileName(token);
+                    msg = this.requests.call(request);
+                    if (msg == null || msg.getCode() != MessageCode.OK) {
+                        break;
+                    }
+                    Key domainKey = domainKey(domain, msg.getDomainKey());
+                    // decifradas em paralelo, escritas pela ordem da página
+                    Message page = msg;
+                    readings += TemperatureDecoder.decode(page.getDataList(), page.getParams(), domainKey,
+                            (i, temp) -> out.write(page.getDomains().get(i) + " - " + page.getTimestamps().get(i)
+                                    + " - " + temp + "\n"));
+                    token = msg.getFileName();
+                } while (token != null);
+            }
+            // o writer já está fechado, o ficheiro pode substituir o anterior
+            if (msg != null && msg.getCode() == MessageCode.OK) {
+                Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (Exception e) {
+            System.out.println("Error saving temperature history: " + e.getMessage());
+            return;
+        } finally {
+            try {
+                Files.deleteIfExists(partial);
+            } catch (IOException e) {
+                // o ficheiro parcial fica para trás
+            }
+        }
+
+        if (msg == null) {
+            System.out.println("Server closed connection");
+        } else if (msg.getCode() == MessageCode.NO_PERM) {
+            System.out.println("Response: " + msg.getCode().getDescription() + " de leitura");
+        } else if (msg.getCode() == MessageCode.NO_DATA) {
+            System.out.println("Response: " + msg.getCode().getDescription()
+                    + " # dominio não tem temperaturas nesse intervalo");
+        } else if (msg.getCode() == MessageCode.OK) {
+            System.out.println("Response: " + msg.getCode().getDescription() + ", " + readings
+                    + " readings. File was saved in /device/devicesData with the name " + domain + "_history.txt");
+        } else {
+            System.out.println("Response: " + msg.getCode().getDescription());
+        }
+    }
+
+    /**
+     * Método que subscreve as temperaturas de um domínio: a partir daí cada
+     * temperatura registada no domínio é enviada pelo servidor (PUSH) e
+     * impressa, sem ser preciso fazer RT
+     * 
+     * @param domain nome do domínio
+     */
+    public void subscribeRequest(String domain) {
+        this.requests.setPushListener(this::printPush);
+
+        Message msg = new Message();
+        msg.setCommand("SUBSCRIBE");
+        msg.setDomain(domain);
+        msg = this.requests.call(msg);
+
+        if (msg == null) {
+            System.out.println("Server closed connection");
+        } else if (msg.getCode() == MessageCode.NO_PERM) {
+            System.out.println("Response: " + msg.getCode().getDescription() + " de leitura");
+        } else {
+            System.out.println("Response: " + msg.getCode().getDescription());
+        }
+    }
+
+    /**
+     * Método que cancela a subscrição das temperaturas de um domínio
+     * 
+     * @param domain nome do domínio
+     */
+    public void unsubscribeRequest(String domain) {
+        Message msg = new Message();
+        msg.setCommand("UNSUBSCRIBE");
+        msg.setDomain(domain);
+        msg = this.requests.call(msg);
+
+        if (msg == null) {
+            System.out.println("Server closed connection");
+        } else {
+            System.out.println("Response: " + msg.getCode().getDescription());
+        }
+    }
+
+    /**
+     * Método que imprime as temperaturas de uma mensagem PUSH. Corre na thread
+     * de leitura das respostas
+     * 
+     * @param msg PUSH com as leituras de um domínio
+     */
+    private void printPush(Message msg) {
+        String domain = msg.getDomain();
+        try {
+            Key domainKey = domainKey(domain, msg.getDomainKey());
+            for (int i = 0; i < msg.getDomains().size(); i++) {
+                float temp = decryptTemperature(domainKey, msg.getParams().get(i), msg.getDataList().get(i));
+                System.out.println("[" + domain + "] " + msg.getDomains().get(i) + " -> " + temp + " ("
+                        + msg.getTimestamps().get(i) + ")");
+            }
+        } catch (Exception e) {
+            System.err.println("Error decrypting temperatures of " + domain + ": " + e.getMessage());
+        }
+        if (msg.getSize() != null && msg.getSize() > 0) {
+            System.out.println("[" + domain + "] " + msg.getSize()
+                    + " updates dropped by the server, use RT " + domain + " to get the latest temperatures");
+        }
+    }
+
+    /**
+     * Método que decifra uma temperatura com a chave do domínio, com PBE ou
+     * AES/GCM conforme os parâmetros
+     * 
+     * @param domainKey chave do domínio
+     * @param params    parâmetros da cifra
+     * @param temp      temperatura cifrada
+     * @return temperatura
+     * @throws Exception se a temperatura não puder ser decifrada
+     */
+    private static float decryptTemperature(Key domainKey, byte[] params, byte[] temp) throws Exception {
+        return ByteBuffer.wrap(DataCipher.decrypt(domainKey, params, temp)).getFloat();
+    }
+
+    /**
+     * Método que retorna a chave de um domínio, decifrando-a com a nossa
+     * private key só quando muda
+     * 
+     * @param domain     nome do domínio
+     * @param wrappedKey chave do domínio cifrada com a nossa public key
+     * @return chave do domínio
+     * @throws KeyStoreException se a chave não puder ser decifrada
+     */
+    private SecretKey domainKey(String domain, byte[] wrappedKey) throws KeyStoreException {
+        try {
+            return keys.domainKey(domain, wrappedKey);
+        } catch (GeneralSecurityException e) {
+            throw new KeyStoreException("Cannot decrypt the key of domain " + domain, e);
+        }
+    }
+
+    /**
+     * Método que retorna uma imagem de um dispositivo.
+     * 
+     * A imagem é pedida por partes (RI_OPEN, RI_CHUNK e RI_CLOSE), com no
+     * máximo IMAGE_WINDOW partes em curso, e cada parte é decifrada e escrita
+     * no ficheiro assim que chega
      * 
      * @param devName nome do dispositivo
      * @throws NumberFormatException
@@ -441,19 +1073,17 @@ public class DeviceCommandHandler {
      * @throws UnrecoverableKeyException
      * @throws KeyStoreException
      * @throws NoSuchAlgorithmException
-     * @throws UnrecoverableKeyException
-     * @throws KeyStoreException
-     * @throws NoSuchAlgorithmException
      * @throws NoSuchPaddingException
      * @throws InvalidKeyException
      * @throws IllegalBlockSizeException
      * @throws BadPaddingException
      * @throws InvalidAlgorithmParameterException
+     * @throws GeneralSecurityException
      */
     public void retriveImageRequest(String devName) throws NumberFormatException, IOException,
-            UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException,
-            KeyStoreException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
-            IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
+            UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException, NoSuchPaddingException,
+            InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException,
+            GeneralSecurityException {
 
         String[] parts = devName.split(":");
 
@@ -469,14 +1099,16 @@ public class DeviceCommandHandler {
         }
 
         Message msg = new Message();
-        msg.setCommand("RI");
+        msg.setCommand("RI_OPEN");
         msg.setUser(parts[0]);
         msg.setDevId(parts[1]);
-        Utils.writeMessage(msg, this.out);
+        // imagens comprimidas por outros dispositivos são descomprimidas aqui
+        msg.setCompression(ImageCompression.DEFLATE);
+        msg = this.requests.call(msg);
 
-        msg = Utils.readMessage(this.in);
-
-        if (msg.getCode() == MessageCode.NO_PERM) {
+        if (msg == null) {
+            System.out.println("Server closed connection");
+        } else if (msg.getCode() == MessageCode.NO_PERM) {
             System.out.println("Response: " + msg.getCode().getDescription() + " de leitura");
         } else if (msg.getCode() == MessageCode.NO_DATA) {
             System.out.println("Response: " + msg.getCode().getDescription()
@@ -484,34 +1116,83 @@ public class DeviceCommandHandler {
         } else if (msg.getCode() == MessageCode.OK) {
 
             byte[] encriptedDomainKey = msg.getDomainKey();
-            byte[] value = msg.getData();
             byte[] params = msg.getParam();
+            String handle = msg.getFileName();
+            long size = msg.getSize();
 
-            PrivateKey privateKey = (PrivateKey) keystore.getKey(username, keystorePassword.toCharArray());
-
-            Cipher cipher = Cipher.getInstance("RSA");
-            cipher.init(Cipher.UNWRAP_MODE, privateKey);
-            Key domainKeyDec = cipher.unwrap(encriptedDomainKey, "PBEWithHmacSHA256AndAES_128", Cipher.SECRET_KEY);
-
-            AlgorithmParameters p = AlgorithmParameters.getInstance("PBEWithHmacSHA256AndAES_128");
-            p.init(params);
+            // o servidor indica o domínio partilhado de onde vem a chave
+            Key domainKeyDec = domainKey(msg.getDomain() != null ? msg.getDomain() : devName, encriptedDomainKey);
 
-            cipher = Cipher.getInstance("PBEWithHmacSHA256AndAES_128");
-            cipher.init(Cipher.DECRYPT_MODE, domainKeyDec, p);
-            value = cipher.doFinal(value);
+            Cipher cipher;
+            if (ImageEnvelope.isEnvelope(params)) {
+                cipher = ImageEnvelope.cipher(Cipher.DECRYPT_MODE, params, domainKeyDec, null);
+            } else {
+                // imagem cifrada diretamente com a chave do domínio
+                AlgorithmParameters p = AlgorithmParameters.getInstance("PBEWithHmacSHA256AndAES_128");
+                p.init(params);
+                cipher = Cipher.getInstance("PBEWithHmacSHA256AndAES_128");
+                cipher.init(Cipher.DECRYPT_MODE, domainKeyDec, p);
+            }
 
             if (Utils.createDir("device/devicesData")) {
                 String filename = devName.replace(":", "_");
-                String path = "device/devicesData/" + filename + ".jpg";
-                File received = new File(path);
-                FileOutputStream fos = new FileOutputStream(received);
-                fos.write(value, 0, value.length);
-                System.out.println(
-                        "Response: " + msg.getCode().getDescription() + ", " + value.length
-                                + " (long)." +
-                                "File was saved in /device/devicesData with the name "
-                                + filename + ".jpg");
-                fos.close();
+                Path path = Paths.get("device/devicesData/" + filename + ".jpg");
+                Path partial = Paths.get("device/devicesData/" + filename + ".jpg.part");
+                boolean complete = false;
+
+                OutputStream file = new BufferedOutputStream(new FileOutputStream(partial.toFile()));
+                try (OutputStream out = msg.getCompression() != null ? ImageCompression.decompressing(file) : file) {
+                    Deque<CompletableFuture<Message>> window = new ArrayDeque<>();
+                    long requested = 0;
+                    long received = 0;
+                    while (received < size) {
+                        while (requested < size && window.size() < IMAGE_WINDOW) {
+                            Message chunkRequest = new Message();
+                            chunkRequest.setCommand("RI_CHUNK");
+                            chunkRequest.setFileName(handle);
+                            chunkRequest.setSize(requested);
+                            window.add(this.requests.send(chunkRequest));
+                            requested += Utils.IMAGE_CHUNK_SIZE;
+                        }
+                        Message chunk = window.poll().join();
+                        if (chunk.getCode() != MessageCode.OK || chunk.getData().length == 0) {
+                            System.out.println("Response: " + chunk.getCode().getDescription());
+                            break;
+                        }
+                        byte[] value = cipher.update(chunk.getData());
+                        if (value != null) {
+                            out.write(value);
+                        }
+                        received += chunk.getData().length;
+                    }
+                    if (received == size) {
+                        out.write(cipher.doFinal());
+                        complete = true;
+                    }
+                } catch (CompletionException e) {
+                    System.out.println("Server closed connection");
+                } catch (IOException e) {
+                    complete = false;
+                    System.out.println("Error saving image: " + e.getMessage());
+                } finally {
+                    Message close = new Message();
+                    close.setCommand("RI_CLOSE");
+                    close.setFileName(handle);
+                    this.requests.send(close);
+                    if (!complete) {
+                        Files.deleteIfExists(partial);
+                    }
+                }
+
+                if (complete) {
+                    long length = Files.size(partial);
+                    Files.move(partial, path, StandardCopyOption.REPLACE_EXISTING);
+                    System.out.println(
+                            "Response: " + msg.getCode().getDescription() + ", " + length
+                                    + " (long)." +
+                                    "File was saved in /device/devicesData with the name "
+                                    + filename + ".jpg");
+                }
             }
 
         } else {
@@ -527,8 +1208,8 @@ public class DeviceCommandHandler {
      * @throws IOException
      */
     public void myDomainsRequest() throws ClassNotFoundException, IOException {
-        Message msg = new Message();
-        msg = obtainDomains(username, id);
+        invalidateMembership(null);
+        Message msg = membership();
         if (msg.getCode() == MessageCode.OK) {
             System.out.println("Device belongs to the following domains:");
             for (String domain : msg.getDomains()) {
@@ -556,11 +1237,18 @@ public class DeviceCommandHandler {
                 "- ADD ADD <user1> <dm> <password-dominio> -> Adicionar utilizador <user1> ao domínio <dm> que tem password <password-dominio>");
         System.out.println("- RD <dm> -> Registar o Dispositivo atual no dominio <dm>");
         System.out.println("- ET <float> -> Enviar valor <float> de Temperatura para o servidor.");
+        System.out.println(
+                "- ET_BATCH <float>[@<timestamp-ms>] ... -> Enviar varias Temperaturas para o servidor num so pedido.");
         System.out.println("- EI <filename.jpg> -> Enviar Imagem <filename.jpg> para o servidor.");
         System.out.println(
                 "- RT <dm> -> Receber as ultimas medicoes de Temperatura de cada dispositivo do dominio <dm>, desde que o utilizador tenha permissoes.");
+        System.out.println(
+                "- RT <dm> <from-ms> <to-ms> -> Receber o historico das medicoes de Temperatura do dominio <dm> recebidas entre <from-ms> e <to-ms>.");
         System.out.println(
                 "- RI <user-id>:<dev_id> # Receber o ficheiro Imagem do dispositivo <userid>:<dev_id> do servidor, desde que o utilizador tenha permissoes.");
+        System.out.println(
+                "- SUBSCRIBE <dm> # Receber as novas medicoes de Temperatura do dominio <dm> assim que sao registadas.");
+        System.out.println("- UNSUBSCRIBE <dm> # Deixar de receber as medicoes de Temperatura do dominio <dm>.");
         System.out.println("- MYDOMAINS # Imprime a lista de dominios que o dispositivo pertence.");
     }
 
@@ -578,22 +1266,295 @@ public class DeviceCommandHandler {
         msg.setCommand("MYDOMAINS");
         msg.setUser(username);
         msg.setDevId(id);
-        Utils.writeMessage(msg, this.out);
+        // o servidor responde com a versão da cifra das temperaturas a usar
+        msg.setSuite(DataCipher.SUITE_LATEST);
+        msg = this.requests.call(msg);
 
-        msg = Utils.readMessage(this.in);
+        return msg;
+    }
 
+    /**
+     * Metodo que retorna a versão da cifra das temperaturas negociada no
+     * MYDOMAINS
+     * 
+     * @param membership resposta ao MYDOMAINS
+     * @return DataCipher.SUITE_PBE se o servidor não indicar nenhuma
+     */
+    private static int dataSuite(Message membership) {
+        Integer suite = membership.getSuite();
+        return suite != null && suite <= DataCipher.SUITE_LATEST ? suite : DataCipher.SUITE_PBE;
+    }
+
+    /**
+     * Metodo que retorna os domínios do dispositivo e as suas chaves, pedindo-os
+     * ao servidor (MYDOMAINS) só se ainda não os tiver. A resposta é guardada
+     * com a época dos domínios, que o servidor usa para recusar pedidos
+     * cifrados para uma lista que entretanto mudou. O MYDOMAINS é pedido sem
+     * nenhum lock, porque a thread de leitura das respostas pode precisar de
+     * invalidar os domínios enquanto se espera por ele
+     * 
+     * @return resposta ao MYDOMAINS (nunca null)
+     * @throws IOException            se a ligação foi fechada
+     * @throws ClassNotFoundException
+     */
+    private Message membership() throws IOException, ClassNotFoundException {
+        Message cached = membership;
+        if (cached != null) {
+            return cached;
+        }
+        long version;
+        synchronized (membershipLock) {
+            version = membershipVersion;
+        }
+        Message msg = obtainDomains(username, id);
+        if (msg == null) {
+            throw new IOException("Server closed connection");
+        }
+        if (msg.getEpoch() == null) {
+            // servidor sem épocas, os domínios são pedidos sempre
+            return msg;
+        }
+        synchronized (membershipLock) {
+            // só é guardada se não foi invalidada enquanto era pedida
+            if (membershipVersion == version) {
+                membership = msg;
+            }
+        }
         return msg;
     }
 
     /**
-     * Metodo que fecha o cliente
+     * Metodo que esquece os domínios guardados, para serem pedidos de novo
+     * 
+     * @param epoch época atual indicada pelo servidor, ou null para esquecer
+     *              sempre (os domínios guardados com esta época continuam
+     *              válidos)
+     */
+    private void invalidateMembership(Long epoch) {
+        synchronized (membershipLock) {
+            Message cached = membership;
+            if (epoch == null || cached == null || !epoch.equals(cached.getEpoch())) {
+                membership = null;
+                membershipVersion++;
+            }
+        }
+    }
+
+    /**
+     * Metodo que envia um pedido cifrado para os domínios do dispositivo sem
+     * esperar pela resposta. Os pedidos saem pela ordem em que este método é
+     * chamado. Se o servidor recusar um pedido porque os domínios mudaram
+     * (STALE), esse pedido e os seguintes enviados com a mesma época são
+     * cifrados para os domínios atuais e reenviados, pela mesma ordem, antes de
+     * qualquer pedido novo. Cada pedido é reenviado uma vez só
+     * 
+     * @param request constrói o pedido a partir dos domínios
+     * @return resposta do servidor, ou null se não houver nada a enviar
+     * @throws GeneralSecurityException
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    private CompletableFuture<Message> sendToDomains(DomainsRequest request)
+            throws GeneralSecurityException, IOException, ClassNotFoundException {
+        DomainsWrite write = new DomainsWrite(request);
+        synchronized (sendLock) {
+            Message current;
+            Message msg;
+            do {
+                resendStale();
+                current = membership();
+                msg = request.build(current);
+                if (msg == null) {
+                    return null;
+                }
+            } while (!register(write, current));
+            msg.setEpoch(current.getEpoch());
+            inFlight.add(write.response);
+            write.response.whenComplete((m, e) -> inFlight.remove(write.response));
+            this.requests.send(msg).whenComplete((reply, e) -> onReply(write, reply, e));
+        }
+        return write.response;
+    }
+
+    /**
+     * Metodo que regista um pedido prestes a ser enviado com a época dos
+     * domínios com que foi cifrado
+     * 
+     * @param write   pedido
+     * @param current domínios com que foi cifrado
+     * @return false se os domínios mudaram ou há pedidos por reenviar, e o
+     *         pedido tem de ser cifrado de novo
+     */
+    private boolean register(DomainsWrite write, Message current) {
+        if (current.getEpoch() == null) {
+            // servidor sem épocas, nunca responde STALE
+            return true;
+        }
+        synchronized (writes) {
+            if (!resends.isEmpty() || membership != current) {
+                return false;
+            }
+            write.epoch = current.getEpoch();
+            writes.add(write);
+            return true;
+        }
+    }
+
+    /**
+     * Metodo chamado na thread de leitura das respostas quando chega a
+     * resposta a um pedido enviado com sendToDomains
+     * 
+     * @param write pedido
+     * @param reply resposta, ou null se a ligação foi fechada
+     * @param error erro da ligação, ou null
+     */
+    private void onReply(DomainsWrite write, Message reply, Throwable error) {
+        boolean stale = error == null && reply != null && reply.getCode() == MessageCode.STALE;
+        synchronized (writes) {
+            if (write.stale != null) {
+                // já está à espera de ser reenviado por causa de um STALE anterior
+                if (stale || !resends.remove(write)) {
+                    return;
+                }
+            } else if (stale) {
+                invalidateMembership(reply.getEpoch());
+                // os enviados depois com a mesma época também vão ser recusados
+                for (DomainsWrite w : writes) {
+                    if (w.stale == null && w.epoch.equals(write.epoch)) {
+                        w.stale = reply;
+                        resends.add(w);
+                    }
+                }
+            }
+        }
+        if (stale) {
+            CompletableFuture.runAsync(this::drainResends);
+        } else {
+            finish(write, reply, error);
+        }
+    }
+
+    /**
+     * Metodo que reenvia os pedidos recusados com STALE, fora da thread de
+     * leitura das respostas
+     */
+    private void drainResends() {
+        synchronized (sendLock) {
+            resendStale();
+        }
+    }
+
+    /**
+     * Metodo que cifra de novo e reenvia, por ordem, os pedidos recusados com
+     * STALE. Sem época: os domínios acabaram de ser pedidos e não volta a
+     * tentar. Deve ser chamado com o sendLock
+     */
+    private void resendStale() {
+        while (true) {
+            DomainsWrite write;
+            synchronized (writes) {
+                write = resends.poll();
+            }
+            if (write == null) {
+                return;
+            }
+            try {
+                Message msg = write.request.build(membership());
+                if (msg == null) {
+                    finish(write, write.stale, null);
+                } else {
+                    this.requests.send(msg).whenComplete((reply, e) -> finish(write, reply, e));
+                }
+            } catch (GeneralSecurityException | IOException | ClassNotFoundException | RuntimeException e) {
+                finish(write, null, e);
+            }
+        }
+    }
+
+    /**
+     * Metodo que entrega a resposta final de um pedido enviado com
+     * sendToDomains
+     * 
+     * @param write pedido
+     * @param reply resposta
+     * @param error erro, ou null
+     */
+    private void finish(DomainsWrite write, Message reply, Throwable error) {
+        synchronized (writes) {
+            writes.remove(write);
+        }
+        if (error != null) {
+            write.response.completeExceptionally(error);
+        } else {
+            write.response.complete(reply);
+        }
+    }
+
+    /**
+     * Metodo que lê um número exato de bytes de um ficheiro
+     * 
+     * @param in     ficheiro a ler
+     * @param buffer array onde são colocados os bytes
+     * @param length número de bytes a ler
+     * @throws IOException se o ficheiro acabar antes
+     */
+    private static void readFully(FileChannel in, byte[] buffer, int length) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, length);
+        while (bb.hasRemaining()) {
+            if (in.read(bb) < 0) {
+                throw new EOFException("File changed during upload");
+            }
+        }
+    }
+
+    /**
+     * Metodo que imprime a resposta a um pedido enviado sem esperar por ela,
+     * quando esta chegar
+     * 
+     * @param command  comando do pedido
+     * @param response resposta do servidor
+     */
+    private void printWhenDone(String command, CompletableFuture<Message> response) {
+        response.whenComplete((msg, e) -> {
+            if (msg != null && msg.getSize() != null) {
+                System.out.println("Response (" + command + "): " + msg.getCode().getDescription() + ", "
+                        + msg.getSize() + " readings applied");
+            } else if (msg != null) {
+                System.out.println("Response (" + command + "): " + msg.getCode().getDescription());
+            }
+        });
+    }
+
+    /**
+     * Metodo que passa a enviar os pedidos com id, podendo ter vários em curso.
+     * Deve ser chamado depois da autenticação
+     */
+    public void startPipelining() {
+        this.requests.start();
+    }
+
+    /**
+     * Metodo que fecha o cliente, esperando primeiro pelas respostas aos
+     * pedidos em curso
      */
     public void closeClient() {
+        if (this.requests.isStarted()) {
+            // os pedidos reenviados depois de um STALE ainda não estão no pipeline
+            for (CompletableFuture<Message> response : inFlight) {
+                try {
+                    response.join();
+                } catch (CompletionException e) {
+                    // a ligação foi fechada
+                }
+            }
+            this.requests.close();
+            return;
+        }
         Message msg = new Message();
         msg.setCommand("EXIT");
         try {
-            Utils.writeMessage(msg, this.out);
-            in.readObject();
+            this.channel.writeMessage(msg);
+            this.channel.readMessage();
         } catch (Exception e) {
             System.out.println("Client closed!");
         }
@@ -0,0 +1,102 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Classe que guarda em memória a private key do utilizador e as chaves dos
+ * domínios já decifradas, para que cada ET, EI, RT e RI não tenha de ler a
+ * private key do keystore (que decifra a chave com a password) nem de
+ * decifrar as chaves dos domínios com RSA.
+ *
+ * Cada chave de domínio fica associada à chave cifrada de onde veio: se o
+ * servidor devolver outra chave cifrada para o domínio (por exemplo, porque o
+ * utilizador foi adicionado de novo com outra password), a chave é decifrada
+ * outra vez e substitui a anterior
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class DomainKeyCache {
+
+    private static final String DOMAIN_KEY_ALGORITHM = "PBEWithHmacSHA256AndAES_128";
+
+    /**
+     * Chave de um domínio e a chave cifrada de onde foi obtida
+     */
+    private static final class Entry {
+        private final byte[] wrapped;
+        private final SecretKey key;
+
+        private Entry(byte[] wrapped, SecretKey key) {
+            this.wrapped = wrapped;
+            this.key = key;
+        }
+    }
+
+    private final KeyStore keystore;
+    private final String alias;
+    private final char[] password;
+    private volatile PrivateKey privateKey;
+    private final Map<String, Entry> domainKeys = new ConcurrentHashMap<>();
+
+    /**
+     * Construtor de um DomainKeyCache
+     *
+     * @param keystore keystore com a private key do utilizador
+     * @param alias    alias da private key
+     * @param password password do keystore
+     */
+    public DomainKeyCache(KeyStore keystore, String alias, String password) {
+        this.keystore = keystore;
+        this.alias = alias;
+        this.password = password.toCharArray();
+    }
+
+    /**
+     * Método que retorna a private key do utilizador, lida do keystore só da
+     * primeira vez
+     *
+     * @return private key
+     * @throws GeneralSecurityException se a chave não puder ser lida
+     */
+    public PrivateKey privateKey() throws GeneralSecurityException {
+        PrivateKey key = privateKey;
+        if (key == null) {
+            key = (PrivateKey) keystore.getKey(alias, password);
+            if (key == null) {
+                throw new GeneralSecurityException("No private key for " + alias);
+            }
+            privateKey = key;
+        }
+        return key;
+    }
+
+    /**
+     * Método que retorna a chave de um domínio, decifrando-a com a private key
+     * só se ainda não a tiver ou se a chave cifrada mudou
+     *
+     * @param domain     nome do domínio
+     * @param wrappedKey chave do domínio cifrada com a public key do
+     *                   utilizador
+     * @return chave do domínio
+     * @throws GeneralSecurityException se a chave não puder ser decifrada
+     */
+    public SecretKey domainKey(String domain, byte[] wrappedKey) throws GeneralSecurityException {
+        Entry entry = domainKeys.get(domain);
+        if (entry != null && Arrays.equals(entry.wrapped, wrappedKey)) {
+            return entry.key;
+        }
+        Cipher cipher = Cipher.getInstance("RSA");
+        cipher.init(Cipher.UNWRAP_MODE, privateKey());
+        SecretKey key = (SecretKey) cipher.unwrap(wrappedKey, DOMAIN_KEY_ALGORITHM, Cipher.SECRET_KEY);
+        domainKeys.put(domain, new Entry(wrappedKey.clone(), key));
+        return key;
+    }
+}
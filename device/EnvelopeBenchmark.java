@@ -0,0 +1,153 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Programa que compara o custo no dispositivo e o espaço no servidor das duas
+ * formas de cifrar um EI para vários domínios:
+ * - por domínio: a imagem toda cifrada com a chave de cada domínio, como era
+ * feito antes (N cifras, N imagens cifradas enviadas e guardadas)
+ * - envelope (ImageEnvelope): a imagem cifrada uma vez com uma chave de dados,
+ * que é cifrada com a chave de cada domínio
+ *
+ * A imagem (bytes aleatórios) é cifrada por partes de IMAGE_CHUNK_SIZE bytes,
+ * como no EI. Os bytes enviados e guardados contam a imagem cifrada e os
+ * parâmetros (ou envelopes) de todos os domínios. Para comparar, mede também
+ * o mesmo para uma temperatura (ET)
+ *
+ * Uso: java -cp IoTDevice.jar EnvelopeBenchmark [MiB] [domínios ...]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class EnvelopeBenchmark {
+
+    private static final String PBE = "PBEWithHmacSHA256AndAES_128";
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int mib = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            counts.add(Integer.parseInt(args[i]));
+        }
+        if (counts.isEmpty()) {
+            counts.add(1);
+            counts.add(2);
+            counts.add(4);
+            counts.add(8);
+        }
+        int max = counts.stream().mapToInt(Integer::intValue).max().getAsInt();
+
+        byte[] image = new byte[mib * 1024 * 1024];
+        new Random(42).nextBytes(image);
+        List<SecretKey> keys = new ArrayList<>();
+        for (int i = 0; i < max; i++) {
+            keys.add(Utils.generateSecretKey("domain" + i, Utils.generateSalt(), Utils.generateIterations()));
+        }
+
+        // aquecimento
+        perDomain(image, keys.subList(0, 1));
+        envelope(image, keys.subList(0, 1));
+
+        System.out.println("image: " + mib + " MiB");
+        System.out.printf("%-8s %16s %16s %18s %18s%n", "domains", "per-domain ms", "envelope ms",
+                "per-domain bytes", "envelope bytes");
+        for (int n : counts) {
+            List<SecretKey> domains = keys.subList(0, n);
+            long start = System.nanoTime();
+            long perDomainBytes = perDomain(image, domains);
+            double perDomainMs = (System.nanoTime() - start) / 1e6;
+            start = System.nanoTime();
+            long envelopeBytes = envelope(image, domains);
+            double envelopeMs = (System.nanoTime() - start) / 1e6;
+            System.out.printf("%-8d %16.1f %16.1f %18d %18d%n", n, perDomainMs, envelopeMs, perDomainBytes,
+                    envelopeBytes);
+        }
+
+        byte[] temp = ByteBuffer.allocate(Float.BYTES).putFloat(21.5f).array();
+        int readings = 200;
+        for (int i = 0; i < readings / 10; i++) {
+            perDomain(temp, keys.subList(0, 1));
+            envelope(temp, keys.subList(0, 1));
+        }
+        System.out.println();
+        System.out.println("temperature (ET): " + temp.length + " bytes");
+        System.out.printf("%-8s %16s %16s %18s %18s%n", "domains", "per-domain us", "envelope us",
+                "per-domain bytes", "envelope bytes");
+        for (int n : counts) {
+            List<SecretKey> domains = keys.subList(0, n);
+            long perDomainBytes = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < readings; i++) {
+                perDomainBytes = perDomain(temp, domains);
+            }
+            double perDomainUs = (System.nanoTime() - start) / 1e3 / readings;
+            long envelopeBytes = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < readings; i++) {
+                envelopeBytes = envelope(temp, domains);
+            }
+            double envelopeUs = (System.nanoTime() - start) / 1e3 / readings;
+            System.out.printf("%-8d %16.1f %16.1f %18d %18d%n", n, perDomainUs, envelopeUs, perDomainBytes,
+                    envelopeBytes);
+        }
+    }
+
+    /**
+     * Método que cifra os dados com a chave de cada domínio
+     *
+     * @return bytes enviados e guardados no servidor
+     */
+    private static long perDomain(byte[] data, List<SecretKey> domains) throws Exception {
+        long bytes = 0;
+        for (SecretKey key : domains) {
+            Cipher cipher = Cipher.getInstance(PBE);
+            cipher.init(Cipher.ENCRYPT_MODE, key);
+            bytes += cipher.getParameters().getEncoded().length + encrypt(cipher, data);
+        }
+        return bytes;
+    }
+
+    /**
+     * Método que cifra os dados uma vez, com um envelope por domínio
+     *
+     * @return bytes enviados e guardados no servidor
+     */
+    private static long envelope(byte[] data, List<SecretKey> domains) throws Exception {
+        SecretKey dataKey = ImageEnvelope.newDataKey();
+        byte[] iv = ImageEnvelope.newIv();
+        long bytes = 0;
+        for (SecretKey key : domains) {
+            bytes += ImageEnvelope.seal(dataKey, iv, key).length;
+        }
+        Cipher cipher = Cipher.getInstance(ImageEnvelope.DATA_CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey, new IvParameterSpec(iv));
+        return bytes + encrypt(cipher, data);
+    }
+
+    /**
+     * Método que cifra os dados por partes, como no EI
+     *
+     * @return tamanho dos dados cifrados
+     */
+    private static long encrypt(Cipher cipher, byte[] data) throws Exception {
+        long length = 0;
+        int offset = 0;
+        for (; data.length - offset > Utils.IMAGE_CHUNK_SIZE; offset += Utils.IMAGE_CHUNK_SIZE) {
+            byte[] part = cipher.update(data, offset, Utils.IMAGE_CHUNK_SIZE);
+            length += part.length;
+            sink = part;
+        }
+        byte[] last = cipher.doFinal(data, offset, data.length - offset);
+        sink = last;
+        return length + last.length;
+    }
+}
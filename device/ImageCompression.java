@@ -0,0 +1,181 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Classe com a compressão que o dispositivo pode aplicar às imagens antes de
+ * as cifrar.
+ *
+ * Cada parte de IMAGE_CHUNK_SIZE bytes da imagem é comprimida sozinha (Deflate
+ * sem cabeçalho zlib) num frame com o tamanho comprimido em 4 bytes, seguido
+ * de zeros até um múltiplo do bloco da cifra. Assim cada frame cifrado
+ * termina num bloco completo, o que permite continuar um upload interrompido
+ * a partir do último frame confirmado, e a descompressão pode ser feita
+ * frame a frame à medida que a imagem chega
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class ImageCompression {
+
+    /**
+     * Nome da compressão nas mensagens e no servidor
+     */
+    public static final String DEFLATE = "deflate";
+
+    private static final int BLOCK_SIZE = 16;
+    private static final int HEADER_SIZE = Integer.BYTES;
+    // limite do Deflate para dados incompressíveis, com folga
+    private static final int MAX_FRAME_SIZE = Utils.IMAGE_CHUNK_SIZE + 1024;
+
+    /**
+     * Construtor vazio para impedir inicializacao
+     */
+    private ImageCompression() {
+    }
+
+    /**
+     * Método que retorna o tamanho máximo de uma imagem depois de comprimida
+     * em frames, usado como limite do upload
+     *
+     * @param size tamanho da imagem em claro
+     * @return tamanho máximo dos frames
+     */
+    public static long maxCompressedSize(long size) {
+        long frames = Math.max(1, (size + Utils.IMAGE_CHUNK_SIZE - 1) / Utils.IMAGE_CHUNK_SIZE);
+        return size + frames * (MAX_FRAME_SIZE - Utils.IMAGE_CHUNK_SIZE);
+    }
+
+    /**
+     * Método que comprime uma parte da imagem num frame
+     *
+     * @param deflater compressor a usar (é reiniciado)
+     * @param data     array com a parte
+     * @param length   tamanho da parte, no máximo IMAGE_CHUNK_SIZE
+     * @return frame com tamanho múltiplo do bloco da cifra
+     */
+    public static byte[] compressFrame(Deflater deflater, byte[] data, int length) {
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+
+        byte[] frame = new byte[MAX_FRAME_SIZE + HEADER_SIZE];
+        int compressed = 0;
+        while (!deflater.finished()) {
+            compressed += deflater.deflate(frame, HEADER_SIZE + compressed, MAX_FRAME_SIZE - compressed);
+        }
+        ByteBuffer.wrap(frame).putInt(compressed);
+        return Arrays.copyOf(frame, paddedLength(HEADER_SIZE + compressed));
+    }
+
+    /**
+     * Método que cria um compressor com o nível usado nas imagens. As imagens
+     * costumam já vir comprimidas, por isso é usado o nível mais rápido
+     *
+     * @return compressor Deflate sem cabeçalho zlib
+     */
+    public static Deflater newDeflater() {
+        return new Deflater(Deflater.BEST_SPEED, true);
+    }
+
+    /**
+     * Método que retorna uma stream que descomprime os frames escritos nela
+     * e escreve a imagem em claro noutra stream
+     *
+     * @param out stream onde é escrita a imagem em claro
+     * @return stream onde são escritos os frames
+     */
+    public static OutputStream decompressing(OutputStream out) {
+        return new InflatingOutputStream(out);
+    }
+
+    private static int paddedLength(int length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    /**
+     * Stream que junta os bytes recebidos até ter um frame completo e escreve
+     * o frame descomprimido. Guarda no máximo um frame de cada vez
+     */
+    private static final class InflatingOutputStream extends FilterOutputStream {
+
+        private final Inflater inflater = new Inflater(true);
+        private final byte[] pending = new byte[paddedLength(HEADER_SIZE + MAX_FRAME_SIZE)];
+        private final byte[] chunk = new byte[Utils.IMAGE_CHUNK_SIZE];
+        private int pendingLength = 0;
+
+        private InflatingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, frameLength() - pendingLength);
+                System.arraycopy(b, off, pending, pendingLength, n);
+                pendingLength += n;
+                off += n;
+                len -= n;
+                if (pendingLength == frameLength()) {
+                    inflateFrame();
+                }
+            }
+        }
+
+        /**
+         * Método que retorna o tamanho do frame atual, ou do cabeçalho se
+         * ainda não foi recebido
+         */
+        private int frameLength() throws IOException {
+            if (pendingLength < HEADER_SIZE) {
+                return HEADER_SIZE;
+            }
+            int compressed = ByteBuffer.wrap(pending).getInt();
+            if (compressed < 0 || compressed > MAX_FRAME_SIZE) {
+                throw new IOException("Invalid compressed image");
+            }
+            return paddedLength(HEADER_SIZE + compressed);
+        }
+
+        private void inflateFrame() throws IOException {
+            int compressed = ByteBuffer.wrap(pending).getInt();
+            inflater.reset();
+            inflater.setInput(pending, HEADER_SIZE, compressed);
+            try {
+                int length = 0;
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(chunk, length, chunk.length - length);
+                    if (n == 0 && (inflater.needsInput() || length == chunk.length)) {
+                        throw new IOException("Invalid compressed image");
+                    }
+                    length += n;
+                }
+                out.write(chunk, 0, length);
+            } catch (DataFormatException e) {
+                throw new IOException("Invalid compressed image", e);
+            }
+            pendingLength = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            if (pendingLength != 0) {
+                out.close();
+                throw new IOException("Compressed image truncated");
+            }
+            super.close();
+        }
+    }
+}
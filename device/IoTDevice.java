@@ -1,9 +1,11 @@
 import java.io.FileInputStream;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.SocketException;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocket;
@@ -37,8 +39,19 @@ public class IoTDevice {
         active = true;
         sc = new Scanner(System.in);
 
+        Map<String, String> options = new HashMap<>();
+        args = parseOptions(args, options);
+
         if (args.length != 6) {
             System.out.println("Wrong amount of parameters!");
+            System.out.println("Usage: IoTDevice <serverAddress> <truststore> <keystore> <passwordkeystore>"
+                    + " <dev-id> <user-id> [--compress=deflate|none]");
+            System.exit(-1);
+        }
+
+        String compress = options.getOrDefault("compress", "none");
+        if (!compress.equals(ImageCompression.DEFLATE) && !compress.equals("none")) {
+            System.out.println("Invalid compression: " + compress);
             System.exit(-1);
         }
 
@@ -56,6 +69,7 @@ public class IoTDevice {
 
         try {
             beginConnection(keystorePassword, keystoreFile, truststoreFile, ipHostname, port, username, id);
+            handler.setImageCompression(compress.equals("none") ? null : compress);
         } catch (Exception e) {
             System.err.println(e.getMessage());
             e.printStackTrace();
@@ -66,18 +80,21 @@ public class IoTDevice {
         prepareCtrC();
 
         try {
-            if (!authHandler.startTwoFactorAuthentication(username)) {
-                handler.closeClient();
-                clientSocket.close();
-                System.exit(-1);
-            }
+            if (!authHandler.resumeSession(username, id)) {
+                if (!authHandler.startTwoFactorAuthentication(username)) {
+                    handler.closeClient();
+                    clientSocket.close();
+                    System.exit(-1);
+                }
 
-            if (!authHandler.startExecutableAuthentication(id)) {
-                handler.closeClient();
-                clientSocket.close();
-                System.exit(-1);
+                if (!authHandler.startExecutableAuthentication(id)) {
+                    handler.closeClient();
+                    clientSocket.close();
+                    System.exit(-1);
+                }
             }
 
+            handler.startPipelining();
             handler.printMenu();
 
             System.out.println("Command: ");
@@ -131,6 +148,28 @@ public class IoTDevice {
                                 }
                             }
 
+                            break;
+                        // ET_BATCH <float>[@<timestamp-ms>] ... - tenta registar várias temperaturas
+                        // num só pedido, as que não têm instante ficam com o instante atual
+                        case "ET_BATCH":
+                            if (input.length < 2) {
+                                System.out.println("Wrong format for command ET_BATCH");
+                                System.out.println("Right format -> ET_BATCH <float>[@<timestamp-ms>] ...");
+                            } else {
+                                try {
+                                    List<Float> temps = new ArrayList<>();
+                                    List<Long> timestamps = new ArrayList<>();
+                                    long now = System.currentTimeMillis();
+                                    for (int i = 1; i < input.length; i++) {
+                                        String[] reading = input[i].split("@");
+                                        temps.add(Float.parseFloat(reading[0]));
+                                        timestamps.add(reading.length > 1 ? Long.parseLong(reading[1]) : now);
+                                    }
+                                    handler.registerTemperatureBatchRequest(temps, timestamps);
+                                } catch (NumberFormatException e) {
+                                    System.out.println("Invalid temperature!");
+                                }
+                            }
                             break;
                         // EI <filename.jpg> - tenta registar Imagem com o path <filename.jpg> no
                         // dispositivo atual.
@@ -145,12 +184,21 @@ public class IoTDevice {
                             break;
                         // RT <dm> - tenta obter as últimas medições de temperatura de cada dispositivo
                         // do domínio <dm> do servidor
+                        // RT <dm> <from> <to> - tenta obter o histórico das temperaturas recebidas
+                        // pelo servidor entre os instantes <from> e <to> (em milissegundos)
                         case "RT":
-                            if (input.length != 2) {
-                                System.out.println("Wrong format for command RT");
-                                System.out.println("Right format -> RT <dm>");
-                            } else {
+                            if (input.length == 2) {
                                 handler.retriveTemperatureRequest(input[1]);
+                            } else if (input.length == 4) {
+                                try {
+                                    handler.retriveTemperatureHistoryRequest(input[1], Long.parseLong(input[2]),
+                                            Long.parseLong(input[3]));
+                                } catch (NumberFormatException e) {
+                                    System.out.println("Invalid timestamp!");
+                                }
+                            } else {
+                                System.out.println("Wrong format for command RT");
+                                System.out.println("Right format -> RT <dm> [<from-ms> <to-ms>]");
                             }
                             break;
                         // RI <user-id>:<dev_id> - tenta receber a última Imagem registada pelo
@@ -163,6 +211,25 @@ public class IoTDevice {
                                 handler.retriveImageRequest(input[1]);
                             }
                             break;
+                        // SUBSCRIBE <dm> - passa a receber as novas temperaturas do domínio <dm>
+                        // sem ter de fazer RT
+                        case "SUBSCRIBE":
+                            if (input.length != 2) {
+                                System.out.println("Wrong format for command SUBSCRIBE");
+                                System.out.println("Right format -> SUBSCRIBE <dm>");
+                            } else {
+                                handler.subscribeRequest(input[1]);
+                            }
+                            break;
+                        // UNSUBSCRIBE <dm> - deixa de receber as temperaturas do domínio <dm>
+                        case "UNSUBSCRIBE":
+                            if (input.length != 2) {
+                                System.out.println("Wrong format for command UNSUBSCRIBE");
+                                System.out.println("Right format -> UNSUBSCRIBE <dm>");
+                            } else {
+                                handler.unsubscribeRequest(input[1]);
+                            }
+                            break;
                         // MYDOMAINS - tenta obter a lista de domínios em que o dispositivo atual está
                         case "MYDOMAINS":
                             if (input.length != 1) {
@@ -207,6 +274,26 @@ public class IoTDevice {
         }));
     }
 
+    /**
+     * Metodo que separa as opções (--nome=valor) dos restantes argumentos
+     * 
+     * @param args    argumentos da linha de comandos
+     * @param options mapa onde são colocadas as opções encontradas
+     * @return os argumentos que não são opções, pela ordem original
+     */
+    private static String[] parseOptions(String[] args, Map<String, String> options) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 2) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        return positional.toArray(new String[0]);
+    }
+
     /**
      * Método que inicia a conexão com o servidor
      * 
@@ -231,8 +318,7 @@ public class IoTDevice {
 
         SocketFactory sf = SSLSocketFactory.getDefault();
         clientSocket = (SSLSocket) sf.createSocket(ipHostname, port);
-        ObjectInputStream ois = new ObjectInputStream(clientSocket.getInputStream());
-        ObjectOutputStream oos = new ObjectOutputStream(clientSocket.getOutputStream());
+        MessageChannel channel = Utils.openChannel(clientSocket.getInputStream(), clientSocket.getOutputStream());
 
         KeyStore keystore = KeyStore.getInstance("JCEKS");
         try (InputStream keystoreStream = new FileInputStream(keystoreFile)) {
@@ -244,7 +330,7 @@ public class IoTDevice {
             truststore.load(keystoreStream, keystorePassword.toCharArray());
         }
 
-        handler = new DeviceCommandHandler(ois, oos, username, id, keystore, truststore, keystorePassword);
-        authHandler = new DeviceAuthenticationHandler(ois, oos, keystore, keystorePassword);
+        handler = new DeviceCommandHandler(channel, username, id, keystore, truststore, keystorePassword);
+        authHandler = new DeviceAuthenticationHandler(channel, keystore, keystorePassword);
     }
 }
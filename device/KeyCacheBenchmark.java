@@ -0,0 +1,125 @@
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Programa que mede o custo no dispositivo de cifrar uma temperatura (ET) para
+ * vários domínios, com e sem o DomainKeyCache:
+ * - sem cache: ler a private key do keystore e decifrar a chave de cada
+ * domínio com RSA em cada ET, como era feito antes
+ * - com cache: só a cifra da temperatura com a chave de cada domínio
+ *
+ * As chaves dos domínios são geradas e cifradas com a public key do
+ * certificado do utilizador, como no ADD. Não contacta o servidor, por isso
+ * mede só o CPU do dispositivo (a latência de rede de um ET não muda)
+ *
+ * Uso: java -cp IoTDevice.jar KeyCacheBenchmark <keystore> <passwordkeystore>
+ * <user-id> [leituras] [domínios ...]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class KeyCacheBenchmark {
+
+    private static final String PBE = "PBEWithHmacSHA256AndAES_128";
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: KeyCacheBenchmark <keystore> <passwordkeystore> <user-id> [readings]"
+                    + " [domains ...]");
+            System.exit(-1);
+        }
+        String password = args[1];
+        String username = args[2];
+        int readings = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+        List<Integer> counts = new ArrayList<>();
+        for (int i = 4; i < args.length; i++) {
+            counts.add(Integer.parseInt(args[i]));
+        }
+        if (counts.isEmpty()) {
+            counts.add(1);
+            counts.add(4);
+            counts.add(8);
+        }
+        int max = counts.stream().mapToInt(Integer::intValue).max().getAsInt();
+
+        KeyStore keystore = KeyStore.getInstance("JCEKS");
+        try (InputStream in = new FileInputStream(args[0])) {
+            keystore.load(in, password.toCharArray());
+        }
+        PublicKey publicKey = keystore.getCertificate(username).getPublicKey();
+        List<String> domains = new ArrayList<>();
+        List<byte[]> wrappedKeys = new ArrayList<>();
+        for (int i = 0; i < max; i++) {
+            Cipher cipher = Cipher.getInstance("RSA");
+            cipher.init(Cipher.WRAP_MODE, publicKey);
+            domains.add("domain" + i);
+            wrappedKeys.add(cipher.wrap(
+                    Utils.generateSecretKey("domain" + i, Utils.generateSalt(), Utils.generateIterations())));
+        }
+
+        DomainKeyCache cache = new DomainKeyCache(keystore, username, password);
+        // aquecimento
+        for (int i = 0; i < Math.max(10, readings / 10); i++) {
+            uncached(keystore, username, password, wrappedKeys.subList(0, 1), 20f);
+            cached(cache, domains.subList(0, 1), wrappedKeys.subList(0, 1), 20f);
+        }
+
+        System.out.printf("%-8s %16s %16s %16s%n", "domains", "uncached us/ET", "cached us/ET", "RSA+keystore %");
+        for (int n : counts) {
+            long start = System.nanoTime();
+            for (int i = 0; i < readings; i++) {
+                uncached(keystore, username, password, wrappedKeys.subList(0, n), 20f + i % 10);
+            }
+            double uncachedUs = (System.nanoTime() - start) / 1e3 / readings;
+            start = System.nanoTime();
+            for (int i = 0; i < readings; i++) {
+                cached(cache, domains.subList(0, n), wrappedKeys.subList(0, n), 20f + i % 10);
+            }
+            double cachedUs = (System.nanoTime() - start) / 1e3 / readings;
+            System.out.printf("%-8d %16.1f %16.1f %16.1f%n", n, uncachedUs, cachedUs,
+                    100 * (uncachedUs - cachedUs) / uncachedUs);
+        }
+    }
+
+    /**
+     * ET sem cache: private key e chaves dos domínios obtidas de novo
+     */
+    private static void uncached(KeyStore keystore, String username, String password, List<byte[]> wrappedKeys,
+            float temperature) throws Exception {
+        PrivateKey privateKey = (PrivateKey) keystore.getKey(username, password.toCharArray());
+        for (byte[] wrapped : wrappedKeys) {
+            Cipher cipher = Cipher.getInstance("RSA");
+            cipher.init(Cipher.UNWRAP_MODE, privateKey);
+            encrypt((SecretKey) cipher.unwrap(wrapped, PBE, Cipher.SECRET_KEY), temperature);
+        }
+    }
+
+    /**
+     * ET com cache: as chaves dos domínios já estão decifradas
+     */
+    private static void cached(DomainKeyCache cache, List<String> domains, List<byte[]> wrappedKeys,
+            float temperature) throws Exception {
+        for (int i = 0; i < domains.size(); i++) {
+            encrypt(cache.domainKey(domains.get(i), wrappedKeys.get(i)), temperature);
+        }
+    }
+
+    private static void encrypt(SecretKey domainKey, float temperature) throws Exception {
+        Cipher cipher = Cipher.getInstance(PBE);
+        cipher.init(Cipher.ENCRYPT_MODE, domainKey);
+        sink = cipher.doFinal(ByteBuffer.allocate(Float.BYTES).putFloat(temperature).array());
+        sink = cipher.getParameters().getEncoded();
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Classe que permite ao dispositivo ter vários pedidos em curso na mesma
+ * ligação. Cada pedido leva um id e uma thread de leitura entrega cada
+ * resposta ao pedido com o mesmo id, mesmo que as respostas cheguem fora de
+ * ordem. Só é usada depois da autenticação, que continua a ser feita com um
+ * pedido de cada vez. As mensagens PUSH enviadas pelo servidor por iniciativa
+ * própria (temperaturas dos domínios subscritos) não têm id e são entregues
+ * ao pushListener
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class RequestPipeline {
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+
+    private final MessageChannel channel;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, CompletableFuture<Message>> pending = new ConcurrentHashMap<>();
+
+    private Thread reader = null;
+    private volatile boolean closed = false;
+    private volatile Consumer<Message> pushListener = null;
+
+    /**
+     * Construtor de um RequestPipeline
+     *
+     * @param channel canal de mensagens com o servidor
+     */
+    public RequestPipeline(MessageChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Método que arranca a thread que lê as respostas do servidor
+     */
+    public synchronized void start() {
+        if (reader == null) {
+            reader = new Thread(this::readLoop, "responses");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Método que define quem recebe as mensagens PUSH do servidor. Corre na
+     * thread de leitura, por isso não deve bloquear
+     *
+     * @param listener função chamada com cada PUSH
+     */
+    public void setPushListener(Consumer<Message> listener) {
+        this.pushListener = listener;
+    }
+
+    /**
+     * Método que indica se a thread de leitura já foi arrancada
+     *
+     * @return true se os pedidos já são feitos com id
+     */
+    public synchronized boolean isStarted() {
+        return reader != null;
+    }
+
+    /**
+     * Método que envia um pedido sem esperar pela resposta
+     *
+     * @param msg pedido a enviar
+     * @return future que termina com a resposta do servidor
+     */
+    public CompletableFuture<Message> send(Message msg) {
+        CompletableFuture<Message> response = new CompletableFuture<>();
+        if (closed) {
+            response.completeExceptionally(new IOException("Server closed connection"));
+            return response;
+        }
+        long id = nextId.incrementAndGet();
+        msg.setRequestId(id);
+        pending.put(id, response);
+        if (closed && pending.remove(id) != null) {
+            // a thread de leitura terminou entretanto
+            response.completeExceptionally(new IOException("Server closed connection"));
+            return response;
+        }
+        channel.writeMessage(msg);
+        return response;
+    }
+
+    /**
+     * Método que envia um pedido e espera pela resposta
+     *
+     * @param msg pedido a enviar
+     * @return resposta do servidor, ou null se a ligação foi fechada
+     */
+    public Message call(Message msg) {
+        try {
+            return send(msg).join();
+        } catch (CompletionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Método que espera que todos os pedidos em curso recebam resposta
+     */
+    public void awaitPending() {
+        try {
+            CompletableFuture.allOf(pending.values().toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // a ligação foi fechada, não há mais respostas
+        }
+    }
+
+    /**
+     * Método que termina a sessão: espera pelos pedidos em curso, envia o EXIT
+     * e espera que o servidor feche a ligação
+     */
+    public void close() {
+        awaitPending();
+        Message msg = new Message();
+        msg.setCommand("EXIT");
+        channel.writeMessage(msg);
+        try {
+            reader.join(TimeUnit.SECONDS.toMillis(CLOSE_TIMEOUT_SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Método que corre na thread de leitura e entrega cada resposta ao pedido
+     * correspondente
+     */
+    private void readLoop() {
+        Message msg;
+        while ((msg = channel.readMessage()) != null) {
+            if (msg.getRequestId() == null) {
+                if (!"PUSH".equals(msg.getCommand())) {
+                    // uma mensagem sem id indica que o servidor está a fechar a sessão
+                    break;
+                }
+                Consumer<Message> listener = pushListener;
+                if (listener != null) {
+                    listener.accept(msg);
+                }
+                continue;
+            }
+            CompletableFuture<Message> response = pending.remove(msg.getRequestId());
+            if (response != null) {
+                response.complete(msg);
+            }
+        }
+        closed = true;
+        IOException e = new IOException("Server closed connection");
+        for (Long id : pending.keySet()) {
+            CompletableFuture<Message> response = pending.remove(id);
+            if (response != null) {
+                response.completeExceptionally(e);
+            }
+        }
+    }
+}
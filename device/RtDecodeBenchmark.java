@@ -0,0 +1,180 @@
+import java.io.ByteArrayInputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.AlgorithmParameters;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Programa que mede quanto tempo o dispositivo demora a decifrar e escrever a
+ * resposta de um RT com muitos dispositivos no domínio:
+ * - sequencial: uma AlgorithmParameters e uma Cipher PBE por temperatura,
+ * uma a seguir à outra, como era feito antes
+ * - pipeline: Utils.writeByteArrayToFile, que decifra em paralelo com o
+ * TemperatureDecoder. Medido duas vezes, porque num RT seguinte das mesmas
+ * leituras PBE as chaves derivadas já estão guardadas
+ *
+ * As temperaturas são cifradas como num ET, com PBE e com AES/GCM. Compara
+ * também as duas formas da resposta, sem decifrar: o HashMap serializado com
+ * os parâmetros numa lista à parte e a TemperatureTable (tamanho e tempo de
+ * as construir no servidor e de as ler no dispositivo). Não contacta o
+ * servidor
+ *
+ * Uso: java -cp IoTDevice.jar RtDecodeBenchmark [dispositivos]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class RtDecodeBenchmark {
+
+    private static final String PBE = "PBEWithHmacSHA256AndAES_128";
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        SecretKey domainKey = Utils.generateSecretKey("domain-password", Utils.generateSalt(),
+                Utils.generateIterations());
+        Path file = Files.createTempFile("rt-decode", ".txt");
+
+        System.out.println("devices: " + devices + ", processors: " + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %-16s %10s%n", "suite", "decode", "ms");
+        for (int suite : new int[] { DataCipher.SUITE_PBE, DataCipher.SUITE_GCM }) {
+            String name = suite == DataCipher.SUITE_PBE ? "pbe" : "aes-gcm";
+            HashMap<String, byte[]> temps = new HashMap<>();
+            Map<String, byte[]> paramsByDevice = new HashMap<>();
+            for (int i = 0; i < devices; i++) {
+                Cipher cipher = DataCipher.encryptor(suite, domainKey);
+                temps.put("user" + i + ":dev", cipher.doFinal(ByteBuffer.allocate(Float.BYTES).putFloat(20f + i % 10)
+                        .array()));
+                paramsByDevice.put("user" + i + ":dev", DataCipher.params(cipher));
+            }
+            // os parâmetros seguem pela ordem do HashMap, como no RT
+            List<byte[]> params = new ArrayList<>();
+            for (String device : temps.keySet()) {
+                params.add(paramsByDevice.get(device));
+            }
+            byte[] data = Utils.hashMapToByteArray(temps);
+
+            if (suite == DataCipher.SUITE_PBE) {
+                long start = System.nanoTime();
+                sequential(temps, params, domainKey);
+                System.out.printf("%-8s %-16s %10.0f%n", name, "sequential", (System.nanoTime() - start) / 1e6);
+            }
+            for (String run : new String[] { "pipeline", "pipeline again" }) {
+                long start = System.nanoTime();
+                Utils.writeByteArrayToFile(data, file.toString(), domainKey, params);
+                System.out.printf("%-8s %-16s %10.0f%n", name, run, (System.nanoTime() - start) / 1e6);
+            }
+            if (Files.readAllLines(file).size() != devices) {
+                throw new IllegalStateException("Missing temperatures in " + file);
+            }
+        }
+        Files.delete(file);
+        formats(devices);
+    }
+
+    /**
+     * Compara o HashMap serializado com a TemperatureTable
+     */
+    private static void formats(int devices) throws Exception {
+        SecretKey domainKey = Utils.generateSecretKey("domain-password", Utils.generateSalt(),
+                Utils.generateIterations());
+        Map<String, byte[][]> readings = new HashMap<>();
+        for (int i = 0; i < devices; i++) {
+            Cipher cipher = DataCipher.encryptor(DataCipher.SUITE_GCM, domainKey);
+            readings.put("user" + i + ":dev", new byte[][] {
+                    cipher.doFinal(ByteBuffer.allocate(Float.BYTES).putFloat(20f).array()),
+                    DataCipher.params(cipher) });
+        }
+        int rounds = 50;
+        long hashMapBytes = 0;
+        long tableBytes = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            HashMap<String, byte[]> temps = new HashMap<>();
+            for (Map.Entry<String, byte[][]> entry : readings.entrySet()) {
+                temps.put(entry.getKey(), entry.getValue()[0]);
+            }
+            List<byte[]> params = new ArrayList<>();
+            for (String device : temps.keySet()) {
+                params.add(readings.get(device)[1]);
+            }
+            byte[] data = Utils.hashMapToByteArray(temps);
+            hashMapBytes = data.length + params.stream().mapToLong(p -> p.length + 1).sum();
+            sink = data;
+        }
+        double hashMapBuild = (System.nanoTime() - start) / 1e3 / rounds;
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            TemperatureTable.Builder builder = new TemperatureTable.Builder(readings.size());
+            for (Map.Entry<String, byte[][]> entry : readings.entrySet()) {
+                builder.add(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+            }
+            byte[] data = builder.build();
+            tableBytes = data.length;
+            sink = data;
+        }
+        double tableBuild = (System.nanoTime() - start) / 1e3 / rounds;
+
+        HashMap<String, byte[]> temps = new HashMap<>();
+        for (Map.Entry<String, byte[][]> entry : readings.entrySet()) {
+            temps.put(entry.getKey(), entry.getValue()[0]);
+        }
+        byte[] serialized = Utils.hashMapToByteArray(temps);
+        TemperatureTable.Builder builder = new TemperatureTable.Builder(readings.size());
+        for (Map.Entry<String, byte[][]> entry : readings.entrySet()) {
+            builder.add(entry.getKey(), entry.getValue()[0], entry.getValue()[1]);
+        }
+        byte[] table = builder.build();
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                HashMap<?, ?> map = (HashMap<?, ?>) in.readObject();
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    sink = entry.getKey();
+                    sink = entry.getValue();
+                }
+            }
+        }
+        double hashMapRead = (System.nanoTime() - start) / 1e3 / rounds;
+        start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            TemperatureTable t = TemperatureTable.wrap(ByteBuffer.wrap(table));
+            for (int i = 0; i < t.size(); i++) {
+                sink = t.device(i);
+                sink = t.temp(i);
+                sink = t.params(i);
+            }
+        }
+        double tableRead = (System.nanoTime() - start) / 1e3 / rounds;
+
+        System.out.println();
+        System.out.printf("%-10s %12s %14s %14s%n", "format", "bytes", "server us", "device us");
+        System.out.printf("%-10s %12d %14.0f %14.0f%n", "hashmap", hashMapBytes, hashMapBuild, hashMapRead);
+        System.out.printf("%-10s %12d %14.0f %14.0f%n", "table", tableBytes, tableBuild, tableRead);
+    }
+
+    /**
+     * Decifra como era feito antes, uma temperatura de cada vez
+     */
+    private static void sequential(HashMap<String, byte[]> temps, List<byte[]> params, SecretKey domainKey)
+            throws Exception {
+        int counter = 0;
+        for (byte[] value : temps.values()) {
+            AlgorithmParameters p = AlgorithmParameters.getInstance(PBE);
+            p.init(params.get(counter++));
+            Cipher cipher = Cipher.getInstance(PBE);
+            cipher.init(Cipher.DECRYPT_MODE, domainKey, p);
+            sink = Float.intBitsToFloat(ByteBuffer.wrap(cipher.doFinal(value)).getInt());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Programa que mede quantas leituras de temperatura por segundo um dispositivo
+ * consegue registar numa ligação: um ET de cada vez (esperando pela
+ * resposta), ETs em pipelining e ET_BATCH com vários tamanhos de lote.
+ *
+ * Autentica-se como o IoTDevice (o código de 2FA é lido do teclado) e o
+ * dispositivo tem de estar registado em pelo menos um domínio.
+ *
+ * Uso: java -cp IoTDevice.jar TemperatureBenchmark <serverAddress> <truststore>
+ * <keystore> <passwordkeystore> <dev-id> <user-id> [leituras] [lote ...]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class TemperatureBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 6) {
+            System.out.println("Usage: TemperatureBenchmark <serverAddress> <truststore> <keystore>"
+                    + " <passwordkeystore> <dev-id> <user-id> [readings] [batch-size ...]");
+            System.exit(-1);
+        }
+        String[] addr = args[0].split(":");
+        String truststoreFile = args[1];
+        String keystoreFile = args[2];
+        String keystorePassword = args[3];
+        String id = args[4];
+        String username = args[5];
+        int readings = args.length > 6 ? Integer.parseInt(args[6]) : 200;
+        List<Integer> batchSizes = new ArrayList<>();
+        for (int i = 7; i < args.length; i++) {
+            batchSizes.add(Integer.parseInt(args[i]));
+        }
+        if (batchSizes.isEmpty()) {
+            batchSizes.add(10);
+            batchSizes.add(100);
+        }
+
+        System.setProperty("javax.net.ssl.keyStore", keystoreFile);
+        System.setProperty("javax.net.ssl.keyStorePassword", keystorePassword);
+        System.setProperty("javax.net.ssl.keyStoreType", "JCEKS");
+        System.setProperty("javax.net.ssl.trustStore", truststoreFile);
+        System.setProperty("javax.net.ssl.trustStorePassword", keystorePassword);
+        System.setProperty("javax.net.ssl.trustStoreType", "JCEKS");
+
+        SocketFactory sf = SSLSocketFactory.getDefault();
+        SSLSocket socket = (SSLSocket) sf.createSocket(addr[0], addr.length > 1 ? Integer.parseInt(addr[1]) : 12345);
+        MessageChannel channel = Utils.openChannel(socket.getInputStream(), socket.getOutputStream());
+
+        KeyStore keystore = KeyStore.getInstance("JCEKS");
+        try (InputStream in = new FileInputStream(keystoreFile)) {
+            keystore.load(in, keystorePassword.toCharArray());
+        }
+        KeyStore truststore = KeyStore.getInstance("JCEKS");
+        try (InputStream in = new FileInputStream(truststoreFile)) {
+            truststore.load(in, keystorePassword.toCharArray());
+        }
+
+        DeviceCommandHandler handler = new DeviceCommandHandler(channel, username, id, keystore, truststore,
+                keystorePassword);
+        DeviceAuthenticationHandler auth = new DeviceAuthenticationHandler(channel, keystore, keystorePassword);
+        if (!auth.resumeSession(username, id)
+                && !(auth.startTwoFactorAuthentication(username) && auth.startExecutableAuthentication(id))) {
+            System.out.println("Authentication failed");
+            socket.close();
+            System.exit(-1);
+        }
+        handler.startPipelining();
+
+        // aquecimento
+        measureLockStep(handler, Math.min(readings, 20));
+
+        System.out.printf("%-28s %10s %14s%n", "mode", "readings", "readings/s");
+        System.out.printf("%-28s %10d %14.1f%n", "ET (lock-step)", readings, measureLockStep(handler, readings));
+        System.out.printf("%-28s %10d %14.1f%n", "ET (pipelined)", readings, measurePipelined(handler, readings));
+        for (int batch : batchSizes) {
+            System.out.printf("%-28s %10d %14.1f%n", "ET_BATCH (" + batch + " per request)", readings,
+                    measureBatch(handler, readings, batch));
+        }
+
+        handler.closeClient();
+        socket.close();
+    }
+
+    /**
+     * Método que envia um ET de cada vez, esperando pela resposta
+     */
+    private static double measureLockStep(DeviceCommandHandler handler, int readings) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < readings; i++) {
+            check(handler.sendTemperature(20f + i % 10).join());
+        }
+        return readings * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * Método que envia os ETs sem esperar pelas respostas
+     */
+    private static double measurePipelined(DeviceCommandHandler handler, int readings) throws Exception {
+        List<CompletableFuture<Message>> responses = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < readings; i++) {
+            responses.add(handler.sendTemperature(20f + i % 10));
+        }
+        for (CompletableFuture<Message> response : responses) {
+            check(response.join());
+        }
+        return readings * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * Método que envia as leituras em lotes de ET_BATCH
+     */
+    private static double measureBatch(DeviceCommandHandler handler, int readings, int batch) throws Exception {
+        List<CompletableFuture<Message>> responses = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int sent = 0; sent < readings; sent += batch) {
+            List<Float> temps = new ArrayList<>();
+            List<Long> timestamps = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            for (int i = sent; i < Math.min(readings, sent + batch); i++) {
+                temps.add(20f + i % 10);
+                timestamps.add(now);
+            }
+            responses.add(handler.sendTemperatureBatch(temps, timestamps));
+        }
+        for (CompletableFuture<Message> response : responses) {
+            check(response.join());
+        }
+        return readings * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static void check(Message response) {
+        if (response == null || response.getCode() != MessageCode.OK) {
+            throw new IllegalStateException("Request failed: " + (response == null ? null : response.getCode()));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * Classe que implementa um circuit breaker simples: depois de um número de
+ * falhas seguidas o circuito abre e os pedidos falham de imediato durante um
+ * intervalo, após o qual é deixado passar um único pedido de teste
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class CircuitBreaker {
+
+    /**
+     * Estados possíveis do circuito
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean trialInFlight = false;
+
+    /**
+     * Construtor de um CircuitBreaker
+     *
+     * @param failureThreshold número de falhas seguidas que abre o circuito
+     * @param openMillis       tempo que o circuito fica aberto
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Método que verifica se um pedido pode ser feito
+     *
+     * @return true se o pedido pode seguir, false se o circuito está aberto
+     */
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            trialInFlight = false;
+        }
+        switch (state) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Método que regista um pedido bem sucedido, fechando o circuito
+     */
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        trialInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Método que regista um pedido falhado
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != State.OPEN) {
+                System.out.println("2FA circuit opened after " + consecutiveFailures + " failures");
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Método que devolve o estado atual do circuito
+     *
+     * @return estado do circuito
+     */
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Programa que mede o débito de operações sobre os domínios com várias
+ * threads, para ver como o lock de cada domínio escala com o número de cores.
+ *
+ * Cenários, cada um durante o tempo indicado e com 1, 2, 4, ... threads:
+ * - ET em domínios diferentes (cada thread escreve no seu domínio)
+ * - ET em domínios diferentes, mas com um lock global à volta de cada
+ * operação, como quando todo o estado estava sob um só monitor
+ * - ET no mesmo domínio (todas as threads disputam o mesmo lock)
+ * - leituras e escritas no mesmo domínio: 90% verificações de membro e
+ * chave (como o MYDOMAINS e o RI) e 10% ET
+ *
+ * O resultado só mostra o ganho com várias threads numa máquina com esse
+ * número de cores (ver a linha "cores")
+ *
+ * Uso: java -cp IoTServer.jar DomainConcurrencyBenchmark [max-threads] [ms]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class DomainConcurrencyBenchmark {
+
+    private static final int DEVICES = 1000;
+
+    private interface Operation {
+        void run(int thread, ThreadLocalRandom random);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+        List<Domain> domains = new ArrayList<>();
+        for (int i = 0; i < maxThreads; i++) {
+            domains.add(newDomain("domain" + i));
+        }
+        Domain shared = domains.get(0);
+        ReentrantLock global = new ReentrantLock();
+        byte[] temp = new byte[16];
+        byte[] params = new byte[91];
+
+        Operation separate = (t, r) -> domains.get(t).registerTempToDevice(device(r), temp, params,
+                System.currentTimeMillis());
+        Operation globalLock = (t, r) -> {
+            global.lock();
+            try {
+                separate.run(t, r);
+            } finally {
+                global.unlock();
+            }
+        };
+        Operation same = (t, r) -> shared.registerTempToDevice(device(r), temp, params,
+                System.currentTimeMillis());
+        Operation mixed = (t, r) -> {
+            if (r.nextInt(10) == 0) {
+                same.run(t, r);
+            } else if (shared.hasDevice(device(r))) {
+                shared.getKeyByUserId("user" + r.nextInt(8));
+            }
+        };
+
+        System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %18s %18s %18s %18s%n", "threads", "ET own domain/s", "ET global lock/s",
+                "ET same domain/s", "90% reads/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            System.out.printf("%-8d %18.0f %18.0f %18.0f %18.0f%n", threads, run(separate, threads, millis),
+                    run(globalLock, threads, millis), run(same, threads, millis), run(mixed, threads, millis));
+        }
+    }
+
+    private static Domain newDomain(String name) {
+        Domain domain = new Domain(name, new User("owner", null));
+        for (int u = 0; u < 8; u++) {
+            domain.addUser(new User("user" + u, null), new byte[256]);
+        }
+        for (int d = 0; d < DEVICES; d++) {
+            domain.registerDevice("user" + (d % 8) + ":dev" + d);
+        }
+        return domain;
+    }
+
+    private static String device(ThreadLocalRandom random) {
+        int d = random.nextInt(DEVICES);
+        return "user" + (d % 8) + ":dev" + d;
+    }
+
+    /**
+     * Método que corre uma operação em várias threads durante um tempo fixo
+     *
+     * @param operation operação a medir
+     * @param threads   número de threads
+     * @param millis    duração em milissegundos (depois de um aquecimento)
+     * @return operações por segundo, somando todas as threads
+     */
+    private static double run(Operation operation, int threads, long millis) throws InterruptedException {
+        AtomicBoolean measuring = new AtomicBoolean(false);
+        AtomicBoolean stop = new AtomicBoolean(false);
+        LongAdder done = new LongAdder();
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                while (!stop.get()) {
+                    operation.run(thread, random);
+                    if (measuring.get()) {
+                        count++;
+                    }
+                }
+                done.add(count);
+                finished.countDown();
+            });
+            worker.setDaemon(true);
+            worker.start();
+        }
+        Thread.sleep(Math.min(200, millis / 2));
+        measuring.set(true);
+        long start = System.nanoTime();
+        Thread.sleep(millis);
+        stop.set(true);
+        long elapsed = System.nanoTime() - start;
+        finished.await();
+        return done.sum() * 1e9 / elapsed;
+    }
+}
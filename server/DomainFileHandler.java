@@ -1,15 +1,19 @@
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -39,13 +43,13 @@ public class DomainFileHandler {
     /**
      * Método que carrega os domínios do ficheiro de domínios.
      * 
-     * @param usersList lista de utilizadores.
+     * @param usersList utilizadores indexados pelo nome.
      * @return lista de domínios.
      * @throws IOException              exceção de I/O.
      * @throws NoSuchAlgorithmException exceção de algoritmo inexistente.
      * @throws InvalidKeyException      exceção de chave inválida.
      */
-    public List<Domain> loadDomainFile(Set<User> usersList)
+    public List<Domain> loadDomainFile(Map<String, User> usersList)
             throws IOException, NoSuchAlgorithmException, InvalidKeyException {
         List<String> domainFile = Files.readAllLines(Paths.get(DOMAINS_PATH));
 
@@ -64,8 +68,10 @@ public class DomainFileHandler {
             String devices = parts[2];
             String users = parts[3];
 
-            Domain domain = new Domain(domainName,
-                    usersList.stream().filter(u -> u.getUserId().equals(owner)).findFirst().get());
+            if (!usersList.containsKey(owner)) {
+                throw new IOException("Unknown owner of domain " + domainName);
+            }
+            Domain domain = new Domain(domainName, usersList.get(owner));
             loadDomainDeviceData(domain, devices);
             loadDomainUsers(domain, users, usersList);
             domainsToLoad.add(domain);
@@ -84,6 +90,39 @@ public class DomainFileHandler {
 
     }
 
+    /**
+     * Método que retorna o caminho do ficheiro com a imagem de um dispositivo
+     * num domínio.
+     * 
+     * @param domainName nome do domínio.
+     * @param device     dispositivo no formato user:dev.
+     * @return caminho do ficheiro.
+     */
+    public static String imagePath(String domainName, String device) {
+        return "server/serverFiles/data/" + domainName + "/" + device.replace(':', '_') + "/image.txt";
+    }
+
+    /**
+     * Método que guarda a compressão da imagem de um dispositivo ao lado dos
+     * parâmetros, apagando o ficheiro se a imagem não foi comprimida.
+     * 
+     * @param domainName  nome do domínio.
+     * @param device      dispositivo no formato user:dev.
+     * @param compression nome da compressão, ou null.
+     */
+    public static void writeImageCompression(String domainName, String device, String compression) {
+        Path compressionFile = Paths.get(imagePath(domainName, device)).resolveSibling("imageCompression.txt");
+        try {
+            if (compression == null) {
+                Files.deleteIfExists(compressionFile);
+            } else {
+                Files.write(compressionFile, compression.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing image compression: " + e.getMessage());
+        }
+    }
+
     /**
      * Método que carrega os dispositivos de um domínio.
      * 
@@ -106,13 +145,16 @@ public class DomainFileHandler {
                 domain.registerTempToDevice(device, temp, tempParams);
             }
 
-            if (Files.exists(Paths.get(
-                    "server/serverFiles/data/" + domainName + "/" + device.replace(':', '_') + "/image.txt"))) {
-                byte[] image = Files.readAllBytes(Paths.get("server/serverFiles/data/" + domainName + "/"
-                        + device.replace(':', '_') + "/image.txt"));
+            // a imagem fica em disco e só é lida quando for pedida
+            if (Files.exists(Paths.get(imagePath(domainName, device)))) {
                 byte[] imageParams = Files.readAllBytes(Paths.get("server/serverFiles/data/" + domainName + "/"
                         + device.replace(':', '_') + "/imageParams.txt"));
-                domain.registerImageToDevice(device, image, imageParams);
+                // compressão aplicada pelo dispositivo antes da cifra, se houver
+                Path compressionFile = Paths.get(imagePath(domainName, device)).resolveSibling("imageCompression.txt");
+                String compression = Files.exists(compressionFile)
+                        ? new String(Files.readAllBytes(compressionFile), StandardCharsets.UTF_8).trim()
+                        : null;
+                domain.registerImageFileToDevice(device, imagePath(domainName, device), imageParams, compression);
             }
 
         }
@@ -124,10 +166,10 @@ public class DomainFileHandler {
      * 
      * @param domain    domínio.
      * @param users     utilizadores.
-     * @param usersList lista de utilizadores.
+     * @param usersList utilizadores indexados pelo nome.
      * @throws IOException exceção de I/O.
      */
-    private void loadDomainUsers(Domain domain, String users, Set<User> usersList) throws IOException {
+    private void loadDomainUsers(Domain domain, String users, Map<String, User> usersList) throws IOException {
 
         String domainName = domain.getName();
         for (String user : users.substring(1, users.length() - 1).split(", ")) {
@@ -135,8 +177,10 @@ public class DomainFileHandler {
                     "server/serverFiles/data/" + domainName + "/users/" + user.replace('.', '_') + ".txt"))) {
                 byte[] domainKey = Files.readAllBytes(Paths.get(
                         "server/serverFiles/data/" + domainName + "/users/" + user.replace('.', '_') + ".txt"));
-                domain.addUser(usersList.stream().filter(u -> u.getUserId().equals(user)).findFirst().get(),
-                        domainKey);
+                if (!usersList.containsKey(user)) {
+                    throw new IOException("Unknown user of domain " + domainName);
+                }
+                domain.addUser(usersList.get(user), domainKey);
             }
 
         }
@@ -151,7 +195,7 @@ public class DomainFileHandler {
      * @throws NoSuchAlgorithmException exceção de algoritmo inexistente.
      * @throws InvalidKeyException      exceção de chave inválida.
      */
-    public void backupDomainFile(Set<Domain> domainsList)
+    public void backupDomainFile(Collection<Domain> domainsList)
             throws FileNotFoundException, NoSuchAlgorithmException, InvalidKeyException {
         PrintWriter pw = new PrintWriter(DOMAINS_PATH);
         Mac mac = Mac.getInstance("HmacSHA256");
@@ -159,11 +203,17 @@ public class DomainFileHandler {
         mac.init(secretKey);
 
         for (Domain d : domainsList) {
-            pw.println(d.toString());
-            mac.update(d.toString().getBytes());
-
-            backupDomainDeviceData(d);
-            backupDomainUsers(d);
+            // cada domínio é guardado num estado consistente, sem parar os outros
+            d.readLock().lock();
+            try {
+                pw.println(d.toString());
+                mac.update(d.toString().getBytes());
+
+                backupDomainDeviceData(d);
+                backupDomainUsers(d);
+            } finally {
+                d.readLock().unlock();
+            }
 
         }
 
@@ -187,25 +237,36 @@ public class DomainFileHandler {
 
             Utils.createDir("server/serverFiles/data/" + domainName + "/" + device.replace(':', '_'));
 
-            if (value.getTemp() != null) {
+            DeviceData.Reading reading = value.getReading();
+            if (reading != null) {
                 Utils.createBinaryFile(
                         "server/serverFiles/data/" + domainName + "/" + device.replace(':', '_') + "/temp.txt",
-                        value.getTemp());
+                        reading.getTemp());
                 Utils.createBinaryFile(
                         "server/serverFiles/data/" + domainName + "/" + device.replace(':', '_')
                                 + "/tempParams.txt",
-                        value.getTempParams());
+                        reading.getParams());
             }
 
-            if (value.getImage() != null) {
-                Utils.createBinaryFile(
-                        "server/serverFiles/data/" + domainName + "/" + device.replace(':', '_')
-                                + "/image.txt",
-                        value.getImage());
+            if (value.hasImage()) {
+                // imagens guardadas em disco já estão no sítio certo
+                if (value.getImageBlob() != null) {
+                    // escrita diretamente a partir da memória fora do heap, num
+                    // ficheiro novo (o anterior pode ser partilhado com outros domínios)
+                    Paths.get(imagePath(domainName, device)).toFile().delete();
+                    try (FileChannel out = FileChannel.open(Paths.get(imagePath(domainName, device)),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                        value.getImageBlob().writeTo(out);
+                    } catch (IOException e) {
+                        System.err.println("Error saving image: " + e.getMessage());
+                    }
+                }
                 Utils.createBinaryFile(
                         "server/serverFiles/data/" + domainName + "/" + device.replace(':', '_')
                                 + "/imageParams.txt",
                         value.getImageParams());
+                writeImageCompression(domainName, device, value.getImageCompression());
             }
 
         }
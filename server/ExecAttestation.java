@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Classe com o estado partilhado da verificação do executável dos
+ * dispositivos. Guarda em cache a verificação do HMAC do localInfo.txt e o
+ * SHA-256 do executável de referência, ambos invalidados quando a data de
+ * modificação ou o tamanho do ficheiro mudam
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ExecAttestation {
+
+    private static final Path LOCAL_INFO = Paths.get("localInfo.txt");
+
+    /**
+     * Resultado da última verificação do localInfo.txt
+     */
+    private static class LocalInfo {
+        final long modified;
+        final long size;
+        final Path execPath;
+
+        LocalInfo(long modified, long size, Path execPath) {
+            this.modified = modified;
+            this.size = size;
+            this.execPath = execPath;
+        }
+    }
+
+    private final String passCipher;
+    private final FileDigestCache digests = new FileDigestCache(null);
+    private volatile LocalInfo localInfo = null;
+
+    /**
+     * Construtor de um ExecAttestation
+     *
+     * @param passCipher password usada no HMAC do localInfo.txt
+     */
+    public ExecAttestation(String passCipher) {
+        this.passCipher = passCipher;
+    }
+
+    /**
+     * Método que verifica a integridade do ficheiro localInfo.txt e retorna o
+     * caminho do executável nele indicado
+     *
+     * @return caminho do executável, ou null se a integridade não foi verificada
+     */
+    public Path verifiedExecPath() {
+        try {
+            long modified = Files.getLastModifiedTime(LOCAL_INFO).toMillis();
+            long size = Files.size(LOCAL_INFO);
+
+            LocalInfo cached = this.localInfo;
+            if (cached != null && cached.modified == modified && cached.size == size) {
+                System.out.println("Exec info file integrity verified");
+                return cached.execPath;
+            }
+
+            List<String> lines = Files.readAllLines(LOCAL_INFO);
+
+            if (lines.size() == 2) { // hmac ja existe
+
+                Mac mac = Mac.getInstance("HmacSHA256");
+                SecretKeySpec secretKey = new SecretKeySpec(passCipher.getBytes(), "HmacSHA256");
+
+                mac.init(secretKey);
+
+                byte[] decodedHmac = Utils.hexToBytes(lines.get(1).trim());
+
+                mac.update(lines.get(0).trim().getBytes());
+
+                byte[] calculatedHmac = mac.doFinal();
+                if (!Arrays.equals(calculatedHmac, decodedHmac)) {
+                    System.out.println("Exec info file integrity NOT verified");
+                    return null;
+                } else {
+                    System.out.println("Exec info file integrity verified");
+                    // só os ficheiros válidos ficam em cache
+                    Path execPath = Paths.get(lines.get(0).trim());
+                    this.localInfo = new LocalInfo(modified, size, execPath);
+                    return execPath;
+                }
+
+            } else {
+                System.out.println("Something went wrong while checking localInfo.txt integrity...");
+                return null;
+            }
+
+        } catch (IOException | GeneralSecurityException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Método que retorna o SHA-256 do executável, recalculado apenas quando o
+     * ficheiro muda
+     *
+     * @param execPath caminho do executável
+     * @return digest do executável
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public byte[] execDigest(Path execPath) throws IOException, NoSuchAlgorithmException {
+        return digests.digest(execPath);
+    }
+}
@@ -0,0 +1,126 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Programa que mede a memória por leitura guardada no histórico das
+ * temperaturas (TemperatureHistory) e o custo de registar e ler leituras.
+ *
+ * As leituras têm os tamanhos reais de uma temperatura cifrada pelo
+ * dispositivo e dos seus parâmetros. A memória é comparada com uma lista com
+ * um objeto por leitura (um DeviceData.Reading com os seus dois arrays numa
+ * ArrayDeque), medida pela diferença do heap usado depois de um GC
+ *
+ * Uso: java -cp IoTServer.jar HistoryBenchmark [dispositivos] [leituras]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class HistoryBenchmark {
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int devices = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int readings = args.length > 1 ? Integer.parseInt(args[1]) : TemperatureHistory.DEFAULT_CAPACITY;
+
+        // tamanhos de uma temperatura cifrada como no ET
+        SecretKey key = SecretKeyFactory.getInstance("PBEWithHmacSHA256AndAES_128")
+                .generateSecret(new PBEKeySpec("benchmark".toCharArray()));
+        Cipher cipher = Cipher.getInstance("PBEWithHmacSHA256AndAES_128");
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        int tempLength = cipher.doFinal(ByteBuffer.allocate(Float.BYTES).putFloat(21.5f).array()).length;
+        int paramsLength = cipher.getParameters().getEncoded().length;
+        System.out.println("reading: " + tempLength + " B ciphertext + " + paramsLength + " B params, "
+                + devices + " devices x " + readings + " readings");
+
+        Random random = new Random(42);
+        long total = (long) devices * readings;
+
+        long before = usedHeap();
+        List<TemperatureHistory> histories = new ArrayList<>();
+        long allocated = 0;
+        for (int d = 0; d < devices; d++) {
+            TemperatureHistory history = new TemperatureHistory(readings);
+            for (int i = 0; i < readings; i++) {
+                history.append(i, bytes(random, tempLength), bytes(random, paramsLength));
+            }
+            allocated += history.allocatedBytes();
+            histories.add(history);
+        }
+        double historyBytes = (double) (usedHeap() - before) / total;
+        sink = histories;
+
+        before = usedHeap();
+        List<ArrayDeque<DeviceData.Reading>> lists = new ArrayList<>();
+        for (int d = 0; d < devices; d++) {
+            ArrayDeque<DeviceData.Reading> list = new ArrayDeque<>(readings);
+            for (int i = 0; i < readings; i++) {
+                list.add(new DeviceData.Reading(bytes(random, tempLength), bytes(random, paramsLength), i, i));
+            }
+            lists.add(list);
+        }
+        double objectBytes = (double) (usedHeap() - before) / total;
+        sink = lists;
+
+        System.out.printf("%-34s %14s%n", "storage", "bytes/reading");
+        System.out.printf("%-34s %14.1f%n", "TemperatureHistory (heap)", historyBytes);
+        System.out.printf("%-34s %14.1f%n", "TemperatureHistory (arrays)", (double) allocated / total);
+        System.out.printf("%-34s %14.1f%n", "object per reading (ArrayDeque)", objectBytes);
+        lists = null;
+        sink = null;
+
+        // custo de registar com o histórico cheio (descarta a mais antiga)
+        TemperatureHistory full = histories.get(0);
+        byte[] temp = bytes(random, tempLength);
+        byte[] params = bytes(random, paramsLength);
+        int appends = 2_000_000;
+        long time = readings;
+        for (int i = 0; i < appends / 10; i++) {
+            full.append(time++, temp, params);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < appends; i++) {
+            full.append(time++, temp, params);
+        }
+        double appendNs = (double) (System.nanoTime() - start) / appends;
+
+        // intervalo com 10% das leituras, no meio do histórico
+        long from = time - readings / 2;
+        long to = from + readings / 10;
+        int queries = 20_000;
+        long[] found = new long[1];
+        start = System.nanoTime();
+        for (int i = 0; i < queries; i++) {
+            full.range(from, to, 0, Integer.MAX_VALUE, (s, t, te, p) -> found[0]++);
+        }
+        double rangeUs = (System.nanoTime() - start) / 1e3 / queries;
+
+        System.out.printf("%-34s %14.1f%n", "append (full, ns)", appendNs);
+        System.out.printf("%-34s %14.1f%n", "range of " + (to - from + 1) + " readings (us)", rangeUs);
+        sink = histories;
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] b = new byte[length];
+        random.nextBytes(b);
+        return b;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fornecedor de 2FA que entrega os códigos através do serviço HTTP externo.
+ *
+ * Os pedidos são assíncronos (java.net.http.HttpClient), com tempos máximos de
+ * ligação e de resposta. As falhas são repetidas com backoff exponencial com
+ * jitter até um número máximo de tentativas, e um circuit breaker corta os
+ * pedidos enquanto o serviço estiver em baixo. Todos os pedidos partilham o
+ * mesmo HttpClient e por isso o seu pool de ligações
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class HttpTwoFactorProvider implements TwoFactorProvider {
+
+    private static final String URL_FORMAT = "https://lmpinto.eu.pythonanywhere.com/2FA?e=%s&c=%s&a=%s";
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MILLIS = 250;
+    private static final long MAX_BACKOFF_MILLIS = 8000;
+
+    private static final int HTTP_THREADS = 4;
+    private static final int CONNECTION_POOL_SIZE = 16;
+
+    private static final int BREAKER_FAILURES = 5;
+    private static final long BREAKER_OPEN_MILLIS = 30000;
+
+    private final String apiKey;
+    private final HttpClient client;
+    private final CircuitBreaker breaker = new CircuitBreaker(BREAKER_FAILURES, BREAKER_OPEN_MILLIS);
+
+    /**
+     * Construtor de um HttpTwoFactorProvider
+     *
+     * @param apiKey chave da API do serviço de 2FA
+     */
+    public HttpTwoFactorProvider(String apiKey) {
+        this.apiKey = apiKey;
+
+        // tem de ser definido antes da criação do primeiro HttpClient
+        if (System.getProperty("jdk.httpclient.connectionPoolSize") == null) {
+            System.setProperty("jdk.httpclient.connectionPoolSize", String.valueOf(CONNECTION_POOL_SIZE));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(HTTP_THREADS, r -> {
+            Thread t = new Thread(r, "2fa-http");
+            t.setDaemon(true);
+            return t;
+        });
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(CONNECT_TIMEOUT)
+                .executor(executor)
+                .build();
+    }
+
+    @Override
+    public CompletableFuture<Void> sendCode(String userId, String code) {
+        URI uri = URI.create(String.format(URL_FORMAT, encode(userId), encode(code), encode(apiKey)));
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        attempt(uri, 1, result);
+        return result;
+    }
+
+    /**
+     * Método que faz uma tentativa de envio, agendando a seguinte em caso de
+     * falha
+     *
+     * @param uri     endereço do pedido
+     * @param attempt número da tentativa (a começar em 1)
+     * @param result  future a completar com o resultado final
+     */
+    private void attempt(URI uri, int attempt, CompletableFuture<Void> result) {
+        if (!breaker.allowRequest()) {
+            result.completeExceptionally(new IOException("2FA service unavailable (circuit open)"));
+            return;
+        }
+
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT).GET().build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+            if (error == null && response.statusCode() == 200) {
+                breaker.recordSuccess();
+                System.out.println("Response: " + response.body());
+                result.complete(null);
+                return;
+            }
+
+            breaker.recordFailure();
+            if (attempt >= MAX_ATTEMPTS) {
+                String reason = error != null ? error.toString() : "HTTP " + response.statusCode();
+                result.completeExceptionally(new IOException("2FA request failed: " + reason));
+                return;
+            }
+
+            CompletableFuture.delayedExecutor(backoffMillis(attempt), TimeUnit.MILLISECONDS)
+                    .execute(() -> attempt(uri, attempt + 1, result));
+        });
+    }
+
+    /**
+     * Método que calcula o tempo de espera antes da próxima tentativa, com
+     * backoff exponencial e jitter completo
+     *
+     * @param attempt número da tentativa que falhou
+     * @return tempo de espera em milissegundos
+     */
+    private static long backoffMillis(int attempt) {
+        long cap = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << (attempt - 1));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * Método que codifica um parametro do url
+     *
+     * @param value valor a codificar
+     * @return valor codificado
+     */
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
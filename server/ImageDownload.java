@@ -0,0 +1,113 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Classe que representa um download de imagem por partes (RI_OPEN, RI_CHUNK e
+ * RI_CLOSE) aberto numa sessão.
+ *
+ * Imagens guardadas em disco são lidas com leituras posicionais de um
+ * FileChannel aberto no RI_OPEN, por isso um upload que substitua a imagem
+ * durante o download não mistura as duas versões. Imagens em memória
+ * (enviadas com o EI antigo) são copiadas de fora do heap diretamente para
+ * cada parte; o download tem a sua referência para o blob, por isso uma
+ * imagem nova pode substituí-la sem que as páginas sejam reutilizadas antes
+ * de o download fechar
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ImageDownload implements Closeable {
+
+    private final FileChannel file;
+    private final BlobStore.Blob image;
+    private final long size;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * Construtor de um ImageDownload de uma imagem guardada em disco
+     *
+     * @param imageFile ficheiro com a imagem cifrada
+     * @throws IOException
+     */
+    public ImageDownload(String imageFile) throws IOException {
+        this.file = FileChannel.open(Paths.get(imageFile), StandardOpenOption.READ);
+        this.image = null;
+        this.size = file.size();
+    }
+
+    /**
+     * Construtor de um ImageDownload de uma imagem em memória. Deve ser
+     * chamado com o readLock do domínio
+     *
+     * @param image imagem cifrada
+     * @throws IOException se a imagem já foi libertada
+     */
+    public ImageDownload(BlobStore.Blob image) throws IOException {
+        if (!image.retain()) {
+            throw new IOException("Image released");
+        }
+        this.file = null;
+        this.image = image;
+        this.size = image.length();
+    }
+
+    /**
+     * Método que retorna o tamanho da imagem cifrada
+     *
+     * @return tamanho em bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Método que lê uma parte da imagem
+     *
+     * @param offset posição da parte
+     * @param length tamanho máximo da parte
+     * @return parte lida, vazia se offset estiver no fim da imagem, ou null se
+     *         offset não for válido
+     * @throws IOException
+     */
+    public byte[] read(long offset, int length) throws IOException {
+        if (offset < 0 || offset > size) {
+            return null;
+        }
+        int n = (int) Math.min(length, size - offset);
+        if (image != null) {
+            // as partes podem ser lidas ao mesmo tempo que o download fecha
+            if (closed.get() || !image.retain()) {
+                throw new IOException("Download closed");
+            }
+            try {
+                byte[] chunk = new byte[n];
+                image.read(offset, chunk, 0, n);
+                return chunk;
+            } finally {
+                image.release();
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(n);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Image file truncated");
+            }
+        }
+        return buffer.array();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        } else if (closed.compareAndSet(false, true)) {
+            image.release();
+        }
+    }
+}
@@ -0,0 +1,349 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Classe que guarda os uploads de imagens por partes (EI_OPEN, EI_CHUNK e
+ * EI_COMMIT).
+ *
+ * Cada dispositivo tem no máximo um upload em curso. As partes recebidas,
+ * já cifradas pelo dispositivo com a chave de cada domínio, são acrescentadas
+ * a um ficheiro temporário por domínio, por isso a memória usada não depende
+ * do tamanho da imagem. Os uploads sobrevivem ao fim da sessão: se a ligação
+ * cair, o dispositivo volta a abrir o mesmo upload e continua a partir do
+ * último byte confirmado. Uploads parados há mais de UPLOAD_TTL são apagados.
+ *
+ * Se os parâmetros de todos os domínios forem envelopes (ImageEnvelope), a
+ * imagem vem cifrada uma só vez e o upload tem um único ficheiro temporário,
+ * partilhado por todos os domínios
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ImageUploadManager {
+
+    public static final long MAX_IMAGE_SIZE = 512L * 1024 * 1024;
+    private static final long UPLOAD_TTL = TimeUnit.HOURS.toMillis(24);
+    private static final int BLOCK_SIZE = 16;
+
+    private static final Path UPLOADS_DIR = Paths.get("server/serverFiles/uploads");
+
+    /**
+     * Upload em curso de um dispositivo
+     */
+    public static class Upload {
+        private final String id;
+        private final String device;
+        private final List<String> domains;
+        private final List<byte[]> params;
+        private final String compression;
+        private final long size;
+        private final boolean shared;
+        private final Long epoch;
+        private final Path dir;
+        private long received = 0;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private Upload(String id, String device, List<String> domains, List<byte[]> params, String compression,
+                long size, Long epoch, Path dir) {
+            this.id = id;
+            this.device = device;
+            this.domains = domains;
+            this.params = params;
+            this.compression = compression;
+            this.size = size;
+            this.shared = params.stream().allMatch(ImageEnvelope::isEnvelope);
+            this.epoch = epoch;
+            this.dir = dir;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public List<String> getDomains() {
+            return domains;
+        }
+
+        public List<byte[]> getParams() {
+            return params;
+        }
+
+        public String getCompression() {
+            return compression;
+        }
+
+        /**
+         * Método que retorna a época dos domínios do dispositivo para a qual a
+         * imagem foi cifrada
+         *
+         * @return época indicada no EI_OPEN, ou null se o dispositivo não a
+         *         enviou
+         */
+        public Long getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * Método que indica se a imagem foi cifrada uma só vez para todos os
+         * domínios (cada um com o seu envelope)
+         *
+         * @return true se o upload tem um único ficheiro temporário
+         */
+        public boolean isShared() {
+            return shared;
+        }
+
+        /**
+         * Método que retorna o número de ficheiros temporários do upload
+         *
+         * @return 1 se a imagem é partilhada, senão um por domínio
+         */
+        public int parts() {
+            return shared ? 1 : domains.size();
+        }
+
+        public synchronized long getReceived() {
+            return received;
+        }
+
+        /**
+         * Método que retorna o ficheiro com a parte recebida de um domínio
+         *
+         * @param index índice do domínio (0 se a imagem é partilhada)
+         * @return ficheiro temporário
+         */
+        public Path part(int index) {
+            return dir.resolve(index + ".part");
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>(); // device -> upload
+
+    /**
+     * Construtor de um ImageUploadManager. Os uploads de uma execução anterior
+     * do servidor são apagados
+     */
+    public ImageUploadManager() {
+        deleteRecursively(UPLOADS_DIR);
+    }
+
+    /**
+     * Método que começa um novo upload, descartando o upload anterior do
+     * dispositivo
+     *
+     * @param device      dispositivo no formato user:dev
+     * @param domains     domínios para onde a imagem vai
+     * @param params      parâmetros da cifra de cada domínio
+     * @param compression compressão aplicada antes da cifra, ou null
+     * @param size        tamanho máximo dos dados a cifrar (a imagem em claro,
+     *                    ou o limite do seu tamanho depois de comprimida)
+     * @param epoch       época dos domínios do dispositivo indicada no pedido,
+     *                    ou null
+     * @return upload criado, ou null se o pedido não for válido
+     * @throws IOException
+     */
+    public Upload open(String device, List<String> domains, List<byte[]> params, String compression, long size,
+            Long epoch) throws IOException {
+        if (domains == null || params == null || domains.isEmpty() || domains.size() != params.size()
+                || size < 0 || size > MAX_IMAGE_SIZE) {
+            return null;
+        }
+        expire();
+
+        byte[] idBytes = new byte[16];
+        random.nextBytes(idBytes);
+        String id = Utils.bytesToHex(idBytes);
+        Path dir = UPLOADS_DIR.resolve(id);
+        Files.createDirectories(dir);
+
+        Upload upload = new Upload(id, device, new ArrayList<>(domains), new ArrayList<>(params), compression,
+                size, epoch, dir);
+        for (int i = 0; i < upload.parts(); i++) {
+            Files.createFile(upload.part(i));
+        }
+        Upload previous = uploads.put(device, upload);
+        if (previous != null) {
+            discard(previous);
+        }
+        return upload;
+    }
+
+    /**
+     * Método que retoma um upload em curso
+     *
+     * @param device dispositivo no formato user:dev
+     * @param id     id do upload
+     * @return upload, ou null se não existir (o dispositivo começa de novo)
+     */
+    public Upload resume(String device, String id) {
+        Upload upload = uploads.get(device);
+        if (upload == null || !upload.id.equals(id)) {
+            return null;
+        }
+        upload.lastActivity = System.currentTimeMillis();
+        return upload;
+    }
+
+    /**
+     * Método que retorna o último bloco cifrado recebido de cada domínio, que o
+     * dispositivo usa como IV para continuar a cifra em CBC
+     *
+     * @param upload upload em curso
+     * @return último bloco de cada ficheiro temporário (vazio se ainda não
+     *         recebeu nada)
+     * @throws IOException
+     */
+    public List<byte[]> lastBlocks(Upload upload) throws IOException {
+        List<byte[]> blocks = new ArrayList<>();
+        synchronized (upload) {
+            for (int i = 0; i < upload.parts(); i++) {
+                ByteBuffer block = ByteBuffer.allocate((int) Math.min(BLOCK_SIZE, upload.received));
+                try (FileChannel channel = FileChannel.open(upload.part(i), StandardOpenOption.READ)) {
+                    channel.read(block, upload.received - block.capacity());
+                }
+                blocks.add(block.array());
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Método que acrescenta uma parte a um upload. Uma parte com um offset
+     * diferente do número de bytes já recebidos é ignorada (por exemplo, uma
+     * parte reenviada depois de uma retoma)
+     *
+     * @param device dispositivo no formato user:dev
+     * @param id     id do upload
+     * @param offset posição da parte
+     * @param chunks parte cifrada para cada domínio, todas do mesmo tamanho
+     *               (uma só se a imagem é partilhada)
+     * @return número de bytes recebidos depois desta parte, ou -1 se o upload
+     *         não existe ou a parte não é válida
+     * @throws IOException
+     */
+    public long append(String device, String id, long offset, List<byte[]> chunks) throws IOException {
+        Upload upload = resume(device, id);
+        if (upload == null || chunks == null || chunks.size() != upload.parts()) {
+            return -1;
+        }
+        synchronized (upload) {
+            int length = chunks.get(0).length;
+            for (byte[] chunk : chunks) {
+                if (chunk == null || chunk.length != length) {
+                    return -1;
+                }
+            }
+            if (offset != upload.received) {
+                return upload.received;
+            }
+            if (upload.received + length > upload.size + BLOCK_SIZE) {
+                return -1;
+            }
+            for (int i = 0; i < chunks.size(); i++) {
+                try (FileChannel channel = FileChannel.open(upload.part(i), StandardOpenOption.WRITE)) {
+                    channel.write(ByteBuffer.wrap(chunks.get(i)), offset);
+                }
+            }
+            upload.received += length;
+            return upload.received;
+        }
+    }
+
+    /**
+     * Método que termina um upload: acrescenta a última parte e retira o upload
+     * da lista. Os ficheiros temporários ficam para o chamador os mover para o
+     * sítio final, devendo depois chamar discard
+     *
+     * @param device dispositivo no formato user:dev
+     * @param id     id do upload
+     * @param offset posição da última parte
+     * @param last   última parte cifrada (com padding) para cada domínio
+     * @return upload completo, ou null se não existir, estiver incompleto ou a
+     *         última parte não começar nos bytes já recebidos
+     * @throws IOException
+     */
+    public Upload commit(String device, String id, long offset, List<byte[]> last) throws IOException {
+        Upload upload = resume(device, id);
+        if (upload == null) {
+            return null;
+        }
+        synchronized (upload) {
+            // uma parte anterior que falhou ou se perdeu deixa um buraco antes
+            // da última, e o append ignoraria a última sem a escrever
+            if (last == null || last.isEmpty() || last.get(0) == null || offset != upload.received) {
+                return null;
+            }
+            long expected = offset + last.get(0).length;
+            // a última parte leva o padding, por isso há pelo menos um bloco
+            if (append(device, id, offset, last) != expected || upload.received % BLOCK_SIZE != 0
+                    || upload.received == 0 || upload.received > upload.size + BLOCK_SIZE) {
+                return null;
+            }
+            uploads.remove(device, upload);
+            return upload;
+        }
+    }
+
+    /**
+     * Método que apaga os ficheiros temporários de um upload
+     *
+     * @param upload upload a apagar
+     */
+    public void discard(Upload upload) {
+        uploads.remove(upload.device, upload);
+        deleteRecursively(upload.dir);
+    }
+
+    /**
+     * Método que apaga os uploads parados há mais de UPLOAD_TTL
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Upload> it = uploads.values().iterator();
+        while (it.hasNext()) {
+            Upload upload = it.next();
+            if (now - upload.lastActivity > UPLOAD_TTL) {
+                it.remove();
+                deleteRecursively(upload.dir);
+            }
+        }
+    }
+
+    /**
+     * Método que apaga uma diretoria e o seu conteúdo, ignorando erros
+     *
+     * @param dir diretoria a apagar
+     */
+    private static void deleteRecursively(Path dir) {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException e) {
+                    // fica para a próxima limpeza
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Error deleting " + dir);
+        }
+    }
+}
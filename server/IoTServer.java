@@ -1,14 +1,17 @@
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.net.Socket;
+import java.lang.reflect.Method;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -25,6 +28,10 @@ import javax.net.ssl.SSLServerSocketFactory;
  */
 public class IoTServer {
 
+    private final static String MODE_THREADS = "threads";
+    private final static String MODE_NIO = "nio";
+    private final static String MODE_VIRTUAL = "virtual";
+
     private final static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
     /**
@@ -34,8 +41,6 @@ public class IoTServer {
      */
     public static void main(String[] args) {
 
-        List<ServerThread> activeThreads = Collections.synchronizedList(new ArrayList<>());
-
         // scheduler.scheduleAtFixedRate(info::backupInfo, 10, 30, TimeUnit.SECONDS);
 
         int port;
@@ -44,11 +49,33 @@ public class IoTServer {
         String keystorePassword;
         String twoFactorAuthKey;
 
+        Map<String, String> options = new HashMap<>();
+        args = parseOptions(args, options);
+
         if (args.length == 0 || args.length > 5) {
-            System.out.println("Usage: IoTServer <port> <password-cifra> <keystore> <password-keystore> <2FA-APIKey>");
+            System.out.println("Usage: IoTServer <port> <password-cifra> <keystore> <password-keystore> <2FA-APIKey>"
+                    + " [--mode=threads|virtual|nio] [--io-threads=<n>] [--acceptors=<n>]"
+                    + " [--handshake-threads=<n>] [--handshake-timeout=<ms>] [--metrics-interval=<s>]"
+                    + " [--2fa=http|stub[:<code>]] [--ticket-ttl=<s>] [--command-threads=<n>]"
+                    + " [--history=<readings>] [--blob-memory=<MiB>] [--data-suite=pbe|aes-gcm]");
+            System.exit(-1);
+        }
+
+        String mode = options.getOrDefault("mode", MODE_THREADS);
+        if (!mode.equals(MODE_THREADS) && !mode.equals(MODE_VIRTUAL) && !mode.equals(MODE_NIO)) {
+            System.out.println("Invalid mode: " + mode);
             System.exit(-1);
         }
 
+        ThreadFactory sessionThreads = Thread::new;
+        if (mode.equals(MODE_VIRTUAL)) {
+            sessionThreads = virtualThreadFactory();
+            if (sessionThreads == null) {
+                System.out.println("Virtual threads are not available in this Java version (requires Java 21)");
+                System.exit(-1);
+            }
+        }
+
         try {
             port = Integer.parseInt(args[0]);
             passwordCipher = args[1];
@@ -63,6 +90,14 @@ public class IoTServer {
             twoFactorAuthKey = args[3];
         }
 
+        // leituras guardadas no histórico de cada dispositivo (0 desliga)
+        int history = intOption(options, "history", TemperatureHistory.DEFAULT_CAPACITY);
+        if (history < 0) {
+            System.out.println("Invalid value for --history: " + history);
+            System.exit(-1);
+        }
+        TemperatureHistory.setDefaultCapacity(history);
+
         boolean b = prepareServer(passwordCipher);
         if (!b) {
             System.exit(-1);
@@ -75,49 +110,74 @@ public class IoTServer {
             System.exit(-1);
         }
 
+        TwoFactorProvider twoFactorProvider = twoFactorProvider(options.getOrDefault("2fa", "http"),
+                twoFactorAuthKey);
+        if (twoFactorProvider == null) {
+            System.out.println("Invalid 2FA provider: " + options.get("2fa"));
+            System.exit(-1);
+        }
+        info.setTwoFactorProvider(twoFactorProvider);
+
+        int ticketTtl = intOption(options, "ticket-ttl", 3600);
+        if (ticketTtl > 0) {
+            info.setTicketManager(new SessionTicketManager(TimeUnit.SECONDS.toMillis(ticketTtl)));
+        }
+
+        // imagens do EI antigo ficam fora do heap até este limite, depois vão para disco
+        int blobMemory = intOption(options, "blob-memory", 256);
+        if (blobMemory > 0) {
+            info.setBlobStore(new BlobStore(blobMemory * 1024L * 1024L));
+        }
+
+        // cifra das temperaturas que os dispositivos novos usam (pbe se houver dispositivos antigos)
+        int dataSuite = DataCipher.parseSuite(options.getOrDefault("data-suite", "aes-gcm"));
+        if (dataSuite < 0) {
+            System.out.println("Invalid data suite: " + options.get("data-suite"));
+            System.exit(-1);
+        }
+        info.setDataSuite(dataSuite);
+
+        ServerMetrics metrics = new ServerMetrics();
+        int metricsInterval = intOption(options, "metrics-interval", 60);
+        if (metricsInterval > 0) {
+            scheduler.scheduleAtFixedRate(() -> System.out.println(metrics.report()), metricsInterval,
+                    metricsInterval, TimeUnit.SECONDS);
+        }
+
         try {
 
+            // os comandos fazem I/O de disco, por isso o pool é maior do que o número de processadores
+            int commandThreads = intOption(options, "command-threads",
+                    Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+
+            if (mode.equals(MODE_NIO)) {
+                int ioThreads = intOption(options, "io-threads", Runtime.getRuntime().availableProcessors());
+                NioServer nioServer = new NioServer(info, NioServer.createSSLContext(keystoreFile, keystorePassword),
+                        port, ioThreads, commandThreads, intOption(options, "handshake-timeout", 10000), metrics);
+
+                System.out.println("Server running (nio, " + ioThreads + " io threads, " + commandThreads
+                        + " command threads)...");
+
+                addShutdownHook(info, nioServer::shutdown);
+                nioServer.run();
+                return;
+            }
+
             SSLServerSocket serverSocket = beginConnection(keystoreFile, keystorePassword, port);
 
-            System.out.println("Server running...");
+            // pool partilhado pelas sessões para executar os pedidos em pipelining
+            ExecutorService commandExecutor = mode.equals(MODE_VIRTUAL)
+                    ? Executors.newCachedThreadPool(sessionThreads)
+                    : Executors.newFixedThreadPool(commandThreads);
 
-            // Adiciona um hook para fechar os sockets e guardar a informação
-            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                for (ServerThread thread : activeThreads) {
-                    thread.shutdown();
-                }
-                info.backupInfo();
-
-                scheduler.shutdown();
-                try {
-                    if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
-                        scheduler.shutdownNow();
-                    }
-                } catch (InterruptedException e) {
-                    scheduler.shutdownNow();
-                }
+            ServerAcceptor acceptor = new ServerAcceptor(serverSocket, info, sessionThreads, commandExecutor,
+                    intOption(options, "acceptors", 2), intOption(options, "handshake-threads", 32),
+                    intOption(options, "handshake-timeout", 10000), scheduler, metrics);
 
-                try {
-                    serverSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }));
-
-            while (true) {
-                Socket clientSocket = null;
-                try {
-                    clientSocket = serverSocket.accept();
-                    ServerThread newServerThread = new ServerThread(clientSocket, info);
-                    activeThreads.add(newServerThread);
-                    newServerThread.start();
-
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
-                    System.exit(-1);
-                }
+            System.out.println("Server running (" + mode + ")...");
 
-            }
+            addShutdownHook(info, acceptor::shutdown);
+            acceptor.start();
 
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -128,6 +188,107 @@ public class IoTServer {
 
     }
 
+    /**
+     * Metodo que separa as opções (--nome=valor) dos restantes argumentos
+     * 
+     * @param args    argumentos da linha de comando
+     * @param options mapa onde são colocadas as opções encontradas
+     * @return os argumentos que não são opções, pela ordem original
+     */
+    private static String[] parseOptions(String[] args, Map<String, String> options) {
+        List<String> positional = new ArrayList<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 2) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        return positional.toArray(new String[0]);
+    }
+
+    /**
+     * Método que cria o fornecedor de 2FA indicado na opção --2fa
+     * 
+     * @param spec             "http", "stub" ou "stub:<codigo>"
+     * @param twoFactorAuthKey chave da API do serviço de 2FA
+     * @return fornecedor de 2FA, ou null se a opção for inválida
+     */
+    private static TwoFactorProvider twoFactorProvider(String spec, String twoFactorAuthKey) {
+        if (spec.equals("http")) {
+            return new HttpTwoFactorProvider(twoFactorAuthKey);
+        }
+        if (spec.equals("stub")) {
+            return new StubTwoFactorProvider(null);
+        }
+        if (spec.startsWith("stub:")) {
+            return new StubTwoFactorProvider(spec.substring("stub:".length()));
+        }
+        return null;
+    }
+
+    /**
+     * Metodo que lê uma opção inteira
+     * 
+     * @param options      opções da linha de comando
+     * @param name         nome da opção
+     * @param defaultValue valor caso a opção não tenha sido dada
+     * @return valor da opção
+     */
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid value for --" + name + ": " + value);
+            System.exit(-1);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Metodo que adiciona um hook para fechar o servidor e guardar a informação
+     * 
+     * @param info        informação partilhada
+     * @param closeServer ação que fecha as ligações do servidor
+     */
+    private static void addShutdownHook(SharedInfoSingleton info, Runnable closeServer) {
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            closeServer.run();
+            info.backupInfo();
+
+            scheduler.shutdown();
+            try {
+                if (!scheduler.awaitTermination(60, TimeUnit.SECONDS)) {
+                    scheduler.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                scheduler.shutdownNow();
+            }
+        }));
+    }
+
+    /**
+     * Metodo que obtem uma fabrica de virtual threads. Como o projeto compila
+     * com Java 17, a API (Thread.ofVirtual) é obtida por reflexão e só existe
+     * quando o servidor corre em Java 21 ou superior
+     * 
+     * @return fabrica de virtual threads ou null caso não estejam disponiveis
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
     /**
      * Metodo que vai iniciar a conexao com o servidor
      * 
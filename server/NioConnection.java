@@ -0,0 +1,671 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+/**
+ * Classe que representa uma ligação de um cliente ao servidor NIO.
+ *
+ * Todo o trabalho de TLS (SSLEngine) e de leitura/escrita na socket é feito na
+ * thread do NioEventLoop a que a ligação pertence. As mensagens descodificadas
+ * são entregues a uma inbox: durante a autenticação é a thread de autenticação
+ * que as consome através de readMessage, depois disso são passadas pela ordem
+ * de chegada ao RequestDispatcher da sessão, que executa os comandos no pool
+ * de comandos. A inbox guarda poucas mensagens: quando está cheia, ou o
+ * dispatcher já tem o máximo de pedidos em curso, a ligação deixa de ler da
+ * socket até haver lugar, e um cliente que envie pedidos sem ler as
+ * respostas não faz crescer a memória do servidor.
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class NioConnection implements MessageChannel {
+
+    private static final Message CLOSED = new Message();
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Tempo máximo de toda a autenticação, incluindo o código 2FA. Um cliente
+     * que fique calado não ocupa uma thread do pool de autenticação mais do que
+     * isto
+     */
+    private static final long AUTH_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Tamanho máximo de um frame antes da autenticação. As mensagens da
+     * autenticação (certificado, assinaturas, nonces) cabem folgadamente
+     */
+    private static final int MAX_AUTH_FRAME_SIZE = 16 * 1024;
+
+    /**
+     * Mensagens descodificadas à espera de serem passadas ao dispatcher (ou
+     * lidas pela autenticação). Com a inbox cheia os frames ficam por
+     * descodificar e a socket deixa de ser lida
+     */
+    private static final int INBOX_CAPACITY = 8;
+
+    private final SocketChannel socket;
+    private final SSLEngine engine;
+    private final NioEventLoop loop;
+    private final NioServer server;
+
+    private SelectionKey key;
+    private final long acceptedAt = System.nanoTime();
+
+    // buffers em modo de escrita
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn;
+
+    private boolean handshakeDone = false;
+    private volatile int codec = -1; // ainda não negociado
+    private volatile boolean closing = false;
+    private boolean closed = false;
+
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+
+    private ServerThreadHandler handler;
+    private RequestDispatcher dispatcher;
+    private volatile boolean authenticated = false;
+    private volatile long authDeadline;
+    private volatile boolean commandMode = false;
+    private volatile boolean exiting = false;
+    private volatile boolean finished = false;
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    private volatile boolean readPaused = false;
+
+    /**
+     * Construtor de uma NioConnection
+     *
+     * @param socket canal da socket do cliente, em modo não bloqueante
+     * @param engine SSLEngine em modo servidor para esta ligação
+     * @param loop   event loop responsável pela ligação
+     * @param server servidor NIO a que a ligação pertence
+     */
+    public NioConnection(SocketChannel socket, SSLEngine engine, NioEventLoop loop, NioServer server) {
+        this.socket = socket;
+        this.engine = engine;
+        this.loop = loop;
+        this.server = server;
+
+        int packetSize = engine.getSession().getPacketBufferSize();
+        this.netIn = ByteBuffer.allocate(packetSize);
+        this.netOut = ByteBuffer.allocate(packetSize);
+        this.appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+    }
+
+    /* ------------------------- Lado da aplicação ------------------------- */
+
+    /**
+     * Método que espera pela próxima mensagem do cliente. Só é usado durante a
+     * autenticação, que corre numa thread do pool de autenticação, e nunca
+     * espera para além do prazo da autenticação
+     */
+    @Override
+    public Message readMessage() {
+        try {
+            Message msg = inbox.poll(authDeadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            if (msg == null) {
+                System.err.println("Authentication timed out");
+                return null;
+            }
+            if (msg == CLOSED) {
+                inbox.add(CLOSED);
+                return null;
+            }
+            requestReadIfPaused();
+            return msg;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    @Override
+    public void writeMessage(Message msg) {
+        if (closing) {
+            return;
+        }
+        try {
+            byte[] data = MessageCodec.encode(msg, codec);
+            ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + data.length);
+            frame.putInt(data.length).put(data).flip();
+            enqueue(frame);
+            loop.requestFlush(this);
+        } catch (IOException e) {
+            System.err.println("Error writing Message");
+        }
+    }
+
+    @Override
+    public long pendingBytes() {
+        return outboundBytes.get();
+    }
+
+    /**
+     * Método que coloca bytes na fila de saída
+     *
+     * @param buffer bytes a enviar, em modo de leitura
+     */
+    private void enqueue(ByteBuffer buffer) {
+        outboundBytes.addAndGet(buffer.remaining());
+        outbound.add(buffer);
+    }
+
+    @Override
+    public void authenticated() {
+        authenticated = true;
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        loop.requestFlush(this);
+    }
+
+    /**
+     * Método que autentica o cliente, corre no pool de autenticação
+     */
+    private void authenticate() {
+        this.authDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(AUTH_TIMEOUT_SECONDS);
+        this.handler = new ServerThreadHandler(server.getInfo(), this);
+        if (handler.startAuthentication()) {
+            this.dispatcher = new RequestDispatcher(handler, this, server.getCommandExecutor());
+            dispatcher.setOnSlotFreed(() -> {
+                if (!inbox.isEmpty()) {
+                    scheduleDrain();
+                }
+                requestReadIfPaused();
+            });
+            commandMode = true;
+            scheduleDrain();
+        } else {
+            finish();
+        }
+    }
+
+    /**
+     * Método que agenda o processamento das mensagens pendentes no pool de
+     * comandos, garantindo que só existe um processamento ativo por ligação
+     */
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            server.getCommandExecutor().execute(this::drain);
+        }
+    }
+
+    /**
+     * Método que passa as mensagens pendentes na inbox ao dispatcher pela ordem
+     * de chegada. Se a sessão já tiver o máximo de pedidos em curso, as
+     * mensagens ficam na inbox até um pedido terminar
+     */
+    private void drain() {
+        boolean full = false;
+        try {
+            Message msg;
+            while (!finished && !exiting && (msg = inbox.peek()) != null) {
+                if (msg == CLOSED || "EXIT".equals(msg.getCommand())) {
+                    // as respostas dos pedidos em curso ainda são enviadas
+                    exiting = true;
+                    dispatcher.whenIdle().thenRun(this::finish);
+                    return;
+                }
+                if (!dispatcher.tryDispatch(msg)) {
+                    full = true;
+                    break;
+                }
+                inbox.poll();
+                System.out.println("----------------------------------");
+                System.out.println("Command: " + msg.getCommand());
+            }
+        } finally {
+            draining.set(false);
+        }
+        requestReadIfPaused();
+        if (!finished && !exiting && !inbox.isEmpty() && (!full || dispatcher.hasFreeSlot())) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Método que indica se a ligação deve deixar de ler da socket
+     *
+     * @return true se a inbox está cheia ou o dispatcher não tem lugares
+     */
+    private boolean shouldPauseReading() {
+        RequestDispatcher d = dispatcher;
+        return inbox.size() >= INBOX_CAPACITY || (commandMode && d != null && !d.hasFreeSlot());
+    }
+
+    /**
+     * Método que pede ao event loop que volte a ler, se a leitura estiver
+     * suspensa. Chamado depois de sair uma mensagem da inbox ou de terminar um
+     * pedido
+     */
+    private void requestReadIfPaused() {
+        if (readPaused) {
+            loop.requestRead(this);
+        }
+    }
+
+    /**
+     * Método que termina a sessão, libertando o dispositivo e fechando a ligação
+     */
+    private synchronized void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (handler != null) {
+            handler.close();
+        } else {
+            close();
+        }
+    }
+
+    /* ----------------------- Lado do event loop ----------------------- */
+
+    /**
+     * Método que regista a ligação no selector do event loop e inicia o
+     * handshake TLS
+     *
+     * @param selector selector do event loop
+     */
+    void register(Selector selector) {
+        try {
+            this.key = socket.register(selector, SelectionKey.OP_READ, this);
+            engine.beginHandshake();
+            flush();
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Método chamado pelo event loop quando existem dados para ler na socket
+     */
+    void onReadable() {
+        try {
+            int n = socket.read(netIn);
+            if (n < 0) {
+                disconnect();
+                return;
+            }
+
+            netIn.flip();
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    int packetSize = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < packetSize) {
+                        netIn = enlarge(netIn, packetSize);
+                    }
+                    break;
+                } else if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    // só cresce quando já está cheio, por isso nunca passa do
+                    // dobro dos bytes recebidos
+                    appIn = enlarge(appIn, Math.max(appIn.capacity() * 2,
+                            appIn.position() + engine.getSession().getApplicationBufferSize()));
+                    continue;
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    disconnect();
+                    return;
+                }
+
+                boolean ranTasks = handleHandshakeStatus(result.getHandshakeStatus());
+                if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                    flush();
+                }
+                if (!ranTasks && result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                    break;
+                }
+            }
+            netIn.compact();
+
+            decodeFrames();
+            pauseReadingIfFull();
+        } catch (IOException e) {
+            disconnect();
+        }
+    }
+
+    /**
+     * Método que deixa de ler da socket enquanto a inbox estiver cheia ou o
+     * dispatcher não tiver lugares. O readPaused é marcado antes de verificar
+     * outra vez, para que quem liberta lugar entretanto veja a marca e peça a
+     * retoma
+     */
+    private void pauseReadingIfFull() {
+        if (closed || readPaused || !shouldPauseReading()) {
+            return;
+        }
+        readPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        if (!shouldPauseReading()) {
+            resumeReading();
+        }
+    }
+
+    /**
+     * Método chamado pelo event loop quando uma ligação com a leitura suspensa
+     * pode voltar a ler: descodifica primeiro os frames que ficaram no buffer
+     */
+    void resumeReading() {
+        if (closed || !readPaused) {
+            return;
+        }
+        decodeFrames();
+        if (closed || shouldPauseReading()) {
+            return;
+        }
+        readPaused = false;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Método chamado periodicamente pelo event loop: fecha a ligação se o
+     * handshake TLS e a negociação do codec não terminaram dentro do prazo
+     * (como o prazo do handshake no modo threads). Depois disso a ligação
+     * fica sujeita ao prazo da autenticação
+     *
+     * @param now instante atual (System.nanoTime)
+     */
+    void checkHandshakeDeadline(long now) {
+        if (closed || codec >= 0
+                || now - acceptedAt < TimeUnit.MILLISECONDS.toNanos(server.getHandshakeTimeoutMillis())) {
+            return;
+        }
+        System.err.println("Handshake timed out");
+        server.getMetrics().recordFailure();
+        closeNow();
+    }
+
+    /**
+     * Método chamado pelo event loop quando a socket volta a aceitar escrita
+     */
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Método que cifra e envia tudo o que estiver pendente: mensagens do
+     * handshake e frames em espera. Se a socket não aceitar mais dados, passa a
+     * esperar por OP_WRITE
+     */
+    void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!writeNetOut()) {
+                return;
+            }
+            while (true) {
+                HandshakeStatus hs = engine.getHandshakeStatus();
+                ByteBuffer src;
+                if (hs == HandshakeStatus.NEED_WRAP) {
+                    src = EMPTY;
+                } else if (hs == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    continue;
+                } else if (hs == HandshakeStatus.NOT_HANDSHAKING && handshakeDone
+                        && (src = outbound.peek()) != null) {
+                    // frame pendente
+                } else {
+                    break;
+                }
+
+                SSLEngineResult result = engine.wrap(src, netOut);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    if (netOut.position() == 0) {
+                        netOut = enlarge(netOut, netOut.capacity() + engine.getSession().getPacketBufferSize());
+                    } else if (!writeNetOut()) {
+                        return;
+                    }
+                    continue;
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    writeNetOut();
+                    closeNow();
+                    return;
+                }
+
+                if (src != EMPTY && !src.hasRemaining()) {
+                    outbound.poll();
+                    outboundBytes.addAndGet(-src.limit());
+                }
+                handleHandshakeStatus(result.getHandshakeStatus());
+                if (!writeNetOut()) {
+                    return;
+                }
+            }
+
+            if (closing && outbound.isEmpty()) {
+                engine.closeOutbound();
+                engine.wrap(EMPTY, netOut);
+                writeNetOut();
+                closeNow();
+            }
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Método que escreve na socket os bytes já cifrados
+     *
+     * @return true se não ficou nada por escrever
+     * @throws IOException
+     */
+    private boolean writeNetOut() throws IOException {
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            if (socket.write(netOut) == 0) {
+                break;
+            }
+        }
+        boolean done = !netOut.hasRemaining();
+        netOut.compact();
+
+        if (key != null && key.isValid()) {
+            int ops = key.interestOps();
+            int newOps = done ? ops & ~SelectionKey.OP_WRITE : ops | SelectionKey.OP_WRITE;
+            if (ops != newOps) {
+                key.interestOps(newOps);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Método que trata o estado do handshake devolvido pelo SSLEngine
+     *
+     * @param hs estado do handshake
+     * @return true se foram corridas tarefas delegadas
+     */
+    private boolean handleHandshakeStatus(HandshakeStatus hs) {
+        boolean ranTasks = false;
+        if (hs == HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+            ranTasks = true;
+        }
+        if (!handshakeDone && (hs == HandshakeStatus.FINISHED
+                || engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING)) {
+            handshakeDone = true;
+            onHandshakeFinished();
+        }
+        return ranTasks;
+    }
+
+    /**
+     * Método que corre as tarefas delegadas pelo SSLEngine (operações de chave
+     * pública do handshake)
+     */
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Método chamado quando o handshake TLS termina: envia o GREETING e fica à
+     * espera da negociação do codec
+     */
+    private void onHandshakeFinished() {
+        server.getMetrics().recordHandshake(System.nanoTime() - acceptedAt);
+        enqueue(ByteBuffer.wrap(FramedChannel.GREETING));
+    }
+
+    /**
+     * Método que trata a negociação do codec enviada pelo cliente
+     * (FramedChannel.CLIENT_MAGIC seguido do codec mais recente que suporta),
+     * responde com o codec escolhido e entrega a autenticação ao pool de
+     * autenticação
+     *
+     * @return true se a negociação terminou, false se faltam bytes ou a ligação
+     *         foi fechada
+     */
+    private boolean negotiate() {
+        int helloSize = FramedChannel.CLIENT_MAGIC.length + 1;
+        if (appIn.remaining() < helloSize) {
+            return false;
+        }
+        for (int i = 0; i < FramedChannel.CLIENT_MAGIC.length; i++) {
+            if (appIn.get() != FramedChannel.CLIENT_MAGIC[i]) {
+                // dispositivos antigos (ObjectOutputStream) não são suportados neste modo
+                System.err.println("Unsupported client protocol");
+                appIn.clear();
+                disconnect();
+                return false;
+            }
+        }
+        int offered = appIn.get() & 0xFF;
+        codec = Math.min(offered, MessageCodec.CODEC_LATEST);
+
+        ByteBuffer reply = ByteBuffer.allocate(FramedChannel.MAGIC.length + 1);
+        reply.put(FramedChannel.MAGIC).put((byte) codec).flip();
+        enqueue(reply);
+        flush();
+        try {
+            server.getAuthExecutor().execute(this::authenticate);
+        } catch (RejectedExecutionException e) {
+            System.err.println("Authentication pool is full, rejecting client");
+            close();
+        }
+        return true;
+    }
+
+    /**
+     * Método que extrai do buffer de aplicação todos os frames completos
+     */
+    private void decodeFrames() {
+        appIn.flip();
+        if (codec < 0 && !negotiate()) {
+            if (!closed) {
+                appIn.compact();
+            }
+            return;
+        }
+        // antes da autenticação só são aceites frames pequenos
+        int maxFrameSize = authenticated ? FramedChannel.MAX_FRAME_SIZE : MAX_AUTH_FRAME_SIZE;
+        while (appIn.remaining() >= Integer.BYTES && inbox.size() < INBOX_CAPACITY) {
+            int length = appIn.getInt(appIn.position());
+            if (length < 0 || length > maxFrameSize) {
+                System.err.println("Invalid frame size: " + length);
+                appIn.clear();
+                disconnect();
+                return;
+            }
+            if (appIn.remaining() < Integer.BYTES + length) {
+                // o buffer cresce no unwrap à medida que os bytes chegam, e
+                // não pelo tamanho anunciado no frame
+                break;
+            }
+            appIn.getInt();
+            byte[] data = new byte[length];
+            appIn.get(data);
+            try {
+                onFrame(MessageCodec.decode(data, codec));
+            } catch (IOException e) {
+                System.err.println("Error reading Message");
+                appIn.compact();
+                disconnect();
+                return;
+            }
+        }
+        appIn.compact();
+    }
+
+    /**
+     * Método que entrega uma mensagem descodificada à sessão
+     *
+     * @param msg mensagem recebida
+     */
+    private void onFrame(Message msg) {
+        inbox.add(msg);
+        if (commandMode) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Método chamado quando o cliente fecha a ligação ou ocorre um erro de
+     * leitura
+     */
+    private void disconnect() {
+        closeNow();
+        inbox.add(CLOSED);
+        if (commandMode) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Método que fecha imediatamente a socket
+     */
+    private void closeNow() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closing = true;
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Erro ao fechar o socket cliente");
+        }
+        server.connectionClosed(this);
+    }
+
+    /**
+     * Método que cria um buffer maior com o conteúdo de outro (em modo de escrita)
+     *
+     * @param buffer   buffer original
+     * @param capacity capacidade mínima do novo buffer
+     * @return novo buffer em modo de escrita
+     */
+    private static ByteBuffer enlarge(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
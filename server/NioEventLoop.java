@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classe que representa um ciclo de eventos do servidor NIO. Cada ciclo tem o
+ * seu próprio Selector e trata de todas as ligações que lhe forem atribuidas
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class NioEventLoop implements Runnable {
+
+    /**
+     * Intervalo entre verificações das ligações que ainda não chegaram à
+     * autenticação, e tempo máximo de cada select
+     */
+    private static final long DEADLINE_CHECK_MILLIS = 1000;
+
+    private final Selector selector;
+
+    private final Queue<NioConnection> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingReads = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running = true;
+    private volatile Thread thread;
+
+    /**
+     * Construtor de um NioEventLoop
+     *
+     * @throws IOException
+     */
+    public NioEventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Método que atribui uma nova ligação a este ciclo
+     *
+     * @param connection ligação a registar
+     */
+    public void register(NioConnection connection) {
+        pendingRegistrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Método que pede o envio dos dados pendentes de uma ligação. Se for chamado
+     * a partir da thread do ciclo, o envio é feito logo
+     *
+     * @param connection ligação com dados pendentes
+     */
+    public void requestFlush(NioConnection connection) {
+        if (Thread.currentThread() == thread) {
+            connection.flush();
+        } else {
+            pendingFlushes.add(connection);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Método que pede que uma ligação com a leitura suspensa volte a ler,
+     * porque a sua inbox ou o seu dispatcher têm lugar outra vez
+     *
+     * @param connection ligação a retomar
+     */
+    public void requestRead(NioConnection connection) {
+        pendingReads.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Método que corre o ciclo de eventos
+     */
+    @Override
+    public void run() {
+        this.thread = Thread.currentThread();
+        long lastCheck = System.nanoTime();
+        while (running) {
+            try {
+                selector.select(DEADLINE_CHECK_MILLIS);
+
+                NioConnection connection;
+                while ((connection = pendingRegistrations.poll()) != null) {
+                    connection.register(selector);
+                }
+                while ((connection = pendingFlushes.poll()) != null) {
+                    connection.flush();
+                }
+                while ((connection = pendingReads.poll()) != null) {
+                    connection.resumeReading();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    connection = (NioConnection) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                }
+
+                long now = System.nanoTime();
+                if (now - lastCheck >= TimeUnit.MILLISECONDS.toNanos(DEADLINE_CHECK_MILLIS)) {
+                    lastCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.isValid()) {
+                            ((NioConnection) key.attachment()).checkHandshakeDeadline(now);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Error in event loop: " + e.getMessage());
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Error closing selector");
+        }
+    }
+
+    /**
+     * Método que sinaliza que o ciclo deve terminar
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,221 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Servidor orientado a eventos, alternativo ao modelo de uma ServerThread por
+ * cliente. Um pequeno número de NioEventLoops trata do TLS e da leitura e
+ * escrita de frames de todas as ligações, a autenticação corre num pool
+ * limitado e os comandos são executados num pool de tamanho fixo (como no
+ * modo threads, porque fazem I/O de disco), através da mesma lógica do
+ * ServerThreadHandler
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class NioServer {
+
+    private static final int AUTH_THREADS = 64;
+
+    /**
+     * Autenticações à espera de uma thread. Para além disto os novos clientes
+     * são recusados em vez de ficarem em fila
+     */
+    private static final int AUTH_QUEUE_SIZE = 256;
+
+    private final SharedInfoSingleton info;
+    private final SSLContext sslContext;
+    private final int port;
+    private final long handshakeTimeoutMillis;
+    private final ServerMetrics metrics;
+
+    private final NioEventLoop[] loops;
+    private final ExecutorService authExecutor;
+    private final ExecutorService commandExecutor;
+
+    private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = true;
+
+    /**
+     * Construtor de um NioServer
+     *
+     * @param info                   informação partilhada
+     * @param sslContext             contexto TLS do servidor
+     * @param port                   porta onde aceitar ligações
+     * @param ioThreads              número de event loops
+     * @param commandThreads         tamanho do pool que executa os comandos
+     * @param handshakeTimeoutMillis prazo para o handshake TLS e a negociação
+     *                               do codec de uma nova ligação
+     * @param metrics                métricas do servidor
+     * @throws IOException
+     */
+    public NioServer(SharedInfoSingleton info, SSLContext sslContext, int port, int ioThreads, int commandThreads,
+            long handshakeTimeoutMillis, ServerMetrics metrics) throws IOException {
+        this.info = info;
+        this.sslContext = sslContext;
+        this.port = port;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        this.metrics = metrics;
+
+        this.loops = new NioEventLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new NioEventLoop();
+        }
+
+        ThreadPoolExecutor auth = new ThreadPoolExecutor(AUTH_THREADS, AUTH_THREADS, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(AUTH_QUEUE_SIZE), new ThreadPoolExecutor.AbortPolicy());
+        auth.allowCoreThreadTimeOut(true);
+        this.authExecutor = auth;
+        this.commandExecutor = Executors.newFixedThreadPool(commandThreads);
+    }
+
+    /**
+     * Método que cria o contexto TLS a partir do keystore do servidor
+     *
+     * @param keystoreFile     ficheiro keystore
+     * @param keystorePassword password do keystore
+     * @return contexto TLS
+     * @throws Exception
+     */
+    public static SSLContext createSSLContext(String keystoreFile, String keystorePassword) throws Exception {
+        KeyStore keystore = KeyStore.getInstance("JCEKS");
+        try (InputStream keystoreStream = new FileInputStream(keystoreFile)) {
+            keystore.load(keystoreStream, keystorePassword.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keystore, keystorePassword.toCharArray());
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * Método que arranca os event loops e fica a aceitar ligações na thread atual
+     *
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "nio-loop-" + i);
+            t.start();
+        }
+
+        int next = 0;
+        long backoff = ServerAcceptor.ACCEPT_BACKOFF_MIN_MILLIS;
+        while (running) {
+            SocketChannel socket;
+            try {
+                socket = serverChannel.accept();
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                // por exemplo sem descritores livres, o servidor continua
+                System.err.println(e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = Math.min(backoff * 2, ServerAcceptor.ACCEPT_BACKOFF_MAX_MILLIS);
+                continue;
+            }
+            backoff = ServerAcceptor.ACCEPT_BACKOFF_MIN_MILLIS;
+            try {
+                socket.configureBlocking(false);
+                socket.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                try {
+                    socket.close();
+                } catch (IOException ce) {
+                    // a ligação já está fechada
+                }
+                continue;
+            }
+
+            SSLEngine engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+
+            NioEventLoop loop = loops[next];
+            next = (next + 1) % loops.length;
+
+            NioConnection connection = new NioConnection(socket, engine, loop, this);
+            connections.add(connection);
+            loop.register(connection);
+        }
+    }
+
+    /**
+     * Método que termina o servidor, fechando todas as ligações
+     */
+    public void shutdown() {
+        running = false;
+        for (NioConnection connection : connections) {
+            connection.close();
+        }
+        authExecutor.shutdownNow();
+        commandExecutor.shutdown();
+        for (NioEventLoop loop : loops) {
+            loop.shutdown();
+        }
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Método chamado quando uma ligação é fechada
+     *
+     * @param connection ligação fechada
+     */
+    void connectionClosed(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    public SharedInfoSingleton getInfo() {
+        return info;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public ExecutorService getAuthExecutor() {
+        return authExecutor;
+    }
+
+    public ExecutorService getCommandExecutor() {
+        return commandExecutor;
+    }
+}
@@ -0,0 +1,156 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Programa que mede o custo das procuras de domínios e utilizadores feitas em
+ * cada comando (getDomain e getUserByName) à medida que os registos crescem.
+ *
+ * Compara os registos antigos do SharedInfoSingleton (HashSet percorrido sob
+ * um ReentrantReadWriteLock) com os atuais (ConcurrentHashMap indexado pelo
+ * nome), com os mesmos nomes e a mesma sequência de procuras, e mede também
+ * o hashCode de um Domain com muitos dispositivos, que antes percorria os
+ * utilizadores e os dispositivos do domínio
+ *
+ * Uso: java -cp IoTServer.jar RegistryBenchmark [procuras] [tamanho ...]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class RegistryBenchmark {
+
+    // a procura linear é lenta nos tamanhos maiores, por isso tem um limite
+    private static final long SCAN_BUDGET = 200_000_000L;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        List<Integer> sizes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            sizes.add(Integer.parseInt(args[i]));
+        }
+        if (sizes.isEmpty()) {
+            sizes.add(100);
+            sizes.add(1_000);
+            sizes.add(10_000);
+            sizes.add(100_000);
+        }
+
+        System.out.printf("%-10s %16s %16s %16s %16s%n", "entries", "domain scan ns", "domain map ns",
+                "user scan ns", "user map ns");
+        for (int size : sizes) {
+            User owner = new User("owner", null);
+            List<String> domainNames = new ArrayList<>();
+            List<String> userNames = new ArrayList<>();
+            Set<Domain> domainSet = new HashSet<>();
+            Set<User> userSet = new HashSet<>();
+            Map<String, Domain> domainMap = new ConcurrentHashMap<>();
+            Map<String, User> userMap = new ConcurrentHashMap<>();
+            for (int i = 0; i < size; i++) {
+                Domain d = new Domain("domain" + i, owner);
+                User u = new User("user" + i + "@example.com", null);
+                domainNames.add(d.getName());
+                userNames.add(u.getUserId());
+                domainSet.add(d);
+                userSet.add(u);
+                domainMap.put(d.getName(), d);
+                userMap.put(u.getUserId(), u);
+            }
+            ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+            int scanLookups = (int) Math.max(1_000, Math.min(lookups, SCAN_BUDGET / size));
+            int[] scanOrder = order(scanLookups, size);
+            int[] mapOrder = order(lookups, size);
+
+            double domainScan = measure(scanOrder, i -> scanDomain(domainSet, lock, domainNames.get(i)));
+            double domainLookup = measure(mapOrder, i -> domainMap.get(domainNames.get(i)));
+            double userScan = measure(scanOrder, i -> scanUser(userSet, lock, userNames.get(i)));
+            double userLookup = measure(mapOrder, i -> userMap.get(userNames.get(i)));
+
+            System.out.printf("%-10d %16.1f %16.1f %16.1f %16.1f%n", size, domainScan, domainLookup, userScan,
+                    userLookup);
+        }
+
+        System.out.println();
+        System.out.printf("%-10s %16s%n", "devices", "hashCode ns");
+        for (int devices : new int[] { 0, 1_000, 100_000 }) {
+            Domain d = new Domain("domain", new User("owner", null));
+            for (int i = 0; i < devices; i++) {
+                d.registerDevice("user" + i + ":dev");
+            }
+            System.out.printf("%-10d %16.1f%n", devices, measure(order(lookups, 1), i -> d.hashCode()));
+        }
+    }
+
+    private interface Lookup {
+        Object find(int index);
+    }
+
+    /**
+     * Método que mede o tempo médio de uma procura, depois de um aquecimento
+     *
+     * @param order índices a procurar
+     * @param lookup procura a medir
+     * @return nanossegundos por procura
+     */
+    private static double measure(int[] order, Lookup lookup) {
+        for (int i = 0; i < Math.min(order.length, 10_000); i++) {
+            sink = lookup.find(order[i]);
+        }
+        long start = System.nanoTime();
+        for (int index : order) {
+            sink = lookup.find(index);
+        }
+        return (double) (System.nanoTime() - start) / order.length;
+    }
+
+    private static int[] order(int n, int size) {
+        Random random = new Random(42);
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = random.nextInt(size);
+        }
+        return order;
+    }
+
+    /**
+     * Procura de um domínio como era feita antes no getDomain
+     */
+    private static Domain scanDomain(Set<Domain> domains, ReentrantReadWriteLock lock, String name) {
+        lock.readLock().lock();
+        try {
+            for (Domain domain : domains) {
+                if (domain.getName().equals(name)) {
+                    return domain;
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Procura de um utilizador como era feita antes no getUserByName
+     */
+    private static User scanUser(Set<User> users, ReentrantReadWriteLock lock, String name) {
+        lock.readLock().lock();
+        try {
+            for (User user : users) {
+                if (user.getUserId().equals(name)) {
+                    return user;
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
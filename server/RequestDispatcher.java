@@ -0,0 +1,278 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Classe que executa os comandos de uma sessão, permitindo que o cliente tenha
+ * vários pedidos em curso (pipelining).
+ *
+ * Cada pedido com id é executado no pool de comandos assim que terminarem os
+ * pedidos anteriores da mesma sessão que tocam nos mesmos recursos (o mesmo
+ * domínio, a imagem ou o upload do mesmo dispositivo, ou as associações entre
+ * dispositivos e domínios). Pedidos independentes correm em paralelo e a
+ * resposta leva o id do pedido, podendo chegar fora de ordem. Pedidos sem id
+ * (dispositivos antigos) e comandos desconhecidos são barreiras: esperam por
+ * todos os anteriores e os seguintes esperam por eles, o que mantém o
+ * comportamento de um pedido de cada vez.
+ *
+ * O número de pedidos em curso por sessão é limitado, para que um cliente não
+ * consiga encher o pool de comandos
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class RequestDispatcher {
+
+    public static final int MAX_IN_FLIGHT = 64;
+
+    private static final String MEMBERSHIP = "membership";
+
+    private final ServerThreadHandler handler;
+    private final MessageChannel channel;
+    private final Executor executor;
+    private final Semaphore slots = new Semaphore(MAX_IN_FLIGHT);
+
+    // recurso -> último pedido que lhe toca
+    private final Map<String, CompletableFuture<Void>> tails = new HashMap<>();
+    private CompletableFuture<Void> barrier = CompletableFuture.completedFuture(null);
+
+    private volatile Runnable onSlotFreed = () -> {
+    };
+
+    /**
+     * Construtor de um RequestDispatcher
+     *
+     * @param handler  handler da sessão que executa os comandos
+     * @param channel  canal onde são escritas as respostas
+     * @param executor pool onde os comandos são executados
+     */
+    public RequestDispatcher(ServerThreadHandler handler, MessageChannel channel, Executor executor) {
+        this.handler = handler;
+        this.channel = channel;
+        this.executor = executor;
+    }
+
+    /**
+     * Método que define o que fazer quando um pedido termina e liberta um
+     * lugar (usado pelo servidor NIO para retomar a leitura da inbox)
+     *
+     * @param onSlotFreed ação a executar
+     */
+    public void setOnSlotFreed(Runnable onSlotFreed) {
+        this.onSlotFreed = onSlotFreed;
+    }
+
+    /**
+     * Método que submete um pedido, esperando se a sessão já tiver o número
+     * máximo de pedidos em curso
+     *
+     * @param msg pedido recebido
+     * @throws InterruptedException
+     */
+    public void dispatch(Message msg) throws InterruptedException {
+        slots.acquire();
+        submit(msg);
+    }
+
+    /**
+     * Método que submete um pedido sem bloquear
+     *
+     * @param msg pedido recebido
+     * @return false se a sessão já tem o número máximo de pedidos em curso
+     */
+    public boolean tryDispatch(Message msg) {
+        if (!slots.tryAcquire()) {
+            return false;
+        }
+        submit(msg);
+        return true;
+    }
+
+    /**
+     * Método que indica se a sessão pode submeter mais um pedido
+     *
+     * @return true se existe pelo menos um lugar livre
+     */
+    public boolean hasFreeSlot() {
+        return slots.availablePermits() > 0;
+    }
+
+    /**
+     * Método que retorna um future que termina quando todos os pedidos já
+     * submetidos tiverem terminado
+     *
+     * @return future dos pedidos em curso
+     */
+    public synchronized CompletableFuture<Void> whenIdle() {
+        List<CompletableFuture<Void>> pending = new ArrayList<>(tails.values());
+        pending.add(barrier);
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Método que encadeia um pedido depois dos pedidos de que depende
+     *
+     * @param msg pedido recebido
+     */
+    private synchronized void submit(Message msg) {
+        Set<String> keys = msg.getRequestId() == null ? null : resources(msg);
+
+        List<CompletableFuture<Void>> deps = new ArrayList<>();
+        deps.add(barrier);
+        if (keys == null) {
+            deps.addAll(tails.values());
+        } else {
+            for (String key : keys) {
+                CompletableFuture<Void> tail = tails.get(key);
+                if (tail != null) {
+                    deps.add(tail);
+                }
+            }
+        }
+
+        CompletableFuture<Void> done = CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[0]))
+                .thenRunAsync(() -> execute(msg), executor)
+                .handle((r, e) -> null);
+
+        if (keys == null) {
+            tails.clear();
+            barrier = done;
+        } else {
+            for (String key : keys) {
+                tails.put(key, done);
+            }
+        }
+
+        done.thenRun(() -> {
+            synchronized (this) {
+                if (keys != null) {
+                    for (String key : keys) {
+                        tails.remove(key, done);
+                    }
+                }
+            }
+            slots.release();
+            onSlotFreed.run();
+        });
+    }
+
+    /**
+     * Método que executa um pedido e envia a resposta com o id do pedido
+     *
+     * @param msg pedido recebido
+     */
+    private void execute(Message msg) {
+        Message response;
+        try {
+            response = handler.processCommand(msg);
+        } catch (Exception e) {
+            System.err.println("Erro ao processar comando \n" + e.getMessage());
+            response = new Message(MessageCode.ERROR);
+        }
+        if (response == null && msg.getRequestId() != null) {
+            // o cliente está à espera de uma resposta com este id
+            response = new Message(MessageCode.ERROR);
+        }
+        if (response != null) {
+            response.setRequestId(msg.getRequestId());
+            channel.writeMessage(response);
+        }
+    }
+
+    /**
+     * Método que retorna os recursos em que um pedido toca. Pedidos com
+     * recursos em comum são executados pela ordem de chegada
+     *
+     * @param msg pedido recebido
+     * @return recursos do pedido, ou null se o pedido tem de ser uma barreira
+     */
+    private Set<String> resources(Message msg) {
+        String command = msg.getCommand();
+        if (command == null) {
+            return null;
+        }
+        Set<String> keys = new LinkedHashSet<>();
+        switch (command) {
+            case "CREATE":
+            case "RT":
+            case "SUBSCRIBE":
+            case "UNSUBSCRIBE":
+                keys.add("dm:" + msg.getDomain());
+                break;
+            case "ADD":
+                keys.add("dm:" + msg.getDomain());
+                keys.add(MEMBERSHIP);
+                break;
+            case "RD":
+                keys.add("dm:" + msg.getDomain());
+                keys.add(MEMBERSHIP);
+                keys.add("dev:" + handler.getDevice());
+                break;
+            case "ET":
+            case "ET_BATCH":
+            case "EI":
+                keys.add("dev:" + handler.getDevice());
+                if (!addDomains(keys, msg)) {
+                    return null;
+                }
+                break;
+            case "GET_USER_KEYS":
+                if (!addDomains(keys, msg)) {
+                    return null;
+                }
+                break;
+            case "EI_OPEN":
+            case "EI_COMMIT":
+                keys.add("dev:" + handler.getDevice());
+                keys.add("upload:" + handler.getDevice());
+                break;
+            case "EI_CHUNK":
+                // as partes de um upload são escritas pela ordem em que chegam
+                keys.add("upload:" + handler.getDevice());
+                break;
+            case "RI_CHUNK":
+            case "RI_CLOSE":
+                // leituras posicionais de um download já aberto
+                break;
+            case "RI":
+            case "RI_OPEN":
+                // as permissões dependem dos domínios do utilizador e do dispositivo
+                keys.add(MEMBERSHIP);
+                keys.add("dev:" + msg.getUser() + ":" + msg.getDevId());
+                break;
+            case "MYDOMAINS":
+                keys.add("dev:" + msg.getUser() + ":" + msg.getDevId());
+                break;
+            case "GET_CERTIFICATE":
+                break;
+            default:
+                return null;
+        }
+        return keys;
+    }
+
+    /**
+     * Método que acrescenta aos recursos de um pedido os domínios indicados na
+     * mensagem
+     *
+     * @param keys recursos do pedido
+     * @param msg  pedido recebido
+     * @return false se o pedido não indica os domínios
+     */
+    private static boolean addDomains(Set<String> keys, Message msg) {
+        if (msg.getDomains() == null) {
+            return false;
+        }
+        for (String domain : msg.getDomains()) {
+            keys.add("dm:" + domain);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Classe que aceita as ligações dos modos threads e virtual.
+ *
+ * Várias threads de aceitação ficam em accept() sobre a mesma socket e
+ * entregam cada ligação a um pool limitado de handshake, que faz o handshake
+ * TLS e cria as streams da ServerThread com um prazo máximo. Só depois a sessão
+ * arranca na sua própria thread, por isso um cliente lento ou malicioso apenas
+ * ocupa uma thread de handshake até o prazo expirar
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ServerAcceptor {
+
+    private static final int HANDSHAKE_QUEUE_SIZE = 1024;
+
+    /**
+     * Espera depois de um erro no accept() (por exemplo sem descritores
+     * livres), que duplica a cada erro seguido até ao máximo. Usada também
+     * pelo NioServer
+     */
+    static final long ACCEPT_BACKOFF_MIN_MILLIS = 10;
+    static final long ACCEPT_BACKOFF_MAX_MILLIS = 1000;
+
+    private final SSLServerSocket serverSocket;
+    private final SharedInfoSingleton info;
+    private final ThreadFactory sessionThreads;
+    private final ExecutorService commandExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final ServerMetrics metrics;
+
+    private final int acceptors;
+    private final long handshakeTimeoutMillis;
+    private final ThreadPoolExecutor handshakePool;
+
+    private final Set<ServerThread> activeThreads = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean running = true;
+
+    /**
+     * Construtor de um ServerAcceptor
+     *
+     * @param serverSocket           socket do servidor
+     * @param info                   informação partilhada
+     * @param sessionThreads         fabrica das threads das sessões
+     * @param commandExecutor        pool onde são executados os comandos das
+     *                               sessões
+     * @param acceptors              número de threads de aceitação
+     * @param handshakeThreads       número de threads do pool de handshake
+     * @param handshakeTimeoutMillis prazo para o handshake e criação das streams
+     * @param scheduler              scheduler usado para impor o prazo
+     * @param metrics                métricas do servidor
+     */
+    public ServerAcceptor(SSLServerSocket serverSocket, SharedInfoSingleton info, ThreadFactory sessionThreads,
+            ExecutorService commandExecutor, int acceptors, int handshakeThreads, long handshakeTimeoutMillis,
+            ScheduledExecutorService scheduler, ServerMetrics metrics) {
+        this.serverSocket = serverSocket;
+        this.info = info;
+        this.sessionThreads = sessionThreads;
+        this.commandExecutor = commandExecutor;
+        this.acceptors = acceptors;
+        this.handshakeTimeoutMillis = handshakeTimeoutMillis;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+
+        this.handshakePool = new ThreadPoolExecutor(handshakeThreads, handshakeThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(HANDSHAKE_QUEUE_SIZE));
+        this.handshakePool.allowCoreThreadTimeOut(true);
+
+        metrics.setQueueDepth(() -> handshakePool.getQueue().size() + handshakePool.getActiveCount());
+    }
+
+    /**
+     * Método que arranca as threads de aceitação
+     */
+    public void start() {
+        for (int i = 0; i < acceptors; i++) {
+            Thread t = new Thread(this::acceptLoop, "acceptor-" + i);
+            t.start();
+        }
+    }
+
+    /**
+     * Método que corre o ciclo de aceitação de uma thread de aceitação
+     */
+    private void acceptLoop() {
+        long backoff = ACCEPT_BACKOFF_MIN_MILLIS;
+        while (running) {
+            Socket clientSocket;
+            try {
+                clientSocket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                System.err.println(e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = Math.min(backoff * 2, ACCEPT_BACKOFF_MAX_MILLIS);
+                continue;
+            }
+            backoff = ACCEPT_BACKOFF_MIN_MILLIS;
+
+            long acceptedAt = System.nanoTime();
+            try {
+                handshakePool.execute(() -> handshake(clientSocket, acceptedAt));
+                metrics.sampleQueueDepth();
+            } catch (RejectedExecutionException e) {
+                System.err.println("Handshake queue is full, rejecting client");
+                metrics.recordRejected();
+                closeQuietly(clientSocket);
+            }
+        }
+    }
+
+    /**
+     * Método que faz o handshake TLS e cria as streams de uma ligação dentro do
+     * prazo, arrancando depois a sessão
+     *
+     * @param clientSocket socket do cliente
+     * @param acceptedAt   instante em que a ligação foi aceite (System.nanoTime)
+     */
+    private void handshake(Socket clientSocket, long acceptedAt) {
+        long remaining = handshakeTimeoutMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acceptedAt);
+        if (remaining <= 0) {
+            metrics.recordFailure();
+            closeQuietly(clientSocket);
+            return;
+        }
+
+        // o SoTimeout limita cada leitura, o watchdog limita o total
+        ScheduledFuture<?> watchdog = scheduler.schedule(() -> closeQuietly(clientSocket), remaining,
+                TimeUnit.MILLISECONDS);
+        ServerThread serverThread;
+        try {
+            clientSocket.setSoTimeout((int) remaining);
+            ((SSLSocket) clientSocket).startHandshake();
+            serverThread = new ServerThread(clientSocket, info, commandExecutor);
+            clientSocket.setSoTimeout(0);
+        } catch (IOException e) {
+            watchdog.cancel(false);
+            System.err.println("Error creating input/output streams: " + e.getMessage());
+            metrics.recordFailure();
+            closeQuietly(clientSocket);
+            return;
+        }
+        if (!watchdog.cancel(false)) {
+            metrics.recordFailure();
+            return;
+        }
+        metrics.recordHandshake(System.nanoTime() - acceptedAt);
+
+        activeThreads.add(serverThread);
+        sessionThreads.newThread(() -> {
+            try {
+                serverThread.run();
+            } finally {
+                activeThreads.remove(serverThread);
+            }
+        }).start();
+    }
+
+    /**
+     * Método que termina a aceitação e sinaliza as sessões ativas
+     */
+    public void shutdown() {
+        running = false;
+        for (ServerThread thread : activeThreads) {
+            thread.shutdown();
+        }
+        handshakePool.shutdownNow();
+        commandExecutor.shutdown();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Método que fecha uma socket ignorando erros
+     *
+     * @param socket socket a fechar
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // a ligação já estava fechada
+        }
+    }
+}
@@ -1,26 +1,15 @@
-import java.net.URL;
 import java.nio.ByteBuffer;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.security.InvalidKeyException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.cert.Certificate;
 import java.util.AbstractMap;
-import java.util.Arrays;
-import java.util.List;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.HttpURLConnection;
 
 /**
  * Classe que trata da autenticação de um user
@@ -31,23 +20,25 @@ import java.net.HttpURLConnection;
  */
 public class ServerAuthenticationHandler {
 
+    private static final long DELIVERY_TIMEOUT_SECONDS = 60;
+    private static final String RESUME = "RESUME";
+    private static final String ATTEST_V2 = "ATTEST_V2";
+    private static final String ATTEST_V2_ACK = "ATTEST_V2_OK";
+
     private SharedInfoSingleton info;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private MessageChannel channel;
     private User user = null;
     private String device = null;
 
     /**
      * Construtor da classe AuthenticationHandler
      * 
-     * @param info informação partilhada
-     * @param in   stream de entrada
-     * @param out  stream de saída
+     * @param info    informação partilhada
+     * @param channel canal de mensagens com o cliente
      */
-    public ServerAuthenticationHandler(SharedInfoSingleton info, ObjectInputStream in, ObjectOutputStream out) {
+    public ServerAuthenticationHandler(SharedInfoSingleton info, MessageChannel channel) {
         this.info = info;
-        this.in = in;
-        this.out = out;
+        this.channel = channel;
     }
 
     /* ------------------------------ Autenticacao ------------------------------ */
@@ -55,6 +46,7 @@ public class ServerAuthenticationHandler {
     /**
      * Método que processa a autenticação de um cliente através de um
      * AuthenticationHandler
+     * - Retoma da sessão, se o cliente apresentar um ticket válido
      * - Autenticação do utilizador e password
      * - Autenticação do device id
      * - Autenticação do executável
@@ -63,7 +55,18 @@ public class ServerAuthenticationHandler {
      */
     protected AbstractMap.SimpleEntry<User, String> processAuthentication() {
         try {
-            if (twoFactorAuthentication()) {
+            Message first = this.channel.readMessage();
+            if (first != null && RESUME.equals(first.getCommand())) {
+                if (resumeSession(first)) {
+                    return new AbstractMap.SimpleEntry<User, String>(this.user, this.device);
+                }
+                first = this.channel.readMessage();
+            }
+            if (first == null) {
+                return null;
+            }
+
+            if (twoFactorAuthentication(first)) {
                 if (execAuthentication()) {
                     return new AbstractMap.SimpleEntry<User, String>(this.user, this.device);
                 }
@@ -76,18 +79,77 @@ public class ServerAuthenticationHandler {
         return null;
     }
 
+    /**
+     * Método que tenta retomar uma sessão a partir de um ticket emitido numa
+     * autenticação anterior, dispensando o 2FA e a verificação do executável.
+     * O cliente prova que é o dono do ticket assinando-o com a sua chave privada
+     * 
+     * @param msg mensagem RESUME com o utilizador, o dispositivo, o ticket e a
+     *            assinatura do ticket
+     * @return true se a sessão foi retomada, false se o cliente deve fazer a
+     *         autenticação completa
+     */
+    protected boolean resumeSession(Message msg) {
+        System.out.println("Starting Session Resumption");
+
+        SessionTicketManager tickets = info.getTicketManager();
+        String username = msg.getUser();
+        String devId = msg.getDevId();
+        byte[] ticket = msg.getData();
+        byte[] signatureBytes = msg.getSignature();
+        msg.clear();
+
+        User u = username != null ? info.getUserByName(username) : null;
+        boolean valid = false;
+        if (tickets != null && u != null && devId != null && ticket != null && signatureBytes != null) {
+            // a assinatura é verificada primeiro para que um ticket roubado não
+            // possa ser gasto por quem não tem a chave privada
+            try {
+                Signature signature = Signature.getInstance("SHA256withRSA");
+                signature.initVerify(u.getCertificate().getPublicKey());
+                signature.update(ticket);
+                valid = signature.verify(signatureBytes) && tickets.redeem(ticket, username, devId);
+            } catch (Exception e) {
+                System.err.println("Error verifying session ticket: " + e.getMessage());
+            }
+        }
+
+        String user_devId = username + ":" + devId;
+        if (!valid || !info.addDevice(user_devId)) {
+            System.out.println("Session resumption refused");
+            msg.setCode(MessageCode.NOK);
+            this.channel.writeMessage(msg);
+            return false;
+        }
+
+        this.user = u;
+        this.device = user_devId;
+        this.channel.authenticated();
+        msg.setCode(MessageCode.OK);
+        msg.setData(tickets.issue(username, devId));
+        this.channel.writeMessage(msg);
+        System.out.println("Session resumed for " + user_devId);
+        return true;
+    }
+
     /**
      * Método que processa a autenticação de dois fatores
      * 
+     * @param first primeira mensagem da autenticação, já lida do cliente
      * @return true se a autenticação foi bem sucedida
      */
-    protected boolean twoFactorAuthentication() throws IOException {
+    protected boolean twoFactorAuthentication(Message first) throws IOException {
         System.out.println("Starting Two Factor Authentication");
 
         int authenticated = 0;
+        Message msg = first;
         do {
-            out.reset();
-            boolean passed = assimetricCryptoAuthentication();
+            channel.reset();
+            if (msg == null) {
+                msg = this.channel.readMessage();
+            }
+            boolean passed = assimetricCryptoAuthentication(msg);
+            msg = null;
             if (!passed) {
                 return false;
             }
@@ -102,11 +164,13 @@ public class ServerAuthenticationHandler {
 
     /**
      * Método que processa a autenticação assimétrica
+     * 
+     * @param first mensagem do cliente com o utilizador
      */
-    protected boolean assimetricCryptoAuthentication() {
+    protected boolean assimetricCryptoAuthentication(Message first) {
         System.out.println("Starting Assimetric Crypto Authentication");
         try {
-            Message msg = Utils.readMessage(this.in);
+            Message msg = first;
             String username = msg.getUser();
 
             msg.clear();
@@ -123,9 +187,9 @@ public class ServerAuthenticationHandler {
                 msg.setCode(MessageCode.OK_USER);
             }
 
-            Utils.writeMessage(msg, this.out);
+            this.channel.writeMessage(msg);
 
-            msg = Utils.readMessage(this.in);
+            msg = this.channel.readMessage();
 
             if (msg.getCode() == MessageCode.OK_NEW_USER) {
                 // caso 4.2.1 a)
@@ -133,7 +197,7 @@ public class ServerAuthenticationHandler {
 
                 if (!receivedNonce.equals(nonce)) {
                     msg.setCode(MessageCode.ERROR);
-                    Utils.writeMessage(msg, this.out);
+                    this.channel.writeMessage(msg);
                     return false;
                 } else {
                     byte[] signatureBytes = msg.getSignature();
@@ -149,11 +213,11 @@ public class ServerAuthenticationHandler {
                         this.user = new User(username, userCertificate);
                         System.out.println("User: " + user.getUserId() + " created");
                         info.addUser(user);
-                        Utils.writeMessage(msg, this.out);
+                        this.channel.writeMessage(msg);
                         return true;
                     } else {
                         msg.setCode(MessageCode.ERROR);
-                        Utils.writeMessage(msg, this.out);
+                        this.channel.writeMessage(msg);
                         return false;
                     }
                 }
@@ -174,18 +238,18 @@ public class ServerAuthenticationHandler {
                 if (signature.verify(signatureBytes)) {
                     this.user = u;
                     msg.setCode(MessageCode.OK);
-                    Utils.writeMessage(msg, this.out);
+                    this.channel.writeMessage(msg);
                     return true;
                 } else {
                     msg.setCode(MessageCode.ERROR);
-                    Utils.writeMessage(msg, this.out);
+                    this.channel.writeMessage(msg);
                     return false;
                 }
 
             } else {
                 System.err.println("Error in assimetricCryptoAuthentication");
                 msg.setCode(MessageCode.ERROR);
-                Utils.writeMessage(msg, this.out);
+                this.channel.writeMessage(msg);
                 return false;
             }
 
@@ -193,53 +257,59 @@ public class ServerAuthenticationHandler {
             System.err.println("Exception in assimetricCryptoAuthentication:");
             Message msg = new Message();
             msg.setCode(MessageCode.ERROR);
-            Utils.writeMessage(msg, this.out);
+            this.channel.writeMessage(msg);
             return false;
         }
 
     }
 
     /**
-     * Método que processa a autenticação por email
+     * Método que processa a autenticação por email. O código é entregue de forma
+     * assíncrona pelo TwoFactorProvider, por isso a sessão não fica presa à
+     * espera do serviço de 2FA enquanto o utilizador não responde
      * 
-     * @param user_id id do utilizador
      * @return 1 se a autenticação foi bem sucedida
      *         0 se a autenticação falhou
      *         -1 se ocorreu um erro
      */
     protected int emailAuthentication() {
-        String c2fa = Utils.generateC2FA();
-        String url = String.format("https://lmpinto.eu.pythonanywhere.com/2FA?e=%s&c=%s&a=%s", this.user.getUserId(),
-                c2fa,
-                info.getTwoFactorAuthKey());
+        TwoFactorProvider provider = info.getTwoFactorProvider();
+        String c2fa = provider.newCode();
+        CompletableFuture<Void> delivery = provider.sendCode(this.user.getUserId(), c2fa);
 
-        try {
-            sendGetRequest(url);
-        } catch (Exception e) {
+        if (delivery.isCompletedExceptionally()) {
             System.out.println("Error sending GET request to 2FA server");
             return -1;
         }
 
-        Message msg = Utils.readMessage(this.in);
+        Message msg = this.channel.readMessage();
 
-        if (msg.getC2FA() == null) {
+        if (msg == null || msg.getC2FA() == null) {
             System.out.println("Error reading C2FA from client");
             return -1;
         }
 
+        // o código só pode ser aceite se tiver sido de facto entregue
+        try {
+            delivery.get(DELIVERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.out.println("Error sending GET request to 2FA server");
+            return -1;
+        }
+
         if (msg.getC2FA().equals(c2fa)) {
             msg.clear();
             msg.setCode(MessageCode.OK);
-            Utils.writeMessage(msg, this.out);
+            this.channel.writeMessage(msg);
             return 1;
         } else {
             msg.clear();
             msg.setCode(MessageCode.ERROR);
-            Utils.writeMessage(msg, this.out);
+            this.channel.writeMessage(msg);
 
-            msg = Utils.readMessage(this.in);
+            msg = this.channel.readMessage();
 
-            if (msg.getCommand() == "EXIT") {
+            if (msg == null || "EXIT".equals(msg.getCommand())) {
                 System.out.println("User exited the program");
                 return -1;
             } else {
@@ -253,42 +323,9 @@ public class ServerAuthenticationHandler {
     }
 
     /**
-     * Método que envia um pedido GET
-     * 
-     * @param urlStr url para onde enviar o pedido
-     * @throws Exception
-     */
-    private void sendGetRequest(String urlStr) throws Exception {
-        int responseCode = 0;
-        while (responseCode != HttpURLConnection.HTTP_OK) {
-            URL url = new URL(urlStr);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-            // Request method
-            conn.setRequestMethod("GET");
-
-            // Get the response
-            responseCode = conn.getResponseCode();
-
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                BufferedReader br = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                String inputLine;
-                StringBuffer response = new StringBuffer();
-
-                while ((inputLine = br.readLine()) != null) {
-                    response.append(inputLine);
-                }
-                br.close();
-
-                System.out.println("Response: " + response.toString());
-            } else {
-                Thread.sleep(1000);
-            }
-        }
-    }
-
-    /**
-     * Método que autentica o executável
+     * Método que autentica o executável. Se o cliente pedir a versão 2 da
+     * verificação (comando ATTEST_V2), a prova é o HMAC do digest do executável
+     * com o nonce como chave, o que permite usar o digest em cache
      * 
      * @throws IOException
      * @throws ClassNotFoundException
@@ -297,18 +334,20 @@ public class ServerAuthenticationHandler {
      */
     protected boolean execAuthentication() throws IOException, ClassNotFoundException, NoSuchAlgorithmException {
 
-        Message msg = Utils.readMessage(this.in);
+        Message msg = this.channel.readMessage();
         String user_devId = this.user.getUserId() + ":" + msg.getDevId();
+        boolean v2 = ATTEST_V2.equals(msg.getCommand());
 
         boolean added = info.addDevice(user_devId);
 
         if (added) {
             this.device = user_devId;
             msg.setCode(MessageCode.OK_DEVID);
+            msg.setCommand(v2 ? ATTEST_V2_ACK : null);
             Long nonce = Utils.generateNonce();
             msg.setNonce(nonce);
-            Utils.writeMessage(msg, this.out);
-            return checkExecHash(nonce);
+            this.channel.writeMessage(msg);
+            return checkExecHash(nonce, v2);
         } else {
             msg.setCode(MessageCode.NOK_DEVID);
             return false;
@@ -320,97 +359,60 @@ public class ServerAuthenticationHandler {
      * Método que verifica a integridade do executável
      * 
      * @param nonce nonce gerado para a verificação
+     * @param v2    true se a prova segue a versão 2 (HMAC do digest)
      * @return true se a integridade foi verificada com sucesso false caso contrário
      * @throws NoSuchAlgorithmException
      */
-    private boolean checkExecHash(Long nonce) throws NoSuchAlgorithmException {
+    private boolean checkExecHash(Long nonce, boolean v2) throws NoSuchAlgorithmException {
 
-        boolean check = checkLocalInfoFileIntegrity();
+        ExecAttestation attestation = info.getExecAttestation();
+        Path execPath = attestation.verifiedExecPath();
 
-        if (!check) {
+        if (execPath == null) {
             Message msg = new Message();
             msg.setCode(MessageCode.NOK_TESTED);
-            Utils.writeMessage(msg, this.out);
-            Utils.readMessage(this.in);
+            this.channel.writeMessage(msg);
+            this.channel.readMessage();
             return false;
         }
 
-        Message msg = Utils.readMessage(this.in);
+        Message msg = this.channel.readMessage();
 
         byte[] receivedHash = msg.getData();
         msg.clear();
 
-        try (BufferedReader br = new BufferedReader(new FileReader("localInfo.txt"))) {
-            String path;
-            if ((path = br.readLine()) != null) {
-                File f = new File(path);
-                byte[] fileBytes = Files.readAllBytes(f.toPath());
-                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES + fileBytes.length);
-                buffer.putLong(nonce);
-                buffer.put(fileBytes);
-
-                byte[] concatBytes = buffer.array();
-
-                MessageDigest digest = MessageDigest.getInstance("SHA-256");
-                byte[] calculatedHash = digest.digest(concatBytes);
-                if (Arrays.equals(calculatedHash, receivedHash)) {
-                    msg.setCode(MessageCode.OK_TESTED);
-                    Utils.writeMessage(msg, this.out);
-                    return true;
-                } else {
-                    msg.setCode(MessageCode.NOK_TESTED);
-                    Utils.writeMessage(msg, this.out);
-                    return false;
-                }
+        byte[] calculatedHash;
+        try {
+            if (v2) {
+                calculatedHash = Utils.execProofV2(nonce, attestation.execDigest(execPath));
+            } else {
+                calculatedHash = Utils.execProofV1(nonce, execPath);
             }
-        } catch (IOException e) {
+        } catch (IOException | GeneralSecurityException e) {
             e.printStackTrace();
+            msg.setCode(MessageCode.ERROR);
+            this.channel.writeMessage(msg);
             return false;
         }
-        msg.setCode(MessageCode.ERROR);
-        Utils.writeMessage(msg, this.out);
-        return false;
-    }
-
-    /**
-     * Método que verifica a integridade do ficheiro localInfo.txt
-     * 
-     * @return true se a integridade foi verificada com sucesso false caso contrário
-     */
-    private boolean checkLocalInfoFileIntegrity() {
-        try {
-            List<String> lines = Files.readAllLines(Paths.get("localInfo.txt"));
-
-            if (lines.size() == 2) { // hmac ja existe
-
-                Mac mac = Mac.getInstance("HmacSHA256");
-                SecretKeySpec secretKey = new SecretKeySpec(this.info.getPassCipher().getBytes(), "HmacSHA256");
-
-                mac.init(secretKey);
-
-                byte[] decodedHmac = Utils.hexToBytes(lines.get(1).trim());
 
-                mac.update(lines.get(0).trim().getBytes());
-
-                // Decode the HMAC from Base64
-                byte[] calculatedHmac = mac.doFinal();
-                if (!Arrays.equals(calculatedHmac, decodedHmac)) {
-                    System.out.println("Exec info file integrity NOT verified");
-                    return false;
-                } else {
-                    System.out.println("Exec info file integrity verified");
-                    return true;
-                }
-
-            } else {
-                System.out.println("Something went wrong while checking localInfo.txt integrity...");
-                return false;
+        SessionTicketManager tickets = info.getTicketManager();
+        if (MessageDigest.isEqual(calculatedHash, receivedHash)) {
+            msg.setCode(MessageCode.OK_TESTED);
+            if (tickets != null) {
+                String devId = this.device.substring(this.device.indexOf(':') + 1);
+                msg.setData(tickets.issue(this.user.getUserId(), devId));
             }
-
-        } catch (IOException | NoSuchAlgorithmException | InvalidKeyException e) {
-            e.printStackTrace();
+            this.channel.authenticated();
+            this.channel.writeMessage(msg);
+            return true;
+        } else {
+            // executável diferente: os tickets antigos deixam de valer
+            if (tickets != null) {
+                tickets.revoke(this.device);
+            }
+            msg.setCode(MessageCode.NOK_TESTED);
+            this.channel.writeMessage(msg);
             return false;
         }
-
     }
 }
@@ -0,0 +1,133 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Classe que guarda as métricas de aceitação de ligações do servidor: a
+ * profundidade da fila de ligações à espera de handshake e a latência do
+ * handshake TLS (incluindo a criação das streams)
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ServerMetrics {
+
+    // limites superiores (em milissegundos) de cada intervalo do histograma
+    private static final long[] BUCKETS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000,
+            Long.MAX_VALUE };
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS_MS.length);
+
+    private final AtomicLong peakQueueDepth = new AtomicLong();
+    private volatile IntSupplier queueDepth = () -> 0;
+
+    /**
+     * Método que define de onde é lida a profundidade atual da fila de aceitação
+     *
+     * @param queueDepth fornecedor da profundidade da fila
+     */
+    public void setQueueDepth(IntSupplier queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Método que regista o tamanho da fila depois de uma ligação ser aceite
+     */
+    public void sampleQueueDepth() {
+        long depth = queueDepth.getAsInt();
+        peakQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * Método que regista um handshake bem sucedido
+     *
+     * @param nanos duração do handshake em nanosegundos
+     */
+    public void recordHandshake(long nanos) {
+        handshakes.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+
+        long ms = nanos / 1_000_000;
+        int i = 0;
+        while (ms > BUCKETS_MS[i]) {
+            i++;
+        }
+        histogram.incrementAndGet(i);
+    }
+
+    /**
+     * Método que regista um handshake que falhou ou excedeu o prazo
+     */
+    public void recordFailure() {
+        failures.increment();
+    }
+
+    /**
+     * Método que regista uma ligação recusada por a fila estar cheia
+     */
+    public void recordRejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Método que calcula o limite superior do percentil pedido, com a resolução
+     * do histograma
+     *
+     * @param percentile percentil entre 0 e 100
+     * @return limite superior em milissegundos, ou -1 se não existirem amostras
+     */
+    public long percentileMillis(double percentile) {
+        long count = 0;
+        for (int i = 0; i < histogram.length(); i++) {
+            count += histogram.get(i);
+        }
+        if (count == 0) {
+            return -1;
+        }
+        long target = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < histogram.length(); i++) {
+            seen += histogram.get(i);
+            if (seen >= target) {
+                return BUCKETS_MS[i];
+            }
+        }
+        return BUCKETS_MS[BUCKETS_MS.length - 1];
+    }
+
+    /**
+     * Método que devolve um resumo das métricas numa linha
+     *
+     * @return resumo das métricas
+     */
+    public String report() {
+        long count = handshakes.sum();
+        long avgMs = count == 0 ? 0 : totalNanos.sum() / count / 1_000_000;
+        long p99 = percentileMillis(99);
+        return "[metrics] accept queue=" + queueDepth.getAsInt() + " (peak " + peakQueueDepth.get() + ")"
+                + ", handshakes=" + count + ", failed=" + failures.sum() + ", rejected=" + rejected.sum()
+                + ", handshake avg=" + avgMs + "ms p99<=" + formatBucket(p99)
+                + " max=" + maxNanos.get() / 1_000_000 + "ms";
+    }
+
+    /**
+     * Método que formata o limite de um intervalo do histograma
+     *
+     * @param ms limite em milissegundos
+     * @return limite formatado
+     */
+    private static String formatBucket(long ms) {
+        if (ms < 0) {
+            return "n/a";
+        }
+        return ms == Long.MAX_VALUE ? "inf" : ms + "ms";
+    }
+}
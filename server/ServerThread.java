@@ -1,42 +1,41 @@
 import java.net.Socket;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
 
 /**
  * Classe que representa um thread do servidor. Cada thread é responsável por
- * tratar um cliente.
+ * tratar um cliente. A sessão é um Runnable para poder correr tanto numa
+ * thread de plataforma como numa virtual thread.
  * 
  * @author Martim Pereira fc58223
  * @author João Pereira fc58189
  * @author Daniel Nunes fc58257
  */
-public class ServerThread extends Thread {
+public class ServerThread implements Runnable {
 
     private volatile boolean shutdown = false;
 
     private Socket cliSocket = null;
-    private ObjectInputStream in = null;
-    private ObjectOutputStream out = null;
+    private MessageChannel channel = null;
 
     private ServerThreadHandler handler;
+    private RequestDispatcher dispatcher;
 
     /**
      * Construtor da classe ServerThread
      * 
-     * @param inSoc Socket do cliente
-     * @param info  Informação partilhada entre os threads
+     * @param inSoc           Socket do cliente
+     * @param info            Informação partilhada entre os threads
+     * @param commandExecutor pool onde são executados os comandos da sessão
+     * @throws IOException se não for possível criar as streams (o handshake TLS
+     *                     falhou ou o cliente não enviou o cabeçalho a tempo)
      */
-    public ServerThread(Socket inSoc, SharedInfoSingleton info) {
+    public ServerThread(Socket inSoc, SharedInfoSingleton info, Executor commandExecutor) throws IOException {
         this.cliSocket = inSoc;
-        try {
-            this.out = new ObjectOutputStream(inSoc.getOutputStream());
-            this.in = new ObjectInputStream(inSoc.getInputStream());
-            this.handler = new ServerThreadHandler(info, this.out, this.in);
-            System.out.println("Thread active...");
-        } catch (Exception e) {
-            System.err.println("Error creating input/output streams");
-            System.exit(-1);
-        }
+        this.channel = Utils.acceptChannel(inSoc.getInputStream(), inSoc.getOutputStream());
+        this.handler = new ServerThreadHandler(info, this.channel);
+        this.dispatcher = new RequestDispatcher(this.handler, this.channel, commandExecutor);
+        System.out.println("Thread active...");
     }
 
     /**
@@ -61,68 +60,31 @@ public class ServerThread extends Thread {
 
     // ----------------------- Funcoes de Comando -------------------------//
     /**
-     * Método que corre o ciclo de comandos
+     * Método que corre o ciclo de comandos. Esta thread só lê os pedidos, que
+     * são executados pelo RequestDispatcher; antes de fechar a sessão espera
+     * que os pedidos em curso enviem a resposta
      */
     public void startCommandCycle() {
         while (!shutdown) {
             try {
-                Message msg = Utils.readMessage(this.in);
+                Message msg = this.channel.readMessage();
+                if (msg == null) {
+                    shutdown();
+                    break;
+                }
                 System.out.println("----------------------------------");
                 System.out.println("Command: " + msg.getCommand());
-                switch (msg.getCommand()) {
-                    case "CREATE":
-                        msg = handler.createDomain(msg.getDomain());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "ADD":
-                        msg = handler.addUserToDomain(msg.getUser(), msg.getDomain(), msg.getData());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "RD":
-                        msg = handler.registerDevice(msg.getDomain());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "ET":
-                        msg = handler.registerTemperature(msg.getDomains(), msg.getDataList(), msg.getParams());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "EI":
-                        msg = handler.registerImage(msg.getDomains(), msg.getDataList(), msg.getParams());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "RT":
-                        msg = handler.retriveDomainTemperatures(msg.getDomain());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "RI":
-                        msg = handler.retriveImage(msg.getUser() + ":" + msg.getDevId());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "MYDOMAINS":
-                        msg = handler.retrieveUserDomains(msg.getUser(), msg.getDevId());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "GET_USER_KEYS":
-                        msg = handler.retrieveDomainKey(msg.getDomains(), msg.getUser());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "GET_CERTIFICATE":
-                        msg = handler.retrieveCertificate(msg.getUser());
-                        Utils.writeMessage(msg, this.out);
-                        break;
-                    case "EXIT":
-                        shutdown();
-                        return;
-                    default:
-                        System.err.println("Comando inválido");
-                        break;
+                if ("EXIT".equals(msg.getCommand())) {
+                    shutdown();
+                    break;
                 }
+                dispatcher.dispatch(msg);
             } catch (Exception e) {
                 System.err.println("Erro ao processar comando \n" + e.getMessage());
                 shutdown();
             }
         }
-
+        dispatcher.whenIdle().join();
     }
 
     /**
@@ -1,11 +1,20 @@
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.cert.Certificate;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 /**
  * Classe responsável pelo comportamento das ServerThreads
@@ -16,9 +25,22 @@ import java.util.Map.Entry;
  */
 public class ServerThreadHandler {
 
+    private static final int MAX_DOWNLOADS = 4;
+    // leituras do histórico enviadas em cada resposta a um RT com intervalo
+    private static final int HISTORY_PAGE = 1024;
+
+    // compressões que os dispositivos podem aplicar às imagens antes da cifra
+    private static final List<String> IMAGE_COMPRESSIONS = Arrays.asList("deflate");
+
     private SharedInfoSingleton info;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private MessageChannel channel;
+
+    // downloads de imagens abertos nesta sessão
+    private final Map<String, ImageDownload> downloads = new ConcurrentHashMap<>();
+    private final AtomicLong nextDownload = new AtomicLong();
+
+    // subscrições de temperaturas desta sessão, criado no primeiro SUBSCRIBE
+    private TemperatureSubscriptions.Subscriber subscriber = null;
 
     private User user = null;
     private String device = null;
@@ -27,16 +49,14 @@ public class ServerThreadHandler {
 
     /**
      * Construtor de um ServerThreadHandler
+     * 
+     * @param info    informação partilhada
+     * @param channel canal de mensagens com o cliente
      */
-    public ServerThreadHandler(SharedInfoSingleton info, ObjectOutputStream out, ObjectInputStream in) {
+    public ServerThreadHandler(SharedInfoSingleton info, MessageChannel channel) {
         this.info = info;
-        try {
-            this.out = out;
-            this.in = in;
-            this.authHandler = new ServerAuthenticationHandler(info, in, out);
-        } catch (Exception e) {
-            System.err.println("Error crating IO streams");
-        }
+        this.channel = channel;
+        this.authHandler = new ServerAuthenticationHandler(info, channel);
     }
 
     /**
@@ -61,6 +81,106 @@ public class ServerThreadHandler {
 
     }
 
+    /**
+     * Método que retorna o dispositivo autenticado nesta sessão
+     * 
+     * @return dispositivo no formato user:dev, ou null antes da autenticação
+     */
+    protected String getDevice() {
+        return this.device;
+    }
+
+    /**
+     * Método que executa um comando recebido do cliente, sendo partilhado pelo
+     * ciclo de comandos das ServerThreads e pelo servidor NIO
+     * 
+     * @param msg Message com o comando a executar
+     * @return Message com a resposta a enviar ao cliente ou null caso o comando
+     *         não tenha resposta
+     * @throws IOException se ocorrer um erro nos ficheiros das imagens
+     */
+    protected Message processCommand(Message msg) throws IOException {
+        if (msg.getEpoch() == null) {
+            return executeCommand(msg);
+        }
+        // a época é verificada e o pedido executado sem que os domínios do
+        // dispositivo possam mudar pelo meio
+        Lock lock = info.membershipLock(this.device).readLock();
+        lock.lock();
+        try {
+            if (msg.getEpoch() != info.getMembershipEpoch(this.device)) {
+                // dados cifrados para uma lista de domínios que já mudou
+                return stale();
+            }
+            return executeCommand(msg);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Método que retorna a resposta a um pedido cifrado para uma lista de
+     * domínios que já mudou, com a época atual
+     * 
+     * @return Message STALE
+     */
+    private Message stale() {
+        Message stale = new Message(MessageCode.STALE);
+        stale.setEpoch(info.getMembershipEpoch(this.device));
+        return stale;
+    }
+
+    private Message executeCommand(Message msg) throws IOException {
+        switch (msg.getCommand()) {
+            case "CREATE":
+                return createDomain(msg.getDomain());
+            case "ADD":
+                return addUserToDomain(msg.getUser(), msg.getDomain(), msg.getData());
+            case "RD":
+                return registerDevice(msg.getDomain());
+            case "ET":
+                return registerTemperature(msg.getDomains(), msg.getDataList(), msg.getParams());
+            case "ET_BATCH":
+                return registerTemperatureBatch(msg.getDomains(), msg.getTimestamps(), msg.getDataList(),
+                        msg.getParams());
+            case "EI":
+                return registerImage(msg.getDomains(), msg.getDataList(), msg.getParams());
+            case "EI_OPEN":
+                return openImageUpload(msg.getFileName(), msg.getDomains(), msg.getParams(), msg.getCompression(),
+                        msg.getSize(), msg.getEpoch());
+            case "EI_CHUNK":
+                return appendImageChunk(msg.getFileName(), msg.getSize(), msg.getDataList());
+            case "EI_COMMIT":
+                return commitImageUpload(msg.getFileName(), msg.getSize(), msg.getDataList());
+            case "RT":
+                if (msg.getTimestamps() != null) {
+                    return retriveTemperatureHistory(msg.getDomain(), msg.getTimestamps(), msg.getFileName());
+                }
+                return retriveDomainTemperatures(msg.getDomain(), msg.getFileName(), msg.getTable());
+            case "RI":
+                return retriveImage(msg.getUser() + ":" + msg.getDevId());
+            case "RI_OPEN":
+                return openImageDownload(msg.getUser() + ":" + msg.getDevId(), msg.getCompression());
+            case "RI_CHUNK":
+                return readImageChunk(msg.getFileName(), msg.getSize());
+            case "RI_CLOSE":
+                return closeImageDownload(msg.getFileName());
+            case "SUBSCRIBE":
+                return subscribeDomain(msg.getDomain(), msg.getRequestId() != null);
+            case "UNSUBSCRIBE":
+                return unsubscribeDomain(msg.getDomain());
+            case "MYDOMAINS":
+                return retrieveUserDomains(msg.getUser(), msg.getDevId(), msg.getSuite());
+            case "GET_USER_KEYS":
+                return retrieveDomainKey(msg.getDomains(), msg.getUser());
+            case "GET_CERTIFICATE":
+                return retrieveCertificate(msg.getUser());
+            default:
+                System.err.println("Comando inválido");
+                return null;
+        }
+    }
+
     /* ----------------------------- Funcionalidades ---------------------------- */
 
     /**
@@ -72,15 +192,12 @@ public class ServerThreadHandler {
      *         - NOK se o dominio já existir
      */
     protected Message createDomain(String domainName) {
-        Domain domain = info.getDomain(domainName);
         Message msg = new Message();
-        if (domain != null) {
-            msg.setCode(MessageCode.NOK);
-
-        } else {
-            Domain newDomain = new Domain(domainName, this.user);
-            info.addDomain(newDomain);
+        // addDomain falha se outro CREATE do mesmo nome chegou primeiro
+        if (domainName != null && info.addDomain(new Domain(domainName, this.user))) {
             msg.setCode(MessageCode.OK);
+        } else {
+            msg.setCode(MessageCode.NOK);
         }
         return msg;
     }
@@ -110,7 +227,7 @@ public class ServerThreadHandler {
             } else if (!domain.isOwner(this.user)) {
                 msg.setCode(MessageCode.NO_PERM);
             } else {
-                domain.addUser(user, domainKey);
+                info.addUserToDomain(domain, user, domainKey);
                 msg.setCode(MessageCode.OK);
             }
         }
@@ -163,7 +280,7 @@ public class ServerThreadHandler {
         } else if (!domain.hasUser(this.user.getUserId())) {
             msg.setCode(MessageCode.NO_PERM);
         } else {
-            domain.registerDevice(device);
+            info.registerDevice(domain, device);
             msg.setCode(MessageCode.OK);
         }
         return msg;
@@ -184,13 +301,134 @@ public class ServerThreadHandler {
             Domain d = info.getDomain(domains.get(i));
             byte[] t = temps.get(i);
             byte[] p = params.get(i);
-            d.registerTempToDevice(this.device, t, p);
+            long timestamp = System.currentTimeMillis();
+            d.registerTempToDevice(this.device, t, p, timestamp);
+            info.getSubscriptions().publish(d.getName(), this.device, t, p, timestamp);
         }
 
         msg.setCode(MessageCode.OK);
         return msg;
     }
 
+    /**
+     * Método encarregue pelo registo de várias temperaturas de um dispositivo
+     * num só pedido. As leituras de cada domínio seguem juntas em temps e
+     * params (todas as leituras do primeiro domínio, depois as do segundo,
+     * ...) e cada domínio é atualizado com uma única aquisição do seu lock
+     * 
+     * @param domains    dominios do dispositivo
+     * @param timestamps instantes das leituras
+     * @param temps      temperaturas cifradas com a chave de cada domínio
+     * @param params     parametros de cada temperatura
+     * @return Message com o resultado da operação
+     *         - OK se as temperaturas foram registadas, com o número de leituras
+     *         aplicadas em size
+     *         - NOK se o pedido não tiver o formato esperado
+     *         - NO_DM se algum dos dominios não existir
+     *         - NO_PERM se o dispositivo não estiver registado em algum dos
+     *         dominios
+     */
+    protected Message registerTemperatureBatch(List<String> domains, List<Long> timestamps, List<byte[]> temps,
+            List<byte[]> params) {
+        Message msg = new Message();
+
+        if (domains == null || timestamps == null || temps == null || params == null
+                || temps.size() != domains.size() * timestamps.size() || params.size() != temps.size()) {
+            msg.setCode(MessageCode.NOK);
+            return msg;
+        }
+
+        // valida todos os dominios antes de aplicar alguma leitura
+        List<Domain> targets = new ArrayList<>();
+        for (String name : domains) {
+            Domain d = info.getDomain(name);
+            if (d == null) {
+                msg.setCode(MessageCode.NO_DM);
+                return msg;
+            }
+            if (!d.hasDevice(this.device)) {
+                msg.setCode(MessageCode.NO_PERM);
+                return msg;
+            }
+            targets.add(d);
+        }
+
+        int readings = timestamps.size();
+        long received = System.currentTimeMillis();
+        long applied = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            int from = i * readings;
+            Domain d = targets.get(i);
+            int n = d.registerTempBatchToDevice(this.device, timestamps, temps.subList(from, from + readings),
+                    params.subList(from, from + readings), received);
+            if (n > 0) {
+                // os subscritores só recebem a leitura mais recente do lote
+                DeviceData.Reading r = d.getDevices().get(this.device).getReading();
+                info.getSubscriptions().publish(d.getName(), this.device, r.getTemp(), r.getParams(),
+                        r.getTimestamp());
+            }
+            applied += n;
+        }
+
+        msg.setCode(MessageCode.OK);
+        msg.setSize(applied);
+        return msg;
+    }
+
+    /**
+     * Método que subscreve as novas temperaturas de um domínio. A partir daí o
+     * servidor envia mensagens PUSH (sem requestId) com as leituras registadas
+     * no domínio, por isso só é aceite em sessões com pedidos em pipeline
+     * 
+     * @param domainName nome do dominio
+     * @param pipelined  true se o pedido tem requestId
+     * @return Message com o resultado da operação
+     *         - OK com a chave do domínio cifrada para o utilizador
+     *         - NOK se a sessão não usa pedidos em pipeline
+     *         - NO_DM se o dominio não existir
+     *         - NO_PERM se o utilizador não pertencer ao dominio
+     */
+    protected Message subscribeDomain(String domainName, boolean pipelined) {
+        Message msg = new Message();
+        Domain d = info.getDomain(domainName);
+        if (!pipelined) {
+            msg.setCode(MessageCode.NOK);
+        } else if (d == null) {
+            msg.setCode(MessageCode.NO_DM);
+        } else if (!d.hasUser(this.user.getUserId())) {
+            msg.setCode(MessageCode.NO_PERM);
+        } else {
+            byte[] domainKey = d.getKeyByUserId(this.user.getUserId());
+            synchronized (this) {
+                if (subscriber == null) {
+                    subscriber = info.getSubscriptions().newSubscriber(channel);
+                }
+            }
+            info.getSubscriptions().subscribe(subscriber, d.getName(), domainKey);
+            msg.setDomainKey(domainKey);
+            msg.setCode(MessageCode.OK);
+        }
+        return msg;
+    }
+
+    /**
+     * Método que cancela a subscrição das temperaturas de um domínio
+     * 
+     * @param domainName nome do dominio
+     * @return Message com o resultado da operação
+     *         - OK se a subscrição foi cancelada
+     *         - NOK se o domínio não estava subscrito
+     */
+    protected synchronized Message unsubscribeDomain(String domainName) {
+        Message msg = new Message();
+        if (subscriber != null && info.getSubscriptions().unsubscribe(subscriber, domainName)) {
+            msg.setCode(MessageCode.OK);
+        } else {
+            msg.setCode(MessageCode.NOK);
+        }
+        return msg;
+    }
+
     /**
      * Método que retorna a chave de um dominio de um utilizador
      * 
@@ -217,7 +455,9 @@ public class ServerThreadHandler {
     }
 
     /**
-     * Método encarregue pelo registo de uma imagem num dispositivo
+     * Método encarregue pelo registo de uma imagem num dispositivo (EI
+     * antigo, com a imagem toda num pedido). A imagem fica fora do heap, no
+     * BlobStore, ou no seu ficheiro em disco se o store não tiver memória
      * 
      * @param data byte array com o contéudo da imagem a registar
      * @return Message com o resultado da operação
@@ -228,11 +468,30 @@ public class ServerThreadHandler {
     protected Message registerImage(List<String> domains, List<byte[]> images, List<byte[]> params) {
         Message msg = new Message();
 
+        BlobStore blobs = info.getBlobStore();
         for (int i = 0; i < domains.size(); i++) {
             Domain d = info.getDomain(domains.get(i));
             byte[] img = images.get(i);
             byte[] p = params.get(i);
-            d.registerImageToDevice(this.device, img, p);
+            BlobStore.Blob blob = blobs == null ? null : blobs.store(img);
+            if (blob != null) {
+                d.registerImageToDevice(this.device, blob, p);
+                continue;
+            }
+            // sem memória fora do heap a imagem vai para o seu ficheiro
+            String imagePath = DomainFileHandler.imagePath(d.getName(), this.device);
+            d.writeLock().lock();
+            try {
+                Utils.createDir(Paths.get(imagePath).getParent().toString());
+                // o ficheiro pode ser partilhado com outros domínios
+                Paths.get(imagePath).toFile().delete();
+                Utils.createBinaryFile(imagePath, img);
+                Utils.createBinaryFile(Paths.get(imagePath).resolveSibling("imageParams.txt").toString(), p);
+                DomainFileHandler.writeImageCompression(d.getName(), this.device, null);
+                d.registerImageFileToDevice(this.device, imagePath, p, null);
+            } finally {
+                d.writeLock().unlock();
+            }
         }
 
         msg.setCode(MessageCode.OK);
@@ -240,34 +499,66 @@ public class ServerThreadHandler {
     }
 
     /**
-     * Método encarregue por retornar as temperaturas do dispositivos de um dominio
+     * Método encarregue por retornar as temperaturas do dispositivos de um dominio.
+     * 
+     * A resposta leva em fileName o cursor do domínio (epoca:versao). Se o
+     * pedido trouxer o cursor de um RT anterior, só são enviadas as
+     * temperaturas que mudaram desde então; se o cursor for de outra época
+     * (o servidor reiniciou) são enviadas todas
+     * 
+     * Um dispositivo que saiba ler a TemperatureTable recebe as temperaturas
+     * em colunas, cada uma com os seus parâmetros; os restantes recebem o
+     * HashMap serializado, com os parâmetros numa lista pela ordem do mapa
      * 
      * @param domainName nome do dominio a procurar
+     * @param cursor     cursor de um RT anterior, ou null para pedir todas
+     * @param table      versão da TemperatureTable que o dispositivo sabe ler,
+     *                   ou null
      * @return Message com o resultado da operação
-     *         - OK se as temperaturas foram retornadas com sucesso
+     *         - OK se as temperaturas foram retornadas com sucesso (num pedido
+     *         com cursor, pode não haver nenhuma alteração)
+     *         - NOK se o cursor não for válido
      *         - NO_DM se o dominio não existir
      *         - NO_PERM se o utilizador não tiver permissões (não é o owner do
      *         dominio)
-     *         - NO_ID se o dispositivo não existir
+     *         - NO_DATA se o dominio não tem temperaturas
      */
-    protected Message retriveDomainTemperatures(String domainName) {
+    protected Message retriveDomainTemperatures(String domainName, String cursor, Integer table) {
         Domain d = info.getDomain(domainName);
         Message msg = new Message();
         if (d != null) {
             if (d.hasUser(this.user.getUserId())) {
                 HashMap<String, byte[]> temps = new HashMap<>();
-                List<byte[]> params = new ArrayList<>();
+                HashMap<String, byte[]> tempParams = new HashMap<>();
+                long since;
+                try {
+                    since = cursor == null ? -1 : d.cursorVersion(cursor);
+                } catch (IllegalArgumentException e) {
+                    msg.setCode(MessageCode.NOK);
+                    return msg;
+                }
+                // sem lock: o cursor é lido antes das leituras, por isso todas
+                // as versões até ao cursor estão visíveis (as mais recentes que
+                // também apareçam são repetidas no RT seguinte, sem problema)
+                String newCursor = d.getCursor();
+                if (table != null && table >= TemperatureTable.VERSION) {
+                    return domainTemperatureTable(d, since, newCursor);
+                }
                 for (Entry<String, DeviceData> entry : d.getDevices().entrySet()) {
-                    String device = entry.getKey();
-                    DeviceData data = entry.getValue();
-                    if (data.getTemp() != null) {
-                        temps.put(device, data.getTemp());
-                        params.add(data.getTempParams());
+                    DeviceData.Reading r = entry.getValue().getReading();
+                    if (r != null && r.getVersion() > since) {
+                        temps.put(entry.getKey(), r.getTemp());
+                        tempParams.put(entry.getKey(), r.getParams());
                     }
                 }
-                if (temps.size() == 0) {
+                if (temps.size() == 0 && since < 0) {
                     msg.setCode(MessageCode.NO_DATA);
                 } else {
+                    // os parametros seguem a ordem do mapa enviado
+                    List<byte[]> params = new ArrayList<>();
+                    for (String device : temps.keySet()) {
+                        params.add(tempParams.get(device));
+                    }
                     byte[] data = Utils.hashMapToByteArray(temps);
 
                     // ja foi guardada cifrada pela user pubKey
@@ -277,6 +568,7 @@ public class ServerThreadHandler {
                     msg.setData(data);
                     msg.setParams(params);
                     msg.setSize(Long.valueOf(data.length));
+                    msg.setFileName(newCursor);
                     msg.setCode(MessageCode.OK);
                 }
             } else {
@@ -288,6 +580,351 @@ public class ServerThreadHandler {
         return msg;
     }
 
+    /**
+     * Método que constrói a resposta ao RT em colunas (TemperatureTable),
+     * numa só passagem pelos dispositivos do domínio
+     * 
+     * @param d         dominio
+     * @param since     versão do cursor do pedido, ou -1 para todas
+     * @param newCursor cursor do domínio lido antes das leituras
+     * @return Message OK com a tabela, ou NO_DATA se não há temperaturas
+     */
+    private Message domainTemperatureTable(Domain d, long since, String newCursor) {
+        Message msg = new Message();
+        TemperatureTable.Builder builder = new TemperatureTable.Builder(d.getDevices().size());
+        for (Entry<String, DeviceData> entry : d.getDevices().entrySet()) {
+            DeviceData.Reading r = entry.getValue().getReading();
+            if (r != null && r.getVersion() > since) {
+                builder.add(entry.getKey(), r.getTemp(), r.getParams());
+            }
+        }
+        if (builder.size() == 0 && since < 0) {
+            msg.setCode(MessageCode.NO_DATA);
+            return msg;
+        }
+        byte[] data = builder.build();
+        msg.setDomainKey(d.getKeyByUserId(this.user.getUserId()));
+        msg.setData(data);
+        msg.setTable(TemperatureTable.VERSION);
+        msg.setSize(Long.valueOf(data.length));
+        msg.setFileName(newCursor);
+        msg.setCode(MessageCode.OK);
+        return msg;
+    }
+
+    /**
+     * Método encarregue por retornar o histórico das temperaturas dos
+     * dispositivos de um domínio recebidas num intervalo.
+     * 
+     * As leituras vão por dispositivo (por ordem do nome) e, em cada um, pela
+     * ordem em que foram recebidas, no máximo HISTORY_PAGE por resposta. Se o
+     * intervalo tiver mais leituras, fileName leva o ponto onde continuar
+     * (sequencia:dispositivo), que o cliente envia no pedido seguinte
+     * 
+     * @param domainName nome do dominio
+     * @param range      início e fim do intervalo em milissegundos
+     *                   (inclusive), instantes em que o servidor recebeu as
+     *                   leituras
+     * @param token      ponto onde continuar, ou null na primeira página
+     * @return Message com o resultado da operação
+     *         - OK com os dispositivos, as temperaturas, os parâmetros e os
+     *         instantes das leituras, e a chave do domínio cifrada
+     *         - NOK se o intervalo ou o ponto onde continuar não forem válidos
+     *         - NO_DM se o dominio não existir
+     *         - NO_PERM se o utilizador não pertencer ao dominio
+     *         - NO_DATA se não há leituras no intervalo
+     */
+    protected Message retriveTemperatureHistory(String domainName, List<Long> range, String token) {
+        Message msg = new Message();
+        Domain d = info.getDomain(domainName);
+        if (d == null) {
+            msg.setCode(MessageCode.NO_DM);
+            return msg;
+        }
+        if (!d.hasUser(this.user.getUserId())) {
+            msg.setCode(MessageCode.NO_PERM);
+            return msg;
+        }
+        if (range.size() != 2 || range.get(0) > range.get(1)) {
+            msg.setCode(MessageCode.NOK);
+            return msg;
+        }
+
+        String startDevice = null;
+        long startSeq = 0;
+        if (token != null) {
+            int sep = token.indexOf(':');
+            try {
+                startSeq = Long.parseLong(token.substring(0, sep));
+                startDevice = token.substring(sep + 1);
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                msg.setCode(MessageCode.NOK);
+                return msg;
+            }
+        }
+
+        List<String> names = new ArrayList<>(d.getDevices().keySet());
+        Collections.sort(names);
+        int first = 0;
+        if (startDevice != null) {
+            first = Collections.binarySearch(names, startDevice);
+            if (first < 0) {
+                // o dispositivo saiu do domínio, continua no seguinte
+                first = -first - 1;
+                startDevice = null;
+            }
+        }
+
+        List<String> devices = new ArrayList<>();
+        List<byte[]> temps = new ArrayList<>();
+        List<byte[]> params = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        String next = null;
+        for (int i = first; i < names.size() && next == null; i++) {
+            String device = names.get(i);
+            DeviceData data = d.getDevices().get(device);
+            if (data == null) {
+                continue;
+            }
+            long seq = data.getHistory().range(range.get(0), range.get(1),
+                    device.equals(startDevice) ? startSeq : 0, HISTORY_PAGE - temps.size(),
+                    (s, time, temp, p) -> {
+                        devices.add(device);
+                        temps.add(temp);
+                        params.add(p);
+                        timestamps.add(time);
+                    });
+            if (seq >= 0) {
+                next = seq + ":" + device;
+            }
+        }
+
+        if (token == null && temps.isEmpty()) {
+            msg.setCode(MessageCode.NO_DATA);
+            return msg;
+        }
+        msg.setDomain(domainName);
+        msg.setDomains(devices);
+        msg.setDataList(temps);
+        msg.setParams(params);
+        msg.setTimestamps(timestamps);
+        msg.setDomainKey(d.getKeyByUserId(this.user.getUserId()));
+        msg.setFileName(next);
+        msg.setCode(MessageCode.OK);
+        return msg;
+    }
+
+    /**
+     * Método que começa ou retoma um upload de imagem por partes
+     * 
+     * @param uploadId    id do upload a retomar, ou null para começar um novo
+     * @param domains     domínios para onde a imagem vai (upload novo)
+     * @param params      parâmetros da cifra de cada domínio (upload novo)
+     * @param compression compressão que o dispositivo quer aplicar antes da
+     *                    cifra (upload novo), aceite só se for conhecida
+     * @param size        tamanho máximo dos dados a cifrar (upload novo)
+     * @param epoch       época dos domínios para a qual a imagem foi cifrada
+     *                    (upload novo), verificada de novo no EI_COMMIT
+     * @return Message com o resultado da operação
+     *         - OK com o id do upload, o número de bytes já recebidos e a
+     *         compressão aceite; ao retomar leva também os domínios, os
+     *         parâmetros e o último bloco cifrado de cada domínio
+     *         - NOK se o upload a retomar já não existir ou o pedido não for
+     *         válido
+     *         - NO_DM se algum dominio não existir
+     *         - NO_PERM se o dispositivo não estiver registado em algum dominio
+     * @throws IOException
+     */
+    protected Message openImageUpload(String uploadId, List<String> domains, List<byte[]> params,
+            String compression, Long size, Long epoch) throws IOException {
+        Message msg = new Message();
+        ImageUploadManager uploads = info.getImageUploads();
+
+        ImageUploadManager.Upload upload;
+        if (uploadId != null) {
+            upload = uploads.resume(this.device, uploadId);
+            if (upload == null) {
+                msg.setCode(MessageCode.NOK);
+                return msg;
+            }
+            msg.setDomains(upload.getDomains());
+            msg.setParams(upload.getParams());
+            msg.setDataList(uploads.lastBlocks(upload));
+        } else {
+            if (size == null || !checkImageDomains(domains, msg)) {
+                msg.setCode(msg.getCode() == null ? MessageCode.NOK : msg.getCode());
+                return msg;
+            }
+            upload = uploads.open(this.device, domains, params,
+                    IMAGE_COMPRESSIONS.contains(compression) ? compression : null, size, epoch);
+            if (upload == null) {
+                msg.setCode(MessageCode.NOK);
+                return msg;
+            }
+        }
+
+        msg.setFileName(upload.getId());
+        msg.setSize(upload.getReceived());
+        msg.setCompression(upload.getCompression());
+        msg.setCode(MessageCode.OK);
+        return msg;
+    }
+
+    /**
+     * Método que acrescenta uma parte a um upload de imagem
+     * 
+     * @param uploadId id do upload
+     * @param offset   posição da parte na imagem cifrada
+     * @param chunks   parte cifrada para cada domínio
+     * @return Message com o resultado da operação
+     *         - OK com o número de bytes recebidos
+     *         - NOK se a parte não foi aceite (com o número de bytes recebidos
+     *         se o upload existir)
+     * @throws IOException
+     */
+    protected Message appendImageChunk(String uploadId, Long offset, List<byte[]> chunks) throws IOException {
+        Message msg = new Message();
+        long received = offset == null ? -1
+                : info.getImageUploads().append(this.device, uploadId, offset, chunks);
+        if (received >= 0) {
+            msg.setSize(received);
+        }
+        msg.setCode(received >= 0 && received == offset + chunks.get(0).length ? MessageCode.OK
+                : MessageCode.NOK);
+        return msg;
+    }
+
+    /**
+     * Método que termina um upload de imagem, substituindo a imagem do
+     * dispositivo em todos os domínios do upload. Uma imagem cifrada em
+     * envelope é guardada uma só vez: o ficheiro de cada domínio é uma ligação
+     * (hard link) para o mesmo conteúdo, com os parâmetros (o envelope) do
+     * domínio ao lado
+     * 
+     * @param uploadId id do upload
+     * @param offset   posição da última parte
+     * @param last     última parte cifrada de cada domínio
+     * @return Message com o resultado da operação
+     *         - OK se a imagem foi registada com sucesso
+     *         - NOK se o upload não existir ou estiver incompleto
+     *         - NO_DM se algum dominio já não existir
+     *         - NO_PERM se o dispositivo já não estiver registado em algum
+     *         dominio
+     *         - STALE se os domínios do dispositivo mudaram depois do
+     *         EI_OPEN (o upload é descartado)
+     * @throws IOException
+     */
+    protected Message commitImageUpload(String uploadId, Long offset, List<byte[]> last) throws IOException {
+        // os domínios não podem mudar entre a verificação da época e a troca
+        // das imagens
+        Lock lock = info.membershipLock(this.device).readLock();
+        lock.lock();
+        try {
+            return storeImageUpload(uploadId, offset, last);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Message storeImageUpload(String uploadId, Long offset, List<byte[]> last) throws IOException {
+        Message msg = new Message();
+        ImageUploadManager uploads = info.getImageUploads();
+
+        ImageUploadManager.Upload upload = uploads.resume(this.device, uploadId);
+        if (upload == null || offset == null) {
+            msg.setCode(MessageCode.NOK);
+            return msg;
+        }
+        if (upload.getEpoch() != null && upload.getEpoch() != info.getMembershipEpoch(this.device)) {
+            // a imagem foi cifrada para uma lista de domínios que já mudou
+            uploads.discard(upload);
+            return stale();
+        }
+        if (!checkImageDomains(upload.getDomains(), msg)) {
+            return msg;
+        }
+        if (uploads.commit(this.device, uploadId, offset, last) == null) {
+            msg.setCode(MessageCode.NOK);
+            return msg;
+        }
+
+        try {
+            List<String> domains = upload.getDomains();
+            for (int i = 0; i < domains.size(); i++) {
+                Domain d = info.getDomain(domains.get(i));
+                String imagePath = DomainFileHandler.imagePath(d.getName(), this.device);
+                // a troca do ficheiro e dos parâmetros é vista de uma vez pelos RI_OPEN
+                d.writeLock().lock();
+                try {
+                    Utils.createDir(Paths.get(imagePath).getParent().toString());
+                    Path source = upload.part(i);
+                    if (upload.isShared()) {
+                        source = Paths.get(imagePath).resolveSibling("image.txt.new");
+                        linkOrCopy(upload.part(0), source);
+                    }
+                    Files.move(source, Paths.get(imagePath), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    Utils.createBinaryFile(Paths.get(imagePath).resolveSibling("imageParams.txt").toString(),
+                            upload.getParams().get(i));
+                    DomainFileHandler.writeImageCompression(d.getName(), this.device, upload.getCompression());
+                    d.registerImageFileToDevice(this.device, imagePath, upload.getParams().get(i),
+                            upload.getCompression());
+                } finally {
+                    d.writeLock().unlock();
+                }
+            }
+        } finally {
+            uploads.discard(upload);
+        }
+
+        msg.setCode(MessageCode.OK);
+        return msg;
+    }
+
+    /**
+     * Método que cria uma ligação (hard link) para um ficheiro, ou uma cópia
+     * se o sistema de ficheiros não suportar ligações
+     * 
+     * @param file   ficheiro existente
+     * @param target novo caminho, substituído se existir
+     * @throws IOException
+     */
+    private static void linkOrCopy(Path file, Path target) throws IOException {
+        Files.deleteIfExists(target);
+        try {
+            Files.createLink(target, file);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Método que verifica se o dispositivo da sessão pode registar dados em
+     * todos os domínios
+     * 
+     * @param domains domínios a verificar
+     * @param msg     Message onde é colocado o código de erro
+     * @return true se todos os domínios existem e têm o dispositivo registado
+     */
+    private boolean checkImageDomains(List<String> domains, Message msg) {
+        if (domains == null || domains.isEmpty()) {
+            msg.setCode(MessageCode.NOK);
+            return false;
+        }
+        for (String name : domains) {
+            Domain d = info.getDomain(name);
+            if (d == null) {
+                msg.setCode(MessageCode.NO_DM);
+                return false;
+            }
+            if (!d.hasDevice(this.device)) {
+                msg.setCode(MessageCode.NO_PERM);
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Método encarregue por retornar a imagem de um dispositivo
      * 
@@ -298,6 +935,8 @@ public class ServerThreadHandler {
      *         - NO_PERM se o utilizador não tiver permissões (não é o owner do
      *         dominio)
      *         - NO_DATA se a imagem não existir
+     *         - NOK se a imagem foi comprimida antes da cifra (só os RI_OPEN
+     *         a indicar a compressão a podem ler)
      */
     protected Message retriveImage(String user_devId) {
 
@@ -306,44 +945,165 @@ public class ServerThreadHandler {
         if (!this.info.hasDevice(user_devId)) {
             msg.setCode(MessageCode.NO_ID);
         } else {
-            for (Domain domain : info.getDomains()) {
-                if (domain.hasDevice(user_devId) && domain.hasUser(this.user.getUserId())) {
-                    DeviceData data = domain.getDevices().get(user_devId);
-                    if (data.getImage() != null) {
-                        msg.setData(data.getImage());
-                        msg.setParam(data.getImageParams());
-                        msg.setDomainKey(domain.getKeyByUserId(this.user.getUserId()));
-                        msg.setCode(MessageCode.OK);
-                    } else {
-                        msg.setCode(MessageCode.NO_DATA);
-                    }
-                    return msg;
+            Domain domain = info.getSharedDomain(user_devId, this.user.getUserId());
+            if (domain == null) {
+                msg.setCode(MessageCode.NO_PERM);
+                return msg;
+            }
+            domain.readLock().lock();
+            try {
+                DeviceData data = domain.getDevices().get(user_devId);
+                if (data.getImageCompression() != null) {
+                    // dispositivos antigos não sabem descomprimir a imagem
+                    msg.setCode(MessageCode.NOK);
+                } else if (data.hasImage()) {
+                    msg.setData(data.getImage());
+                    msg.setParam(data.getImageParams());
+                    msg.setDomainKey(domain.getKeyByUserId(this.user.getUserId()));
+                    msg.setDomain(domain.getName());
+                    msg.setCode(MessageCode.OK);
+                } else {
+                    msg.setCode(MessageCode.NO_DATA);
                 }
+            } finally {
+                domain.readLock().unlock();
             }
+        }
+
+        return msg;
+
+    }
+
+    /**
+     * Método que abre um download por partes da imagem de um dispositivo
+     * 
+     * @param user_devId  nome do dispositivo a procurar
+     * @param compression compressão que o dispositivo sabe desfazer, ou null
+     * @return Message com o resultado da operação
+     *         - OK com o handle do download, o tamanho da imagem cifrada, os
+     *         parâmetros da imagem, a chave do dominio (e o seu nome) e a
+     *         compressão da imagem
+     *         - NOK se a sessão já tiver demasiados downloads abertos ou se a
+     *         imagem estiver comprimida com outra compressão
+     *         - NO_ID se o dispositivo não existir
+     *         - NO_PERM se o utilizador não tiver permissões
+     *         - NO_DATA se a imagem não existir
+     * @throws IOException
+     */
+    protected Message openImageDownload(String user_devId, String compression) throws IOException {
+        Message msg = new Message();
+
+        if (!this.info.hasDevice(user_devId)) {
+            msg.setCode(MessageCode.NO_ID);
+            return msg;
+        }
+        if (downloads.size() >= MAX_DOWNLOADS) {
+            msg.setCode(MessageCode.NOK);
+            return msg;
+        }
+        Domain domain = info.getSharedDomain(user_devId, this.user.getUserId());
+        if (domain == null) {
             msg.setCode(MessageCode.NO_PERM);
+            return msg;
         }
+        ImageDownload download;
+        domain.readLock().lock();
+        try {
+            DeviceData data = domain.getDevices().get(user_devId);
+            if (!data.hasImage()) {
+                msg.setCode(MessageCode.NO_DATA);
+                return msg;
+            }
+            if (data.getImageCompression() != null && !data.getImageCompression().equals(compression)) {
+                msg.setCode(MessageCode.NOK);
+                return msg;
+            }
+            msg.setCompression(data.getImageCompression());
+            download = data.getImageFile() != null ? new ImageDownload(data.getImageFile())
+                    : new ImageDownload(data.getImageBlob());
+            msg.setParam(data.getImageParams());
+        } finally {
+            domain.readLock().unlock();
+        }
+        String handle = String.valueOf(nextDownload.incrementAndGet());
+        downloads.put(handle, download);
+        msg.setFileName(handle);
+        msg.setSize(download.size());
+        msg.setDomainKey(domain.getKeyByUserId(this.user.getUserId()));
+        msg.setDomain(domain.getName());
+        msg.setCode(MessageCode.OK);
+        return msg;
+    }
 
+    /**
+     * Método que lê uma parte de um download de imagem
+     * 
+     * @param handle handle do download
+     * @param offset posição da parte na imagem cifrada
+     * @return Message com o resultado da operação
+     *         - OK com a parte lida (no máximo IMAGE_CHUNK_SIZE bytes)
+     *         - NOK se o download não existir ou o offset não for válido
+     * @throws IOException
+     */
+    protected Message readImageChunk(String handle, Long offset) throws IOException {
+        Message msg = new Message();
+        ImageDownload download = handle == null ? null : downloads.get(handle);
+        byte[] chunk = download == null || offset == null ? null
+                : download.read(offset, Utils.IMAGE_CHUNK_SIZE);
+        if (chunk == null) {
+            msg.setCode(MessageCode.NOK);
+        } else {
+            msg.setData(chunk);
+            msg.setCode(MessageCode.OK);
+        }
         return msg;
+    }
 
+    /**
+     * Método que fecha um download de imagem
+     * 
+     * @param handle handle do download
+     * @return Message com o resultado da operação
+     *         - OK se o download foi fechado
+     *         - NOK se o download não existir
+     * @throws IOException
+     */
+    protected Message closeImageDownload(String handle) throws IOException {
+        Message msg = new Message();
+        ImageDownload download = handle == null ? null : downloads.remove(handle);
+        if (download == null) {
+            msg.setCode(MessageCode.NOK);
+        } else {
+            download.close();
+            msg.setCode(MessageCode.OK);
+        }
+        return msg;
     }
 
     /**
-     * Método que retorna os dominios em que um user se encontra
+     * Método que retorna os dominios em que um user se encontra, com a
+     * chave de cada um e a época da lista (ver SharedInfoSingleton)
      * 
      * @param username nome do utilizador
      * @param devId    nome do dispositivo
+     * @param suite    versão mais recente da cifra das temperaturas que o
+     *                 dispositivo suporta, ou null (só PBE)
      * @return Message com o resultado da operação
      */
-    protected Message retrieveUserDomains(String username, String devId) {
+    protected Message retrieveUserDomains(String username, String devId, Integer suite) {
 
         Message msg = new Message();
+        if (suite != null) {
+            // a mais recente que os dois suportam, limitada por --data-suite
+            msg.setSuite(Math.min(suite, info.getDataSuite()));
+        }
         List<String> domains = new ArrayList<>();
         List<byte[]> keys = new ArrayList<>();
-        for (Domain domain : info.getDomains()) {
-            if (domain.hasDevice(username + ":" + devId)) {
-                domains.add(domain.getName());
-                keys.add(domain.getKeyByUserId(username));
-            }
+        // lida antes dos domínios, uma alteração entretanto torna-a antiga
+        msg.setEpoch(info.getMembershipEpoch(username + ":" + devId));
+        for (Domain domain : info.getDeviceDomains(username + ":" + devId)) {
+            domains.add(domain.getName());
+            keys.add(domain.getKeyByUserId(username));
         }
 
         if (domains.size() == 0) {
@@ -361,17 +1121,20 @@ public class ServerThreadHandler {
      */
     protected void close() {
         this.info.removeDevice(this.device);
-        Message msg = new Message();
-        Utils.writeMessage(msg, this.out);
-        try {
-            if (in != null) {
-                in.close();
+        synchronized (this) {
+            if (subscriber != null) {
+                info.getSubscriptions().close(subscriber);
             }
-            if (out != null) {
-                out.close();
+        }
+        for (String handle : downloads.keySet()) {
+            try {
+                closeImageDownload(handle);
+            } catch (IOException e) {
+                System.err.println("Error closing image download");
             }
-        } catch (Exception e) {
-            System.exit(-1);
         }
+        Message msg = new Message();
+        this.channel.writeMessage(msg);
+        this.channel.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,189 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Classe que emite e valida os tickets de retoma de sessão.
+ *
+ * Um ticket é emitido depois de uma autenticação completa (2FA e verificação do
+ * executável) e permite ao mesmo dispositivo voltar a entrar numa única troca de
+ * mensagens. O ticket contém o utilizador, o dispositivo e o prazo de validade,
+ * assinados com HMAC por uma chave gerada no arranque do servidor (reiniciar o
+ * servidor invalida todos os tickets). Cada ticket só pode ser usado uma vez:
+ * ao ser aceite é substituído por um novo.
+ *
+ * Tanto a cache de tickets emitidos como a lista de revogações têm um tamanho
+ * máximo. Um ticket que saia da cache deixa simplesmente de ser aceite e o
+ * dispositivo faz a autenticação completa
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class SessionTicketManager {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int ID_SIZE = 16;
+    private static final int MAC_SIZE = 32;
+
+    private static final int MAX_TICKETS = 10000;
+    private static final int MAX_REVOKED = 1000;
+
+    private final SecretKeySpec key;
+    private final long ttlMillis;
+    private final SecureRandom random = new SecureRandom();
+
+    // id do ticket -> user:dev, por ordem de emissão
+    private final LinkedHashMap<String, String> issued = new LinkedHashMap<String, String>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_TICKETS;
+        }
+    };
+
+    // user:dev -> instante da revogação, por ordem de revogação
+    private final LinkedHashMap<String, Long> revoked = new LinkedHashMap<>();
+
+    /**
+     * Construtor de um SessionTicketManager
+     *
+     * @param ttlMillis tempo de validade de cada ticket em milissegundos
+     */
+    public SessionTicketManager(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        byte[] keyBytes = new byte[32];
+        random.nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, MAC_ALGORITHM);
+    }
+
+    /**
+     * Método que emite um novo ticket para um dispositivo
+     *
+     * @param userId id do utilizador
+     * @param devId  id do dispositivo
+     * @return ticket assinado, ou null se não foi possível criá-lo
+     */
+    public byte[] issue(String userId, String devId) {
+        byte[] id = new byte[ID_SIZE];
+        random.nextBytes(id);
+        long now = System.currentTimeMillis();
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.write(id);
+            out.writeLong(now);
+            out.writeLong(now + ttlMillis);
+            out.writeUTF(userId);
+            out.writeUTF(devId);
+            out.write(mac(bytes.toByteArray()));
+            out.flush();
+
+            synchronized (this) {
+                issued.put(Utils.bytesToHex(id), userId + ":" + devId);
+            }
+            return bytes.toByteArray();
+        } catch (IOException | GeneralSecurityException e) {
+            System.err.println("Error issuing session ticket: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Método que valida um ticket e o consome, para que não possa ser usado
+     * outra vez
+     *
+     * @param ticket ticket recebido do dispositivo
+     * @param userId id do utilizador que o apresenta
+     * @param devId  id do dispositivo que o apresenta
+     * @return true se o ticket é válido para este dispositivo
+     */
+    public boolean redeem(byte[] ticket, String userId, String devId) {
+        if (ticket == null || ticket.length <= ID_SIZE + MAC_SIZE) {
+            return false;
+        }
+
+        byte[] body = Arrays.copyOf(ticket, ticket.length - MAC_SIZE);
+        byte[] receivedMac = Arrays.copyOfRange(ticket, ticket.length - MAC_SIZE, ticket.length);
+
+        byte[] id = new byte[ID_SIZE];
+        long issuedAt;
+        long expiresAt;
+        String ticketUser;
+        String ticketDev;
+        try {
+            if (!MessageDigest.isEqual(mac(body), receivedMac)) {
+                return false;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+            in.readFully(id);
+            issuedAt = in.readLong();
+            expiresAt = in.readLong();
+            ticketUser = in.readUTF();
+            ticketDev = in.readUTF();
+        } catch (IOException | GeneralSecurityException e) {
+            return false;
+        }
+
+        if (!ticketUser.equals(userId) || !ticketDev.equals(devId)
+                || System.currentTimeMillis() > expiresAt) {
+            return false;
+        }
+
+        String userDevId = userId + ":" + devId;
+        synchronized (this) {
+            Long revokedAt = revoked.get(userDevId);
+            if (revokedAt != null && revokedAt >= issuedAt) {
+                return false;
+            }
+            return userDevId.equals(issued.remove(Utils.bytesToHex(id)));
+        }
+    }
+
+    /**
+     * Método que revoga todos os tickets já emitidos para um dispositivo
+     *
+     * @param userDevId dispositivo no formato user:dev
+     */
+    public synchronized void revoke(String userDevId) {
+        long now = System.currentTimeMillis();
+        issued.values().removeIf(userDevId::equals);
+
+        // depois do ttl todos os tickets anteriores à revogação já expiraram
+        revoked.remove(userDevId);
+        revoked.put(userDevId, now);
+        Iterator<Long> it = revoked.values().iterator();
+        while (it.hasNext()) {
+            long at = it.next();
+            if (now - at > ttlMillis || revoked.size() > MAX_REVOKED) {
+                it.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Método que calcula o HMAC de um ticket
+     *
+     * @param body conteúdo do ticket
+     * @return HMAC do conteúdo
+     * @throws GeneralSecurityException
+     */
+    private byte[] mac(byte[] body) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(key);
+        return mac.doFinal(body);
+    }
+}
@@ -9,14 +9,41 @@ import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Classe que representa um Singleton que contem a informacao partilhada entre
  * as diferentes threads
  * 
+ * Os domínios, os utilizadores e os dispositivos ativos estão em
+ * ConcurrentHashMap indexados pelo nome: as procuras feitas em cada comando
+ * não bloqueiam nem percorrem as listas, e as inserções são atómicas (por
+ * exemplo, dois CREATE do mesmo domínio ao mesmo tempo só criam um).
+ * 
+ * Os índices inversos dispositivo -> domínios e utilizador -> domínios evitam
+ * percorrer todos os domínios no MYDOMAINS (feito antes de cada ET e EI) e no
+ * RI. São atualizados pelo registerDevice e pelo addUserToDomain, que devem
+ * ser usados em vez dos métodos do Domain.
+ * 
+ * Cada dispositivo tem uma época dos seus domínios, que muda sempre que muda
+ * a lista de domínios do dispositivo ou a chave de um deles para o seu
+ * utilizador. O dispositivo guarda a lista devolvida pelo MYDOMAINS com a
+ * época e envia-a nos ET, ET_BATCH e EI_OPEN, que são recusados (STALE) se a
+ * época já mudou. As épocas começam no instante em que o servidor arrancou,
+ * por isso as de uma execução anterior nunca são aceites. Esses pedidos
+ * verificam a época e escrevem com o readLock de membershipLock do
+ * dispositivo, e as alterações que mudam a época são feitas com o writeLock,
+ * por isso nenhuma alteração fica entre a verificação e a escrita
+ * 
  * @author Martim Pereira fc58223
  * @author João Pereira fc58189
  * @author Daniel Nunes fc58257
@@ -26,31 +53,49 @@ public class SharedInfoSingleton {
     private final String DOMAINS_PATH = "server/serverFiles/domains.txt";
     private final String USERS_PATH = "server/serverFiles/users.txt";
 
-    private static volatile SharedInfoSingleton sharedInfo = null;
+    private static final int MEMBERSHIP_STRIPES = 16;
 
-    private Set<Domain> domainsList;
-    private Set<String> devicesList; // devices ativos no momento
-    private Set<User> usersList;
+    private static volatile SharedInfoSingleton sharedInfo = null;
 
-    private String twoFactorAuthKey;
+    private final Map<String, Domain> domainsList = new ConcurrentHashMap<>();
+    private final Set<String> devicesList = ConcurrentHashMap.newKeySet(); // devices ativos no momento
+    private final Map<String, User> usersList = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> domainsByDevice = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> domainsByUser = new ConcurrentHashMap<>();
+    private final Map<String, Long> membershipEpochs = new ConcurrentHashMap<>(); // device -> época
+    private final long epochBase = System.currentTimeMillis() << 16;
+    // locks das épocas, partilhados pelos dispositivos com o mesmo hash
+    private final ReentrantReadWriteLock[] membershipLocks = new ReentrantReadWriteLock[MEMBERSHIP_STRIPES];
+
+    private final String twoFactorAuthKey;
+    private volatile TwoFactorProvider twoFactorProvider;
+    private volatile SessionTicketManager ticketManager;
+    private volatile BlobStore blobStore;
+    private volatile int dataSuite = DataCipher.SUITE_LATEST;
+    private final ExecAttestation execAttestation;
+    private final ImageUploadManager imageUploads;
+    private final TemperatureSubscriptions subscriptions;
 
     private UserFileHandler userFileHandler;
     private DomainFileHandler domainFileHandler;
 
     private KeyStore keystore;
 
-    private String passCipher;
+    private final String passCipher;
 
     /**
      * Construtor privado para impedir inicializacao
      */
     private SharedInfoSingleton(String passwString, String twoFactorAuthKey, String keystoreFile,
             String keystorePassword) {
-        domainsList = new HashSet<>();
-        devicesList = new HashSet<>();
-        usersList = new HashSet<>();
         this.twoFactorAuthKey = twoFactorAuthKey;
         this.passCipher = passwString;
+        this.execAttestation = new ExecAttestation(passwString);
+        this.imageUploads = new ImageUploadManager();
+        this.subscriptions = new TemperatureSubscriptions();
+        for (int i = 0; i < MEMBERSHIP_STRIPES; i++) {
+            membershipLocks[i] = new ReentrantReadWriteLock();
+        }
 
         try {
 
@@ -72,7 +117,7 @@ public class SharedInfoSingleton {
      * 
      * @return Instancia do singleton
      */
-    public synchronized static SharedInfoSingleton getInstance(String passwString, String twoFactorAuthKey,
+    public static SharedInfoSingleton getInstance(String passwString, String twoFactorAuthKey,
             String keystoreFile, String keystorePassword) {
         if (sharedInfo == null) {
             synchronized (SharedInfoSingleton.class) {
@@ -94,11 +139,113 @@ public class SharedInfoSingleton {
      * 
      * @return String com a twoFactorAuthKey
      */
-    public synchronized String getTwoFactorAuthKey() {
+    public String getTwoFactorAuthKey() {
         return this.twoFactorAuthKey;
     }
 
-    public synchronized String getPassCipher() {
+    /**
+     * Método que retorna o fornecedor usado para enviar os códigos de 2FA
+     * 
+     * @return fornecedor de 2FA
+     */
+    public TwoFactorProvider getTwoFactorProvider() {
+        return this.twoFactorProvider;
+    }
+
+    /**
+     * Método que define o fornecedor usado para enviar os códigos de 2FA
+     * 
+     * @param twoFactorProvider fornecedor de 2FA
+     */
+    public void setTwoFactorProvider(TwoFactorProvider twoFactorProvider) {
+        this.twoFactorProvider = twoFactorProvider;
+    }
+
+    /**
+     * Método que retorna o gestor dos tickets de retoma de sessão
+     * 
+     * @return gestor de tickets, ou null se a retoma de sessão estiver desligada
+     */
+    public SessionTicketManager getTicketManager() {
+        return this.ticketManager;
+    }
+
+    /**
+     * Método que define o gestor dos tickets de retoma de sessão
+     * 
+     * @param ticketManager gestor de tickets, ou null para desligar a retoma
+     */
+    public void setTicketManager(SessionTicketManager ticketManager) {
+        this.ticketManager = ticketManager;
+    }
+
+    /**
+     * Método que retorna o store das imagens guardadas fora do heap
+     * 
+     * @return store dos blobs, ou null se as imagens vão sempre para disco
+     */
+    public BlobStore getBlobStore() {
+        return this.blobStore;
+    }
+
+    /**
+     * Método que define o store das imagens guardadas fora do heap
+     * 
+     * @param blobStore store dos blobs, ou null para guardar as imagens em disco
+     */
+    public void setBlobStore(BlobStore blobStore) {
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Método que retorna a versão mais recente da cifra das temperaturas que os
+     * dispositivos podem usar
+     * 
+     * @return versão do DataCipher
+     */
+    public int getDataSuite() {
+        return this.dataSuite;
+    }
+
+    /**
+     * Método que limita a versão da cifra das temperaturas, por exemplo a
+     * DataCipher.SUITE_PBE enquanto houver dispositivos antigos a ler os
+     * domínios
+     * 
+     * @param dataSuite versão do DataCipher
+     */
+    public void setDataSuite(int dataSuite) {
+        this.dataSuite = dataSuite;
+    }
+
+    /**
+     * Método que retorna o estado partilhado da verificação do executável
+     * 
+     * @return verificação do executável
+     */
+    public ExecAttestation getExecAttestation() {
+        return this.execAttestation;
+    }
+
+    /**
+     * Método que retorna os uploads de imagens por partes em curso
+     * 
+     * @return gestor dos uploads
+     */
+    public ImageUploadManager getImageUploads() {
+        return this.imageUploads;
+    }
+
+    /**
+     * Método que retorna as subscrições de temperaturas dos domínios
+     * 
+     * @return subscrições ativas
+     */
+    public TemperatureSubscriptions getSubscriptions() {
+        return this.subscriptions;
+    }
+
+    public String getPassCipher() {
         return this.passCipher;
     }
 
@@ -114,7 +261,7 @@ public class SharedInfoSingleton {
      * Método que lê a inforamção dos user a partir de um ficheiro, criando então os
      * users com o ceu certificado e adicionando-os à lista de users
      */
-    private synchronized void loadUsers() {
+    private void loadUsers() {
         File file = new File(USERS_PATH);
         if (!file.exists()) {
             return;
@@ -129,7 +276,7 @@ public class SharedInfoSingleton {
                 String certFileName = parts[1].trim();
                 Certificate cert = loadCertificate("server/serverFiles/certificates/" + certFileName);
                 User user = new User(userId, cert);
-                usersList.add(user);
+                usersList.put(userId, user);
             }
 
         } catch (Exception e) {
@@ -143,7 +290,7 @@ public class SharedInfoSingleton {
      * @param certPath O path do certificado
      * @return O certificado carregado
      */
-    private synchronized Certificate loadCertificate(String certPath) {
+    private Certificate loadCertificate(String certPath) {
         try {
             InputStream inStream = Files.newInputStream(Paths.get(certPath));
             CertificateFactory cf = CertificateFactory.getInstance("X.509");
@@ -162,7 +309,7 @@ public class SharedInfoSingleton {
      * 
      * @return true se o load foi bem sucedido false caso contrário
      */
-    public synchronized boolean loadDomain() {
+    public boolean loadDomain() {
         File file = new File(DOMAINS_PATH);
         if (!file.exists()) {
             return true;
@@ -170,7 +317,12 @@ public class SharedInfoSingleton {
 
         try {
             List<Domain> domainsToLoad = this.domainFileHandler.loadDomainFile(usersList);
-            this.domainsList.addAll(domainsToLoad);
+            if (domainsToLoad == null) {
+                return false;
+            }
+            for (Domain domain : domainsToLoad) {
+                addDomain(domain);
+            }
         } catch (Exception e) {
             e.printStackTrace();
             return false;
@@ -190,7 +342,7 @@ public class SharedInfoSingleton {
     /**
      * Metodo que faz o backup dos utilizadores para o ficheiro de utilizadores
      */
-    private synchronized void backupUsers() {
+    private void backupUsers() {
 
         File file = new File("server/serverFiles");
         if (!file.exists()) {
@@ -199,15 +351,15 @@ public class SharedInfoSingleton {
 
         try {
 
-            String content = "";
+            StringBuilder content = new StringBuilder();
 
-            for (User u : usersList) {
+            for (User u : usersList.values()) {
                 String certFileName = backupCertificate(u);
-                content += u.getUserId() + ":" + certFileName + "\n";
+                content.append(u.getUserId()).append(":").append(certFileName).append("\n");
             }
 
             if (content.length() > 0) {
-                this.userFileHandler.backupUserFile(content);
+                this.userFileHandler.backupUserFile(content.toString());
             }
 
         } catch (Exception e) {
@@ -224,7 +376,7 @@ public class SharedInfoSingleton {
      * @throws CertificateEncodingException
      * @throws IOException
      */
-    private synchronized String backupCertificate(User u) throws CertificateEncodingException, IOException {
+    private String backupCertificate(User u) throws CertificateEncodingException, IOException {
         File file = new File("server/serverFiles/certificates");
         if (!file.exists()) {
             Utils.createDir("server/serverFiles/certificates");
@@ -243,18 +395,17 @@ public class SharedInfoSingleton {
      * Metodo que faz o backup dos dominios para o ficheiro de dominios de modo a
      * garantir persistência
      */
-    private synchronized void backupDomains() {
+    private void backupDomains() {
         File file = new File("server/serverFiles/data");
         if (!file.exists()) {
             Utils.createDir("server/serverFiles/data");
         }
 
-        if (domainsList.size() == 0) {
-            return;
-        }
-
         try {
-            this.domainFileHandler.backupDomainFile(domainsList);
+            if (domainsList.size() == 0) {
+                return;
+            }
+            this.domainFileHandler.backupDomainFile(domainsList.values());
         } catch (Exception e) {
             System.err.println("Error creating backup of domains");
         }
@@ -264,20 +415,35 @@ public class SharedInfoSingleton {
     /**
      * Metodo que retorna a lista de dominios
      * 
-     * @return Lista de dominios
+     * @return Copia da lista de dominios
      */
-    public synchronized Set<Domain> getDomains() {
-        return domainsList;
+    public Set<Domain> getDomains() {
+        return new HashSet<>(domainsList.values());
     }
 
     /**
      * Metodo que adiciona um dominio à lista de dominios
      * 
      * @param domain Dominio a adicionar
-     * @return true (as specified by Collection.add(E))
+     * @return true se o dominio foi adicionado, false se já existia um
+     *         dominio com o mesmo nome
      */
-    public synchronized boolean addDomain(Domain domain) {
-        return domainsList.add(domain);
+    public boolean addDomain(Domain domain) {
+        if (domainsList.putIfAbsent(domain.getName(), domain) != null) {
+            return false;
+        }
+        domain.readLock().lock();
+        try {
+            for (String device : domain.getDevices().keySet()) {
+                index(domainsByDevice, device, domain.getName());
+            }
+            for (User user : domain.getUsers().keySet()) {
+                index(domainsByUser, user.getUserId(), domain.getName());
+            }
+        } finally {
+            domain.readLock().unlock();
+        }
+        return true;
     }
 
     /**
@@ -286,32 +452,212 @@ public class SharedInfoSingleton {
      * @param domain Dominio a remover
      * @return true se a lista continha o elemento a remover
      */
-    public synchronized boolean removeDomain(Domain domain) {
-        return domainsList.remove(domain);
+    public boolean removeDomain(Domain domain) {
+        lockAllMemberships();
+        try {
+            if (!domainsList.remove(domain.getName(), domain)) {
+                return false;
+            }
+            domain.readLock().lock();
+            try {
+                for (String device : domain.getDevices().keySet()) {
+                    unindex(domainsByDevice, device, domain.getName());
+                    nextEpoch(device);
+                }
+                for (User user : domain.getUsers().keySet()) {
+                    unindex(domainsByUser, user.getUserId(), domain.getName());
+                }
+            } finally {
+                domain.readLock().unlock();
+            }
+            return true;
+        } finally {
+            unlockAllMemberships();
+        }
     }
 
     /**
-     * Metodo que retorna um dominio pelo seu nome
+     * Metodo que regista um dispositivo num dominio e atualiza o índice dos
+     * dominios do dispositivo
      * 
-     * @param domainName Nome do dominio a procurar
-     * @return Dominio com o nome procurado ou null caso nao exista
+     * @param domain Dominio onde registar
+     * @param device Dispositivo no formato user:dev
+     */
+    public void registerDevice(Domain domain, String device) {
+        Lock lock = membershipLock(device).writeLock();
+        lock.lock();
+        try {
+            if (domain.hasDevice(device)) {
+                // RD repetido: os dados do dispositivo ficam como estão
+                return;
+            }
+            domain.registerDevice(device);
+            index(domainsByDevice, device, domain.getName());
+            nextEpoch(device);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Metodo que adiciona um utilizador a um dominio e atualiza o índice dos
+     * dominios do utilizador. A época dos dispositivos do utilizador já
+     * registados no dominio muda, porque a chave do dominio pode ter mudado
+     * 
+     * @param domain    Dominio onde adicionar
+     * @param user      Utilizador a adicionar
+     * @param domainKey Chave do dominio cifrada para o utilizador
      */
-    public synchronized Domain getDomain(String domainName) {
-        for (Domain domain : domainsList) {
-            if (domain.getName().equals(domainName)) {
+    public void addUserToDomain(Domain domain, User user, byte[] domainKey) {
+        // a chave pode mudar para vários dispositivos do utilizador
+        lockAllMemberships();
+        try {
+            boolean changed = !Arrays.equals(domain.getKeyByUserId(user.getUserId()), domainKey);
+            domain.addUser(user, domainKey);
+            index(domainsByUser, user.getUserId(), domain.getName());
+            if (!changed) {
+                return;
+            }
+            String prefix = user.getUserId() + ":";
+            for (String device : domain.getDevices().keySet()) {
+                if (device.startsWith(prefix)) {
+                    nextEpoch(device);
+                }
+            }
+        } finally {
+            unlockAllMemberships();
+        }
+    }
+
+    /**
+     * Metodo que retorna a época dos dominios de um dispositivo. Deve ser lida
+     * antes da lista de dominios, para que uma alteração entre as duas leituras
+     * torne a época antiga
+     * 
+     * @param device Dispositivo no formato user:dev
+     * @return Época atual
+     */
+    public long getMembershipEpoch(String device) {
+        return membershipEpochs.getOrDefault(device, epochBase);
+    }
+
+    /**
+     * Metodo que retorna o lock da época dos dominios de um dispositivo. Um
+     * pedido que traz a época deve verificá-la e fazer a escrita com o
+     * readLock; as alterações que mudam a época usam o writeLock
+     * 
+     * @param device Dispositivo no formato user:dev
+     * @return lock da época (partilhado com outros dispositivos)
+     */
+    public ReentrantReadWriteLock membershipLock(String device) {
+        return membershipLocks[Math.floorMod(device.hashCode(), MEMBERSHIP_STRIPES)];
+    }
+
+    private void lockAllMemberships() {
+        for (ReentrantReadWriteLock lock : membershipLocks) {
+            lock.writeLock().lock();
+        }
+    }
+
+    private void unlockAllMemberships() {
+        for (int i = membershipLocks.length - 1; i >= 0; i--) {
+            membershipLocks[i].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Metodo que muda a época dos dominios de um dispositivo, depois de a
+     * alteração estar feita. Deve ser chamado com o writeLock de
+     * membershipLock do dispositivo
+     * 
+     * @param device Dispositivo no formato user:dev
+     */
+    private void nextEpoch(String device) {
+        membershipEpochs.compute(device, (k, epoch) -> (epoch == null ? epochBase : epoch) + 1);
+    }
+
+    /**
+     * Metodo que retorna os dominios onde um dispositivo está registado
+     * 
+     * @param device Dispositivo no formato user:dev
+     * @return Dominios do dispositivo
+     */
+    public List<Domain> getDeviceDomains(String device) {
+        return resolve(domainsByDevice.get(device));
+    }
+
+    /**
+     * Metodo que retorna os dominios de que um utilizador é membro
+     * 
+     * @param userId Nome do utilizador
+     * @return Dominios do utilizador
+     */
+    public List<Domain> getUserDomains(String userId) {
+        return resolve(domainsByUser.get(userId));
+    }
+
+    /**
+     * Metodo que retorna um dominio onde o dispositivo está registado e de que
+     * o utilizador é membro, percorrendo o mais pequeno dos dois índices
+     * 
+     * @param device Dispositivo no formato user:dev
+     * @param userId Nome do utilizador
+     * @return Dominio partilhado, ou null se não existir
+     */
+    public Domain getSharedDomain(String device, String userId) {
+        Set<String> ofDevice = domainsByDevice.getOrDefault(device, Collections.emptySet());
+        Set<String> ofUser = domainsByUser.getOrDefault(userId, Collections.emptySet());
+        boolean byDevice = ofDevice.size() <= ofUser.size();
+        for (String name : byDevice ? ofDevice : ofUser) {
+            Domain domain = domainsList.get(name);
+            if (domain != null && domain.hasDevice(device) && domain.hasUser(userId)) {
                 return domain;
             }
         }
         return null;
     }
 
+    private static void index(Map<String, Set<String>> index, String key, String domainName) {
+        index.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(domainName);
+    }
+
+    private static void unindex(Map<String, Set<String>> index, String key, String domainName) {
+        Set<String> names = index.get(key);
+        if (names != null) {
+            names.remove(domainName);
+        }
+    }
+
+    private List<Domain> resolve(Set<String> names) {
+        List<Domain> domains = new ArrayList<>();
+        if (names != null) {
+            for (String name : names) {
+                Domain domain = domainsList.get(name);
+                if (domain != null) {
+                    domains.add(domain);
+                }
+            }
+        }
+        return domains;
+    }
+
+    /**
+     * Metodo que retorna um dominio pelo seu nome
+     * 
+     * @param domainName Nome do dominio a procurar
+     * @return Dominio com o nome procurado ou null caso nao exista
+     */
+    public Domain getDomain(String domainName) {
+        return domainName == null ? null : domainsList.get(domainName);
+    }
+
     /**
      * Metodo que adiciona um dispositivo à lista de dispositivos
      * 
      * @param device Dispositivo a adicionar
-     * @return true (as specified by Collection.add(E))
+     * @return true se o dispositivo não estava ativo
      */
-    public synchronized boolean addDevice(String device) {
+    public boolean addDevice(String device) {
         return devicesList.add(device);
     }
 
@@ -320,8 +666,10 @@ public class SharedInfoSingleton {
      * 
      * @param device Dispositivo a remover
      */
-    public synchronized void removeDevice(String device) {
-        this.devicesList.remove(device);
+    public void removeDevice(String device) {
+        if (device != null) {
+            this.devicesList.remove(device);
+        }
     }
 
     /**
@@ -330,13 +678,8 @@ public class SharedInfoSingleton {
      * @param userid Nome do user a procurar
      * @return User com o nome procurado ou null caso nao exista
      */
-    public synchronized User getUserByName(String userid) {
-        for (User user : usersList) {
-            if (user.getUserId().equals(userid)) {
-                return user;
-            }
-        }
-        return null;
+    public User getUserByName(String userid) {
+        return userid == null ? null : usersList.get(userid);
     }
 
     /**
@@ -345,17 +688,17 @@ public class SharedInfoSingleton {
      * @param user e-mail do User a ser adicionado
      * @return se foi criado com sucesso
      */
-    public synchronized boolean addUser(User user) {
-        return usersList.add(user);
+    public boolean addUser(User user) {
+        return usersList.putIfAbsent(user.getUserId(), user) == null;
     }
 
     /**
      * Metodo que retorna a lista de users
      * 
-     * @return A lista de Users
+     * @return Copia da lista de Users
      */
-    public synchronized Set<User> getUsers() {
-        return this.usersList;
+    public Set<User> getUsers() {
+        return new HashSet<>(this.usersList.values());
     }
 
     /**
@@ -364,7 +707,7 @@ public class SharedInfoSingleton {
      * @param device Dispositivo a verificar
      * @return true se o dispositivo existe
      */
-    public synchronized boolean hasDevice(String device) {
-        return this.devicesList.contains(device);
+    public boolean hasDevice(String device) {
+        return device != null && this.devicesList.contains(device);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,36 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Fornecedor de 2FA local, que não contacta nenhum serviço externo: o código é
+ * apenas escrito na consola do servidor. Pode ainda usar sempre o mesmo código,
+ * para testes e corridas de carga com clientes automáticos
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class StubTwoFactorProvider implements TwoFactorProvider {
+
+    private final String fixedCode;
+
+    /**
+     * Construtor de um StubTwoFactorProvider
+     *
+     * @param fixedCode código a usar em todas as autenticações ou null para gerar
+     *                  códigos aleatórios
+     */
+    public StubTwoFactorProvider(String fixedCode) {
+        this.fixedCode = fixedCode;
+    }
+
+    @Override
+    public String newCode() {
+        return fixedCode != null ? fixedCode : Utils.generateC2FA();
+    }
+
+    @Override
+    public CompletableFuture<Void> sendCode(String userId, String code) {
+        System.out.println("[2FA stub] code for " + userId + ": " + code);
+        return CompletableFuture.completedFuture(null);
+    }
+}
@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classe que envia as novas temperaturas de um domínio às sessões que o
+ * subscreveram (SUBSCRIBE), em vez de estas fazerem RT periodicamente.
+ *
+ * Registar uma temperatura só coloca a leitura na fila de cada subscritor,
+ * sem cifrar nem serializar nada; o envio é feito noutra thread, juntando
+ * numa só mensagem PUSH por domínio todas as leituras pendentes. A fila de
+ * cada subscritor é limitada: uma leitura nova de um dispositivo que já tem
+ * uma leitura pendente substitui-a, e se a fila estiver cheia a leitura mais
+ * antiga é descartada e o PUSH seguinte indica quantas se perderam (o
+ * subscritor pode fazer um RT para voltar a ter o estado completo). Um
+ * subscritor lento (com muitos bytes por enviar no canal) não recebe mais
+ * mensagens até o canal esvaziar, e entretanto as leituras vão sendo juntadas
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class TemperatureSubscriptions {
+
+    public static final int MAX_PENDING = 256;
+    private static final long MAX_BACKLOG = 256 * 1024;
+    private static final long RETRY_DELAY_MS = 50;
+    // espera antes de enviar, para juntar as leituras que chegam em rajada
+    private static final long BATCH_DELAY_MS = 5;
+
+    private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    // as escritas num canal bloqueante podem demorar, cada subscritor ocupa no
+    // máximo uma thread de cada vez
+    private final ExecutorService senders = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "push");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "push-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Leitura de temperatura de um dispositivo, cifrada com a chave do domínio
+     */
+    private static final class Update {
+        private final String domain;
+        private final String device;
+        private final byte[] temp;
+        private final byte[] params;
+        private final long timestamp;
+
+        private Update(String domain, String device, byte[] temp, byte[] params, long timestamp) {
+            this.domain = domain;
+            this.device = device;
+            this.temp = temp;
+            this.params = params;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Subscritor: uma sessão com a sua fila de leituras por enviar
+     */
+    public final class Subscriber {
+        private final MessageChannel channel;
+        // domínio -> chave do domínio cifrada para o utilizador da sessão
+        private final Map<String, byte[]> domainKeys = new ConcurrentHashMap<>();
+        // domínio + dispositivo -> leitura mais recente por enviar, pela ordem de chegada
+        private final LinkedHashMap<String, Update> pending = new LinkedHashMap<>();
+        private final Map<String, Long> dropped = new LinkedHashMap<>();
+        private boolean scheduled = false;
+        private volatile boolean closed = false;
+
+        private Subscriber(MessageChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Método que coloca uma leitura na fila
+         */
+        private void offer(Update update) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                String key = update.domain + "\0" + update.device;
+                if (pending.remove(key) == null && pending.size() >= MAX_PENDING) {
+                    Iterator<Update> oldest = pending.values().iterator();
+                    dropped.merge(oldest.next().domain, 1L, Long::sum);
+                    oldest.remove();
+                }
+                pending.put(key, update);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            retries.schedule(() -> senders.execute(this::send), BATCH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Método que envia as leituras pendentes, uma mensagem por domínio
+         */
+        private void send() {
+            while (!closed) {
+                if (channel.pendingBytes() > MAX_BACKLOG) {
+                    // o cliente não está a ler, tenta mais tarde
+                    retries.schedule(() -> senders.execute(this::send), RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                List<Update> updates;
+                Map<String, Long> lost;
+                synchronized (this) {
+                    if (pending.isEmpty() && dropped.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    updates = new ArrayList<>(pending.values());
+                    lost = new LinkedHashMap<>(dropped);
+                    pending.clear();
+                    dropped.clear();
+                }
+                for (Message msg : pushMessages(updates, lost, domainKeys)) {
+                    channel.writeMessage(msg);
+                }
+            }
+        }
+    }
+
+    /**
+     * Método que adiciona uma subscrição de um domínio
+     *
+     * @param subscriber subscritor (a sessão)
+     * @param domain     nome do domínio
+     * @param domainKey  chave do domínio cifrada para o utilizador da sessão,
+     *                   enviada em cada PUSH para que o cliente possa decifrar
+     *                   leituras que cheguem antes da resposta ao SUBSCRIBE
+     */
+    public void subscribe(Subscriber subscriber, String domain, byte[] domainKey) {
+        subscriber.domainKeys.put(domain, domainKey);
+        subscribers.computeIfAbsent(domain, d -> new CopyOnWriteArraySet<>()).add(subscriber);
+    }
+
+    /**
+     * Método que remove uma subscrição de um domínio
+     *
+     * @param subscriber subscritor (a sessão)
+     * @param domain     nome do domínio
+     * @return true se a subscrição existia
+     */
+    public boolean unsubscribe(Subscriber subscriber, String domain) {
+        Set<Subscriber> set = subscribers.get(domain);
+        subscriber.domainKeys.remove(domain);
+        return set != null && set.remove(subscriber);
+    }
+
+    /**
+     * Método que cria o subscritor de uma sessão
+     *
+     * @param channel canal da sessão, usado para enviar os PUSH
+     * @return subscritor sem subscrições
+     */
+    public Subscriber newSubscriber(MessageChannel channel) {
+        return new Subscriber(channel);
+    }
+
+    /**
+     * Método que remove todas as subscrições de uma sessão que terminou
+     *
+     * @param subscriber subscritor da sessão
+     */
+    public void close(Subscriber subscriber) {
+        subscriber.closed = true;
+        for (Set<Subscriber> set : subscribers.values()) {
+            set.remove(subscriber);
+        }
+    }
+
+    /**
+     * Método que envia uma nova leitura aos subscritores de um domínio
+     *
+     * @param domain    nome do domínio
+     * @param device    dispositivo no formato user:dev
+     * @param temp      temperatura cifrada com a chave do domínio
+     * @param params    parâmetros da cifra
+     * @param timestamp instante da leitura
+     */
+    public void publish(String domain, String device, byte[] temp, byte[] params, long timestamp) {
+        Set<Subscriber> set = subscribers.get(domain);
+        if (set == null || set.isEmpty()) {
+            return;
+        }
+        Update update = new Update(domain, device, temp, params, timestamp);
+        for (Subscriber subscriber : set) {
+            subscriber.offer(update);
+        }
+    }
+
+    /**
+     * Método que constrói as mensagens PUSH de um conjunto de leituras
+     *
+     * @param updates    leituras por enviar
+     * @param lost       leituras descartadas por domínio
+     * @param domainKeys chaves dos domínios do subscritor
+     * @return uma mensagem por domínio
+     */
+    private static List<Message> pushMessages(List<Update> updates, Map<String, Long> lost,
+            Map<String, byte[]> domainKeys) {
+        Map<String, Message> byDomain = new LinkedHashMap<>();
+        for (Update update : updates) {
+            Message msg = byDomain.computeIfAbsent(update.domain, TemperatureSubscriptions::pushMessage);
+            msg.getDomains().add(update.device);
+            msg.getDataList().add(update.temp);
+            msg.getParams().add(update.params);
+            msg.getTimestamps().add(update.timestamp);
+        }
+        for (Map.Entry<String, Long> entry : lost.entrySet()) {
+            byDomain.computeIfAbsent(entry.getKey(), TemperatureSubscriptions::pushMessage)
+                    .setSize(entry.getValue());
+        }
+        for (Message msg : byDomain.values()) {
+            msg.setDomainKey(domainKeys.get(msg.getDomain()));
+        }
+        return new ArrayList<>(byDomain.values());
+    }
+
+    private static Message pushMessage(String domain) {
+        Message msg = new Message(MessageCode.OK);
+        msg.setCommand("PUSH");
+        msg.setDomain(domain);
+        msg.setDomains(new ArrayList<>());
+        msg.setDataList(new ArrayList<>());
+        msg.setParams(new ArrayList<>());
+        msg.setTimestamps(new ArrayList<>());
+        return msg;
+    }
+}
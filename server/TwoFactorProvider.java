@@ -0,0 +1,32 @@
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Interface que representa um serviço de entrega dos códigos da autenticação de
+ * dois fatores
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public interface TwoFactorProvider {
+
+    /**
+     * Método que gera um novo código de autenticação
+     *
+     * @return código de autenticação
+     */
+    default String newCode() {
+        return Utils.generateC2FA();
+    }
+
+    /**
+     * Método que envia um código a um utilizador sem bloquear a thread que o
+     * chama
+     *
+     * @param userId id (e-mail) do utilizador
+     * @param code   código a enviar
+     * @return future que termina quando o código foi entregue ao serviço, ou
+     *         termina com erro caso não tenha sido possível entregá-lo
+     */
+    CompletableFuture<Void> sendCode(String userId, String code);
+}
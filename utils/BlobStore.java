@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classe que guarda blobs (imagens cifradas) fora do heap, para que muitas
+ * imagens em memória não aumentem o heap nem as pausas do GC.
+ *
+ * A memória é reservada em slabs de ByteBuffers diretos, divididos em páginas
+ * de PAGE_SIZE bytes. Cada blob ocupa as páginas de que precisa, não
+ * necessariamente seguidas, por isso a memória libertada por um blob pode ser
+ * logo reutilizada por outro de qualquer tamanho. Os slabs são criados quando
+ * faltam páginas, até ao limite do store, e não são devolvidos.
+ *
+ * Cada blob tem um contador de referências: quem o guarda (o DeviceData) tem
+ * uma referência, e quem o lê sem o lock do domínio (um download) obtém outra
+ * com retain. As páginas voltam ao store quando a última referência é
+ * libertada
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class BlobStore {
+
+    /**
+     * Tamanho de cada página, igual a uma parte de um download de imagem
+     */
+    public static final int PAGE_SIZE = Utils.IMAGE_CHUNK_SIZE;
+
+    private static final int PAGES_PER_SLAB = 64; // slabs de 4 MiB
+
+    private final long maxBytes;
+    // os leitores só leem o array, que é substituído quando é criado um slab
+    private volatile ByteBuffer[] slabs = new ByteBuffer[0];
+    private int[] freePages = new int[0];
+    private int freeCount = 0;
+    private long usedPages = 0;
+
+    /**
+     * Construtor de um BlobStore
+     *
+     * @param maxBytes memória máxima fora do heap, arredondada a slabs
+     */
+    public BlobStore(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Blob guardado no store. Deve ser libertado com release por cada
+     * referência obtida (a criação conta como uma)
+     */
+    public final class Blob {
+        private final int[] pages;
+        private final int length;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Blob(int[] pages, int length) {
+            this.pages = pages;
+            this.length = length;
+        }
+
+        /**
+         * Método que retorna o tamanho do blob
+         *
+         * @return tamanho em bytes
+         */
+        public int length() {
+            return length;
+        }
+
+        /**
+         * Método que obtém mais uma referência para o blob
+         *
+         * @return false se o blob já foi libertado
+         */
+        public boolean retain() {
+            int current;
+            do {
+                current = refs.get();
+                if (current == 0) {
+                    return false;
+                }
+            } while (!refs.compareAndSet(current, current + 1));
+            return true;
+        }
+
+        /**
+         * Método que liberta uma referência. As páginas voltam ao store
+         * quando não sobra nenhuma
+         */
+        public void release() {
+            int left = refs.decrementAndGet();
+            if (left == 0) {
+                free(pages);
+            } else if (left < 0) {
+                throw new IllegalStateException("Blob released twice");
+            }
+        }
+
+        /**
+         * Método que copia parte do blob diretamente das páginas para um
+         * array. Quem chama tem de ter uma referência
+         *
+         * @param offset posição no blob
+         * @param dst    array de destino
+         * @param dstOff posição no array
+         * @param len    número de bytes a copiar
+         */
+        public void read(long offset, byte[] dst, int dstOff, int len) {
+            if (offset < 0 || len < 0 || offset + len > length) {
+                throw new IndexOutOfBoundsException("Invalid blob range");
+            }
+            if (refs.get() == 0) {
+                throw new IllegalStateException("Blob already released");
+            }
+            ByteBuffer[] all = slabs;
+            while (len > 0) {
+                int page = pages[(int) (offset / PAGE_SIZE)];
+                int inPage = (int) (offset % PAGE_SIZE);
+                int n = Math.min(len, PAGE_SIZE - inPage);
+                all[page / PAGES_PER_SLAB].get(pageStart(page) + inPage, dst, dstOff, n);
+                offset += n;
+                dstOff += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * Método que copia o blob todo para um array no heap
+         *
+         * @return conteúdo do blob
+         */
+        public byte[] toByteArray() {
+            byte[] copy = new byte[length];
+            read(0, copy, 0, length);
+            return copy;
+        }
+
+        /**
+         * Método que escreve o blob num canal (por exemplo um ficheiro)
+         * diretamente a partir das páginas, sem o copiar para o heap
+         *
+         * @param out canal de destino
+         * @throws IOException se a escrita falhar
+         */
+        public void writeTo(WritableByteChannel out) throws IOException {
+            ByteBuffer[] all = slabs;
+            for (int i = 0; i < pages.length; i++) {
+                int n = Math.min(PAGE_SIZE, length - i * PAGE_SIZE);
+                ByteBuffer view = all[pages[i] / PAGES_PER_SLAB].slice(pageStart(pages[i]), n);
+                while (view.hasRemaining()) {
+                    out.write(view);
+                }
+            }
+        }
+    }
+
+    /**
+     * Método que copia um array para um blob novo fora do heap
+     *
+     * @param data conteúdo do blob
+     * @return blob com uma referência, ou null se o store não tiver memória
+     *         livre suficiente
+     */
+    public Blob store(byte[] data) {
+        int[] pages = allocate((int) ((data.length + (long) PAGE_SIZE - 1) / PAGE_SIZE));
+        if (pages == null) {
+            return null;
+        }
+        ByteBuffer[] all = slabs;
+        for (int i = 0; i < pages.length; i++) {
+            int offset = i * PAGE_SIZE;
+            all[pages[i] / PAGES_PER_SLAB].put(pageStart(pages[i]), data, offset,
+                    Math.min(PAGE_SIZE, data.length - offset));
+        }
+        return new Blob(pages, data.length);
+    }
+
+    /**
+     * Método que retorna a memória ocupada pelos blobs
+     *
+     * @return bytes das páginas em uso
+     */
+    public synchronized long usedBytes() {
+        return usedPages * PAGE_SIZE;
+    }
+
+    /**
+     * Método que retorna a memória reservada fora do heap
+     *
+     * @return bytes dos slabs criados
+     */
+    public long reservedBytes() {
+        return (long) slabs.length * PAGES_PER_SLAB * PAGE_SIZE;
+    }
+
+    private static int pageStart(int page) {
+        return (page % PAGES_PER_SLAB) * PAGE_SIZE;
+    }
+
+    private synchronized int[] allocate(int count) {
+        if ((usedPages + count) * PAGE_SIZE > maxBytes) {
+            return null;
+        }
+        while (freeCount < count) {
+            ByteBuffer[] all = slabs;
+            if ((long) (all.length + 1) * PAGES_PER_SLAB * PAGE_SIZE > maxBytes) {
+                return null;
+            }
+            ByteBuffer[] grown = Arrays.copyOf(all, all.length + 1);
+            grown[all.length] = ByteBuffer.allocateDirect(PAGES_PER_SLAB * PAGE_SIZE);
+            // cabem todas as páginas, para que free nunca tenha de crescer
+            freePages = Arrays.copyOf(freePages, grown.length * PAGES_PER_SLAB);
+            // as páginas de menor índice são usadas primeiro
+            for (int page = grown.length * PAGES_PER_SLAB - 1; page >= all.length * PAGES_PER_SLAB; page--) {
+                freePages[freeCount++] = page;
+            }
+            slabs = grown;
+        }
+        int[] pages = new int[count];
+        for (int i = 0; i < count; i++) {
+            pages[i] = freePages[--freeCount];
+        }
+        usedPages += count;
+        return pages;
+    }
+
+    private synchronized void free(int[] pages) {
+        for (int page : pages) {
+            freePages[freeCount++] = page;
+        }
+        usedPages -= pages.length;
+    }
+}
@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Programa que compara os codecs do MessageCodec (serialização Java e
+ * formato binário) nas mensagens de cada comando: tamanho de cada mensagem
+ * codificada e débito de codificação/descodificação.
+ *
+ * As mensagens imitam as que o dispositivo e o servidor trocam, com dados
+ * aleatórios dos tamanhos reais (chaves de domínio cifradas com RSA 2048,
+ * temperaturas cifradas com AES, parâmetros PBE)
+ *
+ * Uso: java -cp <classes utils> CodecBenchmark [iterações] [tamanho imagem]
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class CodecBenchmark {
+
+    private static final Random RANDOM = new Random(42);
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int imageSize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+
+        List<String> names = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+
+        names.add("ET request");
+        messages.add(etRequest());
+        names.add("ET response");
+        messages.add(new Message(MessageCode.OK));
+        names.add("EI request");
+        messages.add(eiRequest(imageSize));
+        names.add("RT request");
+        messages.add(command("RT", "domain1"));
+        names.add("RT response");
+        messages.add(rtResponse());
+        names.add("RI request");
+        messages.add(riRequest());
+        names.add("RI response");
+        messages.add(riResponse(imageSize));
+        names.add("MYDOMAINS request");
+        messages.add(command("MYDOMAINS", null));
+        names.add("MYDOMAINS response");
+        messages.add(myDomainsResponse());
+
+        System.out.printf("%-20s %12s %12s %14s %14s%n", "message", "serialized", "binary", "ser enc+dec/s",
+                "bin enc+dec/s");
+        for (int i = 0; i < messages.size(); i++) {
+            Message msg = messages.get(i);
+            int serSize = MessageCodec.encode(msg, MessageCodec.CODEC_SERIALIZED).length;
+            int binSize = MessageCodec.encode(msg, MessageCodec.CODEC_BINARY).length;
+
+            // a mensagem de imagens é muito maior, usa menos iterações
+            int n = msg.getData() != null && msg.getData().length > 4096
+                    || msg.getDataList() != null && msg.getDataList().get(0).length > 4096
+                            ? Math.max(1, iterations / 50)
+                            : iterations;
+            double serRate = roundTrips(msg, MessageCodec.CODEC_SERIALIZED, n);
+            double binRate = roundTrips(msg, MessageCodec.CODEC_BINARY, n);
+
+            System.out.printf("%-20s %10d B %10d B %14.0f %14.0f%n", names.get(i), serSize, binSize, serRate,
+                    binRate);
+        }
+    }
+
+    /**
+     * Método que mede o número de codificações + descodificações por segundo,
+     * depois de um aquecimento
+     */
+    private static double roundTrips(Message msg, int codec, int n) throws IOException {
+        for (int i = 0; i < n; i++) {
+            MessageCodec.decode(MessageCodec.encode(msg, codec), codec);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            MessageCodec.decode(MessageCodec.encode(msg, codec), codec);
+        }
+        long elapsed = System.nanoTime() - start;
+        return n * 1e9 / elapsed;
+    }
+
+    private static Message etRequest() {
+        Message msg = command("ET", null);
+        msg.setDomains(Arrays.asList("domain1", "domain2", "domain3"));
+        msg.setDataList(Arrays.asList(bytes(16), bytes(16), bytes(16)));
+        msg.setParams(Arrays.asList(bytes(70), bytes(70), bytes(70)));
+        return msg;
+    }
+
+    private static Message eiRequest(int imageSize) {
+        Message msg = command("EI", null);
+        msg.setDomains(Arrays.asList("domain1", "domain2", "domain3"));
+        // cada domínio recebe a imagem cifrada com a sua chave
+        msg.setDataList(Arrays.asList(bytes(imageSize), bytes(imageSize), bytes(imageSize)));
+        msg.setParams(Arrays.asList(bytes(70), bytes(70), bytes(70)));
+        return msg;
+    }
+
+    private static Message rtResponse() {
+        Message msg = new Message(MessageCode.OK);
+        msg.setData(bytes(10 * 60));
+        List<byte[]> params = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            params.add(bytes(70));
+        }
+        msg.setParams(params);
+        msg.setDomainKey(bytes(256));
+        msg.setSize(600L);
+        return msg;
+    }
+
+    private static Message riRequest() {
+        Message msg = command("RI", null);
+        msg.setUser("user@example.com");
+        msg.setDevId("1");
+        return msg;
+    }
+
+    private static Message riResponse(int imageSize) {
+        Message msg = new Message(MessageCode.OK);
+        msg.setData(bytes(imageSize));
+        msg.setParam(bytes(70));
+        msg.setDomainKey(bytes(256));
+        msg.setFileName("user@example.com_1.jpg");
+        return msg;
+    }
+
+    private static Message myDomainsResponse() {
+        Message msg = new Message(MessageCode.OK);
+        msg.setDomains(Arrays.asList("domain1", "domain2", "domain3"));
+        msg.setDataList(Arrays.asList(bytes(256), bytes(256), bytes(256)));
+        return msg;
+    }
+
+    private static Message command(String command, String domain) {
+        Message msg = new Message();
+        msg.setCommand(command);
+        msg.setDomain(domain);
+        return msg;
+    }
+
+    private static byte[] bytes(int size) {
+        byte[] b = new byte[size];
+        RANDOM.nextBytes(b);
+        return b;
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.interfaces.PBEKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.PBEParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Classe que implementa as versões (suites) da cifra das temperaturas com a
+ * chave de cada domínio:
+ * - SUITE_PBE: PBEWithHmacSHA256AndAES_128, que deriva a chave da password
+ * do domínio com um salt novo em cada temperatura. Os parâmetros são os
+ * AlgorithmParameters em DER, que começam sempre por 0x30
+ * - SUITE_GCM: AES/GCM com uma chave de dados derivada uma só vez de cada
+ * chave de domínio (PBKDF2) e um nonce aleatório de 12 bytes por
+ * temperatura. Os parâmetros são MAGIC (1 byte), SUITE_GCM (1 byte) e o nonce
+ *
+ * A versão é negociada no MYDOMAINS, e cada temperatura é decifrada pela
+ * versão indicada nos seus parâmetros, por isso as temperaturas cifradas com
+ * PBE continuam a ser lidas.
+ *
+ * A decifra pode ser chamada por várias threads ao mesmo tempo: cada thread
+ * reutiliza as suas instâncias de Cipher, e as temperaturas PBE são
+ * decifradas com a chave AES derivada (PBKDF2 + AES/CBC, o mesmo que o
+ * PBEWithHmacSHA256AndAES_128 faz), guardada por parâmetros para que um RT
+ * seguinte das mesmas leituras não volte a derivá-la
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class DataCipher {
+
+    /**
+     * Cifra por password em cada temperatura, a única dos dispositivos antigos
+     */
+    public static final int SUITE_PBE = 1;
+
+    /**
+     * AES/GCM com a chave de dados do domínio
+     */
+    public static final int SUITE_GCM = 2;
+
+    /**
+     * Versão mais recente suportada por esta versão
+     */
+    public static final int SUITE_LATEST = SUITE_GCM;
+
+    private static final String PBE_CIPHER = "PBEWithHmacSHA256AndAES_128";
+    private static final String GCM_CIPHER = "AES/GCM/NoPadding";
+    // cifra usada pelo PBE_CIPHER depois de derivar a chave
+    private static final String CBC_CIPHER = "AES/CBC/PKCS5Padding";
+    private static final int PBE_KEY_BITS = 128;
+
+    private static final byte MAGIC = 'G';
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    // a chave de dados tem de ser a mesma em todos os dispositivos do domínio
+    private static final byte[] DATA_KEY_SALT = "IoTDevice data key v2".getBytes(StandardCharsets.UTF_8);
+    private static final int DATA_KEY_ITERATIONS = 10000;
+    private static final int DATA_KEY_BITS = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // chaves de dados já derivadas, enquanto a chave do domínio for usada
+    private static final Map<Key, SecretKey> DATA_KEYS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    // chaves derivadas das temperaturas PBE, pelos parâmetros (salt aleatório)
+    private static final int MAX_PBE_KEYS = 1 << 16;
+    private static final Map<ByteBuffer, PbeKey> PBE_KEYS = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Cipher> GCM = ThreadLocal.withInitial(() -> newCipher(GCM_CIPHER));
+    private static final ThreadLocal<Cipher> CBC = ThreadLocal.withInitial(() -> newCipher(CBC_CIPHER));
+
+    /**
+     * Chave AES e IV de uma temperatura PBE e a chave do domínio de onde a
+     * chave foi derivada
+     */
+    private static final class PbeKey {
+        private final Key domainKey;
+        private final SecretKey key;
+        private final byte[] iv;
+
+        private PbeKey(Key domainKey, SecretKey key, byte[] iv) {
+            this.domainKey = domainKey;
+            this.key = key;
+            this.iv = iv;
+        }
+    }
+
+    private DataCipher() {
+    }
+
+    /**
+     * Método que converte o nome de uma versão (opção --data-suite)
+     *
+     * @param name "pbe" ou "aes-gcm"
+     * @return versão, ou -1 se o nome não for conhecido
+     */
+    public static int parseSuite(String name) {
+        switch (name) {
+            case "pbe":
+                return SUITE_PBE;
+            case "aes-gcm":
+                return SUITE_GCM;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Método que cria a cifra para cifrar uma temperatura
+     *
+     * @param suite     versão a usar (SUITE_PBE ou SUITE_GCM)
+     * @param domainKey chave do domínio
+     * @return cifra pronta a usar, com parâmetros novos
+     * @throws GeneralSecurityException
+     */
+    public static Cipher encryptor(int suite, Key domainKey) throws GeneralSecurityException {
+        if (suite == SUITE_GCM) {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            RANDOM.nextBytes(nonce);
+            Cipher cipher = Cipher.getInstance(GCM_CIPHER);
+            cipher.init(Cipher.ENCRYPT_MODE, dataKey(domainKey), new GCMParameterSpec(TAG_BITS, nonce));
+            return cipher;
+        }
+        Cipher cipher = Cipher.getInstance(PBE_CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, domainKey);
+        return cipher;
+    }
+
+    /**
+     * Método que retorna os parâmetros a guardar com os dados cifrados por
+     * uma cifra criada com encryptor
+     *
+     * @param cipher cifra usada
+     * @return parâmetros no formato da versão da cifra
+     * @throws GeneralSecurityException
+     */
+    public static byte[] params(Cipher cipher) throws GeneralSecurityException {
+        if (cipher.getAlgorithm().equals(GCM_CIPHER)) {
+            byte[] nonce = cipher.getIV();
+            byte[] params = new byte[2 + nonce.length];
+            params[0] = MAGIC;
+            params[1] = SUITE_GCM;
+            System.arraycopy(nonce, 0, params, 2, nonce.length);
+            return params;
+        }
+        try {
+            return cipher.getParameters().getEncoded();
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Cannot encode cipher parameters", e);
+        }
+    }
+
+    /**
+     * Método que retorna a versão com que foram cifrados os dados
+     *
+     * @param params parâmetros guardados com os dados
+     * @return SUITE_GCM ou SUITE_PBE
+     */
+    public static int suiteOf(byte[] params) {
+        return params != null && params.length == 2 + NONCE_LENGTH && params[0] == MAGIC && params[1] == SUITE_GCM
+                ? SUITE_GCM
+                : SUITE_PBE;
+    }
+
+    /**
+     * Método que decifra dados cifrados com qualquer uma das versões
+     *
+     * @param domainKey chave do domínio
+     * @param params    parâmetros guardados com os dados
+     * @param data      dados cifrados
+     * @return dados decifrados
+     * @throws GeneralSecurityException se os dados não puderem ser decifrados
+     */
+    public static byte[] decrypt(Key domainKey, byte[] params, byte[] data) throws GeneralSecurityException {
+        if (params == null || data == null) {
+            throw new GeneralSecurityException("Missing cipher parameters");
+        }
+        return decrypt(domainKey, ByteBuffer.wrap(params), ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Método que decifra dados cifrados com qualquer uma das versões,
+     * diretamente de vistas sobre uma resposta (TemperatureTable). As posições
+     * dos buffers não são alteradas
+     *
+     * @param domainKey chave do domínio
+     * @param params    parâmetros guardados com os dados
+     * @param data      dados cifrados
+     * @return dados decifrados
+     * @throws GeneralSecurityException se os dados não puderem ser decifrados
+     */
+    public static byte[] decrypt(Key domainKey, ByteBuffer params, ByteBuffer data)
+            throws GeneralSecurityException {
+        Cipher cipher;
+        if (suiteOf(params) == SUITE_GCM) {
+            byte[] nonce = new byte[NONCE_LENGTH];
+            params.get(params.position() + 2, nonce);
+            cipher = GCM.get();
+            cipher.init(Cipher.DECRYPT_MODE, dataKey(domainKey), new GCMParameterSpec(TAG_BITS, nonce));
+        } else {
+            PbeKey key = pbeKey(domainKey, params);
+            cipher = CBC.get();
+            cipher.init(Cipher.DECRYPT_MODE, key.key, new IvParameterSpec(key.iv));
+        }
+        ByteBuffer out = ByteBuffer.allocate(cipher.getOutputSize(data.remaining()));
+        cipher.doFinal(data.duplicate(), out);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static int suiteOf(ByteBuffer params) {
+        int at = params.position();
+        return params.remaining() == 2 + NONCE_LENGTH && params.get(at) == MAGIC && params.get(at + 1) == SUITE_GCM
+                ? SUITE_GCM
+                : SUITE_PBE;
+    }
+
+    /**
+     * Método que retorna a chave AES derivada da password do domínio com o
+     * salt e as iterações de uma temperatura PBE, e o IV da temperatura
+     *
+     * @param domainKey chave do domínio (PBE)
+     * @param params    parâmetros da temperatura, também usados como chave da
+     *                  cache
+     * @return chave AES e IV da temperatura
+     * @throws GeneralSecurityException
+     */
+    private static PbeKey pbeKey(Key domainKey, ByteBuffer params) throws GeneralSecurityException {
+        PbeKey cached = PBE_KEYS.get(params);
+        if (cached != null && cached.domainKey.equals(domainKey)) {
+            return cached;
+        }
+        byte[] encoded = new byte[params.remaining()];
+        params.get(params.position(), encoded);
+        AlgorithmParameters p = AlgorithmParameters.getInstance(PBE_CIPHER);
+        try {
+            p.init(encoded);
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Invalid cipher parameters", e);
+        }
+        PBEParameterSpec spec = p.getParameterSpec(PBEParameterSpec.class);
+        if (!(spec.getParameterSpec() instanceof IvParameterSpec)) {
+            throw new GeneralSecurityException("Invalid cipher parameters");
+        }
+        PbeKey key = new PbeKey(domainKey,
+                derive(domainKey, spec.getSalt(), spec.getIterationCount(), PBE_KEY_BITS),
+                ((IvParameterSpec) spec.getParameterSpec()).getIV());
+        if (PBE_KEYS.size() >= MAX_PBE_KEYS) {
+            // só acontece com muitos domínios grandes, volta a derivar conforme forem lidas
+            PBE_KEYS.clear();
+        }
+        PBE_KEYS.put(ByteBuffer.wrap(encoded), key);
+        return key;
+    }
+
+    /**
+     * Método que retorna a chave AES de dados de um domínio, derivada da
+     * password do domínio só da primeira vez que a chave é usada
+     *
+     * @param domainKey chave do domínio (PBE)
+     * @return chave de dados
+     * @throws GeneralSecurityException
+     */
+    public static SecretKey dataKey(Key domainKey) throws GeneralSecurityException {
+        SecretKey key = DATA_KEYS.get(domainKey);
+        if (key == null) {
+            key = derive(domainKey, DATA_KEY_SALT, DATA_KEY_ITERATIONS, DATA_KEY_BITS);
+            DATA_KEYS.put(domainKey, key);
+        }
+        return key;
+    }
+
+    /**
+     * Método que deriva uma chave AES da password do domínio com PBKDF2
+     *
+     * @param domainKey  chave do domínio (PBE)
+     * @param salt       salt
+     * @param iterations iterações
+     * @param bits       tamanho da chave
+     * @return chave AES
+     * @throws GeneralSecurityException
+     */
+    private static SecretKey derive(Key domainKey, byte[] salt, int iterations, int bits)
+            throws GeneralSecurityException {
+        char[] password;
+        if (domainKey instanceof PBEKey) {
+            password = ((PBEKey) domainKey).getPassword();
+        } else {
+            // a chave PBE do SunJCE codifica a password em ASCII
+            byte[] encoded = domainKey.getEncoded();
+            password = new char[encoded.length];
+            for (int i = 0; i < encoded.length; i++) {
+                password[i] = (char) (encoded[i] & 0xFF);
+            }
+        }
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        byte[] derived = factory.generateSecret(new PBEKeySpec(password, salt, iterations, bits)).getEncoded();
+        return new SecretKeySpec(derived, "AES");
+    }
+
+    private static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(transformation + " is not available", e);
+        }
+    }
+}
@@ -1,5 +1,10 @@
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Objects;
 
 /**
  * Classe que representa os dados de um dispositivo
@@ -10,69 +15,171 @@ import java.util.Arrays;
  */
 public final class DeviceData implements Serializable {
 
-    private byte[] temp;
-    private byte[] paramsTemp;
-    private byte[] image;
+    private volatile Reading reading; // temperatura mais recente, null se não há
+    private final TemperatureHistory history = new TemperatureHistory();
+    private transient BlobStore.Blob image; // imagem em memória, fora do heap
+    private String imageFile; // imagem guardada em disco em vez de em memória
     private byte[] paramsImage;
+    private String imageCompression; // compressão aplicada antes da cifra, null se nenhuma
+
+    /**
+     * Leitura de temperatura imutável. Uma leitura nova substitui a anterior
+     * com uma só escrita da referência, por isso quem lê getReading recebe
+     * sempre a cifra com os seus parâmetros, sem precisar de locks. O
+     * timestamp é sempre o instante em que o servidor recebeu a leitura, seja
+     * de um ET ou de um ET_BATCH
+     */
+    public static final class Reading implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] temp;
+        private final byte[] params;
+        private final long timestamp;
+        private final long deviceTimestamp;
+        private final long version;
+
+        /**
+         * Construtor de uma leitura
+         * 
+         * @param temp      temperatura cifrada
+         * @param params    parametros da cifra
+         * @param timestamp instante em que o servidor recebeu a leitura, em
+         *                  milissegundos (0 se não for conhecido)
+         * @param version   versão do domínio em que a leitura foi registada
+         */
+        public Reading(byte[] temp, byte[] params, long timestamp, long version) {
+            this(temp, params, timestamp, 0, version);
+        }
+
+        /**
+         * Construtor de uma leitura com o instante indicado pelo dispositivo
+         * 
+         * @param temp            temperatura cifrada
+         * @param params          parametros da cifra
+         * @param timestamp       instante em que o servidor recebeu a leitura,
+         *                        em milissegundos (0 se não for conhecido)
+         * @param deviceTimestamp instante indicado pelo dispositivo (0 se não o
+         *                        indicou). Só informativo: o relógio do
+         *                        dispositivo não ordena as leituras
+         * @param version         versão do domínio em que a leitura foi
+         *                        registada
+         */
+        public Reading(byte[] temp, byte[] params, long timestamp, long deviceTimestamp, long version) {
+            this.temp = temp;
+            this.params = params;
+            this.timestamp = timestamp;
+            this.deviceTimestamp = deviceTimestamp;
+            this.version = version;
+        }
+
+        public byte[] getTemp() {
+            return temp;
+        }
+
+        public byte[] getParams() {
+            return params;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getDeviceTimestamp() {
+            return deviceTimestamp;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
 
     /**
      * Construtor de um objeto DeviceData vazio
      */
     public DeviceData() {
-        this.temp = null;
+        this.reading = null;
         this.image = null;
     }
 
-    public DeviceData(byte[] temp, byte[] image) {
-        this.temp = temp;
+    public DeviceData(byte[] temp, BlobStore.Blob image) {
+        this.reading = temp == null ? null : new Reading(temp, null, 0, 0);
         this.image = image;
     }
 
     /**
-     * Metodo que retorna a temperatura do dispositivo em bytes
+     * Metodo que retorna a temperatura mais recente do dispositivo
      * 
-     * @return Temperatura do dispositivo
+     * @return leitura, ou null se o dispositivo ainda não tem temperatura
      */
-    public byte[] getTemp() {
-        return temp;
+    public Reading getReading() {
+        return reading;
     }
 
     /**
-     * Metodo que retorna os parametros da temperatura do dispositivo em bytes
+     * Metodo que retorna o histórico das temperaturas do dispositivo
      * 
-     * @return parametros da temperatura do dispositivo
+     * @return histórico, com as leituras mais antigas primeiro
      */
-    public byte[] getTempParams() {
-        return paramsTemp;
+    public TemperatureHistory getHistory() {
+        return history;
     }
 
     /**
-     * Método que guarda a temperatura do dispositivo em bytes
+     * Método que publica uma nova temperatura do dispositivo
      * 
-     * @param temp Temperatura do dispositivo
+     * @param reading leitura que substitui a anterior
      */
-    public void setTemp(byte[] temp) {
-        this.temp = temp;
+    public void setReading(Reading reading) {
+        this.reading = reading;
     }
 
     /**
-     * Método que guarda os parametros da temperatura do dispositivo em bytes
+     * Método que retorna uma cópia da imagem do dispositivo no heap. Se a
+     * imagem estiver guardada em disco é lida do ficheiro. Deve ser chamado
+     * com o readLock do domínio
      * 
-     * @param paramsTemp parametros da temperatura do dispositivo
+     * @return Imagem do dispositivo
      */
-    public void setTempParams(byte[] paramsTemp) {
-        this.paramsTemp = paramsTemp;
+    public byte[] getImage() {
+        if (image == null && imageFile != null) {
+            try {
+                return Files.readAllBytes(Paths.get(imageFile));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return image == null ? null : image.toByteArray();
     }
 
     /**
-     * Método que retorna a imagem do dispositivo
+     * Método que retorna a imagem do dispositivo guardada fora do heap. A
+     * referência pertence ao DeviceData: quem a usar depois de largar o
+     * readLock do domínio tem de obter outra com retain
      * 
-     * @return Imagem do dispositivo
+     * @return blob com a imagem, ou null se a imagem está em disco ou não existe
      */
-    public byte[] getImage() {
+    public BlobStore.Blob getImageBlob() {
         return image;
     }
 
+    /**
+     * Método que indica se o dispositivo tem uma imagem
+     * 
+     * @return true se existe imagem, em memória ou em disco
+     */
+    public boolean hasImage() {
+        return image != null || imageFile != null;
+    }
+
+    /**
+     * Método que retorna o ficheiro onde está guardada a imagem do dispositivo
+     * 
+     * @return caminho do ficheiro, ou null se a imagem está em memória
+     */
+    public String getImageFile() {
+        return imageFile;
+    }
+
     /**
      * Metodo que retorna os parametros da imagem do dispositivo em bytes
      * 
@@ -83,12 +190,43 @@ public final class DeviceData implements Serializable {
     }
 
     /**
-     * Método que guarda a imagem do dispositivo em bytes
+     * Metodo que retorna a compressão aplicada à imagem antes de ser cifrada
      * 
-     * @param image Imagem do dispositivo
+     * @return nome da compressão, ou null se a imagem não foi comprimida
      */
-    public void setImage(byte[] image) {
+    public String getImageCompression() {
+        return imageCompression;
+    }
+
+    /**
+     * Método que guarda a imagem do dispositivo fora do heap. A imagem
+     * anterior, se estava em memória, é libertada
+     * 
+     * @param image Imagem do dispositivo, cuja referência passa a pertencer
+     *              ao DeviceData
+     */
+    public void setImage(BlobStore.Blob image) {
+        releaseImage();
         this.image = image;
+        this.imageFile = null;
+    }
+
+    /**
+     * Método que guarda a imagem do dispositivo num ficheiro, que é lido só
+     * quando é preciso. A imagem anterior, se estava em memória, é libertada
+     * 
+     * @param imageFile caminho do ficheiro com a imagem cifrada
+     */
+    public void setImageFile(String imageFile) {
+        releaseImage();
+        this.imageFile = imageFile;
+    }
+
+    private void releaseImage() {
+        if (image != null) {
+            image.release();
+            image = null;
+        }
     }
 
     /**
@@ -100,12 +238,26 @@ public final class DeviceData implements Serializable {
         this.paramsImage = paramsImage;
     }
 
+    /**
+     * Método que guarda a compressão aplicada à imagem antes de ser cifrada
+     * 
+     * @param imageCompression nome da compressão, ou null se nenhuma
+     */
+    public void setImageCompression(String imageCompression) {
+        this.imageCompression = imageCompression;
+    }
+
+    private byte[] temp() {
+        Reading r = reading;
+        return r == null ? null : r.getTemp();
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
         int result = 1;
-        result = prime * result + Arrays.hashCode(temp);
-        result = prime * result + Arrays.hashCode(image);
+        result = prime * result + Arrays.hashCode(temp());
+        result = prime * result + Objects.hashCode(image);
         return result;
     }
 
@@ -118,16 +270,17 @@ public final class DeviceData implements Serializable {
         if (getClass() != obj.getClass())
             return false;
         DeviceData other = (DeviceData) obj;
-        if (!Arrays.equals(temp, other.temp))
+        if (!Arrays.equals(temp(), other.temp()))
             return false;
-        if (!Arrays.equals(image, other.image))
+        if (!Objects.equals(image, other.image))
             return false;
         return true;
     }
 
     @Override
     public String toString() {
-        return "[temp=" + Arrays.toString(temp) + ", image=" + Arrays.toString(image) + "]";
+        return "[temp=" + Arrays.toString(temp()) + ", image=" + (image == null ? null : image.length() + " bytes")
+                + "]";
     }
 
 }
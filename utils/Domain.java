@@ -1,11 +1,27 @@
 
 import java.io.Serializable;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Classe que representa um dominio
  * 
+ * Cada dominio tem o seu ReentrantReadWriteLock: as escritas (ET, EI, RD,
+ * ADD) em dominios diferentes não se bloqueiam umas às outras, e as leituras
+ * do mesmo dominio (RT, RI, MYDOMAINS) correm em paralelo, sem nunca verem um
+ * DeviceData a meio de uma escrita. Quem percorre getUsers ou lê os campos
+ * da imagem de um DeviceData deve ter o readLock.
+ * 
+ * As temperaturas não precisam de lock para serem lidas: cada uma é uma
+ * DeviceData.Reading imutável publicada com uma só escrita, os dispositivos
+ * estão num ConcurrentHashMap, e a versão do domínio só avança depois de a
+ * leitura com essa versão estar publicada. Assim um RT que lê primeiro o
+ * cursor e depois percorre os dispositivos vê todas as leituras até ao cursor
+ * 
  * @author Martim Pereira fc58223
  * @author João Pereira fc58189
  * @author Daniel Nunes fc58257
@@ -15,7 +31,16 @@ public class Domain implements Serializable {
     private final String name;
     private User owner;
     private HashMap<User, byte[]> users;
-    private HashMap<String, DeviceData> devices;
+    private HashMap<String, byte[]> keysByUserId; // users indexado pelo nome
+    private ConcurrentHashMap<String, DeviceData> devices;
+
+    // cada alteração de uma temperatura incrementa a versão do domínio; a
+    // época muda sempre que o domínio é carregado, para invalidar os cursores
+    // de uma execução anterior do servidor
+    private final String epoch = Long.toHexString(Utils.generateNonce());
+    private volatile long version = 0;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     /**
      * Construtor de um dominio
@@ -27,7 +52,8 @@ public class Domain implements Serializable {
         this.name = name;
         this.owner = owner;
         this.users = new HashMap<>();
-        this.devices = new HashMap<>();
+        this.keysByUserId = new HashMap<>();
+        this.devices = new ConcurrentHashMap<>();
     }
 
     /**
@@ -37,12 +63,30 @@ public class Domain implements Serializable {
      * @return Chave do utilizador
      */
     public byte[] getKeyByUserId(String username) {
-        for (User u : users.keySet()) {
-            if (u.getUserId().equals(username)) {
-                return users.get(u);
-            }
+        lock.readLock().lock();
+        try {
+            return keysByUserId.get(username);
+        } finally {
+            lock.readLock().unlock();
         }
-        return null;
+    }
+
+    /**
+     * Metodo que retorna o lock de leitura do dominio
+     * 
+     * @return lock partilhado pelas leituras
+     */
+    public Lock readLock() {
+        return lock.readLock();
+    }
+
+    /**
+     * Metodo que retorna o lock de escrita do dominio
+     * 
+     * @return lock exclusivo das escritas
+     */
+    public Lock writeLock() {
+        return lock.writeLock();
     }
 
     /**
@@ -50,7 +94,7 @@ public class Domain implements Serializable {
      * 
      * @return Lista de dispositivos
      */
-    public HashMap<String, DeviceData> getDevices() {
+    public Map<String, DeviceData> getDevices() {
         return devices;
     }
 
@@ -64,7 +108,8 @@ public class Domain implements Serializable {
     }
 
     /**
-     * Metodo que retorna a lista de utilizadores
+     * Metodo que retorna a lista de utilizadores. Deve ser percorrida com o
+     * readLock
      * 
      * @return Lista de utilizadores
      */
@@ -77,40 +122,190 @@ public class Domain implements Serializable {
      * @ensures this.users.contains(user)
      */
     public void addUser(User user, byte[] domainKey) {
-        this.users.put(user, domainKey);
+        lock.writeLock().lock();
+        try {
+            this.users.put(user, domainKey);
+            this.keysByUserId.put(user.getUserId(), domainKey);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
-     * Metodo que adiciona um dispositivo ao dominio
+     * Metodo que adiciona um dispositivo ao dominio. Um dispositivo que já
+     * pertence ao dominio mantém a sua imagem, a última temperatura e o
+     * histórico
      * 
      * @param Device O device a ser adicionado
      */
     public void registerDevice(String device) {
-        this.devices.put(device, new DeviceData());
+        lock.writeLock().lock();
+        try {
+            this.devices.putIfAbsent(device, new DeviceData());
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
-     * Metodo que regista uma temperatura num dispositivo
+     * Metodo que repõe a temperatura de um dispositivo guardada em disco, sem
+     * a acrescentar ao histórico
      * 
      * @param device Nome do dispositivo
      * @param temp   Temperatura a ser registada
      * @param params Parametros da temperatura
      */
     public void registerTempToDevice(String device, byte[] temp, byte[] params) {
-        this.devices.get(device).setTemp(temp);
-        this.devices.get(device).setTempParams(params);
+        lock.writeLock().lock();
+        try {
+            publishReading(this.devices.get(device), temp, params, 0, 0);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
-     * Metodo que regista uma imagem num dispositivo
+     * Metodo que regista uma temperatura num dispositivo e no seu histórico
+     * 
+     * @param device    Nome do dispositivo
+     * @param temp      Temperatura a ser registada
+     * @param params    Parametros da temperatura
+     * @param timestamp Instante em que o servidor recebeu a temperatura, em
+     *                  milissegundos
+     */
+    public void registerTempToDevice(String device, byte[] temp, byte[] params, long timestamp) {
+        lock.writeLock().lock();
+        try {
+            DeviceData data = this.devices.get(device);
+            publishReading(data, temp, params, timestamp, 0);
+            data.getHistory().append(timestamp, temp, params);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Metodo que regista várias temperaturas de um dispositivo com uma única
+     * aquisição do lock do domínio. As leituras são ordenadas pelo relógio do
+     * servidor, como as do ET: o lote é aplicado por inteiro, pela ordem em
+     * que o dispositivo as enviou, e a última fica como a atual. Entram todas
+     * no histórico com o instante em que o lote foi recebido; os instantes do
+     * dispositivo são só informativos
+     * 
+     * @param device     Nome do dispositivo
+     * @param timestamps Instantes das leituras indicados pelo dispositivo, em
+     *                   milissegundos
+     * @param temps      Temperaturas cifradas, uma por leitura
+     * @param params     Parametros de cada temperatura
+     * @param received   Instante em que o servidor recebeu o lote
+     * @return número de leituras aplicadas
+     */
+    public int registerTempBatchToDevice(String device, List<Long> timestamps, List<byte[]> temps,
+            List<byte[]> params, long received) {
+        lock.writeLock().lock();
+        try {
+            DeviceData data = this.devices.get(device);
+            int last = timestamps.size() - 1;
+            if (last < 0) {
+                return 0;
+            }
+            for (int i = 0; i <= last; i++) {
+                data.getHistory().append(received, temps.get(i), params.get(i));
+            }
+            publishReading(data, temps.get(last), params.get(last), received, timestamps.get(last));
+            return last + 1;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Método que publica a leitura atual de um dispositivo. Deve ser chamado
+     * com o writeLock; a leitura é publicada antes de a versão avançar
+     */
+    private void publishReading(DeviceData data, byte[] temp, byte[] params, long timestamp,
+            long deviceTimestamp) {
+        long next = version + 1;
+        data.setReading(new DeviceData.Reading(temp, params, timestamp, deviceTimestamp, next));
+        version = next;
+    }
+
+    /**
+     * Metodo que retorna o cursor do estado atual das temperaturas, no formato
+     * epoca:versao
+     * 
+     * @return cursor a devolver com o RT
+     */
+    public String getCursor() {
+        return epoch + ":" + version;
+    }
+
+    /**
+     * Metodo que retorna a versão a partir da qual um cursor pede as
+     * alterações
+     * 
+     * @param cursor cursor recebido num RT
+     * @return versão do cursor, ou -1 se o cursor for de outra época (por
+     *         exemplo de antes de o servidor reiniciar) e é preciso enviar
+     *         todas as temperaturas
+     * @throws IllegalArgumentException se o cursor for desta época mas de uma
+     *                                  versão que ainda não existe
+     */
+    public long cursorVersion(String cursor) {
+        int sep = cursor == null ? -1 : cursor.indexOf(':');
+        if (sep < 0 || !cursor.substring(0, sep).equals(epoch)) {
+            return -1;
+        }
+        long cursorVersion;
+        try {
+            cursorVersion = Long.parseLong(cursor.substring(sep + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        if (cursorVersion < 0 || cursorVersion > version) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return cursorVersion;
+    }
+
+    /**
+     * Metodo que regista uma imagem guardada fora do heap num dispositivo. A
+     * imagem anterior é libertada
      * 
      * @param device Nome do dispositivo
-     * @param image  Imagem a ser registada
+     * @param image  Imagem a ser registada, cuja referência passa a pertencer
+     *               ao dispositivo
      * @param params Parametros da imagem
      */
-    public void registerImageToDevice(String device, byte[] image, byte[] params) {
-        this.devices.get(device).setImage(image);
-        this.devices.get(device).setImageParams(params);
+    public void registerImageToDevice(String device, BlobStore.Blob image, byte[] params) {
+        lock.writeLock().lock();
+        try {
+            this.devices.get(device).setImage(image);
+            this.devices.get(device).setImageParams(params);
+            this.devices.get(device).setImageCompression(null);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Metodo que regista num dispositivo uma imagem guardada em disco
+     * 
+     * @param device      Nome do dispositivo
+     * @param imageFile   Ficheiro com a imagem cifrada
+     * @param params      Parametros da imagem
+     * @param compression Compressão aplicada antes da cifra, ou null
+     */
+    public void registerImageFileToDevice(String device, String imageFile, byte[] params,
+            String compression) {
+        lock.writeLock().lock();
+        try {
+            this.devices.get(device).setImageFile(imageFile);
+            this.devices.get(device).setImageParams(params);
+            this.devices.get(device).setImageCompression(compression);
+        } finally {
+            lock.writeLock().unlock();
+        }
     }
 
     /**
@@ -138,13 +333,12 @@ public class Domain implements Serializable {
      * @return True se o user é membro do dominio e False caso contrário
      */
     public boolean hasUser(String user) {
-        Set<User> users = this.users.keySet();
-        for (User u : users) {
-            if (u.getUserId().equals(user)) {
-                return true;
-            }
+        lock.readLock().lock();
+        try {
+            return this.keysByUserId.containsKey(user);
+        } finally {
+            lock.readLock().unlock();
         }
-        return false;
     }
 
     /**
@@ -154,61 +348,35 @@ public class Domain implements Serializable {
      * @return True se o dispositivo está na lista e False caso contrário
      */
     public boolean hasDevice(String name) {
-        Set<String> devices = this.devices.keySet();
-        for (String d : devices) {
-            if (d.equals(name)) {
-                return true;
-            }
-        }
-        return false;
+        return this.devices.containsKey(name);
     }
 
     @Override
     public String toString() {
-        return name + ";" + owner + ";" + devices.keySet().toString() + ";" + users.keySet().toString();
+        lock.readLock().lock();
+        try {
+            return name + ";" + owner + ";" + devices.keySet().toString() + ";" + users.keySet().toString();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
+    /**
+     * O nome identifica o dominio: o hash não depende dos utilizadores nem dos
+     * dispositivos, que mudam enquanto o dominio está nos registos do servidor
+     */
     @Override
     public int hashCode() {
-        final int prime = 31;
-        int result = 1;
-        result = prime * result + ((name == null) ? 0 : name.hashCode());
-        result = prime * result + ((owner == null) ? 0 : owner.hashCode());
-        result = prime * result + ((users == null) ? 0 : users.hashCode());
-        result = prime * result + ((devices == null) ? 0 : devices.hashCode());
-        return result;
+        return name.hashCode();
     }
 
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
             return true;
-        if (obj == null)
-            return false;
-        if (getClass() != obj.getClass())
-            return false;
-        Domain other = (Domain) obj;
-        if (name == null) {
-            if (other.name != null)
-                return false;
-        } else if (!name.equals(other.name))
-            return false;
-        if (owner == null) {
-            if (other.owner != null)
-                return false;
-        } else if (!owner.equals(other.owner))
-            return false;
-        if (users == null) {
-            if (other.users != null)
-                return false;
-        } else if (!users.equals(other.users))
-            return false;
-        if (devices == null) {
-            if (other.devices != null)
-                return false;
-        } else if (!devices.equals(other.devices))
+        if (obj == null || getClass() != obj.getClass())
             return false;
-        return true;
+        return name.equals(((Domain) obj).name);
     }
 
 }
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache do SHA-256 de ficheiros, usada na verificação do executável. O digest
+ * só é recalculado quando a data de modificação ou o tamanho do ficheiro mudam.
+ * Opcionalmente a cache é guardada num ficheiro, para ser reaproveitada entre
+ * execuções do programa
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class FileDigestCache {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Entrada da cache
+     */
+    private static class Entry {
+        final long modified;
+        final long size;
+        final byte[] digest;
+
+        Entry(long modified, long size, byte[] digest) {
+            this.modified = modified;
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Path store;
+
+    /**
+     * Construtor de uma FileDigestCache
+     *
+     * @param store ficheiro onde a cache é guardada, ou null para a manter só em
+     *              memória
+     */
+    public FileDigestCache(Path store) {
+        this.store = store;
+        if (store != null && Files.exists(store)) {
+            load();
+        }
+    }
+
+    /**
+     * Método que retorna o SHA-256 de um ficheiro, calculando-o só se o ficheiro
+     * mudou desde a última vez
+     *
+     * @param file ficheiro
+     * @return digest SHA-256 do conteúdo do ficheiro
+     * @throws IOException
+     * @throws NoSuchAlgorithmException
+     */
+    public byte[] digest(Path file) throws IOException, NoSuchAlgorithmException {
+        String key = file.toAbsolutePath().toString();
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        long size = Files.size(file);
+
+        Entry entry = entries.get(key);
+        if (entry != null && entry.modified == modified && entry.size == size) {
+            return entry.digest.clone();
+        }
+
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        updateDigest(md, file);
+        byte[] digest = md.digest();
+
+        entries.put(key, new Entry(modified, size, digest));
+        if (store != null) {
+            save();
+        }
+        return digest.clone();
+    }
+
+    /**
+     * Método que passa o conteúdo de um ficheiro por um MessageDigest, sem o
+     * carregar todo para memória
+     *
+     * @param md   digest a atualizar
+     * @param file ficheiro a ler
+     * @throws IOException
+     */
+    public static void updateDigest(MessageDigest md, Path file) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+        }
+    }
+
+    /**
+     * Método que carrega a cache do ficheiro (uma entrada por linha:
+     * caminho, data de modificação, tamanho e digest em hexadecimal)
+     */
+    private void load() {
+        try {
+            for (String line : Files.readAllLines(store, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                if (parts.length == 4) {
+                    entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                            Utils.hexToBytes(parts[3])));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // cache inválida, os digests são recalculados
+            entries.clear();
+        }
+    }
+
+    /**
+     * Método que guarda a cache no ficheiro
+     */
+    private synchronized void save() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            lines.add(e.getKey() + "\t" + entry.modified + "\t" + entry.size + "\t"
+                    + Utils.bytesToHex(entry.digest));
+        }
+        try {
+            Files.write(store, lines, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Error saving digest cache");
+        }
+    }
+}
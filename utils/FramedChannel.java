@@ -0,0 +1,104 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Canal de mensagens em que cada mensagem segue num frame independente,
+ * prefixado pelo seu tamanho. É o formato usado pelos dispositivos atuais em
+ * todos os modos do servidor (o modo NIO precisa de saber onde acaba cada
+ * mensagem sem bloquear uma thread). O conteúdo de cada frame é codificado
+ * com o codec negociado no início da ligação (ver MessageCodec)
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class FramedChannel implements MessageChannel {
+
+    /**
+     * Bytes enviados pelo servidor no início da ligação: o cabeçalho do
+     * ObjectOutputStream, que é o que os dispositivos originais esperam
+     */
+    public static final byte[] GREETING = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+    /**
+     * Bytes com que o dispositivo responde ao GREETING, em vez do cabeçalho do
+     * seu ObjectOutputStream, seguidos do codec mais recente que suporta
+     */
+    public static final byte[] CLIENT_MAGIC = { 'I', 'o', 'T', 'C' };
+
+    /**
+     * Bytes com que o servidor responde ao CLIENT_MAGIC, seguidos do codec
+     * escolhido
+     */
+    public static final byte[] MAGIC = { 'I', 'o', 'T', 'F' };
+
+    /**
+     * Tamanho máximo aceite para um frame
+     */
+    public static final int MAX_FRAME_SIZE = 128 * 1024 * 1024;
+
+    private DataInputStream in;
+    private DataOutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final int codec;
+
+    /**
+     * Construtor de um FramedChannel
+     *
+     * @param in    stream de entrada, já posicionada depois da negociação
+     * @param out   stream de saída
+     * @param codec codec negociado (MessageCodec.CODEC_*)
+     */
+    public FramedChannel(InputStream in, OutputStream out, int codec) {
+        this.in = new DataInputStream(in);
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        this.codec = codec;
+    }
+
+    @Override
+    public Message readMessage() {
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FRAME_SIZE) {
+                System.err.println("Invalid frame size: " + length);
+                return null;
+            }
+            byte[] frame = new byte[length];
+            in.readFully(frame);
+            return MessageCodec.decode(frame, codec);
+        } catch (IOException e) {
+            System.err.println("Error reading Message");
+        }
+        return null;
+    }
+
+    @Override
+    public void writeMessage(Message msg) {
+        writeLock.lock();
+        try {
+            byte[] frame = MessageCodec.encode(msg, codec);
+            out.writeInt(frame.length);
+            out.write(frame);
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Error writing Message");
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Error closing streams");
+        }
+    }
+}
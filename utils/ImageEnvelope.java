@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Classe que implementa a cifra em envelope das imagens: a imagem é cifrada
+ * uma só vez com uma chave de dados aleatória (AES/CBC), e só essa chave é
+ * cifrada com a chave de cada domínio. O servidor guarda assim a mesma imagem
+ * cifrada para todos os domínios, cada um com o seu envelope.
+ *
+ * O envelope ocupa o lugar dos parâmetros da imagem (imageParams.txt):
+ * MAGIC (1 byte), VERSION (1 byte), parâmetros da cifra PBE da chave
+ * (tamanho em 2 bytes + bytes), chave de dados cifrada (tamanho em 2 bytes +
+ * bytes) e o IV da imagem (16 bytes). Os parâmetros PBE das imagens antigas
+ * são DER e começam sempre por 0x30, por isso os dois formatos não se
+ * confundem
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class ImageEnvelope {
+
+    /**
+     * Cifra da imagem com a chave de dados
+     */
+    public static final String DATA_CIPHER = "AES/CBC/PKCS5Padding";
+
+    /**
+     * Cifra da chave de dados com a chave de cada domínio
+     */
+    public static final String KEY_CIPHER = "PBEWithHmacSHA256AndAES_128";
+
+    private static final byte MAGIC = 'E';
+    private static final byte VERSION = 1;
+    private static final int IV_LENGTH = 16;
+    private static final int DATA_KEY_BITS = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private ImageEnvelope() {
+    }
+
+    /**
+     * Método que gera uma chave de dados nova, usada numa só imagem
+     *
+     * @return chave AES aleatória
+     * @throws GeneralSecurityException
+     */
+    public static SecretKey newDataKey() throws GeneralSecurityException {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(DATA_KEY_BITS, RANDOM);
+        return generator.generateKey();
+    }
+
+    /**
+     * Método que gera o IV da imagem
+     *
+     * @return IV aleatório
+     */
+    public static byte[] newIv() {
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        return iv;
+    }
+
+    /**
+     * Método que cria o envelope de um domínio, cifrando a chave de dados com
+     * a chave do domínio
+     *
+     * @param dataKey   chave de dados da imagem
+     * @param iv        IV da imagem
+     * @param domainKey chave do domínio
+     * @return envelope, guardado no lugar dos parâmetros da imagem
+     * @throws GeneralSecurityException
+     */
+    public static byte[] seal(SecretKey dataKey, byte[] iv, Key domainKey) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(KEY_CIPHER);
+        cipher.init(Cipher.WRAP_MODE, domainKey);
+        byte[] wrapped = cipher.wrap(dataKey);
+        byte[] params;
+        try {
+            params = cipher.getParameters().getEncoded();
+        } catch (IOException e) {
+            throw new GeneralSecurityException("Cannot encode key parameters", e);
+        }
+        ByteBuffer envelope = ByteBuffer.allocate(2 + 2 + params.length + 2 + wrapped.length + IV_LENGTH);
+        envelope.put(MAGIC).put(VERSION);
+        envelope.putShort((short) params.length).put(params);
+        envelope.putShort((short) wrapped.length).put(wrapped);
+        envelope.put(iv);
+        return envelope.array();
+    }
+
+    /**
+     * Método que verifica se os parâmetros de uma imagem são um envelope
+     *
+     * @param params parâmetros da imagem
+     * @return true se a imagem foi cifrada com uma chave de dados
+     */
+    public static boolean isEnvelope(byte[] params) {
+        return params != null && params.length > 2 + IV_LENGTH && params[0] == MAGIC && params[1] == VERSION;
+    }
+
+    /**
+     * Método que decifra a chave de dados de um envelope com a chave do
+     * domínio
+     *
+     * @param envelope  envelope do domínio
+     * @param domainKey chave do domínio
+     * @return chave de dados da imagem
+     * @throws GeneralSecurityException se o envelope não for válido
+     */
+    public static SecretKey open(byte[] envelope, Key domainKey) throws GeneralSecurityException {
+        if (!isEnvelope(envelope)) {
+            throw new GeneralSecurityException("Invalid image envelope");
+        }
+        byte[] params;
+        byte[] wrapped;
+        AlgorithmParameters p = AlgorithmParameters.getInstance(KEY_CIPHER);
+        try {
+            ByteBuffer in = ByteBuffer.wrap(envelope, 2, envelope.length - 2 - IV_LENGTH);
+            params = new byte[in.getShort() & 0xFFFF];
+            in.get(params);
+            wrapped = new byte[in.getShort() & 0xFFFF];
+            in.get(wrapped);
+            p.init(params);
+        } catch (BufferUnderflowException | IOException e) {
+            throw new GeneralSecurityException("Invalid image envelope", e);
+        }
+        Cipher cipher = Cipher.getInstance(KEY_CIPHER);
+        cipher.init(Cipher.UNWRAP_MODE, domainKey, p);
+        return (SecretKey) cipher.unwrap(wrapped, "AES", Cipher.SECRET_KEY);
+    }
+
+    /**
+     * Método que retorna o IV da imagem guardado num envelope
+     *
+     * @param envelope envelope de um domínio
+     * @return IV da imagem
+     * @throws GeneralSecurityException se o envelope não for válido
+     */
+    public static byte[] iv(byte[] envelope) throws GeneralSecurityException {
+        if (!isEnvelope(envelope)) {
+            throw new GeneralSecurityException("Invalid image envelope");
+        }
+        byte[] iv = new byte[IV_LENGTH];
+        System.arraycopy(envelope, envelope.length - IV_LENGTH, iv, 0, IV_LENGTH);
+        return iv;
+    }
+
+    /**
+     * Método que cria a cifra da imagem a partir do envelope de um domínio
+     *
+     * @param mode      Cipher.ENCRYPT_MODE ou Cipher.DECRYPT_MODE
+     * @param envelope  envelope do domínio
+     * @param domainKey chave do domínio
+     * @param iv        IV a usar, ou null para o IV do envelope (em CBC, o
+     *                  último bloco cifrado é o IV do resto da imagem)
+     * @return cifra pronta a usar
+     * @throws GeneralSecurityException se o envelope não for válido
+     */
+    public static Cipher cipher(int mode, byte[] envelope, Key domainKey, byte[] iv)
+            throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(DATA_CIPHER);
+        cipher.init(mode, open(envelope, domainKey), new IvParameterSpec(iv != null ? iv : iv(envelope)));
+        return cipher;
+    }
+}
@@ -11,6 +11,9 @@ import java.util.List;
  */
 public class Message implements Serializable{
 
+    // fixo para que os dispositivos antigos continuem a ler as mensagens
+    private static final long serialVersionUID = 258984485286031132L;
+
     private MessageCode code;
     private String command;
     
@@ -37,6 +40,23 @@ public class Message implements Serializable{
 
     private byte[] domainKey;
 
+    // id do pedido, null nos pedidos sem pipelining
+    private Long requestId;
+
+    // instantes das leituras de um ET_BATCH
+    private List<Long> timestamps;
+
+    // compressão aplicada antes da cifra (null se não houver)
+    private String compression;
+
+    // época dos domínios do dispositivo (MYDOMAINS, ET, ET_BATCH e EI_OPEN)
+    private Long epoch;
+
+    // versão da cifra das temperaturas (DataCipher), pedida no MYDOMAINS
+    private Integer suite;
+
+    // versão da TemperatureTable que o dispositivo sabe ler (RT)
+    private Integer table;
 
     /**
      * Construtor de uma mensagem vazia
@@ -85,7 +105,13 @@ public class Message implements Serializable{
         this.params = null;
 
         this.param = null;
-        
+
+        this.requestId = null;
+        this.timestamps = null;
+        this.compression = null;
+        this.epoch = null;
+        this.suite = null;
+        this.table = null;
     }
 
     // ------------------------- Getters ------------------------- //
@@ -158,6 +184,30 @@ public class Message implements Serializable{
         return this.domainKey;
     }
 
+    public Long getRequestId() {
+        return this.requestId;
+    }
+
+    public List<Long> getTimestamps() {
+        return this.timestamps;
+    }
+
+    public String getCompression() {
+        return this.compression;
+    }
+
+    public Long getEpoch() {
+        return this.epoch;
+    }
+
+    public Integer getSuite() {
+        return this.suite;
+    }
+
+    public Integer getTable() {
+        return this.table;
+    }
+
     // ------------------------- Setters ------------------------- //
     public void setCode(MessageCode code) {
         this.code = code;
@@ -229,10 +279,34 @@ public class Message implements Serializable{
         this.domainKey = domainKey;
     }
 
+    public void setRequestId(Long requestId) {
+        this.requestId = requestId;
+    }
+
+    public void setTimestamps(List<Long> timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public void setEpoch(Long epoch) {
+        this.epoch = epoch;
+    }
+
+    public void setSuite(Integer suite) {
+        this.suite = suite;
+    }
+
+    public void setTable(Integer table) {
+        this.table = table;
+    }
+
     public String toString() {
         return "Message [code=" + code + ", command=" + command + ", data=" + data + ", fileName=" + fileName + ", size="
                 + size + ", domain=" + domain + ", user=" + user + ", dev_id=" + dev_id
                 + ", c2fa=" + c2fa + ", nonce=" + nonce + ", cert=" + cert + ", signature="
-                + signature + ", domains=" + domains + ", domainKey=" + domainKey + "]";
+                + signature + ", domains=" + domains + ", domainKey=" + domainKey + ", requestId=" + requestId + "]";
     }
 }
@@ -0,0 +1,56 @@
+/**
+ * Interface que representa um canal bidirecional de mensagens entre um
+ * dispositivo e o servidor, independente do transporte usado por baixo
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public interface MessageChannel {
+
+    /**
+     * Método que recebe uma mensagem do canal
+     *
+     * @return Message recebida ou null caso ocorra um erro ou o canal esteja
+     *         fechado
+     */
+    Message readMessage();
+
+    /**
+     * Método que envia uma mensagem pelo canal
+     *
+     * @param msg Message a enviar
+     */
+    void writeMessage(Message msg);
+
+    /**
+     * Método que descarta o estado partilhado entre mensagens (por exemplo as
+     * referências do ObjectOutputStream), para que objetos reutilizados sejam
+     * reenviados por inteiro
+     */
+    default void reset() {
+    }
+
+    /**
+     * Método que retorna quantos bytes já foram escritos mas ainda não foram
+     * enviados. Canais com escrita bloqueante retornam sempre 0
+     *
+     * @return bytes por enviar
+     */
+    default long pendingBytes() {
+        return 0;
+    }
+
+    /**
+     * Método chamado pelo servidor quando o cliente fica autenticado, antes de
+     * lhe enviar a confirmação. Canais que limitam o que aceitam de clientes
+     * ainda não autenticados deixam de o fazer a partir daqui
+     */
+    default void authenticated() {
+    }
+
+    /**
+     * Método que fecha o canal
+     */
+    void close();
+}
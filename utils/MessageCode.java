@@ -21,7 +21,8 @@ public enum MessageCode {
     NO_USER("NO_USER # esse user não existe"),
     NO_DATA("NO_DATA"),
     NO_ID("NOID # esse device id não existe"),
-    ERROR("Error");
+    ERROR("Error"),
+    STALE("STALE # os dominios do dispositivo mudaram");
 
     private final String description;
     
@@ -0,0 +1,514 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Codificação das mensagens dentro de um frame. O codec é negociado no início
+ * da ligação:
+ * - CODEC_SERIALIZED: a Message serializada com ObjectOutputStream
+ * - CODEC_BINARY: formato binário compacto, descrito abaixo
+ *
+ * Formato binário (versão 1):
+ * opcode (1 byte) [comando (string) se opcode == OP_CUSTOM]
+ * código (1 byte, 0 = sem código)
+ * flags (varint, um bit por cada campo presente)
+ * campos presentes, pela ordem dos bits
+ *
+ * Strings e byte[] são prefixados pelo tamanho em varint, as listas pelo
+ * número de elementos (cada elemento com tamanho + 1, sendo 0 um elemento
+ * null), o nonce ocupa 8 bytes e o certificado segue em X.509.
+ * Novos campos têm de ser acrescentados no fim, com um novo bit
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class MessageCodec {
+
+    /**
+     * Message serializada com ObjectOutputStream
+     */
+    public static final int CODEC_SERIALIZED = 0;
+
+    /**
+     * Formato binário compacto
+     */
+    public static final int CODEC_BINARY = 1;
+
+    /**
+     * Codec mais recente suportado por esta versão
+     */
+    public static final int CODEC_LATEST = CODEC_BINARY;
+
+    // comandos conhecidos, o opcode é o índice + 1 (não alterar a ordem)
+    private static final String[] COMMANDS = { "CREATE", "ADD", "RD", "ET", "EI", "RT", "RI", "MYDOMAINS",
+            "GET_USER_KEYS", "GET_CERTIFICATE", "EXIT", "AGAIN", "RESUME", "ATTEST_V2", "ATTEST_V2_OK",
+            "ET_BATCH", "EI_OPEN", "EI_CHUNK", "EI_COMMIT", "RI_OPEN", "RI_CHUNK", "RI_CLOSE",
+            "SUBSCRIBE", "UNSUBSCRIBE", "PUSH" };
+    private static final int OP_NONE = 0;
+    private static final int OP_CUSTOM = 0xFF;
+
+    private static final MessageCode[] CODES = MessageCode.values();
+
+    private static final int F_DATA = 1;
+    private static final int F_FILE_NAME = 1 << 1;
+    private static final int F_SIZE = 1 << 2;
+    private static final int F_DOMAIN = 1 << 3;
+    private static final int F_USER = 1 << 4;
+    private static final int F_DEV_ID = 1 << 5;
+    private static final int F_C2FA = 1 << 6;
+    private static final int F_NONCE = 1 << 7;
+    private static final int F_CERT = 1 << 8;
+    private static final int F_SIGNATURE = 1 << 9;
+    private static final int F_DOMAINS = 1 << 10;
+    private static final int F_DATA_LIST = 1 << 11;
+    private static final int F_PARAMS = 1 << 12;
+    private static final int F_PARAM = 1 << 13;
+    private static final int F_DOMAIN_KEY = 1 << 14;
+    private static final int F_REQUEST_ID = 1 << 15;
+    private static final int F_TIMESTAMPS = 1 << 16;
+    private static final int F_COMPRESSION = 1 << 17;
+    private static final int F_EPOCH = 1 << 18;
+    private static final int F_SUITE = 1 << 19;
+    private static final int F_TABLE = 1 << 20;
+
+    /**
+     * Método que codifica uma mensagem
+     *
+     * @param msg   mensagem a codificar
+     * @param codec codec negociado
+     * @return conteúdo do frame
+     * @throws IOException
+     */
+    public static byte[] encode(Message msg, int codec) throws IOException {
+        if (codec == CODEC_SERIALIZED) {
+            return Utils.serializeMessage(msg);
+        }
+        if (codec != CODEC_BINARY) {
+            throw new IOException("Unknown codec: " + codec);
+        }
+
+        Writer w = new Writer(estimateSize(msg));
+
+        int op = opcode(msg.getCommand());
+        w.writeByte(op);
+        if (op == OP_CUSTOM) {
+            w.writeString(msg.getCommand());
+        }
+        w.writeByte(msg.getCode() == null ? 0 : msg.getCode().ordinal() + 1);
+
+        int flags = 0;
+        flags |= msg.getData() != null ? F_DATA : 0;
+        flags |= msg.getFileName() != null ? F_FILE_NAME : 0;
+        flags |= msg.getSize() != null ? F_SIZE : 0;
+        flags |= msg.getDomain() != null ? F_DOMAIN : 0;
+        flags |= msg.getUser() != null ? F_USER : 0;
+        flags |= msg.getDevId() != null ? F_DEV_ID : 0;
+        flags |= msg.getC2FA() != null ? F_C2FA : 0;
+        flags |= msg.getNonce() != null ? F_NONCE : 0;
+        flags |= msg.getCertificate() != null ? F_CERT : 0;
+        flags |= msg.getSignature() != null ? F_SIGNATURE : 0;
+        flags |= msg.getDomains() != null ? F_DOMAINS : 0;
+        flags |= msg.getDataList() != null ? F_DATA_LIST : 0;
+        flags |= msg.getParams() != null ? F_PARAMS : 0;
+        flags |= msg.getParam() != null ? F_PARAM : 0;
+        flags |= msg.getDomainKey() != null ? F_DOMAIN_KEY : 0;
+        flags |= msg.getRequestId() != null ? F_REQUEST_ID : 0;
+        flags |= msg.getTimestamps() != null ? F_TIMESTAMPS : 0;
+        flags |= msg.getCompression() != null ? F_COMPRESSION : 0;
+        flags |= msg.getEpoch() != null ? F_EPOCH : 0;
+        flags |= msg.getSuite() != null ? F_SUITE : 0;
+        flags |= msg.getTable() != null ? F_TABLE : 0;
+        w.writeVarLong(flags);
+
+        if ((flags & F_DATA) != 0) {
+            w.writeBytes(msg.getData());
+        }
+        if ((flags & F_FILE_NAME) != 0) {
+            w.writeString(msg.getFileName());
+        }
+        if ((flags & F_SIZE) != 0) {
+            long size = msg.getSize();
+            w.writeVarLong((size << 1) ^ (size >> 63));
+        }
+        if ((flags & F_DOMAIN) != 0) {
+            w.writeString(msg.getDomain());
+        }
+        if ((flags & F_USER) != 0) {
+            w.writeString(msg.getUser());
+        }
+        if ((flags & F_DEV_ID) != 0) {
+            w.writeString(msg.getDevId());
+        }
+        if ((flags & F_C2FA) != 0) {
+            w.writeString(msg.getC2FA());
+        }
+        if ((flags & F_NONCE) != 0) {
+            w.writeLong(msg.getNonce());
+        }
+        if ((flags & F_CERT) != 0) {
+            try {
+                w.writeBytes(msg.getCertificate().getEncoded());
+            } catch (CertificateEncodingException e) {
+                throw new IOException("Error encoding certificate", e);
+            }
+        }
+        if ((flags & F_SIGNATURE) != 0) {
+            w.writeBytes(msg.getSignature());
+        }
+        if ((flags & F_DOMAINS) != 0) {
+            w.writeVarLong(msg.getDomains().size());
+            for (String domain : msg.getDomains()) {
+                w.writeNullableBytes(domain == null ? null : domain.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if ((flags & F_DATA_LIST) != 0) {
+            w.writeByteList(msg.getDataList());
+        }
+        if ((flags & F_PARAMS) != 0) {
+            w.writeByteList(msg.getParams());
+        }
+        if ((flags & F_PARAM) != 0) {
+            w.writeBytes(msg.getParam());
+        }
+        if ((flags & F_DOMAIN_KEY) != 0) {
+            w.writeBytes(msg.getDomainKey());
+        }
+        if ((flags & F_REQUEST_ID) != 0) {
+            w.writeVarLong(msg.getRequestId());
+        }
+        if ((flags & F_TIMESTAMPS) != 0) {
+            // diferença para o anterior em zigzag, leituras seguidas ocupam 1-2 bytes
+            w.writeVarLong(msg.getTimestamps().size());
+            long previous = 0;
+            for (long timestamp : msg.getTimestamps()) {
+                long delta = timestamp - previous;
+                w.writeVarLong((delta << 1) ^ (delta >> 63));
+                previous = timestamp;
+            }
+        }
+        if ((flags & F_COMPRESSION) != 0) {
+            w.writeString(msg.getCompression());
+        }
+        if ((flags & F_EPOCH) != 0) {
+            w.writeVarLong(msg.getEpoch());
+        }
+        if ((flags & F_SUITE) != 0) {
+            w.writeVarLong(msg.getSuite());
+        }
+        if ((flags & F_TABLE) != 0) {
+            w.writeVarLong(msg.getTable());
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * Método que descodifica uma mensagem
+     *
+     * @param frame conteúdo do frame
+     * @param codec codec negociado
+     * @return mensagem descodificada
+     * @throws IOException se o frame não for válido
+     */
+    public static Message decode(byte[] frame, int codec) throws IOException {
+        if (codec == CODEC_SERIALIZED) {
+            return Utils.deserializeMessage(frame);
+        }
+        if (codec != CODEC_BINARY) {
+            throw new IOException("Unknown codec: " + codec);
+        }
+
+        ByteBuffer in = ByteBuffer.wrap(frame);
+        Message msg = new Message();
+        try {
+            int op = in.get() & 0xFF;
+            if (op == OP_CUSTOM) {
+                msg.setCommand(readString(in));
+            } else if (op != OP_NONE) {
+                if (op > COMMANDS.length) {
+                    throw new IOException("Unknown opcode: " + op);
+                }
+                msg.setCommand(COMMANDS[op - 1]);
+            }
+
+            int code = in.get() & 0xFF;
+            if (code != 0) {
+                if (code > CODES.length) {
+                    throw new IOException("Unknown message code: " + code);
+                }
+                msg.setCode(CODES[code - 1]);
+            }
+
+            long flags = readVarLong(in);
+
+            if ((flags & F_DATA) != 0) {
+                msg.setData(readBytes(in));
+            }
+            if ((flags & F_FILE_NAME) != 0) {
+                msg.setFileName(readString(in));
+            }
+            if ((flags & F_SIZE) != 0) {
+                long zigzag = readVarLong(in);
+                msg.setSize((zigzag >>> 1) ^ -(zigzag & 1));
+            }
+            if ((flags & F_DOMAIN) != 0) {
+                msg.setDomain(readString(in));
+            }
+            if ((flags & F_USER) != 0) {
+                msg.setUser(readString(in));
+            }
+            if ((flags & F_DEV_ID) != 0) {
+                msg.setDevId(readString(in));
+            }
+            if ((flags & F_C2FA) != 0) {
+                msg.setC2FA(readString(in));
+            }
+            if ((flags & F_NONCE) != 0) {
+                msg.setNonce(in.getLong());
+            }
+            if ((flags & F_CERT) != 0) {
+                try {
+                    CertificateFactory cf = CertificateFactory.getInstance("X.509");
+                    msg.setCertificate(cf.generateCertificate(new ByteArrayInputStream(readBytes(in))));
+                } catch (CertificateException e) {
+                    throw new IOException("Error decoding certificate", e);
+                }
+            }
+            if ((flags & F_SIGNATURE) != 0) {
+                msg.setSignature(readBytes(in));
+            }
+            if ((flags & F_DOMAINS) != 0) {
+                int count = readLength(in);
+                List<String> domains = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] domain = readNullableBytes(in);
+                    domains.add(domain == null ? null : new String(domain, StandardCharsets.UTF_8));
+                }
+                msg.setDomains(domains);
+            }
+            if ((flags & F_DATA_LIST) != 0) {
+                msg.setDataList(readByteList(in));
+            }
+            if ((flags & F_PARAMS) != 0) {
+                msg.setParams(readByteList(in));
+            }
+            if ((flags & F_PARAM) != 0) {
+                msg.setParam(readBytes(in));
+            }
+            if ((flags & F_DOMAIN_KEY) != 0) {
+                msg.setDomainKey(readBytes(in));
+            }
+            if ((flags & F_REQUEST_ID) != 0) {
+                msg.setRequestId(readVarLong(in));
+            }
+            if ((flags & F_TIMESTAMPS) != 0) {
+                int count = readLength(in);
+                List<Long> timestamps = new ArrayList<>(count);
+                long previous = 0;
+                for (int i = 0; i < count; i++) {
+                    long zigzag = readVarLong(in);
+                    previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                    timestamps.add(previous);
+                }
+                msg.setTimestamps(timestamps);
+            }
+            if ((flags & F_COMPRESSION) != 0) {
+                msg.setCompression(readString(in));
+            }
+            if ((flags & F_EPOCH) != 0) {
+                msg.setEpoch(readVarLong(in));
+            }
+            if ((flags & F_SUITE) != 0) {
+                msg.setSuite((int) readVarLong(in));
+            }
+            if ((flags & F_TABLE) != 0) {
+                msg.setTable((int) readVarLong(in));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated frame");
+        }
+        return msg;
+    }
+
+    /**
+     * Método que retorna o opcode de um comando
+     *
+     * @param command comando
+     * @return opcode
+     */
+    private static int opcode(String command) {
+        if (command == null) {
+            return OP_NONE;
+        }
+        for (int i = 0; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(command)) {
+                return i + 1;
+            }
+        }
+        return OP_CUSTOM;
+    }
+
+    /**
+     * Método que estima o tamanho de uma mensagem codificada, para evitar
+     * cópias ao codificar mensagens com ficheiros
+     *
+     * @param msg mensagem
+     * @return tamanho aproximado em bytes
+     */
+    private static int estimateSize(Message msg) {
+        int size = 64;
+        size += msg.getData() != null ? msg.getData().length : 0;
+        size += msg.getParam() != null ? msg.getParam().length : 0;
+        size += msg.getDomainKey() != null ? msg.getDomainKey().length : 0;
+        size += msg.getSignature() != null ? msg.getSignature().length : 0;
+        if (msg.getDataList() != null) {
+            for (byte[] b : msg.getDataList()) {
+                size += (b == null ? 0 : b.length) + 5;
+            }
+        }
+        if (msg.getParams() != null) {
+            for (byte[] b : msg.getParams()) {
+                size += (b == null ? 0 : b.length) + 5;
+            }
+        }
+        if (msg.getTimestamps() != null) {
+            size += msg.getTimestamps().size() * 3;
+        }
+        return size;
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readLength(ByteBuffer in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid length: " + length);
+        }
+        return (int) length;
+    }
+
+    private static byte[] readBytes(ByteBuffer in) throws IOException {
+        byte[] bytes = new byte[readLength(in)];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] readNullableBytes(ByteBuffer in) throws IOException {
+        long length = readVarLong(in) - 1;
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > in.remaining()) {
+            throw new IOException("Invalid length: " + length);
+        }
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = readLength(in);
+        String s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return s;
+    }
+
+    private static List<byte[]> readByteList(ByteBuffer in) throws IOException {
+        int count = readLength(in);
+        List<byte[]> list = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            list.add(readNullableBytes(in));
+        }
+        return list;
+    }
+
+    /**
+     * Buffer de escrita que cresce conforme necessário
+     */
+    private static class Writer {
+        private byte[] buf;
+        private int pos = 0;
+
+        Writer(int capacity) {
+            this.buf = new byte[capacity];
+        }
+
+        private void ensure(int extra) {
+            if (pos + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + extra));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[pos++] = (byte) b;
+        }
+
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[pos++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buf[pos++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeNullableBytes(byte[] bytes) {
+            if (bytes == null) {
+                writeVarLong(0);
+                return;
+            }
+            writeVarLong(bytes.length + 1L);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, pos, bytes.length);
+            pos += bytes.length;
+        }
+
+        void writeString(String s) {
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void writeByteList(List<byte[]> list) {
+            writeVarLong(list.size());
+            for (byte[] b : list) {
+                writeNullableBytes(b);
+            }
+        }
+
+        byte[] toByteArray() {
+            return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+        }
+    }
+}
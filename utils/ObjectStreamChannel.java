@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Canal de mensagens original, em que as mensagens são escritas diretamente
+ * num único ObjectOutputStream/ObjectInputStream por ligação
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public class ObjectStreamChannel implements MessageChannel {
+
+    private ObjectInputStream in;
+    private ObjectOutputStream out;
+
+    /**
+     * Construtor de um ObjectStreamChannel
+     *
+     * @param in  stream de entrada
+     * @param out stream de saída
+     */
+    public ObjectStreamChannel(ObjectInputStream in, ObjectOutputStream out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public Message readMessage() {
+        return Utils.readMessage(this.in);
+    }
+
+    @Override
+    public void writeMessage(Message msg) {
+        Utils.writeMessage(msg, this.out);
+    }
+
+    @Override
+    public void reset() {
+        try {
+            this.out.reset();
+        } catch (IOException e) {
+            System.err.println("Error resetting stream");
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (in != null) {
+                in.close();
+            }
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing streams");
+        }
+    }
+}
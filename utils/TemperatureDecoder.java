@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Classe que decifra as temperaturas de um RT em paralelo, no ForkJoinPool
+ * comum, e as entrega pela ordem da resposta.
+ *
+ * As temperaturas são decifradas por blocos de CHUNK_SIZE: cada bloco é
+ * decifrado em paralelo (DataCipher reutiliza as cifras de cada thread e as
+ * chaves derivadas) e depois entregue por ordem, por isso quem escreve o
+ * ficheiro não precisa de ter todas as temperaturas em memória. Uma
+ * temperatura que não possa ser decifrada é indicada no System.err e não é
+ * entregue
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class TemperatureDecoder {
+
+    /**
+     * Temperaturas decifradas em paralelo antes de serem entregues
+     */
+    public static final int CHUNK_SIZE = 1024;
+
+    /**
+     * Recebe as temperaturas decifradas, pela ordem da resposta
+     */
+    public interface Sink {
+        /**
+         * @param index       posição da temperatura na resposta
+         * @param temperature temperatura decifrada
+         * @throws IOException se a temperatura não puder ser escrita
+         */
+        void accept(int index, float temperature) throws IOException;
+    }
+
+    private TemperatureDecoder() {
+    }
+
+    /**
+     * Decifra a temperatura de uma posição
+     */
+    private interface Entry {
+        float decrypt(int i) throws GeneralSecurityException;
+    }
+
+    /**
+     * Método que decifra as temperaturas de um domínio
+     *
+     * @param temps     temperaturas cifradas
+     * @param params    parâmetros de cada temperatura
+     * @param domainKey chave do domínio
+     * @param sink      recebe cada temperatura decifrada, pela ordem de temps
+     * @return número de temperaturas decifradas
+     * @throws IOException se o sink falhar
+     */
+    public static int decode(List<byte[]> temps, List<byte[]> params, Key domainKey, Sink sink)
+            throws IOException {
+        return decode(temps.size(),
+                i -> ByteBuffer.wrap(DataCipher.decrypt(domainKey, params.get(i), temps.get(i))).getFloat(), sink);
+    }
+
+    /**
+     * Método que decifra as temperaturas de uma resposta em colunas, lidas
+     * diretamente do buffer da resposta
+     *
+     * @param table     temperaturas e parâmetros de cada dispositivo
+     * @param domainKey chave do domínio
+     * @param sink      recebe cada temperatura decifrada, pela ordem da tabela
+     * @return número de temperaturas decifradas
+     * @throws IOException se o sink falhar
+     */
+    public static int decode(TemperatureTable table, Key domainKey, Sink sink) throws IOException {
+        return decode(table.size(),
+                i -> ByteBuffer.wrap(DataCipher.decrypt(domainKey, table.params(i), table.temp(i))).getFloat(), sink);
+    }
+
+    private static int decode(int total, Entry entry, Sink sink) throws IOException {
+        float[] values = new float[Math.min(CHUNK_SIZE, total)];
+        boolean[] decoded = new boolean[values.length];
+        int count = 0;
+        for (int start = 0; start < total; start += CHUNK_SIZE) {
+            int from = start;
+            int length = Math.min(CHUNK_SIZE, total - start);
+            IntStream.range(0, length).parallel().forEach(i -> {
+                try {
+                    values[i] = entry.decrypt(from + i);
+                    decoded[i] = true;
+                } catch (Exception e) {
+                    decoded[i] = false;
+                    System.err.println("Error decrypting temperature " + (from + i) + ": " + e.getMessage());
+                }
+            });
+            for (int i = 0; i < length; i++) {
+                if (decoded[i]) {
+                    sink.accept(from + i, values[i]);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Classe que guarda o histórico das temperaturas cifradas de um dispositivo,
+ * com o instante em que o servidor recebeu cada uma.
+ *
+ * As leituras ficam em arrays de tipos primitivos usados como buffers
+ * circulares, sem um objeto por leitura: os instantes num long[], a posição e
+ * os tamanhos de cada leitura em int[], e a cifra seguida dos parâmetros num
+ * byte[]. Os arrays crescem ao dobrar até ao limite do histórico e a partir
+ * daí cada leitura nova descarta as mais antigas. Os instantes nunca
+ * diminuem, por isso um intervalo é encontrado com uma pesquisa binária.
+ *
+ * Cada leitura tem um número de sequência (quantas leituras o dispositivo
+ * registou antes dela), usado para continuar a leitura de um intervalo por
+ * páginas
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class TemperatureHistory implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Número de leituras guardadas por dispositivo, se não for indicado outro
+     */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Limite dos bytes de cifra e parâmetros por leitura guardada. Uma
+     * temperatura cifrada ocupa 16 bytes e os seus parâmetros cerca de 91, e
+     * o array das cifras cresce só até ao tamanho médio das leituras
+     */
+    public static final int BYTES_PER_READING = 128;
+
+    private static final int INITIAL_READINGS = 16;
+    private static final int MAX_FIELD_LENGTH = 0xFFFF;
+
+    private static volatile int defaultCapacity = DEFAULT_CAPACITY;
+
+    private final int capacity;
+    private long[] times;
+    private int[] offsets;
+    private int[] lengths; // tamanho da cifra << 16 | tamanho dos parâmetros
+    private byte[] data;
+    private int head; // índice da leitura mais antiga
+    private int count;
+    private long firstSeq; // sequência da leitura mais antiga
+    private long lastTime;
+
+    /**
+     * Interface que recebe as leituras de um intervalo
+     */
+    public interface Visitor {
+        /**
+         * @param seq    sequência da leitura
+         * @param time   instante em que o servidor recebeu a leitura
+         * @param temp   temperatura cifrada (cópia)
+         * @param params parâmetros da cifra (cópia)
+         */
+        void accept(long seq, long time, byte[] temp, byte[] params);
+    }
+
+    /**
+     * Construtor de um histórico com o tamanho por omissão
+     */
+    public TemperatureHistory() {
+        this(defaultCapacity);
+    }
+
+    /**
+     * Construtor de um histórico. Os arrays só são criados na primeira leitura
+     *
+     * @param capacity número máximo de leituras guardadas, 0 para não guardar
+     */
+    public TemperatureHistory(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid history capacity");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Método que muda o número de leituras guardadas pelos históricos criados
+     * a partir daí
+     *
+     * @param capacity número de leituras por dispositivo, 0 para desligar
+     */
+    public static void setDefaultCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Invalid history capacity");
+        }
+        defaultCapacity = capacity;
+    }
+
+    /**
+     * Método que acrescenta uma leitura ao histórico, descartando as mais
+     * antigas se não houver espaço
+     *
+     * @param time   instante em que o servidor recebeu a leitura (se for
+     *               anterior à última leitura é usado o instante desta)
+     * @param temp   temperatura cifrada
+     * @param params parâmetros da cifra
+     * @return false se a leitura não foi guardada (histórico desligado ou
+     *         leitura demasiado grande)
+     */
+    public synchronized boolean append(long time, byte[] temp, byte[] params) {
+        int size = temp.length + params.length;
+        if (capacity == 0 || temp.length > MAX_FIELD_LENGTH || params.length > MAX_FIELD_LENGTH
+                || size > maxBytes()) {
+            return false;
+        }
+        if (times == null) {
+            int readings = Math.min(capacity, INITIAL_READINGS);
+            times = new long[readings];
+            offsets = new int[readings];
+            lengths = new int[readings];
+            data = new byte[Math.min(maxBytes(), readings * BYTES_PER_READING)];
+        }
+        if (count == capacity) {
+            removeOldest();
+        } else if (count == times.length) {
+            growIndex();
+        }
+        int position;
+        while ((position = freePosition(size)) < 0) {
+            if (data.length < maxBytes()) {
+                growData(size);
+            } else {
+                removeOldest();
+            }
+        }
+
+        int slot = (head + count) % times.length;
+        lastTime = Math.max(time, lastTime);
+        times[slot] = lastTime;
+        offsets[slot] = position;
+        lengths[slot] = temp.length << 16 | params.length;
+        System.arraycopy(temp, 0, data, position, temp.length);
+        System.arraycopy(params, 0, data, position + temp.length, params.length);
+        count++;
+        return true;
+    }
+
+    /**
+     * Método que percorre as leituras recebidas num intervalo, por ordem
+     *
+     * @param from    início do intervalo em milissegundos (inclusive)
+     * @param to      fim do intervalo em milissegundos (inclusive)
+     * @param fromSeq primeira sequência a visitar (0 para o intervalo todo)
+     * @param max     número máximo de leituras a visitar
+     * @param visitor recebe cada leitura
+     * @return sequência da próxima leitura do intervalo se o máximo foi
+     *         atingido, ou -1 se o intervalo foi todo visitado
+     */
+    public synchronized long range(long from, long to, long fromSeq, int max, Visitor visitor) {
+        int i = lowerBound(from);
+        if (fromSeq > firstSeq) {
+            i = (int) Math.max(i, Math.min(count, fromSeq - firstSeq));
+        }
+        int visited = 0;
+        for (; i < count; i++) {
+            int slot = (head + i) % times.length;
+            if (times[slot] > to) {
+                break;
+            }
+            if (visited == max) {
+                return firstSeq + i;
+            }
+            int offset = offsets[slot];
+            int tempLength = lengths[slot] >>> 16;
+            int paramsLength = lengths[slot] & MAX_FIELD_LENGTH;
+            visitor.accept(firstSeq + i, times[slot], Arrays.copyOfRange(data, offset, offset + tempLength),
+                    Arrays.copyOfRange(data, offset + tempLength, offset + tempLength + paramsLength));
+            visited++;
+        }
+        return -1;
+    }
+
+    /**
+     * Método que retorna o número de leituras guardadas
+     *
+     * @return número de leituras
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Método que retorna a memória ocupada pelos arrays do histórico
+     *
+     * @return bytes dos arrays, sem os cabeçalhos
+     */
+    public synchronized long allocatedBytes() {
+        if (times == null) {
+            return 0;
+        }
+        return (long) times.length * (Long.BYTES + 2 * Integer.BYTES) + data.length;
+    }
+
+    private int maxBytes() {
+        return (int) Math.min(Integer.MAX_VALUE - 8, (long) capacity * BYTES_PER_READING);
+    }
+
+    private int recordLength(int slot) {
+        return (lengths[slot] >>> 16) + (lengths[slot] & MAX_FIELD_LENGTH);
+    }
+
+    /**
+     * Método que retorna o índice (a partir da leitura mais antiga) da
+     * primeira leitura recebida a partir de um instante
+     */
+    private int lowerBound(long from) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[(head + mid) % times.length] < from) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Método que retorna a posição em data onde cabe uma leitura nova, a
+     * seguir à mais recente ou no início do array, ou -1 se não cabe
+     */
+    private int freePosition(int size) {
+        if (count == 0) {
+            return data.length >= size ? 0 : -1;
+        }
+        int start = offsets[head];
+        int last = (head + count - 1) % times.length;
+        int end = offsets[last] + recordLength(last);
+        if (start < end) {
+            if (data.length - end >= size) {
+                return end;
+            }
+            return start >= size ? 0 : -1;
+        }
+        // as leituras dão a volta ao array, o espaço livre está entre as duas pontas
+        return start - end >= size ? end : -1;
+    }
+
+    private void removeOldest() {
+        head = (head + 1) % times.length;
+        count--;
+        firstSeq++;
+    }
+
+    /**
+     * Método que duplica os arrays dos instantes, posições e tamanhos
+     */
+    private void growIndex() {
+        int readings = (int) Math.min(capacity, 2L * times.length);
+        long[] newTimes = new long[readings];
+        int[] newOffsets = new int[readings];
+        int[] newLengths = new int[readings];
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % times.length;
+            newTimes[i] = times[slot];
+            newOffsets[i] = offsets[slot];
+            newLengths[i] = lengths[slot];
+        }
+        times = newTimes;
+        offsets = newOffsets;
+        lengths = newLengths;
+        head = 0;
+    }
+
+    /**
+     * Método que aumenta o array das cifras, copiando as leituras seguidas
+     * para o início do novo array
+     */
+    private void growData(int size) {
+        long used = size;
+        for (int i = 0; i < count; i++) {
+            used += recordLength((head + i) % times.length);
+        }
+        // não passa do tamanho médio das leituras vezes o número de leituras,
+        // com folga para o espaço perdido quando as leituras dão a volta
+        long average = used / (count + 1);
+        long target = Math.max(used, Math.min(2L * data.length, average * (capacity + 2L)));
+        byte[] newData = new byte[(int) Math.min(maxBytes(), target)];
+        while (used > newData.length) {
+            used -= recordLength(head);
+            removeOldest();
+        }
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % times.length;
+            int length = recordLength(slot);
+            System.arraycopy(data, offsets[slot], newData, position, length);
+            offsets[slot] = position;
+            position += length;
+        }
+        data = newData;
+    }
+}
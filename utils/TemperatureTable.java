@@ -0,0 +1,237 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Classe que representa a resposta de um RT em colunas: os nomes dos
+ * dispositivos, as temperaturas cifradas e os parâmetros de cada uma, lado a
+ * lado pela mesma posição, sem serialização Java e sem depender da ordem de
+ * um HashMap.
+ *
+ * Formato (big endian): MAGIC (1 byte), VERSION (1 byte), número de entradas
+ * n (4 bytes), depois três tabelas de n + 1 offsets (4 bytes cada) para os
+ * nomes, as temperaturas e os parâmetros, e por fim as três arenas com os
+ * bytes de cada coluna seguidos. A entrada i ocupa [offset[i], offset[i + 1])
+ * da arena da sua coluna. A serialização Java começa sempre por 0xACED, por
+ * isso os dois formatos não se confundem.
+ *
+ * O servidor constrói a tabela com o Builder numa só passagem pelos
+ * dispositivos. O dispositivo lê-a com wrap diretamente do ByteBuffer da
+ * resposta: temp e params devolvem vistas sem copiar os bytes, e podem ser
+ * lidas por várias threads ao mesmo tempo
+ *
+ * @author Martim Pereira fc58223
+ * @author João Pereira fc58189
+ * @author Daniel Nunes fc58257
+ */
+public final class TemperatureTable {
+
+    /**
+     * Versão do formato, pedida pelo dispositivo no RT
+     */
+    public static final int VERSION = 1;
+
+    private static final byte MAGIC = 'T';
+    private static final int HEADER = 2 + Integer.BYTES;
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int[] arenas = new int[3];
+
+    private TemperatureTable(ByteBuffer buffer, int count) {
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    /**
+     * Método que verifica se os dados de uma resposta ao RT são uma tabela
+     *
+     * @param data dados da resposta
+     * @return true se estão neste formato, false se são um HashMap serializado
+     */
+    public static boolean isTable(byte[] data) {
+        return data != null && data.length >= HEADER && data[0] == MAGIC && data[1] == VERSION;
+    }
+
+    /**
+     * Método que lê uma tabela sem copiar os dados, verificando os offsets
+     *
+     * @param buffer dados da resposta, da posição atual até ao limite
+     * @return tabela
+     * @throws IOException se os dados não forem uma tabela válida
+     */
+    public static TemperatureTable wrap(ByteBuffer buffer) throws IOException {
+        ByteBuffer data = buffer.slice();
+        try {
+            if (data.get(0) != MAGIC || data.get(1) != VERSION) {
+                throw new IOException("Not a temperature table");
+            }
+            int count = data.getInt(2);
+            if (count < 0 || (long) HEADER + 3L * (count + 1) * Integer.BYTES > data.limit()) {
+                throw new IOException("Invalid temperature table size");
+            }
+            TemperatureTable table = new TemperatureTable(data, count);
+            int arena = HEADER + 3 * (count + 1) * Integer.BYTES;
+            for (int column = 0; column < 3; column++) {
+                table.arenas[column] = arena;
+                int previous = 0;
+                for (int i = 0; i <= count; i++) {
+                    int offset = table.offset(column, i);
+                    if (offset < previous || (i == 0 && offset != 0)) {
+                        throw new IOException("Invalid temperature table offsets");
+                    }
+                    previous = offset;
+                }
+                arena += previous;
+                if (arena < 0 || arena > data.limit()) {
+                    throw new IOException("Truncated temperature table");
+                }
+            }
+            return table;
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("Truncated temperature table", e);
+        }
+    }
+
+    /**
+     * Método que retorna o número de entradas
+     *
+     * @return número de dispositivos na tabela
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Método que retorna o nome do dispositivo de uma entrada
+     *
+     * @param i posição da entrada
+     * @return dispositivo no formato user:dev
+     */
+    public String device(int i) {
+        ByteBuffer name = column(0, i);
+        if (name.hasArray()) {
+            return new String(name.array(), name.arrayOffset() + name.position(), name.remaining(),
+                    StandardCharsets.UTF_8);
+        }
+        return StandardCharsets.UTF_8.decode(name).toString();
+    }
+
+    /**
+     * Método que retorna a temperatura cifrada de uma entrada
+     *
+     * @param i posição da entrada
+     * @return vista só de leitura sobre os bytes da tabela
+     */
+    public ByteBuffer temp(int i) {
+        return column(1, i).asReadOnlyBuffer();
+    }
+
+    /**
+     * Método que retorna os parâmetros da temperatura de uma entrada
+     *
+     * @param i posição da entrada
+     * @return vista só de leitura sobre os bytes da tabela
+     */
+    public ByteBuffer params(int i) {
+        return column(2, i).asReadOnlyBuffer();
+    }
+
+    private int offset(int column, int i) {
+        return buffer.getInt(HEADER + (column * (count + 1) + i) * Integer.BYTES);
+    }
+
+    private ByteBuffer column(int column, int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("Invalid entry " + i);
+        }
+        int start = offset(column, i);
+        // slice(index, length) não altera a posição, pode ser usado por várias threads
+        return buffer.slice(arenas[column] + start, offset(column, i + 1) - start);
+    }
+
+    /**
+     * Classe que constrói uma tabela, uma entrada de cada vez
+     */
+    public static final class Builder {
+        private final int[][] offsets = new int[3][];
+        private final byte[][] arenas = new byte[3][];
+        private final int[] used = new int[3];
+        private int count = 0;
+
+        /**
+         * Construtor de um Builder
+         *
+         * @param expected número de entradas esperado (as tabelas crescem se
+         *                 forem mais)
+         */
+        public Builder(int expected) {
+            for (int column = 0; column < 3; column++) {
+                offsets[column] = new int[Math.max(1, expected) + 1];
+                arenas[column] = new byte[Math.max(16, expected * 16)];
+            }
+        }
+
+        /**
+         * Método que acrescenta uma entrada
+         *
+         * @param device dispositivo no formato user:dev
+         * @param temp   temperatura cifrada
+         * @param params parâmetros da cifra
+         * @return este Builder
+         */
+        public Builder add(String device, byte[] temp, byte[] params) {
+            if (count + 1 == offsets[0].length) {
+                for (int column = 0; column < 3; column++) {
+                    offsets[column] = Arrays.copyOf(offsets[column], offsets[column].length * 2);
+                }
+            }
+            append(0, device.getBytes(StandardCharsets.UTF_8));
+            append(1, temp);
+            append(2, params);
+            count++;
+            return this;
+        }
+
+        /**
+         * Método que retorna o número de entradas acrescentadas
+         *
+         * @return número de entradas
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Método que escreve a tabela
+         *
+         * @return tabela no formato descrito em TemperatureTable
+         */
+        public byte[] build() {
+            int size = HEADER + 3 * (count + 1) * Integer.BYTES + used[0] + used[1] + used[2];
+            ByteBuffer out = ByteBuffer.allocate(size);
+            out.put(MAGIC).put((byte) VERSION).putInt(count);
+            for (int column = 0; column < 3; column++) {
+                for (int i = 0; i <= count; i++) {
+                    out.putInt(offsets[column][i]);
+                }
+            }
+            for (int column = 0; column < 3; column++) {
+                out.put(arenas[column], 0, used[column]);
+            }
+            return out.array();
+        }
+
+        private void append(int column, byte[] bytes) {
+            if (used[column] + bytes.length > arenas[column].length) {
+                arenas[column] = Arrays.copyOf(arenas[column],
+                        Math.max(arenas[column].length * 2, used[column] + bytes.length));
+            }
+            System.arraycopy(bytes, 0, arenas[column], used[column], bytes.length);
+            used[column] += bytes.length;
+            offsets[column][count + 1] = used[column];
+        }
+    }
+}
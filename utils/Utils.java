@@ -1,3 +1,4 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -6,22 +7,31 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.AlgorithmParameters;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
 import java.security.Key;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import javax.crypto.Cipher;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 
 /**
  * Classe que contem metodos static auxiliares
@@ -35,6 +45,12 @@ public final class Utils {
 
     private static final SecureRandom RANDOM = new SecureRandom();
 
+    /**
+     * Tamanho de cada parte nos uploads e downloads de imagens por partes
+     * (múltiplo do bloco das cifras)
+     */
+    public static final int IMAGE_CHUNK_SIZE = 64 * 1024;
+
     /**
      * Constructor vazio para impedir inicializacao
      */
@@ -96,7 +112,7 @@ public final class Utils {
      * @param fileName ficheiro a ser lido
      * @return array de bytes com o conteúdo do ficheiro ou null caso ocorra um erro
      */
-    public static synchronized byte[] getFileContents(String fileName) {
+    public static byte[] getFileContents(String fileName) {
 
         try (FileInputStream fis = new FileInputStream(fileName)) {
             long fileSize = fis.available();
@@ -132,40 +148,103 @@ public final class Utils {
      * @param byteArray HashMap a escrever em formato de array de bytes
      * @param fileName  nome do ficheiro onde escrever o HashMap
      */
-    public synchronized static void writeByteArrayToFile(byte[] byteArray, String fileName, Key domainKey,
+    public static void writeByteArrayToFile(byte[] byteArray, String fileName, Key domainKey,
             List<byte[]> params) {
-        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(byteArray));
-                Writer writer = new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8);
-                BufferedWriter bufferedWriter = new BufferedWriter(writer)) {
+        writeByteArrayToFile(byteArray, fileName, domainKey, params, false);
+    }
 
-            Object object = ois.readObject();
-            if (object instanceof HashMap) {
-                HashMap<?, ?> hashMap = (HashMap<?, ?>) object;
-                int counter = 0;
-                for (Map.Entry<?, ?> entry : hashMap.entrySet()) {
-                    if (entry.getKey() instanceof String && entry.getValue() instanceof byte[]) {
-                        String key = (String) entry.getKey();
-                        byte[] value = (byte[]) entry.getValue();
-
-                        AlgorithmParameters p = AlgorithmParameters.getInstance("PBEWithHmacSHA256AndAES_128");
-                        p.init(params.get(counter));
-                        counter++;
-
-                        Cipher cipher = Cipher.getInstance("PBEWithHmacSHA256AndAES_128");
-                        cipher.init(Cipher.DECRYPT_MODE, domainKey, p);
-                        value = cipher.doFinal(value);
-
-                        String s = key + " - " + Float.intBitsToFloat(ByteBuffer.wrap(value).getInt()) + "\n";
-                        bufferedWriter.write(s, 0, s.length());
+    /**
+     * Método que escreve as temperaturas de um RT num ficheiro, podendo juntar
+     * as entradas às que o ficheiro já tem (uma entrada nova substitui a linha
+     * do mesmo dispositivo). A resposta pode ser uma TemperatureTable, lida
+     * sem cópias, ou o HashMap serializado dos servidores antigos, com os
+     * parâmetros numa lista à parte pela ordem do HashMap. As temperaturas são
+     * decifradas em paralelo (TemperatureDecoder) e escritas pela ordem da
+     * resposta; sem merge são escritas à medida que são decifradas
+     * 
+     * @param byteArray TemperatureTable ou HashMap serializado
+     * @param fileName  nome do ficheiro onde escrever as temperaturas
+     * @param domainKey chave do domínio das temperaturas
+     * @param params    parâmetros de cada temperatura do HashMap (null com
+     *                  uma TemperatureTable)
+     * @param merge     true para manter as linhas que já estão no ficheiro
+     * @return número de temperaturas recebidas, ou -1 se a resposta não puder
+     *         ser lida
+     */
+    public static int writeByteArrayToFile(byte[] byteArray, String fileName, Key domainKey,
+            List<byte[]> params, boolean merge) {
+        Map<String, String> lines = new LinkedHashMap<>();
+        try {
+            if (merge && Files.exists(Paths.get(fileName))) {
+                for (String line : Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8)) {
+                    int sep = line.lastIndexOf(" - ");
+                    if (sep > 0) {
+                        lines.put(line.substring(0, sep), line);
                     }
                 }
-            } else {
-                System.out.println("Object is not a HashMap");
+            }
+        } catch (IOException e) {
+            System.err.println("Error in writeByteArrayToFile: " + e.getMessage());
+        }
+
+        try {
+            TemperatureTable table = TemperatureTable.isTable(byteArray)
+                    ? TemperatureTable.wrap(ByteBuffer.wrap(byteArray))
+                    : hashMapToTable(byteArray, params);
+
+            // PBE ou AES/GCM, conforme os parâmetros de cada temperatura
+            if (merge) {
+                // o ficheiro antigo só é substituído depois de decifrar as alterações
+                TemperatureDecoder.decode(table, domainKey, (i, temp) -> {
+                    String device = table.device(i);
+                    lines.put(device, device + " - " + temp);
+                });
+            }
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(fileName), StandardCharsets.UTF_8);
+                    BufferedWriter bufferedWriter = new BufferedWriter(writer)) {
+                if (merge) {
+                    for (String line : lines.values()) {
+                        bufferedWriter.write(line + "\n");
+                    }
+                } else {
+                    TemperatureDecoder.decode(table, domainKey,
+                            (i, temp) -> bufferedWriter.write(table.device(i) + " - " + temp + "\n"));
+                }
             }
 
             System.out.println("File written successfully: " + fileName);
+            return table.size();
         } catch (Exception e) {
             System.err.println("Error in writeByteArrayToFile: " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Método que converte a resposta ao RT de um servidor antigo (HashMap
+     * serializado, parâmetros pela ordem do HashMap) numa TemperatureTable
+     * 
+     * @param byteArray HashMap serializado
+     * @param params    parâmetros de cada temperatura
+     * @return tabela com as mesmas entradas
+     * @throws IOException            se a resposta não for um HashMap
+     * @throws ClassNotFoundException
+     */
+    private static TemperatureTable hashMapToTable(byte[] byteArray, List<byte[]> params)
+            throws IOException, ClassNotFoundException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(byteArray))) {
+            Object object = ois.readObject();
+            if (!(object instanceof HashMap)) {
+                throw new IOException("Object is not a HashMap");
+            }
+            HashMap<?, ?> hashMap = (HashMap<?, ?>) object;
+            TemperatureTable.Builder builder = new TemperatureTable.Builder(hashMap.size());
+            for (Map.Entry<?, ?> entry : hashMap.entrySet()) {
+                if (entry.getKey() instanceof String && entry.getValue() instanceof byte[]) {
+                    builder.add((String) entry.getKey(), (byte[]) entry.getValue(), params.get(builder.size()));
+                }
+            }
+            return TemperatureTable.wrap(ByteBuffer.wrap(builder.build()));
         }
     }
 
@@ -178,6 +257,39 @@ public final class Utils {
         return RANDOM.nextLong();
     }
 
+    /**
+     * Método que calcula a prova do executável da versão original do protocolo:
+     * SHA-256(nonce || executável). O ficheiro é lido por blocos
+     * 
+     * @param nonce nonce enviado pelo servidor
+     * @param file  executável
+     * @return hash a enviar/comparar
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public static byte[] execProofV1(Long nonce, Path file) throws IOException, GeneralSecurityException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(ByteBuffer.allocate(Long.BYTES).putLong(nonce).array());
+        FileDigestCache.updateDigest(md, file);
+        return md.digest();
+    }
+
+    /**
+     * Método que calcula a prova do executável da versão 2 do protocolo:
+     * HMAC-SHA256 do digest do executável com o nonce como chave. Como o digest
+     * não depende do nonce, pode ser guardado em cache
+     * 
+     * @param nonce  nonce enviado pelo servidor
+     * @param digest SHA-256 do executável
+     * @return HMAC a enviar/comparar
+     * @throws GeneralSecurityException
+     */
+    public static byte[] execProofV2(Long nonce, byte[] digest) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(ByteBuffer.allocate(Long.BYTES).putLong(nonce).array(), "HmacSHA256"));
+        return mac.doFinal(digest);
+    }
+
     /**
      * Método que gera um código aleatório de autenticação de 5 dígitos.
      * 
@@ -289,4 +401,102 @@ public final class Utils {
         }
     }
 
+    /**
+     * Método que serializa uma mensagem isoladamente, para ser enviada num frame
+     * 
+     * @param msg Message a serializar
+     * @return array de bytes com a mensagem serializada
+     * @throws IOException
+     */
+    public static byte[] serializeMessage(Message msg) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(msg);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Método que reconstroi uma mensagem serializada com serializeMessage
+     * 
+     * @param data array de bytes com a mensagem serializada
+     * @return Message reconstruida
+     * @throws IOException
+     */
+    public static Message deserializeMessage(byte[] data) throws IOException {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (Message) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Invalid Message frame", e);
+        }
+    }
+
+    /**
+     * Método que abre o canal de mensagens do lado do dispositivo: depois do
+     * GREETING do servidor anuncia o formato com frames e o codec mais recente
+     * suportado, e usa o codec escolhido pelo servidor
+     * 
+     * @param in  stream de entrada da socket
+     * @param out stream de saída da socket
+     * @return canal de mensagens com o codec negociado
+     * @throws IOException se o servidor não suportar o formato com frames
+     */
+    public static MessageChannel openChannel(InputStream in, OutputStream out) throws IOException {
+        BufferedInputStream bin = new BufferedInputStream(in);
+        byte[] greeting = bin.readNBytes(FramedChannel.GREETING.length);
+        if (!Arrays.equals(greeting, FramedChannel.GREETING)) {
+            throw new IOException("Unsupported server protocol");
+        }
+
+        out.write(FramedChannel.CLIENT_MAGIC);
+        out.write(MessageCodec.CODEC_LATEST);
+        out.flush();
+
+        byte[] head = bin.readNBytes(FramedChannel.MAGIC.length);
+        if (!Arrays.equals(head, FramedChannel.MAGIC)) {
+            throw new IOException("Unsupported server protocol");
+        }
+        int codec = bin.read();
+        if (codec < 0 || codec > MessageCodec.CODEC_LATEST) {
+            throw new IOException("Unsupported codec: " + codec);
+        }
+        return new FramedChannel(bin, out, codec);
+    }
+
+    /**
+     * Método que abre o canal de mensagens do lado do servidor. O servidor envia
+     * o cabeçalho do ObjectOutputStream (FramedChannel.GREETING) e deteta o
+     * formato do dispositivo a partir dos primeiros bytes que este responde:
+     * FramedChannel.CLIENT_MAGIC nos dispositivos atuais ou o cabeçalho do
+     * ObjectOutputStream nos dispositivos originais
+     * 
+     * @param in  stream de entrada da socket
+     * @param out stream de saída da socket
+     * @return canal de mensagens adequado ao dispositivo
+     * @throws IOException
+     */
+    public static MessageChannel acceptChannel(InputStream in, OutputStream out) throws IOException {
+        // o construtor envia o cabeçalho, que serve de GREETING
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.flush();
+
+        BufferedInputStream bin = new BufferedInputStream(in);
+        bin.mark(FramedChannel.CLIENT_MAGIC.length);
+        byte[] head = bin.readNBytes(FramedChannel.CLIENT_MAGIC.length);
+        if (Arrays.equals(head, FramedChannel.CLIENT_MAGIC)) {
+            int offered = bin.read();
+            if (offered < 0) {
+                throw new IOException("Connection closed during negotiation");
+            }
+            int codec = Math.min(offered, MessageCodec.CODEC_LATEST);
+            out.write(FramedChannel.MAGIC);
+            out.write(codec);
+            out.flush();
+            return new FramedChannel(bin, out, codec);
+        }
+        bin.reset();
+        ObjectInputStream ois = new ObjectInputStream(bin);
+        return new ObjectStreamChannel(ois, oos);
+    }
+
 }